@@ -0,0 +1,159 @@
+package com.btr.proxy.selector.misc;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*****************************************************************************
+ * A cache with a fixed max size and an expiry time per entry.
+ * <p>
+ * Reads are lock free: a lookup in a ConcurrentHashMap that marks the entry
+ * as used. Only inserts take a lock. When the cache is full a clock hand
+ * moves over the entries and removes the first one that is expired or not
+ * marked. Marked entries it passes lose their mark and get a second chance.
+ * Expired entries are not preferred over unmarked live ones, that would
+ * need a scan. This approximates LRU with constant amortized cost per
+ * insert instead of a scan of the whole cache. New entries start unmarked, so
+ * entries that are used only once are removed before the frequently used
+ * ones.
+ * </p>
+ ****************************************************************************/
+
+class BoundedCache<V> {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final ConcurrentHashMap<String, Node<V>> map;
+	private final int maxSize;
+
+	// Guarded by this
+	private Node<V>[] slots;
+	private int size;
+	private int hand;
+
+	private static final class Node<V> {
+		final String key;
+		final V value;
+		final long expireAt;
+		int slot;
+		volatile boolean used;
+
+		Node(String key, V value, long expireAt) {
+			this.key = key;
+			this.value = value;
+			this.expireAt = expireAt;
+		}
+
+		boolean isExpired(long now) {
+			return now - this.expireAt >= 0;
+		}
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 * @param maxSize the max number of entries, at least one is kept.
+	 ************************************************************************/
+
+	@SuppressWarnings("unchecked")
+	BoundedCache(int maxSize) {
+		super();
+		this.maxSize = Math.max(1, maxSize);
+		this.map = new ConcurrentHashMap<String, Node<V>>(Math.min(this.maxSize, INITIAL_CAPACITY));
+		this.slots = (Node<V>[]) new Node<?>[Math.min(this.maxSize, INITIAL_CAPACITY)];
+	}
+
+	/*************************************************************************
+	 * Gets a cached value.
+	 * @param key the key.
+	 * @param now the current time as returned by System.nanoTime().
+	 * @return the value, null if not found or expired.
+	 ************************************************************************/
+
+	V get(String key, long now) {
+		Node<V> node = this.map.get(key);
+		if (node == null || node.isExpired(now)) {
+			return null;
+		}
+		if (!node.used) {
+			node.used = true;
+		}
+		return node.value;
+	}
+
+	/*************************************************************************
+	 * Gets a cached value even if it has expired, as long as it was not
+	 * removed yet.
+	 * @param key the key.
+	 * @return the value, null if not found.
+	 ************************************************************************/
+
+	V getStale(String key) {
+		Node<V> node = this.map.get(key);
+		return node == null ? null : node.value;
+	}
+
+	/*************************************************************************
+	 * Adds or replaces a value. If the cache is full another entry is removed.
+	 * @param key the key.
+	 * @param value the value.
+	 * @param expireAt the expiry time as System.nanoTime() value.
+	 ************************************************************************/
+
+	synchronized void put(String key, V value, long expireAt) {
+		Node<V> node = new Node<V>(key, value, expireAt);
+		Node<V> old = this.map.get(key);
+		if (old != null) {
+			node.slot = old.slot;
+		} else if (this.size < this.maxSize) {
+			if (this.size == this.slots.length) {
+				this.slots = Arrays.copyOf(this.slots, (int) Math.min(this.maxSize, this.slots.length * 2L));
+			}
+			node.slot = this.size++;
+		} else {
+			node.slot = evict(System.nanoTime());
+		}
+		this.slots[node.slot] = node;
+		this.map.put(key, node);
+	}
+
+	/*************************************************************************
+	 * Moves the clock hand to the next entry to remove and removes it.
+	 * @param now the current time.
+	 * @return the free slot.
+	 ************************************************************************/
+
+	private int evict(long now) {
+		// After one round all marks are cleared, unless readers set them again.
+		for (int step = 0;; step++) {
+			int slot = this.hand;
+			this.hand = (slot + 1) % this.size;
+			Node<V> node = this.slots[slot];
+			if (node.used && !node.isExpired(now) && step < this.size) {
+				node.used = false;
+			} else {
+				this.map.remove(node.key, node);
+				return slot;
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Removes all entries.
+	 ************************************************************************/
+
+	synchronized void clear() {
+		this.map.clear();
+		Arrays.fill(this.slots, null);
+		this.size = 0;
+		this.hand = 0;
+	}
+
+	/*************************************************************************
+	 * Gets the number of entries, including expired ones not yet removed.
+	 * @return the number of entries.
+	 ************************************************************************/
+
+	int size() {
+		return this.map.size();
+	}
+
+}
@@ -7,11 +7,12 @@ import java.net.SocketAddress;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.btr.proxy.util.Logger;
 import com.btr.proxy.util.Logger.LogLevel;
@@ -21,33 +22,58 @@ import com.btr.proxy.util.Logger.LogLevel;
  * ProxySelector.
  * You can specify a maximum cache size and a "time to live" for positive
  * resolves.
+ * <p>
+ * If the delegate is an <code>ExpiringProxySelector</code> an entry expires
+ * at the latest when its result could change, e.g. at the end of a PAC
+ * <code>timeRange</code>. The "time to live" then only needs to cover the 
+ * other changes like a new PAC script and can be much longer.
+ * </p>
+ * <p>
+ * Results are cached per URI. If the delegate is a 
+ * <code>CacheKeyProvider</code> its key is used instead, e.g. the host for a
+ * PAC script that does not read the URL.
+ * </p>
+ * <p>
+ * Cache hits do not take a lock. When the cache is full a new result
+ * replaces an expired or a not recently used one, see 
+ * <code>BoundedCache</code>.
+ * </p>
+ * <p>
+ * Concurrent misses for the same key are coalesced: one thread asks the
+ * delegate, the others wait for its result. If an expired result is still
+ * cached, they wait at most the "max wait" time and then use the expired
+ * result instead.
+ * </p>
  * 
  * @author Bernd Rosstauscher (proxyvole@rosstauscher.de) Copyright 2009
  ****************************************************************************/
 
 public class BufferedProxySelector extends ProxySelector {
 	
+	// Limit for the expire time in nanoseconds to not overflow.
+	private static final long MAX_AGE_MILLIS = Long.MAX_VALUE / 4 / 1000 / 1000;
+	
+	/** Default time in milliseconds to wait for a running selection before an expired result is used. */
+	public static final long DEFAULT_MAX_WAIT = 1000;
+	
 	private ProxySelector delegate;
 	
-	private ConcurrentHashMap<String, CacheEntry> cache;
-	private int maxSize;
+	private BoundedCache<List<Proxy>> cache;
+	private ConcurrentHashMap<String, CompletableFuture<List<Proxy>>> running;
 	private long ttl;
+	private long maxWait;
 	
-	private static class CacheEntry {
-		List<Proxy> result;
-		long expireAt;
-		
-		public CacheEntry(List<Proxy> r, long expireAt) {
-			super();
-			this.result = new ArrayList<Proxy>(r.size());
-			this.result.addAll(r);
-			this.result = Collections.unmodifiableList(this.result);
-			this.expireAt = expireAt;
-		}
-		
-		public boolean isExpired() {
-			return System.nanoTime() >= this.expireAt;
-		}
+	/*************************************************************************
+	 * Constructor
+	 * 
+	 * @param maxSize the max size for the cache.
+	 * @param ttl the "time to live" for cache entries as amount in
+	 *            milliseconds.
+	 * @param delegate the delegate to use.
+	 ************************************************************************/
+	
+	public BufferedProxySelector(int maxSize, long ttl, ProxySelector delegate) {
+		this(maxSize, ttl, delegate, DEFAULT_MAX_WAIT);
 	}
 	
 	/*************************************************************************
@@ -57,14 +83,19 @@ public class BufferedProxySelector extends ProxySelector {
 	 * @param ttl the "time to live" for cache entries as amount in
 	 *            milliseconds.
 	 * @param delegate the delegate to use.
+	 * @param maxWait the time in milliseconds a thread waits for the same
+	 *            selection running on another thread before it uses the
+	 *            expired result. Without an expired result it waits until 
+	 *            the selection is done.
 	 ************************************************************************/
 	
-	public BufferedProxySelector(int maxSize, long ttl, ProxySelector delegate) {
+	public BufferedProxySelector(int maxSize, long ttl, ProxySelector delegate, long maxWait) {
 		super();
-		this.cache = new ConcurrentHashMap<String, CacheEntry>();
-		this.maxSize = maxSize;
+		this.cache = new BoundedCache<List<Proxy>>(maxSize);
+		this.running = new ConcurrentHashMap<String, CompletableFuture<List<Proxy>>>();
 		this.delegate = delegate;
 		this.ttl = ttl;
+		this.maxWait = maxWait;
 	}
 	
 	/*************************************************************************
@@ -86,49 +117,99 @@ public class BufferedProxySelector extends ProxySelector {
 	 ************************************************************************/
 	@Override
 	public List<Proxy> select(URI uri) {
-		// String cacheKey = uri.getHost(); // Caching per host may produce
-		// wrong results
-		String cacheKey = uri.toString();
-		CacheEntry entry = this.cache.get(cacheKey);
-		if(entry == null || entry.isExpired()) {
-			List<Proxy> result = this.delegate.select(uri);
-			Logger.log(getClass(), LogLevel.TRACE, "result:{0}", result);
-			entry = new CacheEntry(result, System.nanoTime() + this.ttl * 1000 * 1000);
-
-			synchronized(this.cache) {
-				if(this.cache.size() >= this.maxSize) {
-					purgeCache();
-				}
-				this.cache.put(cacheKey, entry);
-			}
+		// Caching per host may produce wrong results, unless the delegate 
+		// knows that its result does not depend on the rest of the URI.
+		String cacheKey = this.delegate instanceof CacheKeyProvider 
+				? ((CacheKeyProvider) this.delegate).getCacheKey(uri) : uri.toString();
+		List<Proxy> cached = this.cache.get(cacheKey, System.nanoTime());
+		if(cached != null) {
+			return cached;
 		}
 		
-		return entry.result;
+		CompletableFuture<List<Proxy>> selection = new CompletableFuture<List<Proxy>>();
+		CompletableFuture<List<Proxy>> other = this.running.putIfAbsent(cacheKey, selection);
+		if(other != null) {
+			List<Proxy> result = await(other, this.cache.getStale(cacheKey));
+			if(result != null) {
+				return result;
+			}
+			// The other selection failed, so try it on this thread.
+			return load(uri, cacheKey);
+		}
+		try {
+			// Another selection may have finished since the first lookup.
+			List<Proxy> result = this.cache.get(cacheKey, System.nanoTime());
+			if(result == null) {
+				result = load(uri, cacheKey);
+			}
+			selection.complete(result);
+			return result;
+		} catch(Throwable e) {
+			// Also errors, e.g. a StackOverflowError, or the waiters block forever.
+			selection.completeExceptionally(e);
+			throw e;
+		} finally {
+			this.running.remove(cacheKey, selection);
+		}
 	}
 	
 	/*************************************************************************
-	 * Purge cache to get some free space for a new entry.
+	 * Waits for the same selection running on another thread.
+	 * @param selection the running selection.
+	 * @param stale the expired result, null if none.
+	 * @return the result of the selection. The expired result if it takes
+	 *         longer than the max wait time or if the thread is interrupted.
+	 *         Null if the selection failed or the thread is interrupted and
+	 *         there is no expired result.
 	 ************************************************************************/
-	private void purgeCache() {
-		// Remove all expired entries and find the oldest.
-		boolean removedOne = false;
-		Entry<String, CacheEntry> oldest = null;
-		
-		Set<Entry<String, CacheEntry>> entries = this.cache.entrySet();
-		for(Iterator<Entry<String, CacheEntry>> it = entries.iterator(); it.hasNext();) {
-			Entry<String, CacheEntry> entry = it.next();
-			if(entry.getValue().isExpired()) {
-				it.remove();
-				removedOne = true;
-			} else if(oldest == null || entry.getValue().expireAt < oldest.getValue().expireAt) {
-				oldest = entry;
+	
+	private List<Proxy> await(CompletableFuture<List<Proxy>> selection, List<Proxy> stale) {
+		try {
+			if(stale == null) {
+				return selection.get();
 			}
+			return selection.get(this.maxWait, TimeUnit.MILLISECONDS);
+		} catch(TimeoutException e) {
+			Logger.log(getClass(), LogLevel.TRACE, "Selection still running after {0} ms, using expired result.", this.maxWait);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch(ExecutionException e) {
+			Logger.log(getClass(), LogLevel.TRACE, "Selection on other thread failed: {0}", e.getCause());
 		}
-		
-		// Remove oldest if no expired entries were found.
-		if(!removedOne && oldest != null) {
-			this.cache.remove(oldest.getKey());
+		return stale;
+	}
+	
+	/*************************************************************************
+	 * Asks the delegate and caches the result.
+	 * @param uri the URI to select the proxy for.
+	 * @param cacheKey the key for the cache.
+	 * @return the result.
+	 ************************************************************************/
+	
+	private List<Proxy> load(URI uri, String cacheKey) {
+		List<Proxy> result;
+		long maxAge = this.ttl;
+		if(this.delegate instanceof ExpiringProxySelector) {
+			ExpiringProxySelector.Result expiring = ((ExpiringProxySelector) this.delegate).selectExpiring(uri);
+			result = expiring.getProxies();
+			maxAge = Math.min(maxAge, expiring.getMaxAge());
+		} else {
+			result = this.delegate.select(uri);
 		}
+		Logger.log(getClass(), LogLevel.TRACE, "result:{0}, valid for {1} ms", result, maxAge);
+		result = Collections.unmodifiableList(new ArrayList<Proxy>(result));
+		this.cache.put(cacheKey, result, System.nanoTime() + Math.min(maxAge, MAX_AGE_MILLIS) * 1000 * 1000);
+		return result;
+	}
+	
+	/*************************************************************************
+	 * Removes all cached results. Can be used when the results of the 
+	 * delegate may have changed, e.g. as listener of the 
+	 * <code>LocalAddressCache</code> if the delegate uses a PAC script.
+	 ************************************************************************/
+	
+	public void clear() {
+		this.cache.clear();
 	}
 	
 }
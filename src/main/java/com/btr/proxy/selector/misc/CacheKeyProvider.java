@@ -0,0 +1,23 @@
+package com.btr.proxy.selector.misc;
+
+import java.net.URI;
+
+/*****************************************************************************
+ * Implemented by proxy selectors that know which parts of an URI their
+ * result depends on. The <code>BufferedProxySelector</code> uses this key
+ * instead of the whole URI, so e.g. all URLs of one host can share one
+ * cache entry.
+ ****************************************************************************/
+
+public interface CacheKeyProvider {
+
+	/*************************************************************************
+	 * Gets the key to cache the result for the given URI. All URIs with the
+	 * same key must give the same result.
+	 * @param uri the URI that is selected.
+	 * @return the cache key.
+	 ************************************************************************/
+
+	public String getCacheKey(URI uri);
+
+}
@@ -0,0 +1,66 @@
+package com.btr.proxy.selector.misc;
+
+import java.net.Proxy;
+import java.net.URI;
+import java.util.List;
+
+/*****************************************************************************
+ * Implemented by proxy selectors whose results are only valid for a limited
+ * time, e.g. a PAC script that uses timeRange. The
+ * <code>BufferedProxySelector</code> uses this to expire a cached result
+ * exactly when it could change instead of after a fixed time.
+ ****************************************************************************/
+
+public interface ExpiringProxySelector {
+
+	/*****************************************************************************
+	 * The proxies for an URI together with the time they stay valid.
+	 ****************************************************************************/
+
+	public static final class Result {
+		private final List<Proxy> proxies;
+		private final long maxAge;
+
+		/*************************************************************************
+		 * Constructor
+		 * @param proxies the selected proxies.
+		 * @param maxAge the time in milliseconds the result stays valid,
+		 *        Long.MAX_VALUE if it does not expire.
+		 ************************************************************************/
+
+		public Result(List<Proxy> proxies, long maxAge) {
+			super();
+			this.proxies = proxies;
+			this.maxAge = maxAge;
+		}
+
+		/*************************************************************************
+		 * Gets the selected proxies.
+		 * @return the list of proxies as returned by ProxySelector.select.
+		 ************************************************************************/
+
+		public List<Proxy> getProxies() {
+			return this.proxies;
+		}
+
+		/*************************************************************************
+		 * Gets the time the result stays valid.
+		 * @return the time in milliseconds, Long.MAX_VALUE if it does not
+		 *         expire.
+		 ************************************************************************/
+
+		public long getMaxAge() {
+			return this.maxAge;
+		}
+	}
+
+	/*************************************************************************
+	 * Selects the proxies for the given URI like ProxySelector.select and
+	 * tells how long the result stays valid.
+	 * @param uri the URI to select the proxies for.
+	 * @return the result.
+	 ************************************************************************/
+
+	public Result selectExpiring(URI uri);
+
+}
@@ -0,0 +1,296 @@
+package com.btr.proxy.selector.pac;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.btr.proxy.util.Logger;
+import com.btr.proxy.util.Logger.LogLevel;
+import com.btr.proxy.util.ProxyUtil;
+
+/*****************************************************************************
+ * A DNS resolver that caches the results of another resolver.
+ * <p>
+ * Successful lookups are cached for the positive TTL, failed lookups for the
+ * negative TTL. Lookups that failed with an unexpected error instead of an
+ * <code>UnknownHostException</code> are not cached. Only one lookup per host
+ * name is running at a time, other threads asking for the same name wait for
+ * its result. When the cache is full a clock hand picks the entry to remove,
+ * like in the <code>BoundedCache</code> of the BufferedProxySelector: the
+ * first entry that is expired or was not used since the hand passed it last.
+ * IP address literals are passed to the delegate without caching.
+ * </p>
+ ****************************************************************************/
+
+public class CachingDnsResolver implements DnsResolver {
+	
+	/** System property to set the time in milliseconds a resolved host name is cached. */
+	public static final String OVERRIDE_POSITIVE_TTL = "com.btr.proxy.pac.dnsCacheTtl";
+	/** System property to set the time in milliseconds a failed lookup is cached. */
+	public static final String OVERRIDE_NEGATIVE_TTL = "com.btr.proxy.pac.dnsNegativeCacheTtl";
+	/** System property to set the max number of cached host names. */
+	public static final String OVERRIDE_CACHE_SIZE = "com.btr.proxy.pac.dnsCacheSize";
+	
+	static final long DEFAULT_POSITIVE_TTL = 60 * 1000; // milliseconds
+	static final long DEFAULT_NEGATIVE_TTL = 10 * 1000; // milliseconds
+	static final int DEFAULT_CACHE_SIZE = 1000;
+	
+	private final DnsResolver delegate;
+	private final long positiveTtl;
+	private final long negativeTtl;
+	private final int maxSize;
+	private final ConcurrentHashMap<String, CacheEntry> cache;
+	private final Object clockLock = new Object();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	
+	// Guarded by clockLock
+	private CacheEntry[] slots;
+	private int slotCount;
+	private int hand;
+	
+	/*****************************************************************************
+	 * The lookup of one host name. The entry is valid until the lookup is 
+	 * done and its TTL has passed.
+	 ****************************************************************************/
+	
+	private static final class CacheEntry {
+		final String host;
+		final FutureTask<InetAddress[]> lookup;
+		volatile long expiryTime = Long.MAX_VALUE;
+		volatile boolean used;
+		int slot = -1;
+		
+		CacheEntry(String host, FutureTask<InetAddress[]> lookup) {
+			this.host = host;
+			this.lookup = lookup;
+		}
+		
+		boolean isExpired(long now) {
+			return this.expiryTime <= now;
+		}
+	}
+	
+	/*************************************************************************
+	 * Constructor
+	 * Creates a cache for a <code>DeadlineDnsResolver</code> that uses the 
+	 * TTLs and the size configured via system properties or the defaults.
+	 ************************************************************************/
+	
+	public CachingDnsResolver() {
+		this(new DeadlineDnsResolver(), 
+				ProxyUtil.getLongProperty(OVERRIDE_POSITIVE_TTL, DEFAULT_POSITIVE_TTL),
+				ProxyUtil.getLongProperty(OVERRIDE_NEGATIVE_TTL, DEFAULT_NEGATIVE_TTL),
+				(int) ProxyUtil.getLongProperty(OVERRIDE_CACHE_SIZE, DEFAULT_CACHE_SIZE));
+	}
+	
+	/*************************************************************************
+	 * Constructor
+	 * @param delegate the resolver to ask on a cache miss.
+	 * @param positiveTtl the time in milliseconds a resolved name is cached.
+	 * @param negativeTtl the time in milliseconds a failed lookup is cached.
+	 * @param maxSize the max number of cached host names.
+	 ************************************************************************/
+	
+	public CachingDnsResolver(DnsResolver delegate, long positiveTtl, long negativeTtl, int maxSize) {
+		super();
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Cache size must be at least 1.");
+		}
+		this.delegate = delegate;
+		this.positiveTtl = positiveTtl;
+		this.negativeTtl = negativeTtl;
+		this.maxSize = maxSize;
+		this.cache = new ConcurrentHashMap<String, CacheEntry>();
+		this.slots = new CacheEntry[Math.min(maxSize, 16)];
+	}
+	
+	/*************************************************************************
+	 * resolve
+	 * @see com.btr.proxy.selector.pac.DnsResolver#resolve(java.lang.String)
+	 ************************************************************************/
+	
+	public InetAddress[] resolve(final String host) throws UnknownHostException {
+		if (host == null || isAddressLiteral(host)) {
+			return this.delegate.resolve(host);
+		}
+		
+		long now = System.currentTimeMillis();
+		CacheEntry entry = this.cache.get(host);
+		CacheEntry replaced = null;
+		boolean owner = false;
+		while (entry == null || entry.isExpired(now)) {
+			CacheEntry newEntry = new CacheEntry(host, new FutureTask<InetAddress[]>(new Callable<InetAddress[]>() {
+				public InetAddress[] call() throws UnknownHostException {
+					return CachingDnsResolver.this.delegate.resolve(host);
+				}
+			}));
+			if (entry == null ? this.cache.putIfAbsent(host, newEntry) == null 
+					: this.cache.replace(host, entry, newEntry)) {
+				replaced = entry;
+				entry = newEntry;
+				owner = true;
+				break;
+			}
+			entry = this.cache.get(host);
+		}
+		
+		if (owner) {
+			this.misses.incrementAndGet();
+			addToClock(entry, replaced);
+			runLookup(entry);
+		} else {
+			this.hits.incrementAndGet();
+			if (!entry.used) {
+				entry.used = true;
+			}
+		}
+		return getResult(host, entry);
+	}
+	
+	/*************************************************************************
+	 * Runs the lookup of a new entry and sets its expiry time.
+	 * @param entry the new entry.
+	 ************************************************************************/
+	
+	private void runLookup(CacheEntry entry) {
+		entry.lookup.run();
+		long ttl;
+		try {
+			entry.lookup.get();
+			ttl = this.positiveTtl;
+		} catch (ExecutionException e) {
+			// Only a real answer is cached, not an error of the resolver itself.
+			ttl = e.getCause() instanceof UnknownHostException ? this.negativeTtl : 0;
+		} catch (Exception e) {
+			ttl = 0;
+		}
+		entry.expiryTime = System.currentTimeMillis() + ttl;
+	}
+	
+	/*************************************************************************
+	 * Gets the result of a lookup, waits if it is still running.
+	 * @param host the host name.
+	 * @param entry the cache entry.
+	 * @return a copy of the resolved addresses.
+	 * @throws UnknownHostException if the host was not resolved.
+	 ************************************************************************/
+	
+	private InetAddress[] getResult(String host, CacheEntry entry) throws UnknownHostException {
+		try {
+			return entry.lookup.get().clone();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new UnknownHostException("Interrupted while resolving " + host);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof UnknownHostException) {
+				throw (UnknownHostException) e.getCause();
+			}
+			Logger.log(getClass(), LogLevel.ERROR, "DNS lookup failed for {0}: {1}", host, e.getCause());
+			UnknownHostException error = new UnknownHostException(host);
+			error.initCause(e.getCause());
+			throw error;
+		}
+	}
+	
+	/*************************************************************************
+	 * Gives a new entry a slot of the clock. It takes over the slot of the
+	 * entry it replaced. If the cache is full another entry is removed.
+	 * @param entry the new entry.
+	 * @param replaced the expired entry it replaced in the cache, may be null.
+	 ************************************************************************/
+	
+	private void addToClock(CacheEntry entry, CacheEntry replaced) {
+		synchronized (this.clockLock) {
+			if (replaced != null && replaced.slot >= 0 && this.slots[replaced.slot] == replaced) {
+				entry.slot = replaced.slot;
+			} else if (this.slotCount < this.maxSize) {
+				if (this.slotCount == this.slots.length) {
+					this.slots = Arrays.copyOf(this.slots, (int) Math.min(this.maxSize, this.slots.length * 2L));
+				}
+				entry.slot = this.slotCount++;
+			} else {
+				entry.slot = evict(System.currentTimeMillis());
+			}
+			this.slots[entry.slot] = entry;
+		}
+	}
+	
+	/*************************************************************************
+	 * Moves the clock hand to the next entry to remove and removes it.
+	 * Used entries it passes lose their mark and get a second chance.
+	 * @param now the current time.
+	 * @return the free slot.
+	 ************************************************************************/
+	
+	private int evict(long now) {
+		for (int step = 0;; step++) {
+			int slot = this.hand;
+			this.hand = (slot + 1) % this.slotCount;
+			CacheEntry entry = this.slots[slot];
+			if (entry.used && !entry.isExpired(now) && step < this.slotCount) {
+				entry.used = false;
+			} else {
+				this.cache.remove(entry.host, entry);
+				return slot;
+			}
+		}
+	}
+	
+	/*************************************************************************
+	 * Checks if the host is an IPv4 or IPv6 address literal.
+	 * @param host the host to check.
+	 * @return true if no DNS lookup is needed.
+	 ************************************************************************/
+	
+	private boolean isAddressLiteral(String host) {
+		return host.indexOf(':') >= 0 || IpPrefix.parseIPv4(host) >= 0;
+	}
+	
+	/*************************************************************************
+	 * Gets the number of lookups that were answered from the cache or joined
+	 * a running lookup.
+	 * @return the number of cache hits.
+	 ************************************************************************/
+	
+	public long getHitCount() {
+		return this.hits.get();
+	}
+	
+	/*************************************************************************
+	 * Gets the number of lookups that were passed to the delegate resolver.
+	 * @return the number of cache misses.
+	 ************************************************************************/
+	
+	public long getMissCount() {
+		return this.misses.get();
+	}
+	
+	/*************************************************************************
+	 * Gets the number of cached host names.
+	 * @return the cache size.
+	 ************************************************************************/
+	
+	public int size() {
+		return this.cache.size();
+	}
+	
+	/*************************************************************************
+	 * Removes all entries from the cache.
+	 ************************************************************************/
+	
+	public void clear() {
+		synchronized (this.clockLock) {
+			this.cache.clear();
+			Arrays.fill(this.slots, null);
+			this.slotCount = 0;
+			this.hand = 0;
+		}
+	}
+	
+}
@@ -0,0 +1,275 @@
+package com.btr.proxy.selector.pac;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+
+import com.btr.proxy.util.Logger;
+import com.btr.proxy.util.Logger.LogLevel;
+import com.btr.proxy.util.ProxyUtil;
+
+/*****************************************************************************
+ * A DNS resolver that gives up after a deadline instead of blocking for the
+ * full timeout of the operating system resolver.
+ * <p>
+ * If a DNS server is configured the A and AAAA records are queried in 
+ * parallel from this server. Otherwise the lookup is done with the system
+ * resolver, so that the hosts file is still used. In both cases the lookup
+ * runs on a background thread and the caller waits at most until the 
+ * deadline. Lookups that hit the deadline fail with a 
+ * <code>DnsTimeoutException</code> and are counted separately from names 
+ * that do not exist.
+ * If all lookup threads are busy, e.g. with lookups that hang, the lookup 
+ * runs on the calling thread instead. It is then only bounded by the 
+ * timeout of the resolver.
+ * </p>
+ ****************************************************************************/
+
+public class DeadlineDnsResolver implements DnsResolver {
+	
+	/** System property to set the max time in milliseconds to wait for a DNS lookup. */
+	public static final String OVERRIDE_DEADLINE = "com.btr.proxy.pac.dnsDeadline";
+	/** System property to set a DNS server URL (e.g. dns://10.0.0.1) that is queried directly. */
+	public static final String OVERRIDE_DNS_SERVER = "com.btr.proxy.pac.dnsServer";
+	
+	static final long DEFAULT_DEADLINE = 2 * 1000; // milliseconds
+	
+	private static final int MAX_LOOKUP_THREADS = 32;
+	private static final String[] RECORD_TYPES = {"A", "AAAA"};
+	
+	// Shared by all resolvers. Lookups that hang are left running in the background.
+	private static final ThreadPoolExecutor LOOKUP_EXECUTOR = new ThreadPoolExecutor(
+			0, MAX_LOOKUP_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "PAC DNS lookup");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	
+	private final ExecutorService executor;
+	private final String dnsServerUrl;
+	private final long deadline;
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong notFound = new AtomicLong();
+	
+	/*************************************************************************
+	 * Constructor
+	 * Uses the deadline and DNS server configured via system properties.
+	 * Without a configured DNS server the system resolver is used.
+	 ************************************************************************/
+	
+	public DeadlineDnsResolver() {
+		this(System.getProperty(OVERRIDE_DNS_SERVER), 
+				ProxyUtil.getLongProperty(OVERRIDE_DEADLINE, DEFAULT_DEADLINE));
+	}
+	
+	/*************************************************************************
+	 * Constructor
+	 * @param dnsServerUrl the DNS server to query, e.g. "dns://10.0.0.1:53".
+	 *         Null to use the system resolver.
+	 * @param deadline the max time in milliseconds to wait for a lookup.
+	 ************************************************************************/
+	
+	public DeadlineDnsResolver(String dnsServerUrl, long deadline) {
+		this(LOOKUP_EXECUTOR, dnsServerUrl, deadline);
+	}
+	
+	/*************************************************************************
+	 * Constructor
+	 * @param executor runs the lookups.
+	 * @param dnsServerUrl the DNS server to query, null for the system resolver.
+	 * @param deadline the max time in milliseconds to wait for a lookup.
+	 ************************************************************************/
+	
+	DeadlineDnsResolver(ExecutorService executor, String dnsServerUrl, long deadline) {
+		super();
+		this.executor = executor;
+		this.dnsServerUrl = dnsServerUrl == null || dnsServerUrl.trim().length() == 0 ? null : dnsServerUrl.trim();
+		this.deadline = deadline;
+	}
+	
+	/*************************************************************************
+	 * resolve
+	 * @see com.btr.proxy.selector.pac.DnsResolver#resolve(java.lang.String)
+	 ************************************************************************/
+	
+	public InetAddress[] resolve(final String host) throws UnknownHostException {
+		if (host == null || host.indexOf(':') >= 0 || IpPrefix.parseIPv4(host) >= 0) {
+			// Address literals are parsed without any lookup.
+			return InetAddress.getAllByName(host);
+		}
+		
+		long end = System.currentTimeMillis() + this.deadline;
+		List<Future<InetAddress[]>> lookups = new ArrayList<Future<InetAddress[]>>();
+		if (this.dnsServerUrl == null) {
+			lookups.add(submit(host, new Callable<InetAddress[]>() {
+				public InetAddress[] call() throws UnknownHostException {
+					return InetAddress.getAllByName(host);
+				}
+			}));
+		} else {
+			for (final String recordType : RECORD_TYPES) {
+				lookups.add(submit(host, new Callable<InetAddress[]>() {
+					public InetAddress[] call() throws NamingException, UnknownHostException {
+						return query(host, recordType);
+					}
+				}));
+			}
+		}
+		
+		List<InetAddress> result = new ArrayList<InetAddress>();
+		boolean timedOut = false;
+		boolean nameNotFound = false;
+		for (Future<InetAddress[]> lookup : lookups) {
+			try {
+				for (InetAddress address : lookup.get(Math.max(0, end - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+					result.add(address);
+				}
+			} catch (TimeoutException e) {
+				lookup.cancel(true);
+				timedOut = true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				cancel(lookups);
+				throw new UnknownHostException("Interrupted while resolving " + host);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof NameNotFoundException) {
+					nameNotFound = true;
+				} else if (e.getCause() instanceof NamingException) {
+					// Communication errors of the DNS client are timeouts or unreachable servers.
+					timedOut = true;
+				}
+				Logger.log(getClass(), LogLevel.TRACE, "DNS lookup for {0} failed: {1}", host, e.getCause());
+			}
+		}
+		
+		if (!result.isEmpty()) {
+			return result.toArray(new InetAddress[result.size()]);
+		}
+		if (timedOut && !nameNotFound) {
+			return timedOut(host);
+		}
+		this.notFound.incrementAndGet();
+		throw new UnknownHostException(host);
+	}
+	
+	/*************************************************************************
+	 * Starts a lookup on a lookup thread. If no thread is free the lookup 
+	 * runs on the calling thread, a busy pool is no reason to fail it.
+	 * @param host the host name.
+	 * @param lookup the lookup to run.
+	 * @return the started or already finished lookup.
+	 ************************************************************************/
+	
+	private Future<InetAddress[]> submit(String host, Callable<InetAddress[]> lookup) {
+		try {
+			return this.executor.submit(lookup);
+		} catch (RejectedExecutionException e) {
+			Logger.log(getClass(), LogLevel.WARNING, "No free DNS lookup thread, resolving {0} on the calling thread.", host);
+			FutureTask<InetAddress[]> task = new FutureTask<InetAddress[]>(lookup);
+			task.run();
+			return task;
+		}
+	}
+	
+	/*************************************************************************
+	 * Counts and reports a lookup that did not finish in time.
+	 * @param host the host name.
+	 * @return never returns normally.
+	 * @throws DnsTimeoutException always.
+	 ************************************************************************/
+	
+	private InetAddress[] timedOut(String host) throws DnsTimeoutException {
+		this.timeouts.incrementAndGet();
+		Logger.log(getClass(), LogLevel.WARNING, "DNS lookup for {0} did not finish within {1} ms.", host, this.deadline);
+		throw new DnsTimeoutException("DNS lookup timed out for " + host);
+	}
+	
+	/*************************************************************************
+	 * Cancels all running lookups.
+	 * @param lookups the lookups to cancel.
+	 ************************************************************************/
+	
+	private void cancel(List<Future<InetAddress[]>> lookups) {
+		for (Future<InetAddress[]> lookup : lookups) {
+			lookup.cancel(true);
+		}
+	}
+	
+	/*************************************************************************
+	 * Queries one record type for the host from the configured DNS server.
+	 * @param host the host name.
+	 * @param recordType A or AAAA.
+	 * @return the found addresses, may be empty.
+	 * @throws NamingException on DNS errors.
+	 * @throws UnknownHostException if a returned address is invalid.
+	 ************************************************************************/
+	
+	private InetAddress[] query(String host, String recordType) throws NamingException, UnknownHostException {
+		Hashtable<String, String> env = new Hashtable<String, String>();
+		env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.dns.DnsContextFactory");
+		env.put(Context.PROVIDER_URL, this.dnsServerUrl);
+		env.put("com.sun.jndi.dns.timeout.initial", Long.toString(Math.max(1, this.deadline)));
+		env.put("com.sun.jndi.dns.timeout.retries", "1");
+		DirContext context = new InitialDirContext(env);
+		try {
+			Attributes attributes = context.getAttributes(host, new String[] {recordType});
+			Attribute attribute = attributes.get(recordType);
+			if (attribute == null) {
+				return new InetAddress[0];
+			}
+			List<InetAddress> result = new ArrayList<InetAddress>();
+			NamingEnumeration<?> values = attribute.getAll();
+			while (values.hasMore()) {
+				InetAddress literal = InetAddress.getByName(values.next().toString());
+				result.add(InetAddress.getByAddress(host, literal.getAddress()));
+			}
+			return result.toArray(new InetAddress[result.size()]);
+		} finally {
+			context.close();
+		}
+	}
+	
+	/*************************************************************************
+	 * Gets the number of lookups that did not finish before the deadline.
+	 * @return the number of timeouts.
+	 ************************************************************************/
+	
+	public long getTimeoutCount() {
+		return this.timeouts.get();
+	}
+	
+	/*************************************************************************
+	 * Gets the number of lookups for names that do not exist.
+	 * @return the number of failed lookups without timeout.
+	 ************************************************************************/
+	
+	public long getNotFoundCount() {
+		return this.notFound.get();
+	}
+	
+}
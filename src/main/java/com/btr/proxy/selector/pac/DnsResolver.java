@@ -0,0 +1,33 @@
+package com.btr.proxy.selector.pac;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/*****************************************************************************
+ * Resolves host names for the DNS functions of the PAC scripts.
+ * Can be set on <code>PacScriptMethods</code> to replace the default 
+ * caching resolver.
+ ****************************************************************************/
+
+public interface DnsResolver {
+
+	/*************************************************************************
+	 * Resolves all addresses of the given host.
+	 * @param host the host name or IP address literal.
+	 * @return the addresses, never empty.
+	 * @throws UnknownHostException if the host can not be resolved.
+	 ************************************************************************/
+
+	public InetAddress[] resolve(String host) throws UnknownHostException;
+
+	/*****************************************************************************
+	 * Resolver that asks the system resolver via <code>InetAddress</code>.
+	 ****************************************************************************/
+
+	public static final DnsResolver SYSTEM = new DnsResolver() {
+		public InetAddress[] resolve(String host) throws UnknownHostException {
+			return InetAddress.getAllByName(host);
+		}
+	};
+
+}
@@ -0,0 +1,24 @@
+package com.btr.proxy.selector.pac;
+
+import java.net.UnknownHostException;
+
+/*****************************************************************************
+ * Thrown by a <code>DnsResolver</code> if a host name could not be resolved
+ * within the lookup deadline. Unlike a plain <code>UnknownHostException</code>
+ * this does not mean that the name does not exist.
+ ****************************************************************************/
+
+public class DnsTimeoutException extends UnknownHostException {
+
+	private static final long serialVersionUID = 1L;
+
+	/*************************************************************************
+	 * Constructor
+	 * @param message the error message.
+	 ************************************************************************/
+
+	public DnsTimeoutException(String message) {
+		super(message);
+	}
+
+}
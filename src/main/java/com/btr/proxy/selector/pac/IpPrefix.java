@@ -0,0 +1,359 @@
+package com.btr.proxy.selector.pac;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*****************************************************************************
+ * A parsed IPv4 or IPv6 network used by isInNet and isInNetEx.
+ * <p>
+ * The network and mask are parsed once and cached per (pattern, mask) or
+ * prefix string. Host addresses are parsed on every test without creating
+ * any objects, IPv6 addresses are kept as two long values.
+ * </p>
+ ****************************************************************************/
+
+final class IpPrefix {
+
+	private static final int MAX_CACHED_PREFIXES = 1024;
+
+	// pattern -> mask -> prefix, so lookups do not need a combined key object.
+	private static final ConcurrentHashMap<String, ConcurrentHashMap<String, IpPrefix>> NET_CACHE =
+			new ConcurrentHashMap<String, ConcurrentHashMap<String, IpPrefix>>();
+	private static final ConcurrentHashMap<String, IpPrefix> CIDR_CACHE = new ConcurrentHashMap<String, IpPrefix>();
+
+	/** Prefix that matches nothing, used for invalid patterns. */
+	static final IpPrefix INVALID = new IpPrefix(false, -1, -1, -1, -1);
+
+	private final boolean ipv6;
+	private final long networkHigh;
+	private final long networkLow;
+	private final long maskHigh;
+	private final long maskLow;
+
+	/*************************************************************************
+	 * Constructor
+	 * For IPv4 only the low values are used.
+	 ************************************************************************/
+
+	private IpPrefix(boolean ipv6, long networkHigh, long networkLow, long maskHigh, long maskLow) {
+		super();
+		this.ipv6 = ipv6;
+		this.networkHigh = networkHigh;
+		this.networkLow = networkLow;
+		this.maskHigh = maskHigh;
+		this.maskLow = maskLow;
+	}
+
+	/*************************************************************************
+	 * Gets the network for the isInNet arguments. The pattern is not masked,
+	 * like in the browser implementations.
+	 * @param pattern the IPv4 network address in dotted format.
+	 * @param mask the IPv4 network mask in dotted format.
+	 * @return the network, INVALID if pattern or mask are not valid.
+	 ************************************************************************/
+
+	static IpPrefix forNet(String pattern, String mask) {
+		ConcurrentHashMap<String, IpPrefix> masks = NET_CACHE.get(pattern);
+		if (masks == null) {
+			if (NET_CACHE.size() >= MAX_CACHED_PREFIXES) {
+				NET_CACHE.clear();
+			}
+			ConcurrentHashMap<String, IpPrefix> created = new ConcurrentHashMap<String, IpPrefix>(4);
+			masks = NET_CACHE.putIfAbsent(pattern, created);
+			if (masks == null) {
+				masks = created;
+			}
+		}
+		IpPrefix result = masks.get(mask);
+		if (result == null) {
+			long network = parseIPv4(pattern);
+			long netmask = parseIPv4(mask);
+			result = network < 0 || netmask < 0 ? INVALID : new IpPrefix(false, 0, network, 0, netmask);
+			masks.put(mask, result);
+		}
+		return result;
+	}
+
+	/*************************************************************************
+	 * Gets the network for a prefix in CIDR notation as used by isInNetEx.
+	 * @param prefix e.g. "198.95.0.0/16" or "3ffe:8311:ffff::/48".
+	 * @return the network, INVALID if the prefix is not valid.
+	 ************************************************************************/
+
+	static IpPrefix forCidr(String prefix) {
+		IpPrefix result = CIDR_CACHE.get(prefix);
+		if (result == null) {
+			result = parseCidr(prefix);
+			if (CIDR_CACHE.size() >= MAX_CACHED_PREFIXES) {
+				CIDR_CACHE.clear();
+			}
+			CIDR_CACHE.put(prefix, result);
+		}
+		return result;
+	}
+
+	/*************************************************************************
+	 * Parses a prefix in CIDR notation.
+	 * @param prefix the prefix.
+	 * @return the network, INVALID if the prefix is not valid.
+	 ************************************************************************/
+
+	private static IpPrefix parseCidr(String prefix) {
+		int slash = prefix.indexOf('/');
+		String address = (slash < 0 ? prefix : prefix.substring(0, slash)).trim();
+		boolean ipv6 = address.indexOf(':') >= 0;
+		int bits;
+		try {
+			bits = slash < 0 ? (ipv6 ? 128 : 32) : Integer.parseInt(prefix.substring(slash + 1).trim());
+		} catch (NumberFormatException e) {
+			return INVALID;
+		}
+		if (bits < 0 || bits > (ipv6 ? 128 : 32)) {
+			return INVALID;
+		}
+		if (!ipv6) {
+			long network = parseIPv4(address);
+			if (network < 0) {
+				return INVALID;
+			}
+			long mask = bits == 0 ? 0 : (0xFFFFFFFFL << (32 - bits)) & 0xFFFFFFFFL;
+			return new IpPrefix(false, 0, network & mask, 0, mask);
+		}
+		byte[] bytes;
+		try {
+			// Only literals are passed here, so this does no DNS lookup.
+			InetAddress parsed = InetAddress.getByName(address);
+			bytes = parsed.getAddress();
+			if (!(parsed instanceof Inet6Address)) {
+				// IPv4 mapped addresses (::ffff:a.b.c.d) are returned as IPv4.
+				byte[] mapped = new byte[16];
+				mapped[10] = (byte) 0xFF;
+				mapped[11] = (byte) 0xFF;
+				System.arraycopy(bytes, 0, mapped, 12, 4);
+				bytes = mapped;
+			}
+		} catch (UnknownHostException e) {
+			return INVALID;
+		}
+		long high = toLong(bytes, 0);
+		long low = toLong(bytes, 8);
+		long maskHigh = bits >= 64 ? -1L : (bits == 0 ? 0 : -1L << (64 - bits));
+		long maskLow = bits <= 64 ? 0 : (bits == 128 ? -1L : -1L << (128 - bits));
+		return new IpPrefix(true, high & maskHigh, low & maskLow, maskHigh, maskLow);
+	}
+
+	private static long toLong(byte[] bytes, int offset) {
+		long result = 0;
+		for (int i = offset; i < offset + 8; i++) {
+			result = (result << 8) | (bytes[i] & 0xFF);
+		}
+		return result;
+	}
+
+	/*************************************************************************
+	 * Tests if the given address is in this network.
+	 * @param address an IPv4 or IPv6 address literal.
+	 * @return true if it is a valid address of the same family in this network.
+	 ************************************************************************/
+
+	boolean contains(String address) {
+		return address != null && contains(address, 0, address.length());
+	}
+
+	/*************************************************************************
+	 * Tests if one of the addresses in a semicolon separated list is in this
+	 * network.
+	 * @param addresses the address list, e.g. the result of dnsResolveEx.
+	 * @return true if one address matches.
+	 ************************************************************************/
+
+	boolean containsAny(String addresses) {
+		if (addresses == null) {
+			return false;
+		}
+		int start = 0;
+		while (start <= addresses.length()) {
+			int end = addresses.indexOf(';', start);
+			if (end < 0) {
+				end = addresses.length();
+			}
+			if (contains(addresses, trimStart(addresses, start, end), trimEnd(addresses, start, end))) {
+				return true;
+			}
+			start = end + 1;
+		}
+		return false;
+	}
+
+	private static int trimStart(String s, int start, int end) {
+		while (start < end && s.charAt(start) <= ' ') {
+			start++;
+		}
+		return start;
+	}
+
+	private static int trimEnd(String s, int start, int end) {
+		while (end > start && s.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		return end;
+	}
+
+	/*************************************************************************
+	 * Tests if the address in the given range of the string is in this network.
+	 ************************************************************************/
+
+	private boolean contains(String s, int start, int end) {
+		if (this == INVALID || start >= end) {
+			return false;
+		}
+		if (!this.ipv6) {
+			long address = parseIPv4(s, start, end);
+			return address >= 0 && (address & this.maskLow) == this.networkLow;
+		}
+		return containsIPv6(s, start, end);
+	}
+
+	/*************************************************************************
+	 * Parses an IPv6 address and tests it against the network. The address is
+	 * accumulated in local variables: the groups before "::" as head and the
+	 * groups after it as tail, which are combined when the group count is known.
+	 * A trailing dotted IPv4 part and a zone id ("%eth0") are supported.
+	 ************************************************************************/
+
+	private boolean containsIPv6(String s, int start, int end) {
+		int percent = s.indexOf('%', start);
+		if (percent >= 0 && percent < end) {
+			end = percent;
+		}
+		long headHigh = 0, headLow = 0, tailHigh = 0, tailLow = 0;
+		int headGroups = 0;
+		int tailGroups = 0;
+		boolean compressed = false;
+		int pos = start;
+		if (end - start >= 2 && s.charAt(start) == ':' && s.charAt(start + 1) == ':') {
+			compressed = true;
+			pos += 2;
+		}
+		while (pos < end) {
+			int groupEnd = pos;
+			int value = 0;
+			while (groupEnd < end && s.charAt(groupEnd) != ':') {
+				int digit = Character.digit(s.charAt(groupEnd), 16);
+				if (digit < 0 || groupEnd - pos >= 4) {
+					break;
+				}
+				value = (value << 4) | digit;
+				groupEnd++;
+			}
+			int groups;
+			long v;
+			if (groupEnd < end && s.charAt(groupEnd) == '.') {
+				// Embedded IPv4 address in the last 32 bits.
+				long ipv4 = parseIPv4(s, pos, end);
+				if (ipv4 < 0) {
+					return false;
+				}
+				v = ipv4;
+				groups = 2;
+				groupEnd = end;
+			} else if (groupEnd == pos || (groupEnd < end && s.charAt(groupEnd) != ':')) {
+				return false;
+			} else {
+				v = value;
+				groups = 1;
+			}
+			int shift = 16 * groups;
+			if (compressed) {
+				tailHigh = (tailHigh << shift) | (tailLow >>> (64 - shift));
+				tailLow = (tailLow << shift) | v;
+				tailGroups += groups;
+			} else {
+				headHigh = (headHigh << shift) | (headLow >>> (64 - shift));
+				headLow = (headLow << shift) | v;
+				headGroups += groups;
+			}
+			pos = groupEnd;
+			if (pos < end) {
+				// Skip ":" and detect "::"
+				pos++;
+				if (pos < end && s.charAt(pos) == ':') {
+					if (compressed) {
+						return false;
+					}
+					compressed = true;
+					pos++;
+				} else if (pos == end) {
+					return false;
+				}
+			}
+		}
+		int groups = headGroups + tailGroups;
+		if (groups > 8 || (!compressed && groups != 8) || (compressed && groups == 8)) {
+			return false;
+		}
+		// Move the head groups to the top of the 128 bits and add the tail.
+		int shift = 16 * (8 - headGroups);
+		long high;
+		long low;
+		if (shift >= 128) {
+			high = 0;
+			low = 0;
+		} else if (shift >= 64) {
+			high = headLow << (shift - 64);
+			low = 0;
+		} else if (shift == 0) {
+			high = headHigh;
+			low = headLow;
+		} else {
+			high = (headHigh << shift) | (headLow >>> (64 - shift));
+			low = headLow << shift;
+		}
+		high |= tailHigh;
+		low |= tailLow;
+		return (high & this.maskHigh) == this.networkHigh && (low & this.maskLow) == this.networkLow;
+	}
+
+	/*************************************************************************
+	 * Parses an IPv4 address in dotted format.
+	 * @param address the address to parse.
+	 * @return the address as unsigned int value or -1 if it is not a valid
+	 *         IPv4 address.
+	 ************************************************************************/
+
+	static long parseIPv4(String address) {
+		return address == null ? -1 : parseIPv4(address, 0, address.length());
+	}
+
+	/*************************************************************************
+	 * Parses an IPv4 address in dotted format from a part of the string.
+	 ************************************************************************/
+
+	private static long parseIPv4(String address, int start, int end) {
+		long result = 0;
+		int parts = 0;
+		int part = -1;
+		for (int i = start; i < end; i++) {
+			char c = address.charAt(i);
+			if (c >= '0' && c <= '9') {
+				part = (part < 0 ? 0 : part * 10) + (c - '0');
+				if (part > 255) {
+					return -1;
+				}
+			} else if (c == '.' && part >= 0 && parts < 3) {
+				result = (result << 8) | part;
+				parts++;
+				part = -1;
+			} else {
+				return -1;
+			}
+		}
+		if (part < 0 || parts != 3) {
+			return -1;
+		}
+		return (result << 8) | part;
+	}
+
+}
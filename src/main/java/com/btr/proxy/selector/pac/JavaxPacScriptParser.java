@@ -2,6 +2,9 @@ package com.btr.proxy.selector.pac;
 
 import java.lang.reflect.Method;
 
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
@@ -25,9 +28,31 @@ import com.btr.proxy.util.Logger.LogLevel;
  ****************************************************************************/
 public class JavaxPacScriptParser implements PacScriptParser {
 	static final String SCRIPT_METHODS_OBJECT = "__pacutil";
+	private static final String ENTRY_FUNCTION = "FindProxyForURL";
+	private static final String URL_VARIABLE = "__pacUrl";
+	private static final String HOST_VARIABLE = "__pacHost";
+	
+	// The aliases for the ScriptMethods, generated once for all engines.
+	private static final String BUILTINS_SCRIPT = buildBuiltinsScript();
 	
 	private final PacScriptSource source;
-	private final ScriptEngine engine;
+	private final PacScriptMethods scriptMethods;
+	private volatile PacEvaluationPool<EngineHolder> enginePool;
+	
+	/*****************************************************************************
+	 * A pooled script engine together with the script version that was last
+	 * loaded into it. The engine is used by one evaluating thread at a time.
+	 ****************************************************************************/
+	
+	private static final class EngineHolder {
+		final ScriptEngine engine;
+		String content;
+		
+		EngineHolder(ScriptEngine engine) {
+			super();
+			this.engine = engine;
+		}
+	}
 	
 	/*************************************************************************
 	 * Constructor
@@ -38,13 +63,62 @@ public class JavaxPacScriptParser implements PacScriptParser {
 	 *             on error.
 	 ************************************************************************/
 	public JavaxPacScriptParser(PacScriptSource source) throws ProxyEvaluationException {
+		this(source, new PacScriptMethods());
+	}
+	
+	/*************************************************************************
+	 * Constructor
+	 * 
+	 * @param source
+	 *            the source for the PAC script.
+	 * @param scriptMethods
+	 *            the implementation of the PAC functions used by this parser.
+	 * @throws ProxyEvaluationException
+	 *             on error.
+	 ************************************************************************/
+	public JavaxPacScriptParser(PacScriptSource source, PacScriptMethods scriptMethods) throws ProxyEvaluationException {
 		this.source = source;
-		this.engine = setupEngine();
+		this.scriptMethods = scriptMethods;
+		this.enginePool = PacEvaluationPool.withDefaults(newEngineFactory());
+		
+		// Setup one engine directly to report a missing engine early.
+		this.enginePool.release(this.enginePool.borrow());
+	}
+	
+	/*************************************************************************
+	 * Sets the number of script engines that can be used for concurrent 
+	 * evaluations and the max time a thread will wait for a free engine.
+	 * Default values can be set via the system properties 
+	 * <code>PacProxySelector.OVERRIDE_POOL_SIZE</code> and
+	 * <code>PacProxySelector.OVERRIDE_BORROW_TIMEOUT</code>.
+	 * 
+	 * @param poolSize
+	 *            the max number of concurrent evaluations.
+	 * @param borrowTimeout
+	 *            the max wait time in milliseconds.
+	 ************************************************************************/
+	public void setEvaluationPoolSettings(int poolSize, long borrowTimeout) {
+		this.enginePool = new PacEvaluationPool<EngineHolder>(newEngineFactory(), poolSize, borrowTimeout);
+	}
+	
+	/*************************************************************************
+	 * Creates the factory for the pooled script engines. A script engine is
+	 * used by one evaluating thread at a time.
+	 * 
+	 * @return a factory.
+	 ************************************************************************/
+	private PacEvaluationPool.Factory<EngineHolder> newEngineFactory() {
+		return new PacEvaluationPool.Factory<EngineHolder>() {
+			public EngineHolder create() throws ProxyEvaluationException {
+				return new EngineHolder(setupEngine());
+			}
+		};
 	}
 	
 	/*************************************************************************
 	 * Initializes the JavaScript engine and adds aliases for the functions
-	 * defined in ScriptMethods.
+	 * defined in ScriptMethods. The aliases call the methods of the bound
+	 * ScriptMethods object directly.
 	 * 
 	 * @throws ProxyEvaluationException
 	 *             on error.
@@ -56,63 +130,65 @@ public class JavaxPacScriptParser implements PacScriptParser {
 			// Nashorn was removed in JDK 15+, so JavaScript engine is not available
 			throw new ProxyEvaluationException("JavaScript engine (Nashorn) is not available. Nashorn was removed in JDK 15+. Use RhinoPacScriptParser instead.");
 		}
-		engine.put(SCRIPT_METHODS_OBJECT, new PacScriptMethods());
-		
-		Class<?> scriptMethodsClazz = ScriptMethods.class;
-		Method[] scriptMethods = scriptMethodsClazz.getMethods();
-		
-		for(Method method : scriptMethods) {
+		engine.put(SCRIPT_METHODS_OBJECT, this.scriptMethods);
+		try {
+			engine.eval(BUILTINS_SCRIPT);
+		} catch(ScriptException e) {
+			Logger.log(getClass(), LogLevel.ERROR, "JS evaluation error when creating the PAC function aliases. error:{0}", e);
+			throw new ProxyEvaluationException("Error setting up script engine", e);
+		}
+		return engine;
+	}
+	
+	/*************************************************************************
+	 * Builds the JavaScript code that defines an alias function for each 
+	 * method of ScriptMethods.
+	 * 
+	 * @return the JS code.
+	 ************************************************************************/
+	
+	private static String buildBuiltinsScript() {
+		StringBuilder toEval = new StringBuilder();
+		for(Method method : ScriptMethods.class.getMethods()) {
 			String name = method.getName();
 			int args = method.getParameterTypes().length;
-			StringBuilder toEval = new StringBuilder(name).append(" = function(");
-			for(int i = 0; i < args; i++) {
-				if(i > 0) {
-					toEval.append(",");
-				}
-				toEval.append("arg").append(i);
-			}
+			toEval.append(name).append(" = function(");
+			appendArgumentList(toEval, args);
 			toEval.append(") {return ");
 			
-			String functionCall = buildFunctionCallCode(name, args);
-			
 			// If return type is java.lang.String convert it to a JS string
-			if(String.class.isAssignableFrom(method.getReturnType())) {
-				functionCall = "String(" + functionCall + ")";
+			boolean isString = String.class.isAssignableFrom(method.getReturnType());
+			if(isString) {
+				toEval.append("String(");
 			}
-			Logger.log(getClass(), LogLevel.TRACE, "functionCall:{0}", functionCall);
-			toEval.append(functionCall).append("; }");
-			
-			try {
-				Logger.log(getClass(), LogLevel.TRACE, "toEval:{0}", toEval);
-				engine.eval(toEval.toString());
-			} catch(ScriptException e) {
-				Logger.log(getClass(), LogLevel.ERROR, "JS evaluation error when creating alias for " + name + ". error:{0}", e);
-				throw new ProxyEvaluationException("Error setting up script engine", e);
+			toEval.append(SCRIPT_METHODS_OBJECT).append(".").append(name).append("(");
+			appendArgumentList(toEval, args);
+			toEval.append(")");
+			if(isString) {
+				toEval.append(")");
 			}
+			toEval.append("; };\n");
 		}
-		
-		return engine;
+		Logger.log(JavaxPacScriptParser.class, LogLevel.TRACE, "toEval:{0}", toEval);
+		return toEval.toString();
 	}
 	
-	/*************************************************************************
-	 * Builds a JavaScript code snippet to call a function that we bind.
-	 * 
-	 * @param functionName of the bound function
-	 * @param args of the bound function
-	 * @return the JS code to invoke the method.
-	 ************************************************************************/
-	
-	private String buildFunctionCallCode(String functionName, int args) {
-		StringBuilder functionCall = new StringBuilder();
-		functionCall.append(SCRIPT_METHODS_OBJECT).append(".").append(functionName).append("(");
+	private static void appendArgumentList(StringBuilder code, int args) {
 		for(int i = 0; i < args; i++) {
 			if(i > 0) {
-				functionCall.append(",");
+				code.append(",");
 			}
-			functionCall.append("arg").append(i);
+			code.append("arg").append(i);
 		}
-		functionCall.append(")");
-		return functionCall.toString();
+	}
+	
+	/***************************************************************************
+	 * Gets the implementation of the PAC functions used by this parser.
+	 * 
+	 * @return the script methods.
+	 **************************************************************************/
+	public PacScriptMethods getScriptMethods() {
+		return this.scriptMethods;
 	}
 	
 	/***************************************************************************
@@ -126,6 +202,9 @@ public class JavaxPacScriptParser implements PacScriptParser {
 	
 	/*************************************************************************
 	 * Evaluates the given URL and host against the PAC script.
+	 * The script is loaded into each engine only once per script version. 
+	 * If the engine is Invocable the FindProxyForURL function is called
+	 * directly with the URL and host passed as arguments.
 	 * 
 	 * @param url
 	 *            the URL to evaluate.
@@ -136,16 +215,51 @@ public class JavaxPacScriptParser implements PacScriptParser {
 	 *             on execution error.
 	 ************************************************************************/
 	public String evaluate(String url, String host) throws ProxyEvaluationException {
+		PacEvaluationPool<EngineHolder> pool = this.enginePool;
+		EngineHolder holder = pool.borrow();
 		try {
-			StringBuilder script = new StringBuilder(this.source.getScriptContent());
-			String evalMethod = " ;FindProxyForURL (\"" + url + "\",\"" + host + "\")";
-			script.append(evalMethod);
-			Object result = this.engine.eval(script.toString());
-			return (String) result;
+			String content = this.source.getScriptContent();
+			if(holder.content != content && (holder.content == null || !holder.content.equals(content))) {
+				loadScript(holder.engine, content);
+				holder.content = content;
+			}
+			Object result;
+			if(holder.engine instanceof Invocable) {
+				result = ((Invocable) holder.engine).invokeFunction(ENTRY_FUNCTION, url, host);
+			} else {
+				holder.engine.put(URL_VARIABLE, url);
+				holder.engine.put(HOST_VARIABLE, host);
+				result = holder.engine.eval(ENTRY_FUNCTION + "(" + URL_VARIABLE + ", " + HOST_VARIABLE + ")");
+			}
+			return result == null ? null : result.toString();
 		} catch(Exception e) {
+			holder.content = null;
 			Logger.log(getClass(), LogLevel.ERROR, "JS evaluation error:{0}.", e);
 			throw new ProxyEvaluationException("Error while executing PAC script: " + e.getMessage(), e);
+		} finally {
+			pool.release(holder);
+		}
+	}
+	
+	/*************************************************************************
+	 * Runs the top level of the script in the engine, so that the 
+	 * FindProxyForURL function is defined. The script is compiled first if
+	 * the engine supports it.
+	 * 
+	 * @param engine
+	 *            the engine to load the script into.
+	 * @param content
+	 *            the script content.
+	 * @throws ScriptException
+	 *             on compile or execution error.
+	 ************************************************************************/
+	private void loadScript(ScriptEngine engine, String content) throws ScriptException {
+		Logger.log(getClass(), LogLevel.TRACE, "Loading PAC script from {0}", this.source);
+		if(engine instanceof Compilable) {
+			CompiledScript script = ((Compilable) engine).compile(content);
+			script.eval();
+		} else {
+			engine.eval(content);
 		}
-		
 	}
 }
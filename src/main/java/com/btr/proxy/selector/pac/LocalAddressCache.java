@@ -0,0 +1,221 @@
+package com.btr.proxy.selector.pac;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.Enumeration;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.btr.proxy.util.Logger;
+import com.btr.proxy.util.Logger.LogLevel;
+import com.btr.proxy.util.ProxyUtil;
+
+/*****************************************************************************
+ * Caches the local IPv4 and IPv6 address used by the PAC functions 
+ * myIpAddress and myIpAddressEx.
+ * <p>
+ * Enumerating all network interfaces is expensive on hosts with many 
+ * interfaces, so it is done once and then repeated by a background thread 
+ * in a fixed interval. If the addresses have changed the registered 
+ * listeners are notified, e.g. to clear a <code>BufferedProxySelector</code>
+ * whose cached results may depend on the local address.
+ * </p>
+ ****************************************************************************/
+
+public class LocalAddressCache {
+	
+	/** System property to set the interval in milliseconds to check for network interface changes, 0 to disable. */
+	public static final String OVERRIDE_POLL_INTERVAL = "com.btr.proxy.pac.interfacePollInterval";
+	
+	static final long DEFAULT_POLL_INTERVAL = 10 * 1000; // milliseconds
+	
+	private static volatile LocalAddressCache instance;
+	
+	private final CopyOnWriteArrayList<Runnable> listeners;
+	private volatile LocalAddresses addresses;
+	private ScheduledExecutorService watcher;
+	
+	/*****************************************************************************
+	 * The addresses found by one scan of the network interfaces.
+	 ****************************************************************************/
+	
+	static final class LocalAddresses {
+		final String ipv4;
+		final String ipv6;
+		
+		LocalAddresses(String ipv4, String ipv6) {
+			this.ipv4 = ipv4;
+			this.ipv6 = ipv6;
+		}
+		
+		boolean sameAs(LocalAddresses other) {
+			return other != null && this.ipv4.equals(other.ipv4) && this.ipv6.equals(other.ipv6);
+		}
+	}
+	
+	/*************************************************************************
+	 * Gets the shared instance. The background watcher is started on first use.
+	 * @return the cache.
+	 ************************************************************************/
+	
+	public static LocalAddressCache getInstance() {
+		LocalAddressCache result = instance;
+		if (result == null) {
+			synchronized (LocalAddressCache.class) {
+				result = instance;
+				if (result == null) {
+					result = new LocalAddressCache();
+					result.startWatcher(ProxyUtil.getLongProperty(OVERRIDE_POLL_INTERVAL, DEFAULT_POLL_INTERVAL));
+					instance = result;
+				}
+			}
+		}
+		return result;
+	}
+	
+	/*************************************************************************
+	 * Constructor
+	 * Use getInstance() to get the shared cache.
+	 ************************************************************************/
+	
+	LocalAddressCache() {
+		super();
+		this.listeners = new CopyOnWriteArrayList<Runnable>();
+	}
+	
+	/*************************************************************************
+	 * Starts the background thread that checks for interface changes.
+	 * @param interval the poll interval in milliseconds, 0 to disable.
+	 ************************************************************************/
+	
+	private synchronized void startWatcher(long interval) {
+		if (interval <= 0 || this.watcher != null) {
+			return;
+		}
+		this.watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "PAC network interface watcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.watcher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				refresh();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+	
+	/*************************************************************************
+	 * Gets the first address of the given type of the first network interface
+	 * that is up and is neither loopback nor virtual.
+	 * @param type Inet4Address or Inet6Address.
+	 * @return the address as string or "" if not found.
+	 ************************************************************************/
+	
+	public String getAddress(Class<? extends InetAddress> type) {
+		LocalAddresses current = getAddresses();
+		return Inet6Address.class.equals(type) ? current.ipv6 : current.ipv4;
+	}
+	
+	/*************************************************************************
+	 * Gets the result of the last scan. A new instance is returned only 
+	 * after the addresses have changed.
+	 * @return the current addresses.
+	 ************************************************************************/
+	
+	LocalAddresses getAddresses() {
+		LocalAddresses current = this.addresses;
+		if (current == null) {
+			refresh();
+			current = this.addresses;
+		}
+		return current;
+	}
+	
+	/*************************************************************************
+	 * Scans the network interfaces again. If the addresses have changed the
+	 * listeners are notified.
+	 * @return true if the addresses have changed.
+	 ************************************************************************/
+	
+	public boolean refresh() {
+		LocalAddresses scanned = scan();
+		LocalAddresses old;
+		synchronized (this) {
+			old = this.addresses;
+			if (scanned.sameAs(old)) {
+				return false;
+			}
+			this.addresses = scanned;
+		}
+		if (old != null) {
+			Logger.log(getClass(), LogLevel.INFO, "Local address changed to {0} / {1}", scanned.ipv4, scanned.ipv6);
+			for (Runnable listener : this.listeners) {
+				try {
+					listener.run();
+				} catch (RuntimeException e) {
+					Logger.log(getClass(), LogLevel.ERROR, "Address change listener failed: {0}", e);
+				}
+			}
+		}
+		return old != null;
+	}
+	
+	/*************************************************************************
+	 * Adds a listener that is called when the local addresses have changed.
+	 * @param listener the listener to add.
+	 ************************************************************************/
+	
+	public void addChangeListener(Runnable listener) {
+		this.listeners.add(listener);
+	}
+	
+	/*************************************************************************
+	 * Removes a change listener.
+	 * @param listener the listener to remove.
+	 ************************************************************************/
+	
+	public void removeChangeListener(Runnable listener) {
+		this.listeners.remove(listener);
+	}
+	
+	/*************************************************************************
+	 * Enumerates the network interfaces and finds the local addresses.
+	 * @return the found addresses.
+	 ************************************************************************/
+	
+	LocalAddresses scan() {
+		String ipv4 = null;
+		String ipv6 = null;
+		try {
+			Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+			while(interfaces != null && interfaces.hasMoreElements() && (ipv4 == null || ipv6 == null)) {
+				NetworkInterface current = interfaces.nextElement();
+				if(!current.isUp() || current.isLoopback() || current.isVirtual()) {
+					continue;
+				}
+				Enumeration<InetAddress> addresses = current.getInetAddresses();
+				while(addresses.hasMoreElements()) {
+					InetAddress adr = addresses.nextElement();
+					if(ipv4 == null && adr instanceof Inet4Address) {
+						ipv4 = adr.getHostAddress();
+					} else if(ipv6 == null && adr instanceof Inet6Address) {
+						ipv6 = adr.getHostAddress();
+					}
+				}
+			}
+			Logger.log(getClass(), LogLevel.TRACE, "Local address resolved to {0} / {1}", ipv4, ipv6);
+		} catch(IOException e) {
+			Logger.log(getClass(), LogLevel.ERROR, "Local address not resolvable., error:{0}", e);
+		}
+		return new LocalAddresses(ipv4 == null ? "" : ipv4, ipv6 == null ? "" : ipv6);
+	}
+	
+}
@@ -0,0 +1,120 @@
+package com.btr.proxy.selector.pac;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+
+/*****************************************************************************
+ * Rhino context factory that enforces a time budget for PAC evaluations.
+ * The contexts created by this factory observe the executed instructions and
+ * abort the script if the deadline of the current evaluation has passed.
+ * <p>
+ * Note that the deadline can only be checked while JavaScript code is running.
+ * A long running call into Java (e.g. a DNS lookup) is not interrupted.
+ * </p>
+ ****************************************************************************/
+
+class PacContextFactory extends ContextFactory {
+	
+	// Number of instructions between two deadline checks.
+	private static final int INSTRUCTION_THRESHOLD = 10000;
+	
+	/*****************************************************************************
+	 * Context that knows the deadline of the current evaluation and the 
+	 * PAC function implementation of the parser that runs the script.
+	 ****************************************************************************/
+	
+	static final class PacContext extends Context {
+		
+		private long deadline;
+		private ScriptMethods scriptMethods;
+		
+		/*************************************************************************
+		 * Constructor
+		 * @param factory the factory that created this context.
+		 ************************************************************************/
+		
+		PacContext(ContextFactory factory) {
+			super(factory);
+		}
+		
+		/*************************************************************************
+		 * Starts the time budget for the next evaluation.
+		 * @param budgetMillis the budget in milliseconds, 0 for no limit.
+		 ************************************************************************/
+		
+		void startBudget(long budgetMillis) {
+			this.deadline = budgetMillis > 0 ? System.nanoTime() + budgetMillis * 1000 * 1000 : 0;
+		}
+		
+		/*************************************************************************
+		 * Removes the time budget.
+		 ************************************************************************/
+		
+		void clearBudget() {
+			this.deadline = 0;
+		}
+		
+		/*************************************************************************
+		 * Sets the PAC function implementation used by the builtins while 
+		 * a script runs in this context.
+		 * @param scriptMethods the implementation, null to remove it.
+		 ************************************************************************/
+		
+		void setScriptMethods(ScriptMethods scriptMethods) {
+			this.scriptMethods = scriptMethods;
+		}
+		
+		/*************************************************************************
+		 * Gets the PAC function implementation for the running script.
+		 * @return the implementation, null if none is set.
+		 ************************************************************************/
+		
+		ScriptMethods getScriptMethods() {
+			return this.scriptMethods;
+		}
+	}
+	
+	/*****************************************************************************
+	 * Thrown from within the script execution if the budget is exceeded.
+	 * This is an Error so that it cannot be caught by a try/catch block 
+	 * inside of the PAC script.
+	 ****************************************************************************/
+	
+	static final class BudgetExceededError extends Error {
+		
+		private static final long serialVersionUID = 1L;
+		
+		/*************************************************************************
+		 * Constructor
+		 ************************************************************************/
+		
+		BudgetExceededError() {
+			super("PAC script exceeded its evaluation time budget.");
+		}
+	}
+	
+	/*************************************************************************
+	 * makeContext
+	 * @see org.mozilla.javascript.ContextFactory#makeContext()
+	 ************************************************************************/
+	@Override
+	protected Context makeContext() {
+		PacContext context = new PacContext(this);
+		context.setInstructionObserverThreshold(INSTRUCTION_THRESHOLD);
+		context.setGenerateObserverCount(true);
+		return context;
+	}
+	
+	/*************************************************************************
+	 * observeInstructionCount
+	 * @see org.mozilla.javascript.ContextFactory#observeInstructionCount(org.mozilla.javascript.Context, int)
+	 ************************************************************************/
+	@Override
+	protected void observeInstructionCount(Context context, int instructionCount) {
+		long deadline = ((PacContext) context).deadline;
+		if (deadline != 0 && System.nanoTime() - deadline > 0) {
+			throw new BudgetExceededError();
+		}
+	}
+	
+}
@@ -0,0 +1,147 @@
+package com.btr.proxy.selector.pac;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.btr.proxy.util.Logger;
+import com.btr.proxy.util.Logger.LogLevel;
+import com.btr.proxy.util.ProxyUtil;
+
+/*****************************************************************************
+ * A bounded pool of script evaluation resources (scopes, engines, ...).
+ * A PAC parser borrows one resource per evaluation so that every resource is
+ * only used by one thread at a time. Resources are created lazily up to the
+ * maximum pool size and are reused afterwards.
+ *
+ * @param <T> the type of the pooled resource.
+ ****************************************************************************/
+
+class PacEvaluationPool<T> {
+	
+	static final int DEFAULT_POOL_SIZE = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+	static final long DEFAULT_BORROW_TIMEOUT = 10 * 1000; // milliseconds
+	
+	/*****************************************************************************
+	 * Creates new resources for the pool.
+	 ****************************************************************************/
+	
+	interface Factory<T> {
+		
+		/*************************************************************************
+		 * Creates a new resource.
+		 * @return the new resource.
+		 * @throws ProxyEvaluationException on error.
+		 ************************************************************************/
+		T create() throws ProxyEvaluationException;
+	}
+	
+	private final Factory<T> factory;
+	private final ConcurrentLinkedQueue<T> idle;
+	private final Semaphore permits;
+	private final int maxSize;
+	private final long borrowTimeout;
+	
+	/*************************************************************************
+	 * Constructor
+	 * @param factory to create new resources.
+	 * @param maxSize the maximum number of resources and therefore the maximum
+	 *          number of concurrent evaluations.
+	 * @param borrowTimeout the max time in milliseconds to wait for a free 
+	 *          resource.
+	 ************************************************************************/
+	
+	PacEvaluationPool(Factory<T> factory, int maxSize, long borrowTimeout) {
+		super();
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Pool size must be at least 1.");
+		}
+		this.factory = factory;
+		this.idle = new ConcurrentLinkedQueue<T>();
+		this.permits = new Semaphore(maxSize, true);
+		this.maxSize = maxSize;
+		this.borrowTimeout = borrowTimeout;
+	}
+	
+	/*************************************************************************
+	 * Creates a pool that uses the pool size and borrow timeout configured 
+	 * via system properties or the defaults.
+	 * @param factory to create new resources.
+	 * @return the new pool.
+	 * @see PacProxySelector#OVERRIDE_POOL_SIZE
+	 * @see PacProxySelector#OVERRIDE_BORROW_TIMEOUT
+	 ************************************************************************/
+	
+	static <T> PacEvaluationPool<T> withDefaults(Factory<T> factory) {
+		long size = ProxyUtil.getLongProperty(PacProxySelector.OVERRIDE_POOL_SIZE, DEFAULT_POOL_SIZE);
+		int maxSize = (int) Math.max(1, Math.min(Integer.MAX_VALUE, size));
+		if (maxSize != size) {
+			Logger.log(PacEvaluationPool.class, LogLevel.ERROR, "Invalid override property:{0}={1}, using {2}", 
+					PacProxySelector.OVERRIDE_POOL_SIZE, size, maxSize);
+		}
+		long borrowTimeout = ProxyUtil.getLongProperty(PacProxySelector.OVERRIDE_BORROW_TIMEOUT, DEFAULT_BORROW_TIMEOUT);
+		return new PacEvaluationPool<T>(factory, maxSize, borrowTimeout);
+	}
+	
+	/*************************************************************************
+	 * Borrows a resource from the pool. Waits until a resource is available.
+	 * The resource must be given back via <code>release</code>.
+	 * @return a resource that is not used by any other thread.
+	 * @throws ProxyEvaluationException if no resource got available within the
+	 *          borrow timeout or the resource could not be created.
+	 ************************************************************************/
+	
+	T borrow() throws ProxyEvaluationException {
+		try {
+			if (!this.permits.tryAcquire(this.borrowTimeout, TimeUnit.MILLISECONDS)) {
+				throw new ProxyEvaluationException("No PAC evaluation slot available within " + this.borrowTimeout + " ms.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ProxyEvaluationException("Interrupted while waiting for a PAC evaluation slot.", e);
+		}
+		
+		T resource = this.idle.poll();
+		if (resource == null) {
+			try {
+				resource = this.factory.create();
+			} catch (ProxyEvaluationException e) {
+				this.permits.release();
+				throw e;
+			} catch (RuntimeException e) {
+				this.permits.release();
+				throw e;
+			}
+		}
+		return resource;
+	}
+	
+	/*************************************************************************
+	 * Gives a borrowed resource back to the pool.
+	 * @param resource the resource to give back.
+	 ************************************************************************/
+	
+	void release(T resource) {
+		this.idle.offer(resource);
+		this.permits.release();
+	}
+	
+	/*************************************************************************
+	 * Gets the maximum number of resources.
+	 * @return the pool size.
+	 ************************************************************************/
+	
+	int getMaxSize() {
+		return this.maxSize;
+	}
+	
+	/*************************************************************************
+	 * Gets the maximum time to wait for a free resource.
+	 * @return the borrow timeout in milliseconds.
+	 ************************************************************************/
+	
+	long getBorrowTimeout() {
+		return this.borrowTimeout;
+	}
+	
+}
@@ -0,0 +1,231 @@
+package com.btr.proxy.selector.pac;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.btr.proxy.util.Logger;
+import com.btr.proxy.util.Logger.LogLevel;
+import com.btr.proxy.util.ProxyUtil;
+
+/*****************************************************************************
+ * Watches the local PAC files of the UrlPacScriptSources for changes.
+ * The directories are registered with a WatchService. When a file was
+ * changed its sources are reloaded after a quiet delay, so an editor that
+ * writes a file in several steps causes only one reload.
+ * <p>
+ * One daemon thread serves all files. The sources are only weakly
+ * referenced, so a source that is no longer used stops being watched.
+ * </p>
+ ****************************************************************************/
+
+final class PacFileWatcher implements Runnable {
+
+	private static volatile PacFileWatcher instance;
+
+	private final WatchService watchService;
+	private final long delay;
+	private final Map<Path, WatchKey> directories;
+	private final List<WatchedFile> files;
+
+	/*****************************************************************************
+	 * A watched file and its source. The reload is due at <code>dueAt</code>,
+	 * 0 if the file has not changed.
+	 ****************************************************************************/
+
+	private static final class WatchedFile {
+		final Path file;
+		final WeakReference<UrlPacScriptSource> source;
+		long dueAt;
+
+		WatchedFile(Path file, UrlPacScriptSource source) {
+			this.file = file;
+			this.source = new WeakReference<UrlPacScriptSource>(source);
+		}
+	}
+
+	/*************************************************************************
+	 * Gets the shared instance. The watcher thread is started on first use.
+	 * @return the watcher.
+	 * @throws IOException if the file system does not support watching.
+	 ************************************************************************/
+
+	static PacFileWatcher getInstance() throws IOException {
+		PacFileWatcher result = instance;
+		if (result == null) {
+			synchronized (PacFileWatcher.class) {
+				result = instance;
+				if (result == null) {
+					result = new PacFileWatcher(FileSystems.getDefault().newWatchService(),
+							ProxyUtil.getLongProperty(UrlPacScriptSource.OVERRIDE_WATCH_DELAY,
+									UrlPacScriptSource.DEFAULT_WATCH_DELAY));
+					Thread thread = new Thread(result, "PAC file watcher");
+					thread.setDaemon(true);
+					thread.start();
+					instance = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 * Use getInstance() to get the shared watcher.
+	 * @param watchService the service to use.
+	 * @param delay the quiet delay in milliseconds before a changed file is
+	 *          reloaded.
+	 ************************************************************************/
+
+	private PacFileWatcher(WatchService watchService, long delay) {
+		super();
+		this.watchService = watchService;
+		this.delay = Math.max(0, delay);
+		this.directories = new HashMap<Path, WatchKey>();
+		this.files = new ArrayList<WatchedFile>();
+	}
+
+	/*************************************************************************
+	 * Starts to watch a file for a source.
+	 * @param file the PAC file.
+	 * @param source the source to reload when the file has changed.
+	 * @throws IOException if the directory can not be watched.
+	 ************************************************************************/
+
+	synchronized void watch(Path file, UrlPacScriptSource source) throws IOException {
+		Path path = file.toAbsolutePath().normalize();
+		Path directory = path.getParent();
+		if (!this.directories.containsKey(directory)) {
+			this.directories.put(directory, directory.register(this.watchService,
+					StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY));
+		}
+		this.files.add(new WatchedFile(path, source));
+		Logger.log(getClass(), LogLevel.TRACE, "Watching PAC file: {0}", path);
+	}
+
+	/*************************************************************************
+	 * Waits for changes and reloads the changed files when they are due.
+	 ************************************************************************/
+
+	public void run() {
+		try {
+			while (true) {
+				long wait = nextDue();
+				WatchKey key;
+				if (wait < 0) {
+					key = this.watchService.take();
+				} else {
+					key = this.watchService.poll(wait, TimeUnit.MILLISECONDS);
+				}
+				if (key != null) {
+					changed(key);
+				}
+				reloadDue();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ClosedWatchServiceException e) {
+			// Stopped
+		}
+	}
+
+	/*************************************************************************
+	 * Gets the time until the next reload is due.
+	 * @return the time in milliseconds, -1 if no reload is pending.
+	 ************************************************************************/
+
+	private synchronized long nextDue() {
+		long result = -1;
+		long now = System.currentTimeMillis();
+		for (WatchedFile watched : this.files) {
+			if (watched.dueAt > 0) {
+				long wait = Math.max(0, watched.dueAt - now);
+				result = result < 0 ? wait : Math.min(result, wait);
+			}
+		}
+		return result;
+	}
+
+	/*************************************************************************
+	 * Marks the files of a directory as changed.
+	 * @param key the signalled key of the directory.
+	 ************************************************************************/
+
+	private synchronized void changed(WatchKey key) {
+		Path directory = (Path) key.watchable();
+		long dueAt = System.currentTimeMillis() + this.delay;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			Object context = event.context();
+			for (WatchedFile watched : this.files) {
+				if (directory.equals(watched.file.getParent())
+						&& (context == null || watched.file.getFileName().equals(context))) {
+					watched.dueAt = dueAt;
+				}
+			}
+		}
+		if (!key.reset()) {
+			this.directories.remove(directory);
+		}
+	}
+
+	/*************************************************************************
+	 * Reloads all sources whose files are due. Sources that are no longer
+	 * used are removed, and so are directories without watched files.
+	 ************************************************************************/
+
+	private void reloadDue() {
+		List<UrlPacScriptSource> due = new ArrayList<UrlPacScriptSource>();
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			for (Iterator<WatchedFile> it = this.files.iterator(); it.hasNext();) {
+				WatchedFile watched = it.next();
+				UrlPacScriptSource source = watched.source.get();
+				if (source == null) {
+					it.remove();
+				} else if (watched.dueAt > 0 && watched.dueAt <= now) {
+					watched.dueAt = 0;
+					due.add(source);
+				}
+			}
+			for (Iterator<Map.Entry<Path, WatchKey>> it = this.directories.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<Path, WatchKey> entry = it.next();
+				if (!isWatched(entry.getKey())) {
+					entry.getValue().cancel();
+					it.remove();
+				}
+			}
+		}
+		for (UrlPacScriptSource source : due) {
+			try {
+				source.fileChanged();
+			} catch (RuntimeException e) {
+				Logger.log(getClass(), LogLevel.ERROR, "Reloading PAC file {0} failed: {1}", source, e);
+			} catch (Error e) {
+				// Keep the thread alive, or later changes are never picked up.
+				Logger.log(getClass(), LogLevel.ERROR, "Reloading PAC file {0} failed: {1}", source, e);
+			}
+		}
+	}
+
+	private boolean isWatched(Path directory) {
+		for (WatchedFile watched : this.files) {
+			if (directory.equals(watched.file.getParent())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
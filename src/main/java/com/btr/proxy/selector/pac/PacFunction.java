@@ -0,0 +1,339 @@
+package com.btr.proxy.selector.pac;
+
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+
+import com.btr.proxy.selector.pac.PacContextFactory.PacContext;
+
+/*****************************************************************************
+ * Native Rhino function object for one PAC builtin like shExpMatch.
+ * <p>
+ * The arguments are taken from the JavaScript call as they are and passed to
+ * the ScriptMethods of the parser, so a call from the script is a plain
+ * virtual call without the reflection and argument conversion of Rhino's
+ * FunctionObject. The function objects do not belong to a parser, they live
+ * in the scope shared by all parsers. The ScriptMethods of the parser that
+ * runs the script are taken from the current PacContext. Strings may arrive
+ * as ConsString and are only converted when they are not a java.lang.String
+ * already. Missing arguments are passed as "undefined" like before.
+ * </p>
+ ****************************************************************************/
+
+abstract class PacFunction extends BaseFunction {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String name;
+	private final int arity;
+
+	/*************************************************************************
+	 * Constructor
+	 * @param name the function name.
+	 * @param arity the number of declared parameters.
+	 ************************************************************************/
+
+	PacFunction(String name, int arity) {
+		super();
+		this.name = name;
+		this.arity = arity;
+	}
+
+	/*************************************************************************
+	 * Defines all PAC builtins in the given scope. The standard objects must
+	 * already be initialized in the scope. The function objects are sealed,
+	 * as the scope is shared by all evaluating threads.
+	 * @param scope the scope to define the functions in.
+	 ************************************************************************/
+
+	static void defineAll(ScriptableObject scope) {
+		PacFunction[] functions = {
+			new ShExpMatch(), new DnsResolve(), new IsResolvable(),
+			new IsInNet(), new DnsDomainIs(), new IsPlainHostName(),
+			new MyIpAddress(), new DnsDomainLevels(), new LocalHostOrDomainIs(),
+			new WeekdayRange(), new DateRange(), new TimeRange(),
+			new IsResolvableEx(), new IsInNetEx(), new DnsResolveEx(),
+			new MyIpAddressEx()
+		};
+		Scriptable functionPrototype = ScriptableObject.getFunctionPrototype(scope);
+		for (PacFunction function : functions) {
+			function.setParentScope(scope);
+			function.setPrototype(functionPrototype);
+			function.sealObject();
+			scope.defineProperty(function.name, function, ScriptableObject.DONTENUM);
+		}
+	}
+
+	@Override
+	public String getFunctionName() {
+		return this.name;
+	}
+
+	@Override
+	public int getArity() {
+		return this.arity;
+	}
+
+	@Override
+	public int getLength() {
+		return this.arity;
+	}
+
+	/*************************************************************************
+	 * Gets the PAC function implementation of the parser that runs the
+	 * current script.
+	 * @param cx the current context.
+	 * @return the script methods.
+	 ************************************************************************/
+
+	static ScriptMethods methods(Context cx) {
+		ScriptMethods methods = cx instanceof PacContext ? ((PacContext) cx).getScriptMethods() : null;
+		if (methods == null) {
+			throw Context.reportRuntimeError("PAC functions can only be called during a PAC evaluation.");
+		}
+		return methods;
+	}
+
+	/*************************************************************************
+	 * Gets an argument.
+	 * @param args the call arguments.
+	 * @param index the index of the argument.
+	 * @return the argument, Undefined if it is missing.
+	 ************************************************************************/
+
+	static Object arg(Object[] args, int index) {
+		return index < args.length ? args[index] : Undefined.instance;
+	}
+
+	/*************************************************************************
+	 * Gets an argument as string.
+	 * @param args the call arguments.
+	 * @param index the index of the argument.
+	 * @return the argument converted with JavaScript semantics, "undefined"
+	 *         if it is missing.
+	 ************************************************************************/
+
+	static String stringArg(Object[] args, int index) {
+		Object value = arg(args, index);
+		if (value instanceof String) {
+			return (String) value;
+		}
+		if (value instanceof CharSequence) {
+			return value.toString();
+		}
+		return Context.toString(value);
+	}
+
+	static final class ShExpMatch extends PacFunction {
+		private static final long serialVersionUID = 1L;
+
+		ShExpMatch() {
+			super("shExpMatch", 2);
+		}
+
+		@Override
+		public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+			return methods(cx).shExpMatch(stringArg(args, 0), stringArg(args, 1));
+		}
+	}
+
+	static final class DnsResolve extends PacFunction {
+		private static final long serialVersionUID = 1L;
+
+		DnsResolve() {
+			super("dnsResolve", 1);
+		}
+
+		@Override
+		public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+			return methods(cx).dnsResolve(stringArg(args, 0));
+		}
+	}
+
+	static final class IsResolvable extends PacFunction {
+		private static final long serialVersionUID = 1L;
+
+		IsResolvable() {
+			super("isResolvable", 1);
+		}
+
+		@Override
+		public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+			return methods(cx).isResolvable(stringArg(args, 0));
+		}
+	}
+
+	static final class IsInNet extends PacFunction {
+		private static final long serialVersionUID = 1L;
+
+		IsInNet() {
+			super("isInNet", 3);
+		}
+
+		@Override
+		public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+			return methods(cx).isInNet(stringArg(args, 0), stringArg(args, 1), stringArg(args, 2));
+		}
+	}
+
+	static final class DnsDomainIs extends PacFunction {
+		private static final long serialVersionUID = 1L;
+
+		DnsDomainIs() {
+			super("dnsDomainIs", 2);
+		}
+
+		@Override
+		public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+			return methods(cx).dnsDomainIs(stringArg(args, 0), stringArg(args, 1));
+		}
+	}
+
+	static final class IsPlainHostName extends PacFunction {
+		private static final long serialVersionUID = 1L;
+
+		IsPlainHostName() {
+			super("isPlainHostName", 1);
+		}
+
+		@Override
+		public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+			return methods(cx).isPlainHostName(stringArg(args, 0));
+		}
+	}
+
+	static final class MyIpAddress extends PacFunction {
+		private static final long serialVersionUID = 1L;
+
+		MyIpAddress() {
+			super("myIpAddress", 0);
+		}
+
+		@Override
+		public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+			return methods(cx).myIpAddress();
+		}
+	}
+
+	static final class DnsDomainLevels extends PacFunction {
+		private static final long serialVersionUID = 1L;
+
+		DnsDomainLevels() {
+			super("dnsDomainLevels", 1);
+		}
+
+		@Override
+		public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+			return methods(cx).dnsDomainLevels(stringArg(args, 0));
+		}
+	}
+
+	static final class LocalHostOrDomainIs extends PacFunction {
+		private static final long serialVersionUID = 1L;
+
+		LocalHostOrDomainIs() {
+			super("localHostOrDomainIs", 2);
+		}
+
+		@Override
+		public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+			return methods(cx).localHostOrDomainIs(stringArg(args, 0), stringArg(args, 1));
+		}
+	}
+
+	static final class WeekdayRange extends PacFunction {
+		private static final long serialVersionUID = 1L;
+
+		WeekdayRange() {
+			super("weekdayRange", 3);
+		}
+
+		@Override
+		public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+			return methods(cx).weekdayRange(stringArg(args, 0), stringArg(args, 1), stringArg(args, 2));
+		}
+	}
+
+	static final class DateRange extends PacFunction {
+		private static final long serialVersionUID = 1L;
+
+		DateRange() {
+			super("dateRange", 7);
+		}
+
+		@Override
+		public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+			return methods(cx).dateRange(arg(args, 0), arg(args, 1), arg(args, 2),
+					arg(args, 3), arg(args, 4), arg(args, 5), arg(args, 6));
+		}
+	}
+
+	static final class TimeRange extends PacFunction {
+		private static final long serialVersionUID = 1L;
+
+		TimeRange() {
+			super("timeRange", 7);
+		}
+
+		@Override
+		public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+			return methods(cx).timeRange(arg(args, 0), arg(args, 1), arg(args, 2),
+					arg(args, 3), arg(args, 4), arg(args, 5), arg(args, 6));
+		}
+	}
+
+	static final class IsResolvableEx extends PacFunction {
+		private static final long serialVersionUID = 1L;
+
+		IsResolvableEx() {
+			super("isResolvableEx", 1);
+		}
+
+		@Override
+		public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+			return methods(cx).isResolvableEx(stringArg(args, 0));
+		}
+	}
+
+	static final class IsInNetEx extends PacFunction {
+		private static final long serialVersionUID = 1L;
+
+		IsInNetEx() {
+			super("isInNetEx", 2);
+		}
+
+		@Override
+		public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+			return methods(cx).isInNetEx(stringArg(args, 0), stringArg(args, 1));
+		}
+	}
+
+	static final class DnsResolveEx extends PacFunction {
+		private static final long serialVersionUID = 1L;
+
+		DnsResolveEx() {
+			super("dnsResolveEx", 1);
+		}
+
+		@Override
+		public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+			return methods(cx).dnsResolveEx(stringArg(args, 0));
+		}
+	}
+
+	static final class MyIpAddressEx extends PacFunction {
+		private static final long serialVersionUID = 1L;
+
+		MyIpAddressEx() {
+			super("myIpAddressEx", 0);
+		}
+
+		@Override
+		public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+			return methods(cx).myIpAddressEx();
+		}
+	}
+
+}
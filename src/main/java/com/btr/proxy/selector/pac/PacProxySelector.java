@@ -7,17 +7,62 @@ import java.net.ProxySelector;
 import java.net.SocketAddress;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.btr.proxy.selector.misc.CacheKeyProvider;
+import com.btr.proxy.selector.misc.ExpiringProxySelector;
 import com.btr.proxy.util.Logger;
 import com.btr.proxy.util.Logger.LogLevel;
 import com.btr.proxy.util.ProxyUtil;
 
 /*****************************************************************************
  * ProxySelector that will use a PAC script to find an proxy for a given URI.
+ * <p>
+ * As <code>ExpiringProxySelector</code> it reports how long a result stays
+ * valid: until the next moment at which one of the date and time functions
+ * called by the script could give a different answer. Results of scripts that
+ * do not call these functions do not expire.
+ * </p>
+ * <p>
+ * As <code>CacheKeyProvider</code> it gives a cache key that only contains
+ * the host and the part of the URL the script can read. Most scripts only
+ * test the host or the scheme, so all URLs of a host share one key.
+ * </p>
  *
  * @author Bernd Rosstauscher (proxyvole@rosstauscher.de) Copyright 2009
  ****************************************************************************/
-public class PacProxySelector extends ProxySelector {
+public class PacProxySelector extends ProxySelector implements ExpiringProxySelector, CacheKeyProvider {
+	
+	/** System property to set the max number of concurrent PAC evaluations per parser. */
+	public static final String OVERRIDE_POOL_SIZE = "com.btr.proxy.pac.poolSize";
+	/** System property to set the max time in milliseconds to wait for a free PAC evaluation slot. */
+	public static final String OVERRIDE_BORROW_TIMEOUT = "com.btr.proxy.pac.borrowTimeout";
+	
+	/** System property to set the max time in milliseconds a single PAC evaluation may take. */
+	public static final String OVERRIDE_EVALUATION_BUDGET = "com.btr.proxy.pac.evaluationBudget";
+	
+	/** System property to evaluate simple PAC scripts with compiled Java rules instead of a JavaScript engine. */
+	public static final String OVERRIDE_RULE_COMPILER = "com.btr.proxy.pac.ruleCompiler";
+	
+	/** System property to disable the hoisting of invariant expressions out of the PAC functions, set it to "false". */
+	public static final String OVERRIDE_SPECIALIZATION = "com.btr.proxy.pac.specialize";
+	
+	/*****************************************************************************
+	 * Defines what the selector returns if the PAC script evaluation 
+	 * exceeds its time budget. Other evaluation errors always return DIRECT.
+	 ****************************************************************************/
+	
+	public enum EvaluationFallback {
+		/// Use a DIRECT connection.
+		DIRECT,
+		/// Use the last result that was evaluated successfully, DIRECT if there is none.
+		LAST_KNOWN_GOOD,
+		/// Fail the selection with an IllegalStateException.
+		FAIL
+	}
 	
 	private final boolean JAVAX_PARSER = ScriptAvailability.isJavaxScriptingAvailable();
 	
@@ -25,10 +70,37 @@ public class PacProxySelector extends ProxySelector {
 	private static final String PAC_SOCKS = "SOCKS";
 	private static final String PAC_DIRECT = "DIRECT";
 	
+	// Max number of distinct PAC results and proxy definitions kept parsed.
+	private static final int MAX_PARSED_RESULTS = 256;
+	
 	private PacScriptParser pacScriptParser;
+	private volatile EvaluationFallback evaluationFallback = EvaluationFallback.DIRECT;
+	private volatile List<Proxy> lastKnownGood;
+	private final AtomicLong evaluationTimeouts = new AtomicLong();
+	private final ConcurrentHashMap<String, List<Proxy>> parsedResults = new ConcurrentHashMap<String, List<Proxy>>();
+	private final ConcurrentHashMap<String, Proxy> parsedProxies = new ConcurrentHashMap<String, Proxy>();
+	
+	private volatile UrlPrefix urlPrefix;
 	
 	private static volatile boolean enabled = true;
 	
+	// Set while the current thread downloads a PAC script.
+	private static final ThreadLocal<Boolean> downloading = new ThreadLocal<Boolean>();
+	
+	/*****************************************************************************
+	 * The number of leading URL characters a script version can read.
+	 ****************************************************************************/
+	
+	private static final class UrlPrefix {
+		final String content;
+		final int length;
+		
+		UrlPrefix(String content, int length) {
+			this.content = content;
+			this.length = length;
+		}
+	}
+	
 	/*************************************************************************
 	 * Constructor
 	 * 
@@ -40,9 +112,23 @@ public class PacProxySelector extends ProxySelector {
 		selectEngine(pacSource);
 	}
 	
+	/*************************************************************************
+	 * Constructor
+	 * Can be used to use a preconfigured PAC script parser.
+	 * 
+	 * @param pacScriptParser the parser to evaluate the PAC script.
+	 ************************************************************************/
+	
+	public PacProxySelector(PacScriptParser pacScriptParser) {
+		super();
+		this.pacScriptParser = pacScriptParser;
+	}
+	
 	/*************************************************************************
 	 * Can be used to enable / disable the proxy selector.
-	 * If disabled it will return DIRECT for all urls.
+	 * If disabled it will return DIRECT for all urls on all threads.
+	 * It is not needed to prevent recursion while a PAC script is downloaded,
+	 * see <code>runWithoutPac</code>.
 	 * 
 	 * @param enable the new status to set.
 	 ************************************************************************/
@@ -61,6 +147,60 @@ public class PacProxySelector extends ProxySelector {
 		return enabled;
 	}
 	
+	/*************************************************************************
+	 * Runs a PAC script download. While it runs all selectors return DIRECT
+	 * for the current thread only, so a download that asks the default 
+	 * ProxySelector can not recurse into the script it is loading. 
+	 * Selections on other threads are evaluated normally.
+	 * 
+	 * @param download the download to run.
+	 * @return the result of the download.
+	 * @throws IOException on download error.
+	 ************************************************************************/
+	
+	static <T> T runWithoutPac(Download<T> download) throws IOException {
+		if(downloading.get() != null) {
+			return download.run();
+		}
+		downloading.set(Boolean.TRUE);
+		try {
+			return download.run();
+		} finally {
+			downloading.remove();
+		}
+	}
+	
+	/*****************************************************************************
+	 * A download that is run by runWithoutPac.
+	 ****************************************************************************/
+	
+	interface Download<T> {
+		T run() throws IOException;
+	}
+	
+	/*************************************************************************
+	 * Sets the result to use if the PAC script evaluation is aborted
+	 * because it exceeded its time budget. Other evaluation errors always
+	 * return DIRECT.
+	 * 
+	 * @param evaluationFallback the fallback to use. Default is DIRECT.
+	 ************************************************************************/
+	
+	public void setEvaluationFallback(EvaluationFallback evaluationFallback) {
+		this.evaluationFallback = evaluationFallback;
+	}
+	
+	/*************************************************************************
+	 * Gets the number of PAC evaluations that were aborted because they
+	 * exceeded the time budget.
+	 * 
+	 * @return the number of aborted evaluations.
+	 ************************************************************************/
+	
+	public long getEvaluationTimeoutCount() {
+		return this.evaluationTimeouts.get();
+	}
+	
 	/*************************************************************************
 	 * Selects one of the available PAC parser engines.
 	 * 
@@ -69,7 +209,10 @@ public class PacProxySelector extends ProxySelector {
 	
 	private void selectEngine(PacScriptSource pacSource) {
 		try {
-			if(this.JAVAX_PARSER) {
+			if(Boolean.getBoolean(OVERRIDE_RULE_COMPILER)) {
+				Logger.log(getClass(), LogLevel.TRACE, "Using PAC rule compiler.");
+				this.pacScriptParser = new PacRuleParser(pacSource);
+			} else if(this.JAVAX_PARSER) {
 				Logger.log(getClass(), LogLevel.TRACE, "Using javax.script JavaScript engine.");
 				this.pacScriptParser = new JavaxPacScriptParser(pacSource);
 			} else {
@@ -108,12 +251,83 @@ public class PacProxySelector extends ProxySelector {
 		// URL.connect(Proxy.NO_PROXY) does not work as expected.
 		if(!enabled) {
 			Logger.log(getClass(), LogLevel.INFO, "enabled:{0}, so using no noProxyList.", enabled);
+			PacResultValidity.fallbackUsed();
+			return ProxyUtil.noProxyList();
+		}
+		if(downloading.get() != null) {
+			Logger.log(getClass(), LogLevel.TRACE, "PAC script download on this thread, so using no noProxyList.");
+			PacResultValidity.fallbackUsed();
 			return ProxyUtil.noProxyList();
 		}
 		
 		return findProxy(uri);
 	}
 	
+	/*************************************************************************
+	 * selectExpiring
+	 * 
+	 * @see com.btr.proxy.selector.misc.ExpiringProxySelector#selectExpiring(java.net.URI)
+	 ************************************************************************/
+	
+	public Result selectExpiring(URI uri) {
+		PacResultValidity validity = PacResultValidity.begin();
+		try {
+			List<Proxy> proxies = select(uri);
+			return new Result(proxies, validity.getMaxAge());
+		} finally {
+			PacResultValidity.end();
+		}
+	}
+	
+	/*************************************************************************
+	 * getCacheKey
+	 * 
+	 * @see com.btr.proxy.selector.misc.CacheKeyProvider#getCacheKey(java.net.URI)
+	 ************************************************************************/
+	
+	public String getCacheKey(URI uri) {
+		String host = uri.getHost();
+		int prefixLength = getUrlPrefixLength();
+		if(host == null || prefixLength == PacScriptAnalyzer.WHOLE_URL) {
+			return uri.toString();
+		}
+		if(prefixLength == 0) {
+			return host;
+		}
+		// The space separates the parts and can not occur in an URI
+		String url = uri.toString();
+		return url.substring(0, Math.min(prefixLength, url.length())) + " " + host;
+	}
+	
+	/*************************************************************************
+	 * Gets the number of leading characters of the URL the current script
+	 * can read. The script is analyzed once per content.
+	 * 
+	 * @return the prefix length, PacScriptAnalyzer.WHOLE_URL if unknown.
+	 ************************************************************************/
+	
+	private int getUrlPrefixLength() {
+		if(this.pacScriptParser == null) {
+			return PacScriptAnalyzer.WHOLE_URL;
+		}
+		String content;
+		try {
+			content = this.pacScriptParser.getScriptSource().getScriptContent();
+		} catch(IOException e) {
+			return PacScriptAnalyzer.WHOLE_URL;
+		}
+		if(content == null) {
+			return PacScriptAnalyzer.WHOLE_URL;
+		}
+		UrlPrefix prefix = this.urlPrefix;
+		if(prefix == null || (prefix.content != content && !prefix.content.equals(content))) {
+			prefix = new UrlPrefix(content, PacScriptAnalyzer.getUrlPrefixLength(content));
+			Logger.log(getClass(), LogLevel.TRACE, "PAC script reads {0} characters of the URL.", prefix.length);
+			this.urlPrefix = prefix;
+		}
+		return prefix.length;
+	}
+	
 	/*************************************************************************
 	 * Evaluation of the given URL with the PAC-file.
 	 * 
@@ -129,28 +343,108 @@ public class PacProxySelector extends ProxySelector {
 	
 	private List<Proxy> findProxy(URI uri) {
 		try {
-			List<Proxy> proxies = new ArrayList<Proxy>();
 			String parseResult = this.pacScriptParser.evaluate(uri.toString(), uri.getHost());
 			Logger.log(getClass(), LogLevel.TRACE, "parseResult:{0}", parseResult);
-			String[] proxyDefinitions = parseResult.split("[;]");
-			for(String proxyDef : proxyDefinitions) {
-				if(proxyDef.trim().length() > 0) {
-					proxies.add(buildProxyFromPacResult(proxyDef));
-				}
-			}
+			List<Proxy> proxies = getProxyList(parseResult);
 			
 			Logger.log(getClass(), LogLevel.TRACE, "proxies:{0}", proxies);
 			
 			// Log the selected proxy information at INFO level
 			ProxyUtil.logProxySelection(getClass(), uri, proxies, "PAC script");
 			
+			this.lastKnownGood = proxies;
 			return proxies;
+		} catch(ProxyEvaluationTimeoutException e) {
+			long count = this.evaluationTimeouts.incrementAndGet();
+			Logger.log(getClass(), LogLevel.WARNING, "PAC evaluation timed out for {0} ({1} timeouts so far).", uri, count);
+			PacResultValidity.fallbackUsed();
+			return fallback(uri, e);
 		} catch(ProxyEvaluationException e) {
 			Logger.log(getClass(), LogLevel.ERROR, "PAC resolving error:{0}.", e);
+			PacResultValidity.fallbackUsed();
 			return ProxyUtil.noProxyList();
 		}
 	}
 	
+	/*************************************************************************
+	 * Gets the proxy list for a PAC result string. A PAC script only returns
+	 * a few distinct strings, so the parsed lists are kept in a bounded table
+	 * and the same immutable list is returned for the same result string.
+	 * 
+	 * @param pacResult the result from the PAC parser.
+	 * @return an unmodifiable list of proxies.
+	 ************************************************************************/
+	
+	private List<Proxy> getProxyList(String pacResult) {
+		List<Proxy> proxies = this.parsedResults.get(pacResult);
+		if(proxies != null) {
+			return proxies;
+		}
+		
+		List<Proxy> list = new ArrayList<Proxy>();
+		for(String proxyDef : pacResult.split("[;]")) {
+			if(proxyDef.trim().length() > 0) {
+				list.add(getProxy(proxyDef));
+			}
+		}
+		proxies = Collections.unmodifiableList(list);
+		if(this.parsedResults.size() < MAX_PARSED_RESULTS) {
+			List<Proxy> existing = this.parsedResults.putIfAbsent(pacResult, proxies);
+			if(existing != null) {
+				proxies = existing;
+			}
+		}
+		return proxies;
+	}
+	
+	/*************************************************************************
+	 * Gets the proxy for a single proxy definition of a PAC result. 
+	 * The same definition is mapped to the same <code>Proxy</code> instance
+	 * as long as the table is not full.
+	 * 
+	 * @param proxyDef the proxy definition.
+	 * @return a Proxy
+	 ************************************************************************/
+	
+	private Proxy getProxy(String proxyDef) {
+		String key = proxyDef.trim();
+		Proxy proxy = this.parsedProxies.get(key);
+		if(proxy == null) {
+			proxy = buildProxyFromPacResult(key);
+			if(this.parsedProxies.size() < MAX_PARSED_RESULTS) {
+				Proxy existing = this.parsedProxies.putIfAbsent(key, proxy);
+				if(existing != null) {
+					proxy = existing;
+				}
+			}
+		}
+		return proxy;
+	}
+	
+	/*************************************************************************
+	 * Gets the result to use when the evaluation has exceeded its time 
+	 * budget.
+	 * 
+	 * @param uri the URI that was evaluated.
+	 * @param cause the timeout.
+	 * @return the fallback proxy list.
+	 ************************************************************************/
+	
+	private List<Proxy> fallback(URI uri, ProxyEvaluationTimeoutException cause) {
+		switch(this.evaluationFallback) {
+			case FAIL:
+				throw new IllegalStateException("PAC evaluation failed for " + uri, cause);
+			case LAST_KNOWN_GOOD:
+				List<Proxy> result = this.lastKnownGood;
+				if(result != null) {
+					return result;
+				}
+				return ProxyUtil.noProxyList();
+			default:
+				return ProxyUtil.noProxyList();
+		}
+	}
+	
 	/*************************************************************************
 	 * The proxy evaluator will return a proxy string. This method will
 	 * take this string and build a matching <code>Proxy</code> for it.
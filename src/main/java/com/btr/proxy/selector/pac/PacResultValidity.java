@@ -0,0 +1,97 @@
+package com.btr.proxy.selector.pac;
+
+/*****************************************************************************
+ * Records how long the result of one PAC evaluation stays valid.
+ * <p>
+ * The date and time functions weekdayRange, dateRange and timeRange report
+ * the next moment at which their answer could change. The earliest of these
+ * moments is the time until which the result of the whole evaluation may be
+ * cached. A script that calls none of these functions gives a result that
+ * does not depend on the time at all.
+ * </p>
+ * <p>
+ * A fallback result after a failed or aborted evaluation is not an answer
+ * of the script, so it is only valid for a short time.
+ * </p>
+ * <p>
+ * The recording is bound to the evaluating thread, as all parsers run the
+ * script on the thread that calls evaluate.
+ * </p>
+ ****************************************************************************/
+
+final class PacResultValidity {
+
+	/** Max age in milliseconds of a fallback result. */
+	static final long FALLBACK_MAX_AGE = 5 * 1000;
+
+	private static final ThreadLocal<PacResultValidity> CURRENT = new ThreadLocal<PacResultValidity>();
+
+	private long maxAge = Long.MAX_VALUE;
+
+	private PacResultValidity() {
+		super();
+	}
+
+	/*************************************************************************
+	 * Starts the recording for an evaluation on the current thread.
+	 * @return the validity that collects the reported limits.
+	 ************************************************************************/
+
+	static PacResultValidity begin() {
+		PacResultValidity validity = new PacResultValidity();
+		CURRENT.set(validity);
+		return validity;
+	}
+
+	/*************************************************************************
+	 * Ends the recording on the current thread.
+	 ************************************************************************/
+
+	static void end() {
+		CURRENT.remove();
+	}
+
+	/*************************************************************************
+	 * Gets the validity of the evaluation running on the current thread.
+	 * @return the validity, null if nothing is recorded.
+	 ************************************************************************/
+
+	static PacResultValidity current() {
+		return CURRENT.get();
+	}
+
+	/*************************************************************************
+	 * Limits the validity of the result on the current thread, because it
+	 * is a fallback and not the result of the script.
+	 ************************************************************************/
+
+	static void fallbackUsed() {
+		PacResultValidity validity = CURRENT.get();
+		if (validity != null) {
+			validity.limit(FALLBACK_MAX_AGE);
+		}
+	}
+
+	/*************************************************************************
+	 * Limits the validity of the result.
+	 * @param millis the time in milliseconds from now on after which the
+	 *        result could change.
+	 ************************************************************************/
+
+	void limit(long millis) {
+		if (millis < this.maxAge) {
+			this.maxAge = millis;
+		}
+	}
+
+	/*************************************************************************
+	 * Gets the time the result stays valid.
+	 * @return the time in milliseconds, Long.MAX_VALUE if the result does not
+	 *         depend on the current time.
+	 ************************************************************************/
+
+	long getMaxAge() {
+		return this.maxAge;
+	}
+
+}
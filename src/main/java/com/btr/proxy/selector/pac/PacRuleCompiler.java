@@ -0,0 +1,361 @@
+package com.btr.proxy.selector.pac;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.Node;
+import org.mozilla.javascript.Parser;
+import org.mozilla.javascript.Token;
+import org.mozilla.javascript.ast.AstNode;
+import org.mozilla.javascript.ast.AstRoot;
+import org.mozilla.javascript.ast.Block;
+import org.mozilla.javascript.ast.EmptyStatement;
+import org.mozilla.javascript.ast.FunctionCall;
+import org.mozilla.javascript.ast.FunctionNode;
+import org.mozilla.javascript.ast.IfStatement;
+import org.mozilla.javascript.ast.InfixExpression;
+import org.mozilla.javascript.ast.Name;
+import org.mozilla.javascript.ast.ParenthesizedExpression;
+import org.mozilla.javascript.ast.ReturnStatement;
+import org.mozilla.javascript.ast.Scope;
+import org.mozilla.javascript.ast.StringLiteral;
+import org.mozilla.javascript.ast.UnaryExpression;
+
+import com.btr.proxy.util.Logger;
+import com.btr.proxy.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * Compiles a subset of PAC scripts into <code>PacRules</code>.
+ * <p>
+ * Supported are scripts that only define the FindProxyForURL function, with
+ * a body made of if/else statements and return statements with constant
+ * strings. Conditions may combine the functions dnsDomainIs, shExpMatch,
+ * isPlainHostName, isInNet and localHostOrDomainIs with constant arguments
+ * using <code>!</code>, <code>&amp;&amp;</code> and <code>||</code>.
+ * </p>
+ ****************************************************************************/
+
+final class PacRuleCompiler {
+
+	private static final String ENTRY_FUNCTION = "FindProxyForURL";
+
+	private String urlName;
+	private String hostName;
+
+	/*****************************************************************************
+	 * Thrown if the script uses a construct that is not supported.
+	 ****************************************************************************/
+
+	private static final class UnsupportedScriptException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		UnsupportedScriptException(AstNode node) {
+			super("Unsupported PAC construct at line " + node.getLineno() + ": " + Token.typeToName(node.getType()));
+		}
+
+		UnsupportedScriptException(String message) {
+			super(message);
+		}
+	}
+
+	/*************************************************************************
+	 * Compiles the given script.
+	 * @param content the PAC script content.
+	 * @return the compiled rules or null if the script uses constructs that
+	 *         are not supported by the compiler.
+	 ************************************************************************/
+
+	PacRules compile(String content) {
+		try {
+			AstRoot root = new Parser(new CompilerEnvirons()).parse(content, "userPacFile", 1);
+			FunctionNode function = findEntryFunction(root);
+			List<AstNode> params = function.getParams();
+			if (params.size() != 2 || !(params.get(0) instanceof Name) || !(params.get(1) instanceof Name)) {
+				throw new UnsupportedScriptException(ENTRY_FUNCTION + " must have the parameters (url, host)");
+			}
+			this.urlName = ((Name) params.get(0)).getIdentifier();
+			this.hostName = ((Name) params.get(1)).getIdentifier();
+			return new PacRules(compileStatements(function.getBody()));
+		} catch (UnsupportedScriptException e) {
+			Logger.log(getClass(), LogLevel.TRACE, "PAC script not compiled to rules: {0}", e.getMessage());
+			return null;
+		} catch (EvaluatorException e) {
+			Logger.log(getClass(), LogLevel.TRACE, "PAC script not compiled to rules: {0}", e.getMessage());
+			return null;
+		}
+	}
+
+	/*************************************************************************
+	 * Checks that the script only defines the FindProxyForURL function.
+	 * @param root the parsed script.
+	 * @return the function node.
+	 * @throws UnsupportedScriptException if there are other statements.
+	 ************************************************************************/
+
+	private FunctionNode findEntryFunction(AstRoot root) throws UnsupportedScriptException {
+		FunctionNode result = null;
+		for (Node node : root) {
+			if (node instanceof EmptyStatement) {
+				continue;
+			}
+			if (result == null && node instanceof FunctionNode
+					&& ((FunctionNode) node).getFunctionType() == FunctionNode.FUNCTION_STATEMENT
+					&& ((FunctionNode) node).getFunctionName() != null
+					&& ENTRY_FUNCTION.equals(((FunctionNode) node).getFunctionName().getIdentifier())) {
+				result = (FunctionNode) node;
+			} else {
+				throw new UnsupportedScriptException((AstNode) node);
+			}
+		}
+		if (result == null) {
+			throw new UnsupportedScriptException("No " + ENTRY_FUNCTION + " function found");
+		}
+		return result;
+	}
+
+	/*************************************************************************
+	 * Compiles a statement list. Runs of simple rules that test only domains
+	 * or only networks are put into lookup tables.
+	 * @param body the block or scope holding the statements.
+	 * @return the compiled statements.
+	 * @throws UnsupportedScriptException on unsupported statements.
+	 ************************************************************************/
+
+	private List<PacRules.Block> compileStatements(AstNode body) throws UnsupportedScriptException {
+		List<PacRules.Block> result = new ArrayList<PacRules.Block>();
+		List<List<String>> domains = new ArrayList<List<String>>();
+		List<String> domainResults = new ArrayList<String>();
+		List<PacRules.IsInNet> nets = new ArrayList<PacRules.IsInNet>();
+		List<String> netResults = new ArrayList<String>();
+
+		for (Node node : body) {
+			AstNode statement = (AstNode) node;
+			if (statement instanceof EmptyStatement) {
+				continue;
+			}
+			PacRules.Block block = compileStatement(statement);
+			String ruleResult = getSimpleRuleResult(block);
+			List<PacRules.Condition> atoms = ruleResult == null ? null : flattenOr(((PacRules.If) block).condition());
+
+			if (atoms != null && allOfType(atoms, PacRules.DnsDomainIs.class) && nets.isEmpty()) {
+				List<String> ruleDomains = new ArrayList<String>();
+				for (PacRules.Condition atom : atoms) {
+					ruleDomains.add(((PacRules.DnsDomainIs) atom).domain);
+				}
+				domains.add(ruleDomains);
+				domainResults.add(ruleResult);
+				continue;
+			}
+			flushDomains(result, domains, domainResults);
+
+			if (atoms != null && allOfType(atoms, PacRules.IsInNet.class)) {
+				for (PacRules.Condition atom : atoms) {
+					nets.add((PacRules.IsInNet) atom);
+					netResults.add(ruleResult);
+				}
+				continue;
+			}
+			flushNets(result, nets, netResults);
+			result.add(block);
+		}
+		flushDomains(result, domains, domainResults);
+		flushNets(result, nets, netResults);
+		return result;
+	}
+
+	/*************************************************************************
+	 * Adds the collected domain rules as table to the result.
+	 ************************************************************************/
+
+	private void flushDomains(List<PacRules.Block> result, List<List<String>> domains, List<String> results) {
+		if (domains.isEmpty()) {
+			return;
+		}
+		result.add(new PacRules.DomainTable(new ArrayList<List<String>>(domains), new ArrayList<String>(results)));
+		domains.clear();
+		results.clear();
+	}
+
+	/*************************************************************************
+	 * Adds the collected network rules as table to the result.
+	 ************************************************************************/
+
+	private void flushNets(List<PacRules.Block> result, List<PacRules.IsInNet> nets, List<String> results) {
+		if (nets.isEmpty()) {
+			return;
+		}
+		long[] networks = new long[nets.size()];
+		long[] masks = new long[nets.size()];
+		for (int i = 0; i < nets.size(); i++) {
+			networks[i] = nets.get(i).network;
+			masks[i] = nets.get(i).mask;
+		}
+		result.add(new PacRules.NetTable(networks, masks, results.toArray(new String[results.size()])));
+		nets.clear();
+		results.clear();
+	}
+
+	/*************************************************************************
+	 * Checks if the block is a rule of the form <code>if (cond) return "x"</code>.
+	 * @param block the compiled statement.
+	 * @return the returned constant or null if the block is not a simple rule.
+	 ************************************************************************/
+
+	private String getSimpleRuleResult(PacRules.Block block) {
+		if (block instanceof PacRules.If) {
+			PacRules.If rule = (PacRules.If) block;
+			if (rule.elsePart() == null && rule.thenPart() instanceof PacRules.Return) {
+				return ((PacRules.Return) rule.thenPart()).result();
+			}
+		}
+		return null;
+	}
+
+	/*************************************************************************
+	 * Splits a condition at its "or" operators.
+	 ************************************************************************/
+
+	private List<PacRules.Condition> flattenOr(PacRules.Condition condition) {
+		List<PacRules.Condition> result = new ArrayList<PacRules.Condition>();
+		if (condition instanceof PacRules.Or) {
+			result.addAll(flattenOr(((PacRules.Or) condition).left()));
+			result.addAll(flattenOr(((PacRules.Or) condition).right()));
+		} else {
+			result.add(condition);
+		}
+		return result;
+	}
+
+	/*************************************************************************
+	 * Checks that all conditions are of the given type.
+	 ************************************************************************/
+
+	private boolean allOfType(List<PacRules.Condition> conditions, Class<?> type) {
+		for (PacRules.Condition condition : conditions) {
+			if (!type.isInstance(condition)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*************************************************************************
+	 * Compiles a single statement.
+	 * @param statement the statement.
+	 * @return the compiled block.
+	 * @throws UnsupportedScriptException on unsupported statements.
+	 ************************************************************************/
+
+	private PacRules.Block compileStatement(AstNode statement) throws UnsupportedScriptException {
+		if (statement instanceof ReturnStatement) {
+			AstNode value = ((ReturnStatement) statement).getReturnValue();
+			if (value instanceof StringLiteral) {
+				return new PacRules.Return(((StringLiteral) value).getValue());
+			}
+			throw new UnsupportedScriptException(statement);
+		}
+		if (statement instanceof IfStatement) {
+			IfStatement ifStatement = (IfStatement) statement;
+			PacRules.Condition condition = compileCondition(ifStatement.getCondition());
+			PacRules.Block thenPart = compileStatement(ifStatement.getThenPart());
+			PacRules.Block elsePart = ifStatement.getElsePart() == null ? null : compileStatement(ifStatement.getElsePart());
+			return new PacRules.If(condition, thenPart, elsePart);
+		}
+		if (statement instanceof Block || statement instanceof Scope) {
+			return new PacRules.Sequence(compileStatements(statement));
+		}
+		throw new UnsupportedScriptException(statement);
+	}
+
+	/*************************************************************************
+	 * Compiles a condition.
+	 * @param expression the condition expression.
+	 * @return the compiled condition.
+	 * @throws UnsupportedScriptException on unsupported expressions.
+	 ************************************************************************/
+
+	private PacRules.Condition compileCondition(AstNode expression) throws UnsupportedScriptException {
+		if (expression instanceof ParenthesizedExpression) {
+			return compileCondition(((ParenthesizedExpression) expression).getExpression());
+		}
+		if (expression instanceof UnaryExpression && expression.getType() == Token.NOT) {
+			return new PacRules.Not(compileCondition(((UnaryExpression) expression).getOperand()));
+		}
+		if (expression instanceof InfixExpression && expression.getType() == Token.OR) {
+			InfixExpression infix = (InfixExpression) expression;
+			return new PacRules.Or(compileCondition(infix.getLeft()), compileCondition(infix.getRight()));
+		}
+		if (expression instanceof InfixExpression && expression.getType() == Token.AND) {
+			InfixExpression infix = (InfixExpression) expression;
+			return new PacRules.And(compileCondition(infix.getLeft()), compileCondition(infix.getRight()));
+		}
+		if (expression instanceof FunctionCall) {
+			return compileCall((FunctionCall) expression);
+		}
+		throw new UnsupportedScriptException(expression);
+	}
+
+	/*************************************************************************
+	 * Compiles a call of one of the supported PAC functions.
+	 * @param call the function call.
+	 * @return the compiled condition.
+	 * @throws UnsupportedScriptException on unsupported calls.
+	 ************************************************************************/
+
+	private PacRules.Condition compileCall(FunctionCall call) throws UnsupportedScriptException {
+		if (!(call.getTarget() instanceof Name)) {
+			throw new UnsupportedScriptException(call);
+		}
+		String function = ((Name) call.getTarget()).getIdentifier();
+		List<AstNode> args = call.getArguments();
+
+		if ("isPlainHostName".equals(function) && args.size() == 1 && isHost(args.get(0))) {
+			return new PacRules.IsPlainHostName();
+		}
+		if ("dnsDomainIs".equals(function) && args.size() == 2 && isHost(args.get(0))) {
+			String domain = getString(args.get(1));
+			if (domain.length() > 0) {
+				return new PacRules.DnsDomainIs(domain);
+			}
+		}
+		if ("localHostOrDomainIs".equals(function) && args.size() == 2 && isHost(args.get(0))) {
+			return new PacRules.LocalHostOrDomainIs(getString(args.get(1)));
+		}
+		if ("shExpMatch".equals(function) && args.size() == 2 && (isHost(args.get(0)) || isUrl(args.get(0)))) {
+			String expression = getString(args.get(1));
+			// "*suffix" on the host is the same test as dnsDomainIs and can use the domain table.
+			if (isHost(args.get(0)) && expression.lastIndexOf('*') == 0 && expression.indexOf('?') == -1
+					&& expression.length() > 1) {
+				return new PacRules.DnsDomainIs(expression.substring(1));
+			}
+			return new PacRules.ShExpMatch(isUrl(args.get(0)), ShellExpression.compile(expression));
+		}
+		if ("isInNet".equals(function) && args.size() == 3 && isHost(args.get(0))) {
+			long network = IpPrefix.parseIPv4(getString(args.get(1)));
+			long mask = IpPrefix.parseIPv4(getString(args.get(2)));
+			if (network >= 0 && mask >= 0) {
+				return new PacRules.IsInNet(network, mask);
+			}
+		}
+		throw new UnsupportedScriptException("Unsupported call of " + function + " at line " + call.getLineno());
+	}
+
+	private boolean isHost(AstNode node) {
+		return node instanceof Name && this.hostName.equals(((Name) node).getIdentifier());
+	}
+
+	private boolean isUrl(AstNode node) {
+		return node instanceof Name && this.urlName.equals(((Name) node).getIdentifier());
+	}
+
+	private String getString(AstNode node) throws UnsupportedScriptException {
+		if (node instanceof StringLiteral) {
+			return ((StringLiteral) node).getValue();
+		}
+		throw new UnsupportedScriptException(node);
+	}
+
+}
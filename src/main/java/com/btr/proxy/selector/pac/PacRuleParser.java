@@ -0,0 +1,156 @@
+package com.btr.proxy.selector.pac;
+
+import java.io.IOException;
+
+import com.btr.proxy.util.Logger;
+import com.btr.proxy.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * PAC parser that evaluates simple PAC scripts without a JavaScript engine.
+ * <p>
+ * Scripts that only consist of if/else chains testing the host with
+ * dnsDomainIs, shExpMatch, isPlainHostName, isInNet and localHostOrDomainIs
+ * and returning constant strings are compiled into Java rules. All other
+ * scripts are evaluated with the <code>RhinoPacScriptParser</code>, which is
+ * only created when it is needed.
+ * </p>
+ ****************************************************************************/
+
+public class PacRuleParser implements PacScriptParser {
+
+	private final PacScriptSource source;
+	private final PacScriptMethods scriptMethods;
+	private final Object compileLock;
+	private volatile CompiledRules compiledRules;
+	private volatile RhinoPacScriptParser fallbackParser;
+
+	/*****************************************************************************
+	 * Holds the rules compiled for one version of the script content.
+	 * The rules are null if the script can not be compiled.
+	 ****************************************************************************/
+
+	private static final class CompiledRules {
+		final String content;
+		final PacRules rules;
+
+		CompiledRules(String content, PacRules rules) {
+			super();
+			this.content = content;
+			this.rules = rules;
+		}
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 * @param source the source for the PAC script.
+	 ************************************************************************/
+
+	public PacRuleParser(PacScriptSource source) {
+		super();
+		this.source = source;
+		this.scriptMethods = new PacScriptMethods();
+		this.compileLock = new Object();
+	}
+
+	/***************************************************************************
+	 * Gets the implementation of the PAC functions used by this parser and 
+	 * by its Rhino fallback.
+	 * @return the script methods.
+	 **************************************************************************/
+
+	public PacScriptMethods getScriptMethods() {
+		return this.scriptMethods;
+	}
+
+	/***************************************************************************
+	 * Gets the source of the PAC script used by this parser.
+	 * @return a PacScriptSource.
+	 **************************************************************************/
+
+	public PacScriptSource getScriptSource() {
+		return this.source;
+	}
+
+	/*************************************************************************
+	 * Checks if the current script content could be compiled into rules.
+	 * @return true if the script is evaluated without JavaScript engine.
+	 * @throws ProxyEvaluationException on error reading the script.
+	 ************************************************************************/
+
+	public boolean isCompiled() throws ProxyEvaluationException {
+		return getCompiledRules().rules != null;
+	}
+
+	/*************************************************************************
+	 * Evaluates the given URL and host against the PAC script.
+	 * This method can be called concurrently.
+	 * @param url the URL to evaluate.
+	 * @param host the host name part of the URL.
+	 * @return the script result.
+	 * @throws ProxyEvaluationException on execution error.
+	 ************************************************************************/
+
+	public String evaluate(String url, String host) throws ProxyEvaluationException {
+		PacRules rules = getCompiledRules().rules;
+		if (rules != null) {
+			try {
+				return rules.evaluate(url, host, this.scriptMethods);
+			} catch (RuntimeException e) {
+				throw new ProxyEvaluationException("Error evaluating compiled PAC rules: " + e.getMessage(), e);
+			}
+		}
+		return getFallbackParser().evaluate(url, host);
+	}
+
+	/*************************************************************************
+	 * Gets the rules for the current script content.
+	 * If the script source delivers new content it is compiled again.
+	 * @return the compiled rules.
+	 * @throws ProxyEvaluationException on error reading the script.
+	 ************************************************************************/
+
+	private CompiledRules getCompiledRules() throws ProxyEvaluationException {
+		String content;
+		try {
+			content = this.source.getScriptContent();
+		} catch (IOException e) {
+			throw new ProxyEvaluationException("Error reading PAC script: " + e.getMessage(), e);
+		}
+		CompiledRules compiled = this.compiledRules;
+		if (compiled != null && compiled.content == content) {
+			return compiled;
+		}
+		synchronized (this.compileLock) {
+			compiled = this.compiledRules;
+			if (compiled == null || !compiled.content.equals(content)) {
+				PacRules rules = new PacRuleCompiler().compile(content);
+				Logger.log(getClass(), LogLevel.TRACE, rules != null
+						? "PAC script compiled to rules." : "PAC script is evaluated with Rhino.");
+				compiled = new CompiledRules(content, rules);
+				this.compiledRules = compiled;
+			}
+			return compiled;
+		}
+	}
+
+	/*************************************************************************
+	 * Gets the Rhino parser used for scripts that can not be compiled.
+	 * @return the parser, created on first use.
+	 * @throws ProxyEvaluationException on error creating the parser.
+	 ************************************************************************/
+
+	private RhinoPacScriptParser getFallbackParser() throws ProxyEvaluationException {
+		RhinoPacScriptParser parser = this.fallbackParser;
+		if (parser == null) {
+			synchronized (this.compileLock) {
+				parser = this.fallbackParser;
+				if (parser == null) {
+					parser = new RhinoPacScriptParser(this.source, this.scriptMethods);
+					this.fallbackParser = parser;
+				}
+			}
+		}
+		return parser;
+	}
+
+}
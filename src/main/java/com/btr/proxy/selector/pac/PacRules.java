@@ -0,0 +1,451 @@
+package com.btr.proxy.selector.pac;
+
+import java.util.List;
+
+/*****************************************************************************
+ * A PAC script compiled into a Java decision structure by the
+ * <code>PacRuleCompiler</code>.
+ * <p>
+ * The rules are a list of blocks that are evaluated in script order. Runs of
+ * consecutive <code>if (...) return "..."</code> rules that only test
+ * <code>dnsDomainIs(host, ...)</code> are put into a suffix hash table, runs
+ * that only test <code>isInNet(host, ...)</code> into a table of network
+ * ranges. All other statements are evaluated as a tree of conditions.
+ * </p>
+ ****************************************************************************/
+
+final class PacRules {
+
+	static final String UNDEFINED = "undefined";
+
+	private final Block[] blocks;
+
+	/*************************************************************************
+	 * Constructor
+	 * @param blocks the blocks in script order.
+	 ************************************************************************/
+
+	PacRules(List<Block> blocks) {
+		super();
+		this.blocks = blocks.toArray(new Block[blocks.size()]);
+	}
+
+	/*************************************************************************
+	 * Evaluates the rules for the given URL.
+	 * @param url the URL to evaluate.
+	 * @param host the host name part of the URL, null for URIs without a
+	 *        host. It is handled as the string "null" like the JavaScript
+	 *        engines do.
+	 * @param methods the PAC functions to use for DNS and host checks.
+	 * @return the result of the rules, "undefined" if no rule returned.
+	 ************************************************************************/
+
+	String evaluate(String url, String host, ScriptMethods methods) {
+		Input input = new Input(url, host == null ? "null" : host, methods);
+		for (Block block : this.blocks) {
+			String result = block.evaluate(input);
+			if (result != null) {
+				return result;
+			}
+		}
+		return UNDEFINED;
+	}
+
+	/*****************************************************************************
+	 * The arguments of one evaluation. The resolved host address is computed
+	 * at most once per evaluation.
+	 ****************************************************************************/
+
+	static final class Input {
+		final String url;
+		final String host;
+		final ScriptMethods methods;
+		private boolean resolved;
+		private long address;
+
+		Input(String url, String host, ScriptMethods methods) {
+			this.url = url;
+			this.host = host;
+			this.methods = methods;
+		}
+
+		/*************************************************************************
+		 * Gets the IPv4 address of the host.
+		 * @return the address as unsigned int value or -1 if not resolvable.
+		 ************************************************************************/
+
+		long getHostAddress() {
+			if (!this.resolved) {
+				this.address = IpPrefix.parseIPv4(this.methods.dnsResolve(this.host));
+				this.resolved = true;
+			}
+			return this.address;
+		}
+	}
+
+	/*****************************************************************************
+	 * A part of the rules that either returns a result or falls through to the
+	 * next block.
+	 ****************************************************************************/
+
+	interface Block {
+
+		/*************************************************************************
+		 * Evaluates the block.
+		 * @param input the evaluation input.
+		 * @return the result or null to continue with the next block.
+		 ************************************************************************/
+		String evaluate(Input input);
+	}
+
+	/*****************************************************************************
+	 * A condition of an if statement.
+	 ****************************************************************************/
+
+	interface Condition {
+
+		/*************************************************************************
+		 * Tests the condition.
+		 * @param input the evaluation input.
+		 * @return the result of the test.
+		 ************************************************************************/
+		boolean test(Input input);
+	}
+
+	/*****************************************************************************
+	 * A return statement with a constant result.
+	 ****************************************************************************/
+
+	static final class Return implements Block {
+		private final String result;
+
+		Return(String result) {
+			this.result = result;
+		}
+
+		String result() {
+			return this.result;
+		}
+
+		public String evaluate(Input input) {
+			return this.result;
+		}
+	}
+
+	/*****************************************************************************
+	 * A list of statements that are executed in order.
+	 ****************************************************************************/
+
+	static final class Sequence implements Block {
+		private final Block[] statements;
+
+		Sequence(List<Block> statements) {
+			this.statements = statements.toArray(new Block[statements.size()]);
+		}
+
+		public String evaluate(Input input) {
+			for (Block statement : this.statements) {
+				String result = statement.evaluate(input);
+				if (result != null) {
+					return result;
+				}
+			}
+			return null;
+		}
+	}
+
+	/*****************************************************************************
+	 * An if statement with an optional else part.
+	 ****************************************************************************/
+
+	static final class If implements Block {
+		private final Condition condition;
+		private final Block thenPart;
+		private final Block elsePart;
+
+		If(Condition condition, Block thenPart, Block elsePart) {
+			this.condition = condition;
+			this.thenPart = thenPart;
+			this.elsePart = elsePart;
+		}
+
+		Condition condition() {
+			return this.condition;
+		}
+
+		Block thenPart() {
+			return this.thenPart;
+		}
+
+		Block elsePart() {
+			return this.elsePart;
+		}
+
+		public String evaluate(Input input) {
+			if (this.condition.test(input)) {
+				return this.thenPart.evaluate(input);
+			}
+			return this.elsePart == null ? null : this.elsePart.evaluate(input);
+		}
+	}
+
+	/*****************************************************************************
+	 * A run of rules of the form <code>if (dnsDomainIs(host, "...") || ...)
+	 * return "..."</code>. The first rule with a matching domain wins.
+	 ****************************************************************************/
+
+	static final class DomainTable implements Block {
+		private final String[] keys;
+		private final int[] rules;
+		private final String[] results;
+		private final int mask;
+		private final int maxLength;
+
+		/*************************************************************************
+		 * Constructor
+		 * @param domains the domain suffixes per rule.
+		 * @param results the result per rule.
+		 ************************************************************************/
+
+		DomainTable(List<List<String>> domains, List<String> results) {
+			int size = 0;
+			for (List<String> ruleDomains : domains) {
+				size += ruleDomains.size();
+			}
+			int capacity = Integer.highestOneBit(Math.max(4, size * 2) - 1) << 1;
+			this.keys = new String[capacity];
+			this.rules = new int[capacity];
+			this.mask = capacity - 1;
+			this.results = results.toArray(new String[results.size()]);
+
+			int maxLength = 0;
+			for (int rule = 0; rule < domains.size(); rule++) {
+				for (String domain : domains.get(rule)) {
+					maxLength = Math.max(maxLength, domain.length());
+					int slot = spread(domain.hashCode()) & this.mask;
+					while (this.keys[slot] != null && !this.keys[slot].equals(domain)) {
+						slot = (slot + 1) & this.mask;
+					}
+					if (this.keys[slot] == null) {
+						// Keep the first rule for duplicated domains.
+						this.keys[slot] = domain;
+						this.rules[slot] = rule;
+					}
+				}
+			}
+			this.maxLength = maxLength;
+		}
+
+		/*************************************************************************
+		 * Tests all suffixes of the host against the table. The hash of the
+		 * suffix is built from right to left the same way as String.hashCode.
+		 * @see com.btr.proxy.selector.pac.PacRules.Block#evaluate(com.btr.proxy.selector.pac.PacRules.Input)
+		 ************************************************************************/
+
+		public String evaluate(Input input) {
+			String host = input.host;
+			int length = host.length();
+			int bestRule = Integer.MAX_VALUE;
+			int hash = 0;
+			int power = 1;
+			for (int start = length - 1; start >= 0 && length - start <= this.maxLength; start--) {
+				hash += host.charAt(start) * power;
+				power *= 31;
+				int suffixLength = length - start;
+				int slot = spread(hash) & this.mask;
+				String key;
+				while ((key = this.keys[slot]) != null) {
+					if (key.length() == suffixLength && host.regionMatches(start, key, 0, suffixLength)) {
+						bestRule = Math.min(bestRule, this.rules[slot]);
+						break;
+					}
+					slot = (slot + 1) & this.mask;
+				}
+			}
+			return bestRule == Integer.MAX_VALUE ? null : this.results[bestRule];
+		}
+
+		private static int spread(int hash) {
+			return hash ^ (hash >>> 16);
+		}
+	}
+
+	/*****************************************************************************
+	 * A run of rules of the form <code>if (isInNet(host, "...", "...") || ...)
+	 * return "..."</code>. The networks are stored in script order, the first
+	 * matching network wins.
+	 ****************************************************************************/
+
+	static final class NetTable implements Block {
+		private final long[] networks;
+		private final long[] masks;
+		private final String[] results;
+
+		/*************************************************************************
+		 * Constructor
+		 * @param networks the network addresses.
+		 * @param masks the network masks.
+		 * @param results the result for each network.
+		 ************************************************************************/
+
+		NetTable(long[] networks, long[] masks, String[] results) {
+			this.networks = networks;
+			this.masks = masks;
+			this.results = results;
+		}
+
+		public String evaluate(Input input) {
+			long address = input.getHostAddress();
+			if (address < 0) {
+				return null;
+			}
+			for (int i = 0; i < this.networks.length; i++) {
+				if ((address & this.masks[i]) == this.networks[i]) {
+					return this.results[i];
+				}
+			}
+			return null;
+		}
+	}
+
+	/*****************************************************************************
+	 * Logical or of two conditions.
+	 ****************************************************************************/
+
+	static final class Or implements Condition {
+		private final Condition left;
+		private final Condition right;
+
+		Or(Condition left, Condition right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		Condition left() {
+			return this.left;
+		}
+
+		Condition right() {
+			return this.right;
+		}
+
+		public boolean test(Input input) {
+			return this.left.test(input) || this.right.test(input);
+		}
+	}
+
+	/*****************************************************************************
+	 * Logical and of two conditions.
+	 ****************************************************************************/
+
+	static final class And implements Condition {
+		private final Condition left;
+		private final Condition right;
+
+		And(Condition left, Condition right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		public boolean test(Input input) {
+			return this.left.test(input) && this.right.test(input);
+		}
+	}
+
+	/*****************************************************************************
+	 * Logical not of a condition.
+	 ****************************************************************************/
+
+	static final class Not implements Condition {
+		private final Condition condition;
+
+		Not(Condition condition) {
+			this.condition = condition;
+		}
+
+		public boolean test(Input input) {
+			return !this.condition.test(input);
+		}
+	}
+
+	/*****************************************************************************
+	 * dnsDomainIs(host, "domain")
+	 ****************************************************************************/
+
+	static final class DnsDomainIs implements Condition {
+		final String domain;
+
+		DnsDomainIs(String domain) {
+			this.domain = domain;
+		}
+
+		public boolean test(Input input) {
+			return input.host.endsWith(this.domain);
+		}
+	}
+
+	/*****************************************************************************
+	 * shExpMatch(url or host, "expression")
+	 ****************************************************************************/
+
+	static final class ShExpMatch implements Condition {
+		private final boolean matchUrl;
+		private final ShellExpression expression;
+
+		ShExpMatch(boolean matchUrl, ShellExpression expression) {
+			this.matchUrl = matchUrl;
+			this.expression = expression;
+		}
+
+		public boolean test(Input input) {
+			return this.expression.matches(this.matchUrl ? input.url : input.host);
+		}
+	}
+
+	/*****************************************************************************
+	 * isPlainHostName(host)
+	 ****************************************************************************/
+
+	static final class IsPlainHostName implements Condition {
+
+		public boolean test(Input input) {
+			return input.host.indexOf('.') < 0;
+		}
+	}
+
+	/*****************************************************************************
+	 * localHostOrDomainIs(host, "domain")
+	 ****************************************************************************/
+
+	static final class LocalHostOrDomainIs implements Condition {
+		private final String domain;
+
+		LocalHostOrDomainIs(String domain) {
+			this.domain = domain;
+		}
+
+		public boolean test(Input input) {
+			return input.methods.localHostOrDomainIs(input.host, this.domain);
+		}
+	}
+
+	/*****************************************************************************
+	 * isInNet(host, "pattern", "mask")
+	 ****************************************************************************/
+
+	static final class IsInNet implements Condition {
+		final long network;
+		final long mask;
+
+		IsInNet(long network, long mask) {
+			this.network = network;
+			this.mask = mask;
+		}
+
+		public boolean test(Input input) {
+			long address = input.getHostAddress();
+			return address >= 0 && (address & this.mask) == this.network;
+		}
+	}
+
+}
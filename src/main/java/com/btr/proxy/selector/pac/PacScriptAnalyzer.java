@@ -0,0 +1,233 @@
+package com.btr.proxy.selector.pac;
+
+import java.util.List;
+
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.Node;
+import org.mozilla.javascript.Parser;
+import org.mozilla.javascript.ast.AstNode;
+import org.mozilla.javascript.ast.AstRoot;
+import org.mozilla.javascript.ast.FunctionCall;
+import org.mozilla.javascript.ast.FunctionNode;
+import org.mozilla.javascript.ast.Name;
+import org.mozilla.javascript.ast.NodeVisitor;
+import org.mozilla.javascript.ast.NumberLiteral;
+import org.mozilla.javascript.ast.ObjectProperty;
+import org.mozilla.javascript.ast.PropertyGet;
+import org.mozilla.javascript.ast.StringLiteral;
+
+import com.btr.proxy.util.Logger;
+import com.btr.proxy.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * Finds out how much of the <code>url</code> parameter of FindProxyForURL a
+ * PAC script can read.
+ * <p>
+ * Most scripts only look at the host, or at the scheme via a prefix test
+ * like <code>url.substring(0, 5) == "http:"</code> or
+ * <code>shExpMatch(url, "https:*")</code>. For these the result is the same
+ * for all URLs with the same host and the same first characters, so a
+ * selection cache can use this as key instead of the whole URL.
+ * </p>
+ * <p>
+ * The analysis is conservative: every use of the parameter that is not one
+ * of the known prefix tests, and every construct that could read it in
+ * other ways (<code>eval</code>, <code>arguments</code>, a redefined
+ * FindProxyForURL or shExpMatch), counts as reading the whole URL.
+ * </p>
+ ****************************************************************************/
+
+final class PacScriptAnalyzer {
+
+	/** Result if the script may read the whole URL. */
+	static final int WHOLE_URL = Integer.MAX_VALUE;
+
+	private static final String ENTRY_FUNCTION = "FindProxyForURL";
+	private static final String SH_EXP_MATCH = "shExpMatch";
+
+	private PacScriptAnalyzer() {
+		super();
+	}
+
+	/*************************************************************************
+	 * Gets the number of leading characters of the <code>url</code>
+	 * parameter the script may read.
+	 * @param content the PAC script content.
+	 * @return 0 if the URL is not read at all, WHOLE_URL if it may be read
+	 *         completely or the script can not be analyzed.
+	 ************************************************************************/
+
+	static int getUrlPrefixLength(String content) {
+		try {
+			AstRoot root = new Parser(new CompilerEnvirons()).parse(content, "userPacFile", 1);
+			FunctionNode function = findEntryFunction(root);
+			if (function == null) {
+				return WHOLE_URL;
+			}
+			List<AstNode> params = function.getParams();
+			if (params.isEmpty()) {
+				return 0;
+			}
+			if (!(params.get(0) instanceof Name)) {
+				return WHOLE_URL;
+			}
+			UrlVisitor visitor = new UrlVisitor(function, ((Name) params.get(0)).getIdentifier());
+			root.visit(visitor);
+			if (visitor.prefixLength != WHOLE_URL) {
+				visitor.collectUrlUses = true;
+				function.getBody().visit(visitor);
+			}
+			return visitor.prefixLength;
+		} catch (EvaluatorException e) {
+			Logger.log(PacScriptAnalyzer.class, LogLevel.TRACE, "PAC script not analyzed: {0}", e.getMessage());
+			return WHOLE_URL;
+		}
+	}
+
+	/*************************************************************************
+	 * Finds the FindProxyForURL function.
+	 * @param root the parsed script.
+	 * @return the function, null if it is not declared exactly once on the
+	 *         top level.
+	 ************************************************************************/
+
+	private static FunctionNode findEntryFunction(AstRoot root) {
+		FunctionNode result = null;
+		for (Node node : root) {
+			if (node instanceof FunctionNode && isNamed((FunctionNode) node, ENTRY_FUNCTION)) {
+				if (result != null) {
+					return null;
+				}
+				result = (FunctionNode) node;
+			}
+		}
+		return result;
+	}
+
+	private static boolean isNamed(FunctionNode function, String name) {
+		return function.getFunctionName() != null && name.equals(function.getFunctionName().getIdentifier());
+	}
+
+	/*****************************************************************************
+	 * Visits the script twice: first to find the names that make the analysis
+	 * unsafe, then to collect the uses of the url parameter in the body of 
+	 * FindProxyForURL.
+	 ****************************************************************************/
+
+	private static final class UrlVisitor implements NodeVisitor {
+		private final FunctionNode function;
+		private final String urlName;
+		private boolean shExpMatchRedefined;
+		boolean collectUrlUses;
+		int prefixLength;
+
+		UrlVisitor(FunctionNode function, String urlName) {
+			this.function = function;
+			this.urlName = urlName;
+		}
+
+		public boolean visit(AstNode node) {
+			if (this.prefixLength == WHOLE_URL) {
+				return false;
+			}
+			if (node instanceof Name) {
+				if (this.collectUrlUses) {
+					if (this.urlName.equals(((Name) node).getIdentifier()) && !isPropertyName((Name) node)) {
+						this.prefixLength = Math.max(this.prefixLength, getPrefixRead((Name) node));
+					}
+				} else {
+					checkName((Name) node);
+				}
+			}
+			return true;
+		}
+
+		private void checkName(Name name) {
+			String identifier = name.getIdentifier();
+			if ("eval".equals(identifier) || "Function".equals(identifier) || "arguments".equals(identifier)) {
+				this.prefixLength = WHOLE_URL;
+			} else if (ENTRY_FUNCTION.equals(identifier) && name != this.function.getFunctionName()) {
+				// Could be replaced by another function
+				this.prefixLength = WHOLE_URL;
+			} else if (SH_EXP_MATCH.equals(identifier) && !isCallTarget(name)) {
+				this.shExpMatchRedefined = true;
+			}
+		}
+
+		/*************************************************************************
+		 * Gets the number of leading characters read by one use of the url
+		 * parameter.
+		 * @param url the use.
+		 * @return the prefix length, WHOLE_URL if the use is not known.
+		 ************************************************************************/
+
+		private int getPrefixRead(Name url) {
+			AstNode parent = url.getParent();
+			if (parent instanceof PropertyGet && ((PropertyGet) parent).getTarget() == url
+					&& parent.getParent() instanceof FunctionCall
+					&& ((FunctionCall) parent.getParent()).getTarget() == parent) {
+				String method = ((PropertyGet) parent).getProperty().getIdentifier();
+				List<AstNode> args = ((FunctionCall) parent.getParent()).getArguments();
+				if (("substring".equals(method) || "substr".equals(method) || "slice".equals(method))
+						&& args.size() == 2 && intValue(args.get(0)) == 0 && intValue(args.get(1)) >= 0) {
+					return intValue(args.get(1));
+				}
+				if ("charAt".equals(method) && args.size() == 1 && intValue(args.get(0)) >= 0) {
+					return intValue(args.get(0)) + 1;
+				}
+				if ("startsWith".equals(method) && args.size() == 1 && args.get(0) instanceof StringLiteral) {
+					return ((StringLiteral) args.get(0)).getValue().length();
+				}
+				return WHOLE_URL;
+			}
+			if (parent instanceof FunctionCall && isCallTo((FunctionCall) parent, SH_EXP_MATCH)
+					&& !this.shExpMatchRedefined) {
+				List<AstNode> args = ((FunctionCall) parent).getArguments();
+				if (args.size() != 2 || args.get(0) != url || !(args.get(1) instanceof StringLiteral)) {
+					return WHOLE_URL;
+				}
+				// Only a single trailing "*" means that the rest of the URL is not read
+				String pattern = ((StringLiteral) args.get(1)).getValue();
+				int star = pattern.indexOf('*');
+				if (star != pattern.length() - 1 || pattern.indexOf('?') != -1) {
+					return WHOLE_URL;
+				}
+				return star;
+			}
+			return WHOLE_URL;
+		}
+	}
+
+	private static boolean isCallTarget(Name name) {
+		return name.getParent() instanceof FunctionCall && ((FunctionCall) name.getParent()).getTarget() == name;
+	}
+
+	private static boolean isPropertyName(Name name) {
+		AstNode parent = name.getParent();
+		return (parent instanceof PropertyGet && ((PropertyGet) parent).getProperty() == name)
+				|| (parent instanceof ObjectProperty && ((ObjectProperty) parent).getKey() == name);
+	}
+
+	private static boolean isCallTo(FunctionCall call, String function) {
+		return call.getTarget() instanceof Name && function.equals(((Name) call.getTarget()).getIdentifier());
+	}
+
+	/*************************************************************************
+	 * Gets the value of an integer literal.
+	 * @param node the node.
+	 * @return the value, -1 if it is not a non-negative integer literal.
+	 ************************************************************************/
+
+	private static int intValue(AstNode node) {
+		if (!(node instanceof NumberLiteral)) {
+			return -1;
+		}
+		double value = ((NumberLiteral) node).getNumber();
+		if (value < 0 || value > 10000 || value != Math.floor(value)) {
+			return -1;
+		}
+		return (int) value;
+	}
+
+}
@@ -1,22 +1,15 @@
 package com.btr.proxy.selector.pac;
 
-import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
-import java.net.NetworkInterface;
 import java.net.UnknownHostException;
+import java.time.Clock;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Collections;
-import java.util.Date;
-import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.StringTokenizer;
-import java.util.TimeZone;
 
 import com.btr.proxy.util.Logger;
 import com.btr.proxy.util.Logger.LogLevel;
@@ -32,17 +25,72 @@ public class PacScriptMethods implements ScriptMethods {
 	public static final String OVERRIDE_LOCAL_IP = "com.btr.proxy.pac.overrideLocalIP";
 	
 	private final static String GMT = "GMT";
-	private final static List<String> DAYS = Collections.unmodifiableList(Arrays.asList("SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT"));
-	private final static List<String> MONTH = Collections.unmodifiableList(Arrays.asList("JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC"));
-	
-	private Calendar currentTime;
+	private final static String[] DAYS = {"SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT"};
+	private final static String[] MONTH = {"JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC"};
+	
+	// Indexes into the dateRange parameter array.
+	private final static int DAY1 = 0;
+	private final static int MONTH1 = 1;
+	private final static int YEAR1 = 2;
+	private final static int DAY2 = 3;
+	private final static int MONTH2 = 4;
+	private final static int YEAR2 = 5;
+	private final static int UNSET = Integer.MIN_VALUE;
+	private final static int SECONDS_PER_DAY = 24 * 60 * 60;
+	
+	// Not ticking in whole seconds, so the next change of a time based result 
+	// can be reported with millisecond precision.
+	private static final Clock DEFAULT_CLOCK = Clock.system(ZoneId.systemDefault());
+	
+	// Shared by all instances that do not set their own resolver.
+	private static final DnsResolver DEFAULT_DNS_RESOLVER = new CachingDnsResolver();
+	
+	private volatile DnsResolver dnsResolver;
+	private volatile Clock clock;
+	private volatile PacTimeFields.Cache localTime;
+	private final PacTimeFields.Cache gmtTime;
 	
 	/*************************************************************************
 	 * Constructor
+	 * Uses a process wide caching resolver for the DNS functions.
 	 ************************************************************************/
 	
 	public PacScriptMethods() {
+		this(DEFAULT_DNS_RESOLVER);
+	}
+	
+	/*************************************************************************
+	 * Constructor
+	 * @param dnsResolver the resolver to use for the DNS functions.
+	 ************************************************************************/
+	
+	public PacScriptMethods(DnsResolver dnsResolver) {
 		super();
+		this.dnsResolver = dnsResolver;
+		this.gmtTime = new PacTimeFields.Cache(ZoneOffset.UTC);
+		this.localTime = new PacTimeFields.Cache(DEFAULT_CLOCK.getZone());
+		this.clock = DEFAULT_CLOCK;
+	}
+	
+	/*************************************************************************
+	 * Sets the resolver that is used by the DNS functions like dnsResolve, 
+	 * isResolvable and isInNet.
+	 * 
+	 * @param dnsResolver the resolver to use.
+	 ************************************************************************/
+	
+	public void setDnsResolver(DnsResolver dnsResolver) {
+		this.dnsResolver = dnsResolver;
+	}
+	
+	/*************************************************************************
+	 * Gets the resolver that is used by the DNS functions.
+	 * 
+	 * @return the resolver.
+	 ************************************************************************/
+	
+	public DnsResolver getDnsResolver() {
+		return this.dnsResolver;
 	}
 	
 	/*************************************************************************
@@ -95,7 +143,7 @@ public class PacScriptMethods implements ScriptMethods {
 	
 	public boolean isResolvable(String host) {
 		try {
-			InetAddress.getByName(host).getHostAddress();
+			this.dnsResolver.resolve(host);
 			return true;
 		} catch(UnknownHostException ex) {
 			Logger.log(JavaxPacScriptParser.class, LogLevel.ERROR, "Hostname not resolveable! host:{0}.", host);
@@ -128,30 +176,7 @@ public class PacScriptMethods implements ScriptMethods {
 		if(host == null || host.length() == 0) {
 			return false;
 		}
-		long lhost = parseIpAddressToLong(host);
-		long lpattern = parseIpAddressToLong(pattern);
-		long lmask = parseIpAddressToLong(mask);
-		return (lhost & lmask) == lpattern;
-	}
-	
-	/*************************************************************************
-	 * Convert a string representation of a IP to a long.
-	 * 
-	 * @param address to convert.
-	 * @return the address as long.
-	 ************************************************************************/
-	
-	private long parseIpAddressToLong(String address) {
-		long result = 0;
-		String[] parts = address.split("\\.");
-		long shift = 24;
-		for(String part : parts) {
-			long lpart = Long.parseLong(part);
-			result |= (lpart << shift);
-			shift -= 8;
-		}
-		
-		return result;
+		return IpPrefix.forNet(pattern, mask).contains(host);
 	}
 	
 	/*************************************************************************
@@ -166,7 +191,7 @@ public class PacScriptMethods implements ScriptMethods {
 	public String dnsResolve(String host) {
 		String dnsResolve = "";
 		try {
-			dnsResolve = InetAddress.getByName(host).getHostAddress();
+			dnsResolve = this.dnsResolver.resolve(host)[0].getHostAddress();
 		} catch(UnknownHostException e) {
 			Logger.log(JavaxPacScriptParser.class, LogLevel.ERROR, "DNS name not resolvable! host:{0}.", host);
 		}
@@ -189,39 +214,35 @@ public class PacScriptMethods implements ScriptMethods {
 	/*************************************************************************
 	 * Get the current IP address of the computer.
 	 * This will return the first address of the first network interface that is
-	 * a "real" IP address of the given type.
+	 * a "real" IP address of the given type. The addresses are cached and 
+	 * updated if the network interfaces change.
 	 * 
 	 * @param cl the type of address we are searching for.
 	 * @return the address as string or "" if not found.
+	 * @see LocalAddressCache
 	 ************************************************************************/
 	
 	private String getLocalAddressOfType(Class<? extends InetAddress> cl) {
-		try {
-			String overrideIP = System.getProperty(OVERRIDE_LOCAL_IP);
-			if(overrideIP != null && overrideIP.trim().length() > 0) {
-				return overrideIP.trim();
-			}
-			
-			Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
-			while(interfaces.hasMoreElements()) {
-				NetworkInterface current = interfaces.nextElement();
-				if(!current.isUp() || current.isLoopback() || current.isVirtual()) {
-					continue;
-				}
-				Enumeration<InetAddress> addresses = current.getInetAddresses();
-				while(addresses.hasMoreElements()) {
-					InetAddress adr = addresses.nextElement();
-					if(cl.isInstance(adr)) {
-						Logger.log(JavaxPacScriptParser.class, LogLevel.TRACE, "Local address resolved to {0}", adr);
-						return adr.getHostAddress();
-					}
-				}
-			}
-			return "";
-		} catch(IOException e) {
-			Logger.log(JavaxPacScriptParser.class, LogLevel.ERROR, "Local address not resolvable., error:{0}", e);
-			return "";
+		String overrideIP = System.getProperty(OVERRIDE_LOCAL_IP);
+		if(overrideIP != null && overrideIP.trim().length() > 0) {
+			return overrideIP.trim();
 		}
+		return LocalAddressCache.getInstance().getAddress(cl);
+	}
+	
+	/*************************************************************************
+	 * Gets an object that is equal for all calls that return the same 
+	 * myIpAddress and myIpAddressEx values. Values derived from the local 
+	 * address can be kept as long as this object does not change.
+	 * @return the override IP or the current local addresses.
+	 ************************************************************************/
+	
+	Object getLocalAddressState() {
+		String overrideIP = System.getProperty(OVERRIDE_LOCAL_IP);
+		if(overrideIP != null && overrideIP.trim().length() > 0) {
+			return overrideIP.trim();
+		}
+		return LocalAddressCache.getInstance().getAddresses();
 	}
 	
 	/*************************************************************************
@@ -245,7 +266,8 @@ public class PacScriptMethods implements ScriptMethods {
 	/*************************************************************************
 	 * Returns true if the string matches the specified shell expression.
 	 * Actually, currently the patterns are shell expressions, not regular
-	 * expressions.
+	 * expressions. <code>*</code> matches any sequence of characters and 
+	 * <code>?</code> exactly one character. 
 	 * 
 	 * @param str
 	 *            is any string to compare (e.g. the URL, or the host name).
@@ -254,29 +276,7 @@ public class PacScriptMethods implements ScriptMethods {
 	 * @return true if the string matches, else false.
 	 ************************************************************************/
 	public boolean shExpMatch(String str, String shexp) {
-		StringTokenizer tokenizer = new StringTokenizer(shexp, "*");
-		int startPos = 0;
-		while(tokenizer.hasMoreTokens()) {
-			String token = tokenizer.nextToken();
-			int temp = str.indexOf(token, startPos);
-			
-			// Must start with first token
-			if(startPos == 0 && !shexp.startsWith("*") && temp != 0) {
-				return false;
-			}
-			// Last one ends with last token
-			if(!tokenizer.hasMoreTokens() && !shexp.endsWith("*") && !str.endsWith(token)) {
-				return false;
-			}
-			
-			if(temp == -1) {
-				return false;
-			} else {
-				startPos = temp + token.length();
-			}
-		}
-		
-		return true;
+		return ShellExpression.compile(shexp).matches(str);
 	}
 	
 	/*************************************************************************
@@ -299,52 +299,93 @@ public class PacScriptMethods implements ScriptMethods {
 	 ************************************************************************/
 	
 	public boolean weekdayRange(String wd1, String wd2, String gmt) {
-		boolean useGmt = GMT.equalsIgnoreCase(wd2) || GMT.equalsIgnoreCase(gmt);
-		Calendar cal = getCurrentTime(useGmt);
-		
-		int currentDay = cal.get(Calendar.DAY_OF_WEEK) - 1;
-		int from = DAYS.indexOf(wd1 == null ? null : wd1.toUpperCase());
-		int to = DAYS.indexOf(wd2 == null ? null : wd2.toUpperCase());
+		boolean useGmt = isGmt(wd2) || isGmt(gmt);
+		PacTimeFields.Cache time = getTimeCache(useGmt);
+		long nowMillis = this.clock.millis();
+		PacTimeFields now = time.get(nowMillis);
+		int from = indexOfName(wd1, DAYS);
+		int to = indexOfName(wd2, DAYS);
 		if(to == -1) {
 			to = from;
 		}
 		
+		boolean result = isInWeekdayRange(now.dayOfWeek, from, to);
+		PacResultValidity validity = PacResultValidity.current();
+		if(validity != null) {
+			// Valid until the start of the next day with a different result
+			for (int days = 1; days < 7; days++) {
+				if(isInWeekdayRange((now.dayOfWeek + days) % 7, from, to) != result) {
+					validity.limit(time.startOfDay(now.epochDay + days) * 1000 - nowMillis);
+					break;
+				}
+			}
+		}
+		return result;
+	}
+	
+	private static boolean isInWeekdayRange(int day, int from, int to) {
 		if(to < from) {
-			return currentDay >= from || currentDay <= to;
-		} else {
-			return currentDay >= from && currentDay <= to;
+			return day >= from || day <= to;
 		}
+		return day >= from && day <= to;
+	}
+	
+	/*************************************************************************
+	 * Sets the clock that is used by the date and time based methods to
+	 * determine the current time and the local time zone. Unit tests use this
+	 * to run with a fixed time.
+	 * 
+	 * @param clock
+	 *            the clock to use, null to use the default clock.
+	 ************************************************************************/
+	
+	public void setClock(Clock clock) {
+		Clock newClock = clock == null ? DEFAULT_CLOCK : clock;
+		this.localTime = new PacTimeFields.Cache(newClock.getZone());
+		this.clock = newClock;
 	}
 	
 	/*************************************************************************
-	 * Sets a calendar with the current time. If this is set all date and time
-	 * based methods will use this calendar to determine the current time
-	 * instead of the real time. This is only be used by unit tests and is not
-	 * part of the public API.
+	 * Gets the clock used by the date and time based methods.
 	 * 
-	 * @param cal
-	 *            a Calendar to set.
+	 * @return the clock. By default this is the system clock in the system 
+	 *         default time zone.
 	 ************************************************************************/
 	
-	public void setCurrentTime(Calendar cal) {
-		this.currentTime = cal;
+	public Clock getClock() {
+		return this.clock;
 	}
 	
 	/*************************************************************************
-	 * Gets a calendar set to the current time. This is used by the date and
-	 * time based methods.
+	 * Gets the cache for the calendar fields of the current time. This is 
+	 * used by the date and time based methods. The fields are only computed 
+	 * again if the current second has changed.
 	 * 
 	 * @param useGmt
-	 *            flag to indicate if the calendar is to be created in GMT time
-	 *            or local time.
-	 * @return a Calendar set to the current time.
+	 *            flag to indicate if the fields are needed in GMT time or 
+	 *            local time.
+	 * @return the cache for the requested time zone.
+	 ************************************************************************/
+	
+	private PacTimeFields.Cache getTimeCache(boolean useGmt) {
+		return useGmt ? this.gmtTime : this.localTime;
+	}
+	
+	/*************************************************************************
+	 * Reports the moment at which the result of a date or time method could
+	 * change to the evaluation that is running on the current thread.
+	 * 
+	 * @param epochSecond
+	 *            the second since 1970-01-01T00:00Z of the next change.
+	 * @param nowMillis
+	 *            the current time of the clock.
 	 ************************************************************************/
 	
-	private Calendar getCurrentTime(boolean useGmt) {
-		if(this.currentTime != null) { // Only used for unit tests
-			return (Calendar) this.currentTime.clone();
+	private static void limitValidity(long epochSecond, long nowMillis) {
+		PacResultValidity validity = PacResultValidity.current();
+		if(validity != null) {
+			validity.limit(epochSecond * 1000 - nowMillis);
 		}
-		return Calendar.getInstance(useGmt ? TimeZone.getTimeZone(GMT) : TimeZone.getDefault());
 	}
 	
 	/*************************************************************************
@@ -377,106 +418,95 @@ public class PacScriptMethods implements ScriptMethods {
 	
 	public boolean dateRange(Object day1, Object month1, Object year1, Object day2, Object month2, Object year2, Object gmt) {
 		
-		// Guess the parameter meanings.
-		Map<String, Integer> params = new HashMap<String, Integer>();
-		parseDateParam(params, day1);
-		parseDateParam(params, month1);
-		parseDateParam(params, year1);
-		parseDateParam(params, day2);
-		parseDateParam(params, month2);
-		parseDateParam(params, year2);
-		parseDateParam(params, gmt);
+		// Guess the parameter meanings, UNSET marks a missing value.
+		int[] params = {UNSET, UNSET, UNSET, UNSET, UNSET, UNSET};
+		boolean useGmt = parseDateParam(params, day1);
+		useGmt |= parseDateParam(params, month1);
+		useGmt |= parseDateParam(params, year1);
+		useGmt |= parseDateParam(params, day2);
+		useGmt |= parseDateParam(params, month2);
+		useGmt |= parseDateParam(params, year2);
+		useGmt |= parseDateParam(params, gmt);
 		
 		// Get current date
-		boolean useGmt = params.get("gmt") != null;
-		Calendar cal = getCurrentTime(useGmt);
-		Date current = cal.getTime();
+		PacTimeFields.Cache time = getTimeCache(useGmt);
+		long nowMillis = this.clock.millis();
+		PacTimeFields now = time.get(nowMillis);
 		
-		// Build the "from" date
-		if(params.get("day1") != null) {
-			cal.set(Calendar.DAY_OF_MONTH, params.get("day1"));
-		}
-		if(params.get("month1") != null) {
-			cal.set(Calendar.MONTH, params.get("month1"));
-		}
-		if(params.get("year1") != null) {
-			cal.set(Calendar.YEAR, params.get("year1"));
-		}
-		Date from = cal.getTime();
+		// Missing values are taken from the current date, so the range itself
+		// can move with the date. The result is only known until midnight.
+		limitValidity(time.startOfDay(now.epochDay + 1), nowMillis);
+		
+		// Build the "from" date, out of range values roll over like in a lenient calendar.
+		long from = PacTimeFields.toEpochDay(
+				valueOr(params[YEAR1], now.year), valueOr(params[MONTH1], now.month), valueOr(params[DAY1], now.dayOfMonth));
+		long fromDate = PacTimeFields.civilFromDays(from);
 		
 		// Build the "to" date
-		Date to;
-		if(params.get("day2") != null) {
-			cal.set(Calendar.DAY_OF_MONTH, params.get("day2"));
-		}
-		if(params.get("month2") != null) {
-			cal.set(Calendar.MONTH, params.get("month2"));
-		}
-		if(params.get("year2") != null) {
-			cal.set(Calendar.YEAR, params.get("year2"));
-		}
-		to = cal.getTime();
+		int toYear = valueOr(params[YEAR2], PacTimeFields.civilYear(fromDate));
+		int toMonth = valueOr(params[MONTH2], PacTimeFields.civilMonth(fromDate));
+		int toDay = valueOr(params[DAY2], PacTimeFields.civilDay(fromDate));
+		long to = PacTimeFields.toEpochDay(toYear, toMonth, toDay);
 		
 		// Need to increment to the next month?
-		if(to.before(from)) {
-			cal.add(Calendar.MONTH, +1);
-			to = cal.getTime();
-		}
-		// Need to increment to the next year?
-		if(to.before(from)) {
-			cal.add(Calendar.YEAR, +1);
-			cal.add(Calendar.MONTH, -1);
-			to = cal.getTime();
+		if(to < from) {
+			long toDate = addMonths(PacTimeFields.civilFromDays(to), 1);
+			to = toEpochDay(toDate);
+			
+			// Need to increment to the next year?
+			if(to < from) {
+				to = toEpochDay(addMonths(addMonths(toDate, 12), -1));
+			}
 		}
 		
-		return current.compareTo(from) >= 0 && current.compareTo(to) <= 0;
+		return now.epochDay >= from && now.epochDay <= to;
+	}
+	
+	private static long toEpochDay(long civilDate) {
+		return PacTimeFields.toEpochDay(PacTimeFields.civilYear(civilDate), 
+				PacTimeFields.civilMonth(civilDate), PacTimeFields.civilDay(civilDate));
+	}
+	
+	private static long addMonths(long civilDate, int months) {
+		return PacTimeFields.addMonths(PacTimeFields.civilYear(civilDate), 
+				PacTimeFields.civilMonth(civilDate), PacTimeFields.civilDay(civilDate), months);
+	}
+	
+	private static int valueOr(int value, int defaultValue) {
+		return value == UNSET ? defaultValue : value;
 	}
 	
 	/*************************************************************************
 	 * Try to guess the type of the given parameter and put it into the params
-	 * map.
+	 * array at the DAY1 ... YEAR2 index.
 	 * 
 	 * @param params
-	 *            a map to put the parsed parameters into.
+	 *            an array to put the parsed parameters into.
 	 * @param value
 	 *            to parse and specify the type for.
+	 * @return true if the value is the "GMT" parameter.
 	 ************************************************************************/
 	
-	private void parseDateParam(Map<String, Integer> params, Object value) {
+	private boolean parseDateParam(int[] params, Object value) {
 		if(value instanceof Number) {
 			int n = ((Number) value).intValue();
 			if(n <= 31) {
 				// Its a day
-				if(params.get("day1") == null) {
-					params.put("day1", n);
-				} else {
-					params.put("day2", n);
-				}
+				params[params[DAY1] == UNSET ? DAY1 : DAY2] = n;
 			} else {
 				// Its a year
-				if(params.get("year1") == null) {
-					params.put("year1", n);
-				} else {
-					params.put("year2", n);
-				}
-			}
-		}
-		
-		if(value instanceof String) {
-			int n = MONTH.indexOf(((String) value).toUpperCase());
-			if(n > -1) {
-				// Its a month
-				if(params.get("month1") == null) {
-					params.put("month1", n);
-				} else {
-					params.put("month2", n);
-				}
+				params[params[YEAR1] == UNSET ? YEAR1 : YEAR2] = n;
 			}
+			return false;
 		}
 		
-		if(GMT.equalsIgnoreCase(String.valueOf(value))) {
-			params.put("gmt", 1);
+		int n = indexOfName(value, MONTH);
+		if(n > -1) {
+			// Its a month
+			params[params[MONTH1] == UNSET ? MONTH1 : MONTH2] = n;
+			return false;
 		}
+		return isGmt(value);
 	}
 	
 	/*************************************************************************
@@ -485,7 +515,8 @@ public class PacScriptMethods implements ScriptMethods {
 	 * parameters filled. The real meaning of the parameters is guessed from
 	 * it's value. If "from" and "to" are specified then the bounds are
 	 * inclusive. If the "GMT" parameter is specified, times are taken to be in
-	 * GMT, otherwise the local time zone is used.<br/>
+	 * GMT, otherwise the local time zone is used. If "to" is before "from" the
+	 * range wraps around midnight.<br/>
 	 * 
 	 * <pre>
 	 * timeRange(hour)
@@ -513,62 +544,101 @@ public class PacScriptMethods implements ScriptMethods {
 	 ************************************************************************/
 	
 	public boolean timeRange(Object hour1, Object min1, Object sec1, Object hour2, Object min2, Object sec2, Object gmt) {
-		boolean useGmt = GMT.equalsIgnoreCase(String.valueOf(min1)) || GMT.equalsIgnoreCase(String.valueOf(sec1)) || GMT.equalsIgnoreCase(String.valueOf(min2)) || GMT.equalsIgnoreCase(String.valueOf(gmt));
+		boolean useGmt = isGmt(min1) || isGmt(sec1) || isGmt(min2) || isGmt(gmt);
 		
-		Calendar cal = getCurrentTime(useGmt);
-		cal.set(Calendar.MILLISECOND, 0);
-		Date current = cal.getTime();
-		Date from;
-		Date to;
+		// Range as seconds of the day
+		int from;
+		int to;
 		if(sec2 instanceof Number) {
-			cal.set(Calendar.HOUR_OF_DAY, ((Number) hour1).intValue());
-			cal.set(Calendar.MINUTE, ((Number) min1).intValue());
-			cal.set(Calendar.SECOND, ((Number) sec1).intValue());
-			from = cal.getTime();
-			
-			cal.set(Calendar.HOUR_OF_DAY, ((Number) hour2).intValue());
-			cal.set(Calendar.MINUTE, ((Number) min2).intValue());
-			cal.set(Calendar.SECOND, ((Number) sec2).intValue());
-			to = cal.getTime();
+			from = secondOfDay(hour1, min1, sec1);
+			to = secondOfDay(hour2, min2, sec2);
 		} else if(hour2 instanceof Number) {
-			cal.set(Calendar.HOUR_OF_DAY, ((Number) hour1).intValue());
-			cal.set(Calendar.MINUTE, ((Number) min1).intValue());
-			cal.set(Calendar.SECOND, 0);
-			from = cal.getTime();
-			
-			cal.set(Calendar.HOUR_OF_DAY, ((Number) sec1).intValue());
-			cal.set(Calendar.MINUTE, ((Number) hour2).intValue());
-			cal.set(Calendar.SECOND, 59);
-			to = cal.getTime();
+			from = secondOfDay(hour1, min1, 0);
+			to = secondOfDay(sec1, hour2, 59);
 		} else if(min1 instanceof Number) {
-			cal.set(Calendar.HOUR_OF_DAY, ((Number) hour1).intValue());
-			cal.set(Calendar.MINUTE, 0);
-			cal.set(Calendar.SECOND, 0);
-			from = cal.getTime();
-			
-			cal.set(Calendar.HOUR_OF_DAY, ((Number) min1).intValue());
-			cal.set(Calendar.MINUTE, 59);
-			cal.set(Calendar.SECOND, 59);
-			to = cal.getTime();
+			from = secondOfDay(hour1, 0, 0);
+			to = secondOfDay(min1, 59, 59);
 		} else {
-			cal.set(Calendar.HOUR_OF_DAY, ((Number) hour1).intValue());
-			cal.set(Calendar.MINUTE, 0);
-			cal.set(Calendar.SECOND, 0);
-			from = cal.getTime();
-			
-			cal.set(Calendar.HOUR_OF_DAY, ((Number) hour1).intValue());
-			cal.set(Calendar.MINUTE, 59);
-			cal.set(Calendar.SECOND, 59);
-			to = cal.getTime();
+			from = secondOfDay(hour1, 0, 0);
+			to = secondOfDay(hour1, 59, 59);
 		}
 		
-		if(to.before(from)) {
-			cal.setTime(to);
-			cal.add(Calendar.DATE, +1);
-			to = cal.getTime();
+		PacTimeFields.Cache time = getTimeCache(useGmt);
+		long nowMillis = this.clock.millis();
+		PacTimeFields now = time.get(nowMillis);
+		int current = now.secondOfDay;
+		
+		if(PacResultValidity.current() != null) {
+			// The result changes when "from" starts or "to" has passed, or 
+			// when the local time jumps at a daylight saving switch.
+			int untilChange = Math.min(secondsUntil(current, from), secondsUntil(current, to + 1));
+			limitValidity(Math.min(now.epochSecond + untilChange, time.nextTransition(now.epochSecond)), nowMillis);
 		}
 		
-		return current.compareTo(from) >= 0 && current.compareTo(to) <= 0;
+		if(to < from) {
+			return current >= from || current <= to;
+		}
+		return current >= from && current <= to;
+	}
+	
+	private static int secondsUntil(int secondOfDay, int target) {
+		int seconds = Math.floorMod(target - secondOfDay, SECONDS_PER_DAY);
+		return seconds == 0 ? SECONDS_PER_DAY : seconds;
+	}
+	
+	private static int secondOfDay(Object hour, Object min, Object sec) {
+		return intValue(hour) * 3600 + intValue(min) * 60 + intValue(sec);
+	}
+	
+	private static int intValue(Object value) {
+		return value instanceof Number ? ((Number) value).intValue() : 0;
+	}
+	
+	/*************************************************************************
+	 * Checks if the parameter is the "GMT" flag.
+	 * 
+	 * @param value
+	 *            the parameter.
+	 * @return true if it is the string "GMT" in any case.
+	 ************************************************************************/
+	
+	private static boolean isGmt(Object value) {
+		return value instanceof CharSequence && equalsIgnoreCase((CharSequence) value, GMT);
+	}
+	
+	/*************************************************************************
+	 * Looks up a day or month name without creating an upper case copy.
+	 * 
+	 * @param value
+	 *            the parameter.
+	 * @param names
+	 *            the upper case names.
+	 * @return the index of the name or -1 if it is not found.
+	 ************************************************************************/
+	
+	private static int indexOfName(Object value, String[] names) {
+		if(!(value instanceof CharSequence)) {
+			return -1;
+		}
+		CharSequence s = (CharSequence) value;
+		for (int i = 0; i < names.length; i++) {
+			if(equalsIgnoreCase(s, names[i])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	private static boolean equalsIgnoreCase(CharSequence s, String upperCase) {
+		if(s.length() != upperCase.length()) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			if(Character.toUpperCase(s.charAt(i)) != upperCase.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
 	}
 	
 	// Microsoft PAC extensions for IPv6 support.
@@ -591,8 +661,7 @@ public class PacScriptMethods implements ScriptMethods {
 	 ************************************************************************/
 	
 	public boolean isInNetEx(String ipAddress, String ipPrefix) {
-		// TODO rossi 27.06.2011 Auto-generated method stub
-		return false;
+		return IpPrefix.forCidr(ipPrefix).containsAny(ipAddress);
 	}
 	
 	/*************************************************************************
@@ -604,10 +673,12 @@ public class PacScriptMethods implements ScriptMethods {
 	public String dnsResolveEx(String host) {
 		StringBuilder result = new StringBuilder();
 		try {
-			InetAddress[] list = InetAddress.getAllByName(host);
+			InetAddress[] list = this.dnsResolver.resolve(host);
 			for(InetAddress inetAddress : list) {
+				if(result.length() > 0) {
+					result.append(';');
+				}
 				result.append(inetAddress.getHostAddress());
-				result.append("; ");
 			}
 		} catch(UnknownHostException e) {
 			Logger.log(JavaxPacScriptParser.class, LogLevel.ERROR, "DNS name not resolvable! host:{0}.", host);
@@ -0,0 +1,400 @@
+package com.btr.proxy.selector.pac;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.btr.proxy.util.Logger;
+import com.btr.proxy.util.Logger.LogLevel;
+import com.btr.proxy.util.ProxyUtil;
+
+/*****************************************************************************
+ * Manages the PAC selectors of many tenants, e.g. customer networks that
+ * each have their own PAC URL, in one process.
+ * <p>
+ * The scripts are deduplicated by the SHA-256 hash of their content. All
+ * tenants whose source delivers the same script share one compiled script
+ * and one pool of evaluation scopes. Tenants registered with the same URL
+ * share one <code>UrlPacScriptSource</code>, so the script is downloaded
+ * only once.
+ * </p>
+ * <p>
+ * At most <code>maxScripts</code> compiled scripts are kept. If a new
+ * script is needed the least recently used one is dropped; it is compiled
+ * again on its next use. The hits and compiles per tenant are counted, so
+ * a too small budget can be spotted.
+ * </p>
+ * <p>
+ * All tenants use the same PacScriptMethods, i.e. the same DNS resolver
+ * and clock.
+ * </p>
+ ****************************************************************************/
+
+public class PacScriptRegistry {
+
+	/** System property to set the max number of compiled scripts kept by a registry. */
+	public static final String OVERRIDE_MAX_SCRIPTS = "com.btr.proxy.pac.registryMaxScripts";
+
+	static final int DEFAULT_MAX_SCRIPTS = 64;
+
+	private final int maxScripts;
+	private final PacScriptMethods scriptMethods;
+	private final ConcurrentHashMap<String, SharedScript> scripts;
+	private final Map<String, Tenant> tenants;
+	private final Map<String, UrlPacScriptSource> urlSources;
+	private final AtomicLong clock = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/*****************************************************************************
+	 * A compiled script shared by all tenants with the same script content.
+	 ****************************************************************************/
+
+	private static final class SharedScript {
+		final RhinoPacScriptParser parser;
+		volatile long lastUsed;
+
+		SharedScript(RhinoPacScriptParser parser, long lastUsed) {
+			this.parser = parser;
+			this.lastUsed = lastUsed;
+		}
+	}
+
+	/*****************************************************************************
+	 * Script source for a shared parser. It always delivers the content the
+	 * shared script was created for.
+	 ****************************************************************************/
+
+	private static final class FixedScriptSource implements PacScriptSource {
+		private final String content;
+
+		FixedScriptSource(String content) {
+			this.content = content;
+		}
+
+		public String getScriptContent() {
+			return this.content;
+		}
+
+		public boolean isScriptValid() {
+			return true;
+		}
+	}
+
+	/*****************************************************************************
+	 * The hash of a script version.
+	 ****************************************************************************/
+
+	private static final class ScriptKey {
+		final String content;
+		final String hash;
+
+		ScriptKey(String content, String hash) {
+			this.content = content;
+			this.hash = hash;
+		}
+	}
+
+	/*****************************************************************************
+	 * The counters of one tenant.
+	 ****************************************************************************/
+
+	public static final class TenantStatistics {
+		private final AtomicLong hits = new AtomicLong();
+		private final AtomicLong compiles = new AtomicLong();
+
+		/*************************************************************************
+		 * Gets the number of evaluations that found the compiled script.
+		 * @return the number of hits.
+		 ************************************************************************/
+
+		public long getHitCount() {
+			return this.hits.get();
+		}
+
+		/*************************************************************************
+		 * Gets the number of evaluations that needed to compile the script,
+		 * because it was never used before or was dropped from the registry.
+		 * @return the number of compiles.
+		 ************************************************************************/
+
+		public long getCompileCount() {
+			return this.compiles.get();
+		}
+
+		/*************************************************************************
+		 * Gets the share of evaluations that found the compiled script.
+		 * @return a value between 0 and 1, 0 if nothing was evaluated yet.
+		 ************************************************************************/
+
+		public double getHitRate() {
+			long hitCount = this.hits.get();
+			long total = hitCount + this.compiles.get();
+			return total == 0 ? 0 : (double) hitCount / total;
+		}
+	}
+
+	/*****************************************************************************
+	 * The parser used by the selector of one tenant. It finds the shared
+	 * script for the current content of the tenant's source.
+	 ****************************************************************************/
+
+	private final class Tenant implements PacScriptParser {
+		final String url;
+		final PacScriptSource source;
+		final TenantStatistics statistics;
+		final PacProxySelector selector;
+		private volatile ScriptKey lastKey;
+
+		Tenant(String url, PacScriptSource source) {
+			this.url = url;
+			this.source = source;
+			this.statistics = new TenantStatistics();
+			this.selector = new PacProxySelector(this);
+		}
+
+		public PacScriptSource getScriptSource() {
+			return this.source;
+		}
+
+		public String evaluate(String url, String host) throws ProxyEvaluationException {
+			String content;
+			try {
+				content = this.source.getScriptContent();
+			} catch (IOException e) {
+				throw new ProxyEvaluationException("Error reading PAC script: " + e.getMessage(), e);
+			}
+			return getParser(getKey(content), content, this.statistics).evaluate(url, host);
+		}
+
+		/*************************************************************************
+		 * Gets the hash for the given content. It is only calculated again
+		 * if the source delivers a new content.
+		 * @param content the script content.
+		 * @return the hash.
+		 ************************************************************************/
+
+		String getKey(String content) {
+			ScriptKey key = this.lastKey;
+			if (key == null || key.content != content) {
+				key = new ScriptKey(content, hash(content));
+				this.lastKey = key;
+			}
+			return key.hash;
+		}
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 * Creates a registry with the max number of scripts configured via the
+	 * system property or the default.
+	 ************************************************************************/
+
+	public PacScriptRegistry() {
+		this((int) ProxyUtil.getLongProperty(OVERRIDE_MAX_SCRIPTS, DEFAULT_MAX_SCRIPTS));
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 * @param maxScripts the max number of compiled scripts kept.
+	 ************************************************************************/
+
+	public PacScriptRegistry(int maxScripts) {
+		this(maxScripts, new PacScriptMethods());
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 * @param maxScripts the max number of compiled scripts kept.
+	 * @param scriptMethods the PAC functions used by all tenants.
+	 ************************************************************************/
+
+	public PacScriptRegistry(int maxScripts, PacScriptMethods scriptMethods) {
+		super();
+		if (maxScripts < 1) {
+			throw new IllegalArgumentException("maxScripts must be at least 1");
+		}
+		this.maxScripts = maxScripts;
+		this.scriptMethods = scriptMethods;
+		this.scripts = new ConcurrentHashMap<String, SharedScript>();
+		this.tenants = new HashMap<String, Tenant>();
+		this.urlSources = new HashMap<String, UrlPacScriptSource>();
+	}
+
+	/*************************************************************************
+	 * Registers a tenant whose PAC script is loaded from the given URL.
+	 * A previous registration of the tenant is replaced.
+	 * @param tenant the tenant name.
+	 * @param pacUrl the URL of the PAC script.
+	 * @return the selector for the tenant.
+	 ************************************************************************/
+
+	public synchronized PacProxySelector register(String tenant, String pacUrl) {
+		UrlPacScriptSource source = this.urlSources.get(pacUrl);
+		if (source == null) {
+			source = new UrlPacScriptSource(pacUrl);
+			this.urlSources.put(pacUrl, source);
+		}
+		return register(tenant, new Tenant(pacUrl, source));
+	}
+
+	/*************************************************************************
+	 * Registers a tenant with its own script source.
+	 * A previous registration of the tenant is replaced.
+	 * @param tenant the tenant name.
+	 * @param source the source of the PAC script.
+	 * @return the selector for the tenant.
+	 ************************************************************************/
+
+	public synchronized PacProxySelector register(String tenant, PacScriptSource source) {
+		return register(tenant, new Tenant(null, source));
+	}
+
+	private PacProxySelector register(String tenant, Tenant registration) {
+		Tenant old = this.tenants.put(tenant, registration);
+		if (old != null) {
+			removeUnusedUrlSource(old);
+		}
+		return registration.selector;
+	}
+
+	/*************************************************************************
+	 * Removes a tenant. Its selector can still be used but a new one is
+	 * created on the next registration.
+	 * @param tenant the tenant name.
+	 ************************************************************************/
+
+	public synchronized void unregister(String tenant) {
+		Tenant old = this.tenants.remove(tenant);
+		if (old != null) {
+			removeUnusedUrlSource(old);
+		}
+	}
+
+	private void removeUnusedUrlSource(Tenant removed) {
+		if (removed.url == null) {
+			return;
+		}
+		for (Tenant tenant : this.tenants.values()) {
+			if (removed.url.equals(tenant.url)) {
+				return;
+			}
+		}
+		this.urlSources.remove(removed.url);
+	}
+
+	/*************************************************************************
+	 * Gets the selector of a tenant.
+	 * @param tenant the tenant name.
+	 * @return the selector, null if the tenant is not registered.
+	 ************************************************************************/
+
+	public synchronized PacProxySelector getSelector(String tenant) {
+		Tenant registration = this.tenants.get(tenant);
+		return registration == null ? null : registration.selector;
+	}
+
+	/*************************************************************************
+	 * Gets the counters of a tenant.
+	 * @param tenant the tenant name.
+	 * @return the statistics, null if the tenant is not registered.
+	 ************************************************************************/
+
+	public synchronized TenantStatistics getStatistics(String tenant) {
+		Tenant registration = this.tenants.get(tenant);
+		return registration == null ? null : registration.statistics;
+	}
+
+	/*************************************************************************
+	 * Gets the number of compiled scripts currently kept.
+	 * @return the number of distinct scripts.
+	 ************************************************************************/
+
+	public int getScriptCount() {
+		return this.scripts.size();
+	}
+
+	/*************************************************************************
+	 * Gets the number of compiled scripts dropped to stay within the budget.
+	 * @return the number of evictions.
+	 ************************************************************************/
+
+	public long getEvictionCount() {
+		return this.evictions.get();
+	}
+
+	/*************************************************************************
+	 * Gets the shared parser for the given script content and counts the
+	 * hit or compile for the tenant.
+	 * @param key the hash of the content.
+	 * @param content the script content.
+	 * @param statistics the counters of the tenant.
+	 * @return the parser.
+	 * @throws ProxyEvaluationException on error.
+	 ************************************************************************/
+
+	private RhinoPacScriptParser getParser(String key, String content, TenantStatistics statistics) throws ProxyEvaluationException {
+		SharedScript script = this.scripts.get(key);
+		if (script == null) {
+			RhinoPacScriptParser parser = new RhinoPacScriptParser(new FixedScriptSource(content), this.scriptMethods);
+			SharedScript created = new SharedScript(parser, this.clock.incrementAndGet());
+			script = this.scripts.putIfAbsent(key, created);
+			if (script == null) {
+				statistics.compiles.incrementAndGet();
+				Logger.log(getClass(), LogLevel.TRACE, "New shared PAC script, {0} scripts in registry", this.scripts.size());
+				evictLeastRecentlyUsed(created);
+				return parser;
+			}
+		}
+		script.lastUsed = this.clock.incrementAndGet();
+		statistics.hits.incrementAndGet();
+		return script.parser;
+	}
+
+	/*************************************************************************
+	 * Drops the least recently used scripts until the budget is met.
+	 * @param keep the script that was just added.
+	 ************************************************************************/
+
+	private void evictLeastRecentlyUsed(SharedScript keep) {
+		while (this.scripts.size() > this.maxScripts) {
+			Entry<String, SharedScript> oldest = null;
+			for (Iterator<Entry<String, SharedScript>> it = this.scripts.entrySet().iterator(); it.hasNext();) {
+				Entry<String, SharedScript> entry = it.next();
+				if (entry.getValue() != keep && (oldest == null || entry.getValue().lastUsed < oldest.getValue().lastUsed)) {
+					oldest = entry;
+				}
+			}
+			if (oldest != null && this.scripts.remove(oldest.getKey(), oldest.getValue())) {
+				this.evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Builds the SHA-256 hash of a script content.
+	 * @param content the script content.
+	 * @return a hex string.
+	 ************************************************************************/
+
+	static String hash(String content) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8));
+			StringBuilder result = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return result.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-256 is available on every Java platform.
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,422 @@
+package com.btr.proxy.selector.pac;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.Node;
+import org.mozilla.javascript.Parser;
+import org.mozilla.javascript.Token;
+import org.mozilla.javascript.ast.Assignment;
+import org.mozilla.javascript.ast.AstNode;
+import org.mozilla.javascript.ast.AstRoot;
+import org.mozilla.javascript.ast.CatchClause;
+import org.mozilla.javascript.ast.ConditionalExpression;
+import org.mozilla.javascript.ast.ExpressionStatement;
+import org.mozilla.javascript.ast.FunctionCall;
+import org.mozilla.javascript.ast.FunctionNode;
+import org.mozilla.javascript.ast.InfixExpression;
+import org.mozilla.javascript.ast.KeywordLiteral;
+import org.mozilla.javascript.ast.Name;
+import org.mozilla.javascript.ast.NodeVisitor;
+import org.mozilla.javascript.ast.NumberLiteral;
+import org.mozilla.javascript.ast.ParenthesizedExpression;
+import org.mozilla.javascript.ast.PropertyGet;
+import org.mozilla.javascript.ast.StringLiteral;
+import org.mozilla.javascript.ast.UnaryExpression;
+import org.mozilla.javascript.ast.UpdateExpression;
+import org.mozilla.javascript.ast.VariableDeclaration;
+import org.mozilla.javascript.ast.VariableInitializer;
+import org.mozilla.javascript.ast.WithStatement;
+
+import com.btr.proxy.util.Logger;
+import com.btr.proxy.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * Rewrites a PAC script so that computations that do not depend on the
+ * arguments of a call are done only once.
+ * <p>
+ * Many scripts do something like
+ * <code>var ip = myIpAddress(); if (isInNet(ip, "10.0.0.0", "255.0.0.0"))</code>
+ * on every call of FindProxyForURL. Inside of functions every maximal
+ * expression that only uses literals, <code>myIpAddress()</code>,
+ * side effect free PAC functions, string methods and local variables
+ * initialized from such expressions is replaced by a lookup of a global
+ * variable. The expression is evaluated at its first use and the value is
+ * kept for the following calls:
+ * </p>
+ * <pre>
+ * (__pacHoisted0 !== undefined ? __pacHoisted0 : (__pacHoisted0 = isInNet(ip, "10.0.0.0", "255.0.0.0")))
+ * </pre>
+ * <p>
+ * The expression text stays where it was, so errors are raised at the same
+ * place and line numbers do not change. The values are kept in the scope
+ * the script runs in, so the parser can drop them by running the script
+ * into a new scope, e.g. when the local address has changed.
+ * </p>
+ * <p>
+ * Scripts that use <code>eval</code>, <code>with</code>,
+ * <code>arguments</code> or <code>Function</code> are not changed.
+ * PAC functions that the script redefines are not treated as side effect
+ * free.
+ * </p>
+ ****************************************************************************/
+
+final class PacScriptSpecializer {
+
+	static final String HOISTED_PREFIX = "__pacHoisted";
+
+	private static final String SOURCE_NAME = "userPacFile";
+
+	private static final String MY_IP_ADDRESS = "myIpAddress";
+	private static final String MY_IP_ADDRESS_EX = "myIpAddressEx";
+	private static final String IS_IN_NET = "isInNet";
+	private static final String IS_IN_NET_EX = "isInNetEx";
+
+	// PAC functions whose result only depends on their arguments.
+	// isInNet resolves a host name, so it is only used with the local address.
+	private static final List<String> INVARIANT_FUNCTIONS = Arrays.asList(
+			MY_IP_ADDRESS, MY_IP_ADDRESS_EX, IS_IN_NET, IS_IN_NET_EX, "shExpMatch",
+			"dnsDomainIs", "isPlainHostName", "dnsDomainLevels", "localHostOrDomainIs");
+
+	// Methods of the sealed String prototype that return primitive values.
+	private static final Set<String> STRING_METHODS = new HashSet<String>(Arrays.asList(
+			"substring", "substr", "slice", "indexOf", "lastIndexOf", "charAt",
+			"toLowerCase", "toUpperCase", "startsWith", "endsWith", "trim"));
+
+	private static final Set<Integer> INVARIANT_OPERATORS = new HashSet<Integer>(Arrays.asList(
+			Token.ADD, Token.EQ, Token.NE, Token.SHEQ, Token.SHNE, Token.AND, Token.OR,
+			Token.LT, Token.GT, Token.LE, Token.GE));
+
+	// Flags of an invariant expression
+	private static final int NOT_INVARIANT = -1;
+	private static final int CONSTANT = 0;
+	private static final int CALLS = 1;
+	private static final int USES_LOCAL_ADDRESS = 2;
+
+	/*****************************************************************************
+	 * The rewritten script.
+	 ****************************************************************************/
+
+	static final class Result {
+		final String content;
+		final int hoisted;
+		final boolean usesLocalAddress;
+
+		Result(String content, int hoisted, boolean usesLocalAddress) {
+			this.content = content;
+			this.hoisted = hoisted;
+			this.usesLocalAddress = usesLocalAddress;
+		}
+	}
+
+	/*****************************************************************************
+	 * A local variable that is initialized once with an invariant value.
+	 ****************************************************************************/
+
+	private static final class InvariantLocal {
+		final FunctionNode function;
+		final int initializedAt;
+		final int flags;
+
+		InvariantLocal(FunctionNode function, int initializedAt, int flags) {
+			this.function = function;
+			this.initializedAt = initializedAt;
+			this.flags = flags;
+		}
+	}
+
+	private final String content;
+	private final Set<String> functions;
+	private final Map<String, InvariantLocal> locals;
+	private final List<AstNode> hoisted;
+	private boolean usesLocalAddress;
+
+	private PacScriptSpecializer(String content, Set<String> functions) {
+		super();
+		this.content = content;
+		this.functions = functions;
+		this.locals = new HashMap<String, InvariantLocal>();
+		this.hoisted = new ArrayList<AstNode>();
+	}
+
+	/*************************************************************************
+	 * Gets the PAC functions that can be treated as side effect free for the
+	 * given implementation. Functions that a subclass overrides are left out
+	 * because the subclass may return different values for the same
+	 * arguments.
+	 * @param methods the PAC function implementation.
+	 * @return the names of the PAC functions.
+	 ************************************************************************/
+
+	static Set<String> getInvariantFunctions(PacScriptMethods methods) {
+		Set<String> result = new HashSet<String>(INVARIANT_FUNCTIONS);
+		for (Method method : methods.getClass().getMethods()) {
+			if (method.getDeclaringClass() != PacScriptMethods.class) {
+				result.remove(method.getName());
+			}
+		}
+		return Collections.unmodifiableSet(result);
+	}
+
+	/*************************************************************************
+	 * Rewrites the given script.
+	 * @param content the PAC script content.
+	 * @param functions the PAC functions that are side effect free.
+	 * @return the result, with the unchanged content if nothing could be
+	 *         hoisted.
+	 ************************************************************************/
+
+	static Result specialize(String content, Set<String> functions) {
+		try {
+			AstRoot root = new Parser(new CompilerEnvirons()).parse(content, SOURCE_NAME, 1);
+			return new PacScriptSpecializer(content, new HashSet<String>(functions)).rewrite(root);
+		} catch (EvaluatorException e) {
+			Logger.log(PacScriptSpecializer.class, LogLevel.TRACE, "PAC script not specialized: {0}", e.getMessage());
+			return new Result(content, 0, false);
+		}
+	}
+
+	private Result rewrite(AstRoot root) {
+		Map<String, Integer> declarations = new HashMap<String, Integer>();
+		Set<String> assigned = new HashSet<String>();
+		if (!collectNames(root, declarations, assigned)) {
+			return new Result(this.content, 0, false);
+		}
+		findInvariantLocals(root, declarations, assigned);
+
+		root.visit(new NodeVisitor() {
+			public boolean visit(AstNode node) {
+				if (node.getEnclosingFunction() == null || node instanceof Name) {
+					return true;
+				}
+				int flags = getFlags(node);
+				if (flags == NOT_INVARIANT || (flags & CALLS) == 0) {
+					return true;
+				}
+				PacScriptSpecializer.this.hoisted.add(node);
+				PacScriptSpecializer.this.usesLocalAddress |= (flags & USES_LOCAL_ADDRESS) != 0;
+				return false;
+			}
+		});
+		if (this.hoisted.isEmpty()) {
+			return new Result(this.content, 0, false);
+		}
+
+		StringBuilder result = new StringBuilder(this.content);
+		StringBuilder declaration = new StringBuilder("\nvar ");
+		for (int i = this.hoisted.size() - 1; i >= 0; i--) {
+			AstNode node = this.hoisted.get(i);
+			String name = HOISTED_PREFIX + i;
+			int start = node.getAbsolutePosition();
+			int end = start + node.getLength();
+			result.replace(start, end, "(" + name + " !== undefined ? " + name + " : ("
+					+ name + " = " + this.content.substring(start, end) + "))");
+			declaration.append(name).append(i == 0 ? ";\n" : ", ");
+		}
+		result.append(declaration);
+		Logger.log(getClass(), LogLevel.TRACE, "Hoisted {0} invariant expressions out of the PAC functions", this.hoisted.size());
+		return new Result(result.toString(), this.hoisted.size(), this.usesLocalAddress);
+	}
+
+	/*************************************************************************
+	 * Collects the declared and assigned names and removes the PAC functions
+	 * that the script redefines.
+	 * @param root the parsed script.
+	 * @param declarations receives the number of declarations per name.
+	 * @param assigned receives the names that are assigned.
+	 * @return false if the script can not be rewritten safely.
+	 ************************************************************************/
+
+	private boolean collectNames(AstRoot root, final Map<String, Integer> declarations, final Set<String> assigned) {
+		final boolean[] safe = {true};
+		root.visit(new NodeVisitor() {
+			public boolean visit(AstNode node) {
+				if (node instanceof WithStatement) {
+					safe[0] = false;
+				} else if (node instanceof FunctionNode) {
+					FunctionNode function = (FunctionNode) node;
+					if (function.getFunctionName() != null) {
+						addDeclaration(declarations, function.getFunctionName());
+					}
+					for (AstNode param : function.getParams()) {
+						addDeclaration(declarations, param);
+					}
+				} else if (node instanceof VariableInitializer) {
+					addDeclaration(declarations, ((VariableInitializer) node).getTarget());
+				} else if (node instanceof CatchClause) {
+					addDeclaration(declarations, ((CatchClause) node).getVarName());
+				} else if (node instanceof Assignment && ((Assignment) node).getLeft() instanceof Name) {
+					assigned.add(((Name) ((Assignment) node).getLeft()).getIdentifier());
+				} else if (node instanceof UpdateExpression && ((UpdateExpression) node).getOperand() instanceof Name) {
+					assigned.add(((Name) ((UpdateExpression) node).getOperand()).getIdentifier());
+				} else if (node instanceof Name) {
+					String identifier = ((Name) node).getIdentifier();
+					if ("eval".equals(identifier) || "Function".equals(identifier)
+							|| "arguments".equals(identifier) || identifier.startsWith(HOISTED_PREFIX)) {
+						safe[0] = false;
+					} else if (!isCallTarget((Name) node)) {
+						PacScriptSpecializer.this.functions.remove(identifier);
+					}
+				}
+				return safe[0];
+			}
+		});
+		return safe[0];
+	}
+
+	private static void addDeclaration(Map<String, Integer> declarations, AstNode name) {
+		if (name instanceof Name) {
+			String identifier = ((Name) name).getIdentifier();
+			Integer count = declarations.get(identifier);
+			declarations.put(identifier, count == null ? 1 : count + 1);
+		}
+	}
+
+	/*************************************************************************
+	 * Finds the local variables that are declared only once, directly in the
+	 * body of a function, with an invariant initial value and are never
+	 * assigned again. Uses of such a variable in the same function after its
+	 * declaration are invariant too.
+	 * @param root the parsed script.
+	 * @param declarations the number of declarations per name.
+	 * @param assigned the names that are assigned.
+	 ************************************************************************/
+
+	private void findInvariantLocals(AstRoot root, final Map<String, Integer> declarations, final Set<String> assigned) {
+		root.visit(new NodeVisitor() {
+			public boolean visit(AstNode node) {
+				if (node instanceof FunctionNode && ((FunctionNode) node).getBody() != null) {
+					FunctionNode function = (FunctionNode) node;
+					for (Node statement : function.getBody()) {
+						AstNode declaration = (AstNode) statement;
+						if (declaration instanceof ExpressionStatement) {
+							declaration = ((ExpressionStatement) declaration).getExpression();
+						}
+						if (declaration instanceof VariableDeclaration) {
+							addInvariantLocals(function, (VariableDeclaration) declaration,
+									((AstNode) statement).getAbsolutePosition() + ((AstNode) statement).getLength(),
+									declarations, assigned);
+						}
+					}
+				}
+				return true;
+			}
+		});
+	}
+
+	private void addInvariantLocals(FunctionNode function, VariableDeclaration declaration, int end,
+			Map<String, Integer> declarations, Set<String> assigned) {
+		for (VariableInitializer variable : declaration.getVariables()) {
+			if (!(variable.getTarget() instanceof Name) || variable.getInitializer() == null) {
+				continue;
+			}
+			String name = ((Name) variable.getTarget()).getIdentifier();
+			if (declarations.get(name) != 1 || assigned.contains(name)) {
+				continue;
+			}
+			int flags = getFlags(variable.getInitializer());
+			if (flags != NOT_INVARIANT) {
+				this.locals.put(name, new InvariantLocal(function, end, flags));
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Checks if an expression has the same value on every call.
+	 * @param node the expression.
+	 * @return NOT_INVARIANT or the flags CALLS and USES_LOCAL_ADDRESS.
+	 ************************************************************************/
+
+	private int getFlags(AstNode node) {
+		if (node instanceof StringLiteral || node instanceof NumberLiteral) {
+			return CONSTANT;
+		}
+		if (node instanceof KeywordLiteral) {
+			return node.getType() == Token.NULL || ((KeywordLiteral) node).isBooleanLiteral() ? CONSTANT : NOT_INVARIANT;
+		}
+		if (node instanceof Name) {
+			InvariantLocal local = this.locals.get(((Name) node).getIdentifier());
+			if (local != null && local.function == node.getEnclosingFunction()
+					&& node.getAbsolutePosition() >= local.initializedAt) {
+				return local.flags;
+			}
+			return NOT_INVARIANT;
+		}
+		if (node instanceof ParenthesizedExpression) {
+			return getFlags(((ParenthesizedExpression) node).getExpression());
+		}
+		if (node instanceof UnaryExpression) {
+			return node.getType() == Token.NOT ? getFlags(((UnaryExpression) node).getOperand()) : NOT_INVARIANT;
+		}
+		if (node instanceof ConditionalExpression) {
+			ConditionalExpression conditional = (ConditionalExpression) node;
+			return combine(getFlags(conditional.getTestExpression()),
+					combine(getFlags(conditional.getTrueExpression()), getFlags(conditional.getFalseExpression())));
+		}
+		if (node instanceof PropertyGet) {
+			PropertyGet property = (PropertyGet) node;
+			return "length".equals(property.getProperty().getIdentifier()) ? getFlags(property.getTarget()) : NOT_INVARIANT;
+		}
+		if (node instanceof InfixExpression) {
+			InfixExpression infix = (InfixExpression) node;
+			if (node instanceof Assignment || !INVARIANT_OPERATORS.contains(infix.getType())) {
+				return NOT_INVARIANT;
+			}
+			return combine(getFlags(infix.getLeft()), getFlags(infix.getRight()));
+		}
+		if (node instanceof FunctionCall) {
+			return getCallFlags((FunctionCall) node);
+		}
+		return NOT_INVARIANT;
+	}
+
+	private int getCallFlags(FunctionCall call) {
+		int flags = CALLS;
+		for (AstNode argument : call.getArguments()) {
+			flags = combine(flags, getFlags(argument));
+		}
+		AstNode target = call.getTarget();
+		if (target instanceof PropertyGet) {
+			PropertyGet method = (PropertyGet) target;
+			if (!STRING_METHODS.contains(method.getProperty().getIdentifier())) {
+				return NOT_INVARIANT;
+			}
+			return combine(flags, getFlags(method.getTarget()));
+		}
+		if (!(target instanceof Name) || !this.functions.contains(((Name) target).getIdentifier())) {
+			return NOT_INVARIANT;
+		}
+		String function = ((Name) target).getIdentifier();
+		if (MY_IP_ADDRESS.equals(function) || MY_IP_ADDRESS_EX.equals(function)) {
+			return flags | USES_LOCAL_ADDRESS;
+		}
+		if (IS_IN_NET.equals(function) || IS_IN_NET_EX.equals(function)) {
+			List<AstNode> arguments = call.getArguments();
+			if (arguments.isEmpty() || (getFlags(arguments.get(0)) & USES_LOCAL_ADDRESS) == 0) {
+				return NOT_INVARIANT;
+			}
+		}
+		return flags;
+	}
+
+	private static int combine(int flags1, int flags2) {
+		if (flags1 == NOT_INVARIANT || flags2 == NOT_INVARIANT) {
+			return NOT_INVARIANT;
+		}
+		return flags1 | flags2;
+	}
+
+	private static boolean isCallTarget(Name name) {
+		return name.getParent() instanceof FunctionCall && ((FunctionCall) name.getParent()).getTarget() == name;
+	}
+
+}
@@ -0,0 +1,204 @@
+package com.btr.proxy.selector.pac;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+
+/*****************************************************************************
+ * The calendar fields of one second in one time zone, as used by the PAC
+ * functions weekdayRange, dateRange and timeRange.
+ * <p>
+ * An instance is computed at most once per second and time zone and then
+ * shared by all calls within that second. The static helpers do the calendar
+ * arithmetic on primitive values, so the PAC functions do not create any
+ * Calendar or Date objects.
+ * </p>
+ ****************************************************************************/
+
+final class PacTimeFields {
+
+	private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+	final long epochSecond;
+	final long epochDay;
+	final int secondOfDay;
+	final int year;
+	/** 0 = January */
+	final int month;
+	final int dayOfMonth;
+	/** 0 = Sunday */
+	final int dayOfWeek;
+
+	/*************************************************************************
+	 * Constructor
+	 * @param epochSecond the second since 1970-01-01T00:00Z.
+	 * @param offsetSeconds the offset of the time zone at that second.
+	 ************************************************************************/
+
+	private PacTimeFields(long epochSecond, int offsetSeconds) {
+		super();
+		long localSecond = epochSecond + offsetSeconds;
+		this.epochSecond = epochSecond;
+		this.epochDay = Math.floorDiv(localSecond, SECONDS_PER_DAY);
+		this.secondOfDay = Math.floorMod(localSecond, SECONDS_PER_DAY);
+		long civil = civilFromDays(this.epochDay);
+		this.year = civilYear(civil);
+		this.month = civilMonth(civil);
+		this.dayOfMonth = civilDay(civil);
+		this.dayOfWeek = Math.floorMod(this.epochDay + 4, 7); // 1970-01-01 was a Thursday
+	}
+
+	/*************************************************************************
+	 * Computes the fields for the given second.
+	 * @param epochSecond the second since 1970-01-01T00:00Z.
+	 * @param rules the rules of the time zone.
+	 * @return the fields.
+	 ************************************************************************/
+
+	static PacTimeFields of(long epochSecond, ZoneRules rules) {
+		return new PacTimeFields(epochSecond, rules.getOffset(Instant.ofEpochSecond(epochSecond)).getTotalSeconds());
+	}
+
+	/*****************************************************************************
+	 * Caches the fields of the last requested second for one time zone.
+	 ****************************************************************************/
+
+	static final class Cache {
+		private final ZoneId zone;
+		private final ZoneRules rules;
+		private volatile PacTimeFields last;
+
+		Cache(ZoneId zone) {
+			this.zone = zone;
+			this.rules = zone.getRules();
+		}
+
+		ZoneRules getRules() {
+			return this.rules;
+		}
+
+		/*************************************************************************
+		 * Gets the fields for the given time.
+		 * @param epochMillis the time in milliseconds since 1970-01-01T00:00Z.
+		 * @return the fields, recomputed only if the second has changed.
+		 ************************************************************************/
+
+		PacTimeFields get(long epochMillis) {
+			long second = Math.floorDiv(epochMillis, 1000);
+			PacTimeFields result = this.last;
+			if (result == null || result.epochSecond != second) {
+				result = of(second, this.rules);
+				this.last = result;
+			}
+			return result;
+		}
+
+		/*************************************************************************
+		 * Gets the first second of a day in the time zone of this cache.
+		 * @param epochDay the day since 1970-01-01.
+		 * @return the second since 1970-01-01T00:00Z.
+		 ************************************************************************/
+
+		long startOfDay(long epochDay) {
+			return LocalDate.ofEpochDay(epochDay).atStartOfDay(this.zone).toEpochSecond();
+		}
+
+		/*************************************************************************
+		 * Gets the next change of the UTC offset, e.g. a daylight saving time
+		 * switch, in the time zone of this cache.
+		 * @param epochSecond the second since 1970-01-01T00:00Z.
+		 * @return the second of the next change, Long.MAX_VALUE if there is none.
+		 ************************************************************************/
+
+		long nextTransition(long epochSecond) {
+			ZoneOffsetTransition transition = this.rules.nextTransition(Instant.ofEpochSecond(epochSecond));
+			return transition == null ? Long.MAX_VALUE : transition.toEpochSecond();
+		}
+	}
+
+	/*************************************************************************
+	 * Gets the day since 1970-01-01 of a date. Days beyond the end of the
+	 * month and months beyond 11 roll over into the next month or year, like
+	 * a lenient Calendar.
+	 * @param year the year.
+	 * @param month the month, 0 = January.
+	 * @param day the day of the month.
+	 * @return the epoch day.
+	 ************************************************************************/
+
+	static long toEpochDay(int year, int month, int day) {
+		int y = year + Math.floorDiv(month, 12);
+		int m = Math.floorMod(month, 12) + 1;
+		// Days from civil algorithm, years starting in March.
+		int ys = m <= 2 ? y - 1 : y;
+		long era = Math.floorDiv(ys, 400);
+		long yoe = ys - era * 400;
+		long doy = (153 * (m + (m > 2 ? -3 : 9)) + 2) / 5;
+		long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468 + day - 1;
+	}
+
+	/*************************************************************************
+	 * Converts an epoch day into year, month and day packed into one long.
+	 * Use civilYear, civilMonth and civilDay to unpack the values.
+	 * @param epochDay the day since 1970-01-01.
+	 * @return the packed date.
+	 ************************************************************************/
+
+	static long civilFromDays(long epochDay) {
+		long z = epochDay + 719468;
+		long era = Math.floorDiv(z, 146097);
+		long doe = z - era * 146097;
+		long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		long mp = (5 * doy + 2) / 153;
+		long d = doy - (153 * mp + 2) / 5 + 1;
+		long m = mp < 10 ? mp + 3 : mp - 9;
+		long y = yoe + era * 400 + (m <= 2 ? 1 : 0);
+		return (y << 16) | ((m - 1) << 8) | d;
+	}
+
+	static int civilYear(long civil) {
+		return (int) (civil >> 16);
+	}
+
+	static int civilMonth(long civil) {
+		return (int) ((civil >> 8) & 0xFF);
+	}
+
+	static int civilDay(long civil) {
+		return (int) (civil & 0xFF);
+	}
+
+	/*************************************************************************
+	 * Gets the number of days of a month.
+	 * @param year the year.
+	 * @param month the month, 0 = January.
+	 * @return the length of the month.
+	 ************************************************************************/
+
+	static int lengthOfMonth(int year, int month) {
+		return (int) (toEpochDay(year, month + 1, 1) - toEpochDay(year, month, 1));
+	}
+
+	/*************************************************************************
+	 * Adds months to a date like Calendar.add(MONTH, n): the day is limited
+	 * to the length of the resulting month.
+	 * @param year the year.
+	 * @param month the month, 0 = January.
+	 * @param day the day of the month.
+	 * @param months the months to add.
+	 * @return the packed date, see civilFromDays.
+	 ************************************************************************/
+
+	static long addMonths(int year, int month, int day, int months) {
+		int m = month + months;
+		int y = year + Math.floorDiv(m, 12);
+		m = Math.floorMod(m, 12);
+		int d = Math.min(day, lengthOfMonth(y, m));
+		return ((long) y << 16) | (m << 8) | d;
+	}
+
+}
@@ -0,0 +1,22 @@
+package com.btr.proxy.selector.pac;
+
+/*****************************************************************************
+ * Exception thrown if a PAC script evaluation was aborted because it has
+ * exceeded its time budget.
+ ****************************************************************************/
+
+public class ProxyEvaluationTimeoutException extends ProxyEvaluationException {
+
+	private static final long serialVersionUID = 1L;
+
+	/*************************************************************************
+	 * Constructor
+	 * @param message the error message.
+	 * @param cause the causing exception for exception chaining.
+	 ************************************************************************/
+	
+	public ProxyEvaluationTimeoutException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+}
@@ -1,12 +1,21 @@
 package com.btr.proxy.selector.pac;
 
-import java.util.Calendar;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.Set;
+
 import org.mozilla.javascript.Context;
-import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.Script;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 
+import com.btr.proxy.selector.pac.PacContextFactory.BudgetExceededError;
+import com.btr.proxy.selector.pac.PacContextFactory.PacContext;
 import com.btr.proxy.util.Logger;
+import com.btr.proxy.util.ProxyUtil;
 import com.btr.proxy.util.Logger.LogLevel;
 
 /*****************************************************************************
@@ -20,21 +29,64 @@ import com.btr.proxy.util.Logger.LogLevel;
  * @author Bernd Rosstauscher (proxyvole@rosstauscher.de) Copyright 2009
  ****************************************************************************/
 
-public class RhinoPacScriptParser extends ScriptableObject implements PacScriptParser {
+public class RhinoPacScriptParser implements PacScriptParser {
     
-    private static final long serialVersionUID = 1L;
+    private static final String ENTRY_FUNCTION = "FindProxyForURL";
     
-    // Define some PAC script functions. These functions are not part of ECMA.
-    private static final String[] JS_FUNCTION_NAMES = { 
-            "shExpMatch", "dnsResolve", "isResolvable",
-            "isInNet", "dnsDomainIs", "isPlainHostName", "myIpAddress",
-            "dnsDomainLevels", "localHostOrDomainIs", "weekdayRange", 
-            "dateRange", "timeRange"
-        };
+    // Only used by the deprecated static PAC methods.
+    private static final PacScriptMethods SCRIPT_METHODS = new PacScriptMethods();
+    
+    static final long DEFAULT_EVALUATION_BUDGET = 5 * 1000; // milliseconds
     
-    private Scriptable scope;
-    private PacScriptSource source;
-    private static final PacScriptMethods SCRIPT_METHODS = new PacScriptMethods(); 
+    private static volatile ScriptableObject sharedScope;
+    
+    private final PacContextFactory contextFactory;
+    private final PacScriptSource source;
+    private final Object compileLock;
+    private volatile CompiledPacScript compiledScript;
+    private volatile PacEvaluationPool<EvaluationScope> evaluationPool;
+    private volatile long evaluationBudget;
+    private final PacScriptMethods scriptMethods;
+    private volatile boolean specializationEnabled;
+    private final Set<String> invariantFunctions;
+    private volatile ScriptableObject prototypeScope;
+
+    /*****************************************************************************
+     * Holds one compiled version of the PAC script. 
+     * The compiled script is shared by all threads.
+     ****************************************************************************/
+    
+    private static final class CompiledPacScript {
+        final String content;
+        final Script script;
+        final boolean usesLocalAddress;
+        
+        CompiledPacScript(String content, Script script, boolean usesLocalAddress) {
+            super();
+            this.content = content;
+            this.script = script;
+            this.usesLocalAddress = usesLocalAddress;
+        }
+    }
+    
+    /*****************************************************************************
+     * A scope that is used by one evaluating thread at a time. 
+     * Its prototype is the sealed shared scope with the standard objects and
+     * the PAC functions, or the private scope of the parser if the script
+     * modifies the standard objects. The top level of the compiled script is run once per
+     * script version into this scope, so global variables written by the 
+     * script are not shared between concurrent evaluations. This includes the
+     * values hoisted by the <code>PacScriptSpecializer</code>, so they are 
+     * computed again in a new scope when the local address has changed.
+     ****************************************************************************/
+    
+    private static final class EvaluationScope {
+        CompiledPacScript compiledScript;
+        Object localAddressState;
+        ScriptableObject prototypeScope;
+        Scriptable scope;
+        Function findProxyForURL;
+    }
 
     /*************************************************************************
      * Constructor
@@ -43,28 +95,160 @@ public class RhinoPacScriptParser extends ScriptableObject implements PacScriptP
      ************************************************************************/
     
     public RhinoPacScriptParser(PacScriptSource source) throws ProxyEvaluationException {
+        this(source, new PacScriptMethods());
+    }
+    
+    /*************************************************************************
+     * Constructor
+     * @param source the source for the PAC script.
+     * @param scriptMethods the implementation of the PAC functions used by 
+     *          this parser.
+     * @throws ProxyEvaluationException on error.
+     ************************************************************************/
+    
+    public RhinoPacScriptParser(PacScriptSource source, PacScriptMethods scriptMethods) throws ProxyEvaluationException {
         super();
         this.source = source;
+        this.scriptMethods = scriptMethods;
+        this.contextFactory = new PacContextFactory();
+        this.compileLock = new Object();
+        this.evaluationBudget = ProxyUtil.getLongProperty(PacProxySelector.OVERRIDE_EVALUATION_BUDGET, DEFAULT_EVALUATION_BUDGET);
+        this.specializationEnabled = !"false".equalsIgnoreCase(System.getProperty(PacProxySelector.OVERRIDE_SPECIALIZATION));
+        this.invariantFunctions = PacScriptSpecializer.getInvariantFunctions(scriptMethods);
+        this.evaluationPool = PacEvaluationPool.withDefaults(newEvaluationScopeFactory());
 
         setupEngine();
     }
     
     /*************************************************************************
      * Initializes the JavaScript engine.
+     * All parsers use the same sealed scope with the standard objects and 
+     * the PAC functions. It is created by the first parser. A parser whose
+     * script modifies the standard objects, e.g. with a polyfill on
+     * <code>String.prototype</code>, switches to a private unsealed scope on
+     * the first attempt to do so.
      * @throws ProxyEvaluationException on error.
      ************************************************************************/
     
     public void setupEngine() throws ProxyEvaluationException {
-
-        Context context = new ContextFactory().enterContext();
+        this.prototypeScope = getSharedScope();
+    }
+    
+    /*************************************************************************
+     * Gets the scope with the standard objects and the PAC functions that is
+     * shared by all parsers of the process. The scope is sealed, so neither 
+     * a script nor a concurrent evaluation can modify it. The PAC functions 
+     * call the ScriptMethods of the parser that runs the script, which are
+     * passed via the PacContext.
+     * @return the shared scope.
+     * @throws ProxyEvaluationException on error.
+     ************************************************************************/
+    
+    static ScriptableObject getSharedScope() throws ProxyEvaluationException {
+        ScriptableObject result = sharedScope;
+        if (result == null) {
+            synchronized (RhinoPacScriptParser.class) {
+                result = sharedScope;
+                if (result == null) {
+                    result = createScope(true);
+                    sharedScope = result;
+                }
+            }
+        }
+        return result;
+    }
+    
+    /*************************************************************************
+     * Creates a scope with the standard objects and the PAC functions.
+     * @param sealed true to seal the scope and the standard objects.
+     * @return the new scope.
+     * @throws ProxyEvaluationException on error.
+     ************************************************************************/
+    
+    private static ScriptableObject createScope(boolean sealed) throws ProxyEvaluationException {
+        Context context = new PacContextFactory().enterContext();
         try {
-            defineFunctionProperties(JS_FUNCTION_NAMES, RhinoPacScriptParser.class, ScriptableObject.DONTENUM);
+            ScriptableObject result = context.initStandardObjects(null, sealed);
+            PacFunction.defineAll(result);
+            if (sealed) {
+                result.sealObject();
+            }
+            return result;
         } catch (Exception e) {
-            Logger.log(getClass(), LogLevel.ERROR, "JS Engine setup error:{0}.", e);
+            Logger.log(RhinoPacScriptParser.class, LogLevel.ERROR, "JS Engine setup error:{0}.", e);
             throw new ProxyEvaluationException(e.getMessage(), e);
+        } finally {
+            Context.exit();
+        }
+    }
+    
+    /*************************************************************************
+     * Sets the number of scopes that can be used for concurrent evaluations 
+     * and the max time a thread will wait for a free scope.
+     * Default values can be set via the system properties 
+     * <code>PacProxySelector.OVERRIDE_POOL_SIZE</code> and
+     * <code>PacProxySelector.OVERRIDE_BORROW_TIMEOUT</code>.
+     * @param poolSize the max number of concurrent evaluations.
+     * @param borrowTimeout the max wait time in milliseconds.
+     ************************************************************************/
+    
+    public void setEvaluationPoolSettings(int poolSize, long borrowTimeout) {
+        this.evaluationPool = new PacEvaluationPool<EvaluationScope>(newEvaluationScopeFactory(), poolSize, borrowTimeout);
+    }
+    
+    /*************************************************************************
+     * Sets the max time a single evaluation of the script may take. 
+     * If the script runs longer it is aborted with a 
+     * <code>ProxyEvaluationTimeoutException</code>.
+     * The default value can be set via the system property
+     * <code>PacProxySelector.OVERRIDE_EVALUATION_BUDGET</code>.
+     * @param budgetMillis the budget in milliseconds, 0 to disable the limit.
+     ************************************************************************/
+    
+    public void setEvaluationTimeBudget(long budgetMillis) {
+        this.evaluationBudget = budgetMillis;
+    }
+    
+    /*************************************************************************
+     * Enables or disables the specialization of the script when it is 
+     * compiled. If enabled, expressions in the PAC functions that have the 
+     * same value on every call, like <code>isInNet(myIpAddress(), ...)</code>, 
+     * are evaluated only once and again after the local address has changed.
+     * The default value can be set via the system property
+     * <code>PacProxySelector.OVERRIDE_SPECIALIZATION</code>.
+     * @param enabled true to specialize the script, false to run it unchanged.
+     * @see PacScriptSpecializer
+     ************************************************************************/
+    
+    public void setSpecializationEnabled(boolean enabled) {
+        synchronized (this.compileLock) {
+            this.specializationEnabled = enabled;
+            this.compiledScript = null;
         }
-
-        this.scope = context.initStandardObjects(this);
+    }
+    
+    /*************************************************************************
+     * Creates the factory for the pooled evaluation scopes. 
+     * The scopes are initialized lazily on first use.
+     * @return a factory.
+     ************************************************************************/
+    
+    private PacEvaluationPool.Factory<EvaluationScope> newEvaluationScopeFactory() {
+        return new PacEvaluationPool.Factory<EvaluationScope>() {
+            public EvaluationScope create() {
+                return new EvaluationScope();
+            }
+        };
+    }
+    
+    /***************************************************************************
+     * Gets the implementation of the PAC functions used by this parser.
+     * It can be used to set the DNS resolver or the clock for this parser only.
+     * @return the script methods.
+     **************************************************************************/
+    
+    public PacScriptMethods getScriptMethods() {
+        return this.scriptMethods;
     }
     
     /***************************************************************************
@@ -78,6 +262,9 @@ public class RhinoPacScriptParser extends ScriptableObject implements PacScriptP
     
     /*************************************************************************
      * Evaluates the given URL and host against the PAC script.
+     * The script is compiled only once per script version. Every call will
+     * invoke the FindProxyForURL function directly with the URL and 
+     * host passed as arguments. This method can be called concurrently.
      * @param url the URL to evaluate.
      * @param host the host name part of the URL.
      * @return the script result.
@@ -86,40 +273,178 @@ public class RhinoPacScriptParser extends ScriptableObject implements PacScriptP
     
     public String evaluate(String url, String host) throws ProxyEvaluationException {
         try {
-            // FindProxyForURL function signature
-            StringBuilder script = new StringBuilder(this.source.getScriptContent());
-            String evalMethod = " ;FindProxyForURL (\"" + url + "\",\"" + host + "\")";
-            script.append(evalMethod);
-
-            Context context = Context.enter();
+            CompiledPacScript script = getCompiledScript();
+            PacEvaluationPool<EvaluationScope> pool = this.evaluationPool;
+            EvaluationScope evaluationScope = pool.borrow();
             try {
-                Object result = context.evaluateString(this.scope,
-                        script.toString(), "userPacFile", 1, null);
-                
-                return Context.toString(result);
+                PacContext context = (PacContext) this.contextFactory.enterContext();
+                try {
+                    context.startBudget(this.evaluationBudget);
+                    context.setScriptMethods(this.scriptMethods);
+                    ScriptableObject prototype = this.prototypeScope;
+                    Object result;
+                    try {
+                        result = invoke(context, evaluationScope, script, prototype, url, host);
+                    } catch (EvaluatorException e) {
+                        if (!prototype.isSealed()) {
+                            throw e;
+                        }
+                        // Most likely the script writes to a sealed standard object.
+                        result = invoke(context, evaluationScope, script, usePrivateScope(e), url, host);
+                    }
+                    return Context.toString(result);
+                } finally {
+                    context.clearBudget();
+                    context.setScriptMethods(null);
+                    Context.exit();
+                }
             } finally {
-                Context.exit();
+                pool.release(evaluationScope);
             }
+        } catch (BudgetExceededError e) {
+            Logger.log(getClass(), LogLevel.WARNING, "PAC evaluation aborted after {0} ms for url: {1}", this.evaluationBudget, url);
+            throw new ProxyEvaluationTimeoutException(
+                    "PAC script evaluation exceeded the time budget of " + this.evaluationBudget + " ms.", e);
+        } catch (ProxyEvaluationException e) {
+            throw e;
         } catch (Exception e) {
             Logger.log(getClass(), LogLevel.ERROR, "JS evaluation error:{0}.", e);
             throw new ProxyEvaluationException(
                     "Error while executing PAC script: " + e.getMessage(), e);
         }
     }
-
+    
     /*************************************************************************
-     * getClassName
-     * See also org.mozilla.javascript.ScriptableObject#getClassName()
+     * Calls FindProxyForURL. The evaluation scope is initialized first if it 
+     * was built for another script version, local address or prototype scope.
+     * @param context the current context.
+     * @param evaluationScope the scope holder to use.
+     * @param script the compiled script.
+     * @param prototype the scope with the standard objects and PAC functions.
+     * @param url the URL to evaluate.
+     * @param host the host name part of the URL.
+     * @return the script result.
+     * @throws ProxyEvaluationException if the script has no FindProxyForURL 
+     *          function.
      ************************************************************************/
-    @Override
-    public String getClassName() {
-        return getClass().getSimpleName();
+    
+    private Object invoke(Context context, EvaluationScope evaluationScope, CompiledPacScript script,
+            ScriptableObject prototype, String url, String host) throws ProxyEvaluationException {
+        Object localAddressState = script.usesLocalAddress ? this.scriptMethods.getLocalAddressState() : null;
+        if (evaluationScope.compiledScript != script || evaluationScope.prototypeScope != prototype
+                || !Objects.equals(evaluationScope.localAddressState, localAddressState)) {
+            initEvaluationScope(context, evaluationScope, script, prototype);
+            evaluationScope.localAddressState = localAddressState;
+        }
+        return evaluationScope.findProxyForURL.call(context, 
+                evaluationScope.scope, evaluationScope.scope, new Object[] {url, host});
     }
     
-
+    /*************************************************************************
+     * Replaces the sealed shared scope of this parser with a private scope
+     * that the script may modify. 
+     * @param cause the error raised by the sealed scope.
+     * @return the private scope.
+     * @throws ProxyEvaluationException on error.
+     ************************************************************************/
+    
+    private ScriptableObject usePrivateScope(EvaluatorException cause) throws ProxyEvaluationException {
+        synchronized (this.compileLock) {
+            if (this.prototypeScope.isSealed()) {
+                Logger.log(getClass(), LogLevel.INFO, 
+                        "PAC script from {0} modifies the standard objects, using a private scope: {1}", 
+                        this.source, cause.getMessage());
+                this.prototypeScope = createScope(false);
+            }
+            return this.prototypeScope;
+        }
+    }
+    
+    /*************************************************************************
+     * Runs the top level of the compiled script in a new scope chained to the
+     * given prototype scope and looks up the FindProxyForURL function.
+     * @param context the current context.
+     * @param evaluationScope the scope holder to initialize.
+     * @param script the compiled script.
+     * @param prototype the scope with the standard objects and PAC functions.
+     * @throws ProxyEvaluationException if the script has no FindProxyForURL 
+     *          function.
+     ************************************************************************/
+    
+    private void initEvaluationScope(Context context, EvaluationScope evaluationScope, 
+            CompiledPacScript script, ScriptableObject prototype) throws ProxyEvaluationException {
+        // Not valid until the top level has run without error.
+        evaluationScope.compiledScript = null;
+        Scriptable scope = context.newObject(prototype);
+        scope.setPrototype(prototype);
+        scope.setParentScope(null);
+        script.script.exec(context, scope, scope);
+        
+        Object function = ScriptableObject.getProperty(scope, ENTRY_FUNCTION);
+        if (!(function instanceof Function)) {
+            throw new ProxyEvaluationException("PAC script has no " + ENTRY_FUNCTION + " function.");
+        }
+        evaluationScope.scope = scope;
+        evaluationScope.findProxyForURL = (Function) function;
+        evaluationScope.prototypeScope = prototype;
+        evaluationScope.compiledScript = script;
+    }
+    
+    /*************************************************************************
+     * Gets the compiled version of the current script content. 
+     * If the script source delivers new content the script is compiled again.
+     * @return the compiled script.
+     * @throws IOException on error reading the script content.
+     * @throws ProxyEvaluationException on compile error.
+     ************************************************************************/
+    
+    private CompiledPacScript getCompiledScript() throws IOException, ProxyEvaluationException {
+        String content = this.source.getScriptContent();
+        CompiledPacScript script = this.compiledScript;
+        if (script != null && script.content == content) {
+            return script;
+        }
+        synchronized (this.compileLock) {
+            script = this.compiledScript;
+            if (script == null || !script.content.equals(content)) {
+                script = compile(content);
+                this.compiledScript = script;
+            }
+            return script;
+        }
+    }
+    
+    /*************************************************************************
+     * Compiles the given script. If enabled the script is specialized first.
+     * @param content the script content.
+     * @return the compiled script.
+     * @throws ProxyEvaluationException on compile error.
+     ************************************************************************/
+    
+    private CompiledPacScript compile(String content) throws ProxyEvaluationException {
+        Logger.log(getClass(), LogLevel.TRACE, "Compiling PAC script from {0}", this.source);
+        Context context = this.contextFactory.enterContext();
+        try {
+            String source = content;
+            boolean usesLocalAddress = false;
+            if (this.specializationEnabled) {
+                PacScriptSpecializer.Result specialized = PacScriptSpecializer.specialize(content, this.invariantFunctions);
+                source = specialized.content;
+                usesLocalAddress = specialized.usesLocalAddress;
+            }
+            Script script = context.compileString(source, "userPacFile", 1, null);
+            return new CompiledPacScript(content, script, usesLocalAddress);
+        } catch (RhinoException e) {
+            Logger.log(getClass(), LogLevel.ERROR, "JS compile error:{0}.", e);
+            throw new ProxyEvaluationException(
+                    "Error while compiling PAC script: " + e.getMessage(), e);
+        } finally {
+            Context.exit();
+        }
+    }
     
 // ***************************************************************************
-// Defining PAC script methods needed in JS 
+// Deprecated static PAC script methods 
 // ***************************************************************************
 
     
@@ -127,8 +452,11 @@ public class RhinoPacScriptParser extends ScriptableObject implements PacScriptP
      * Tests if the given name is a plain host name without a domain name.
      * @param host the host name from the URL (excluding port number)
      * @return true if there is no domain name in the host name (no dots).
+     * @deprecated the PAC functions use the PacScriptMethods of each parser.
+     *     Use <code>getScriptMethods().isPlainHostName</code> instead.
      ************************************************************************/
     
+    @Deprecated
     public static boolean isPlainHostName(String host) {
         return SCRIPT_METHODS.isPlainHostName(host);
     }
@@ -138,8 +466,11 @@ public class RhinoPacScriptParser extends ScriptableObject implements PacScriptP
      * @param host is the host name from the URL.
      * @param domain is the domain name to test the host name against.
      * @return true if the domain of host name matches.
+     * @deprecated the PAC functions use the PacScriptMethods of each parser.
+     *     Use <code>getScriptMethods().dnsDomainIs</code> instead.
      ************************************************************************/
     
+    @Deprecated
     public static boolean dnsDomainIs(String host, String domain) {
         return SCRIPT_METHODS.dnsDomainIs(host, domain);
     }
@@ -151,8 +482,11 @@ public class RhinoPacScriptParser extends ScriptableObject implements PacScriptP
      * @param host the host name from the URL.
      * @param domain fully qualified host name with domain to match against.
      * @return true if matches else false.
+     * @deprecated the PAC functions use the PacScriptMethods of each parser.
+     *     Use <code>getScriptMethods().localHostOrDomainIs</code> instead.
      ************************************************************************/
     
+    @Deprecated
     public static boolean localHostOrDomainIs(String host, String domain) {
         return SCRIPT_METHODS.localHostOrDomainIs(host, domain);
     }
@@ -161,8 +495,11 @@ public class RhinoPacScriptParser extends ScriptableObject implements PacScriptP
      * Tries to resolve the host name. Returns true if succeeds. 
      * @param host is the host name from the URL.
      * @return true if resolvable else false.
+     * @deprecated the PAC functions use the PacScriptMethods of each parser.
+     *     Use <code>getScriptMethods().isResolvable</code> instead.
      ************************************************************************/
     
+    @Deprecated
     public static boolean isResolvable(String host) {
         return SCRIPT_METHODS.isResolvable(host);
     }
@@ -182,8 +519,11 @@ public class RhinoPacScriptParser extends ScriptableObject implements PacScriptP
      * @param mask mask for the IP address pattern informing which parts of 
      *      the IP address should be matched against. 0 means ignore, 255 means match.
      * @return true if it matches else false.
+     * @deprecated the PAC functions use the PacScriptMethods of each parser.
+     *     Use <code>getScriptMethods().isInNet</code> instead.
      ************************************************************************/
     
+    @Deprecated
     public static boolean isInNet(String host, String pattern, String mask) {
         return SCRIPT_METHODS.isInNet(host, pattern, mask);
     }
@@ -193,8 +533,11 @@ public class RhinoPacScriptParser extends ScriptableObject implements PacScriptP
      * the dot separated format as a string. 
      * @param host the host to resolve.
      * @return the resolved IP, empty string if not resolvable.
+     * @deprecated the PAC functions use the PacScriptMethods of each parser.
+     *     Use <code>getScriptMethods().dnsResolve</code> instead.
      ************************************************************************/
     
+    @Deprecated
     public static String dnsResolve(String host) {
         return SCRIPT_METHODS.dnsResolve(host);
     }
@@ -203,8 +546,11 @@ public class RhinoPacScriptParser extends ScriptableObject implements PacScriptP
      * Returns the IP address of the host that the process is running on, 
      * as a string in the dot-separated integer format. 
      * @return an IP as string.
+     * @deprecated the PAC functions use the PacScriptMethods of each parser.
+     *     Use <code>getScriptMethods().myIpAddress</code> instead.
      ************************************************************************/
     
+    @Deprecated
     public static String myIpAddress() {
         return SCRIPT_METHODS.myIpAddress();
     }
@@ -213,8 +559,11 @@ public class RhinoPacScriptParser extends ScriptableObject implements PacScriptP
      * Returns the number of DNS domain levels (number of dots) in the host name. 
      * @param host is the host name from the URL.
      * @return number of DNS domain levels.
+     * @deprecated the PAC functions use the PacScriptMethods of each parser.
+     *     Use <code>getScriptMethods().dnsDomainLevels</code> instead.
      ************************************************************************/
     
+    @Deprecated
     public static int dnsDomainLevels(String host) {
        return SCRIPT_METHODS.dnsDomainLevels(host);
     }
@@ -225,8 +574,11 @@ public class RhinoPacScriptParser extends ScriptableObject implements PacScriptP
      * @param str is any string to compare (e.g. the URL, or the host name).
      * @param shexp is a shell expression to compare against.
      * @return true if the string matches, else false.
+     * @deprecated the PAC functions use the PacScriptMethods of each parser.
+     *     Use <code>getScriptMethods().shExpMatch</code> instead.
      ************************************************************************/
     
+    @Deprecated
     public static boolean shExpMatch(String str, String shexp) {
         return SCRIPT_METHODS.shExpMatch(str, shexp);
     }
@@ -245,24 +597,15 @@ public class RhinoPacScriptParser extends ScriptableObject implements PacScriptP
      * @param wd2 weekday 2 is one of SUN MON TUE WED THU FRI SAT
      * @param gmt "GMT" for gmt time format else "undefined"
      * @return true if current day matches the criteria.
+     * @deprecated the PAC functions use the PacScriptMethods of each parser.
+     *     Use <code>getScriptMethods().weekdayRange</code> instead.
      ************************************************************************/
     
+    @Deprecated
     public static boolean weekdayRange(String wd1, String wd2, String gmt) {
        return SCRIPT_METHODS.weekdayRange(wd1, wd2, gmt);
     }
     
-    /*************************************************************************
-     * Sets a calendar with the current time. If this is set all date and time
-     * based methods will use this calendar to determine the current time 
-     * instead of the real time. This is only be used by unit tests and is not 
-     * part of the public API. 
-     * @param cal a Calendar to set.
-     ************************************************************************/
-    
-    static void setCurrentTime(Calendar cal) {
-        SCRIPT_METHODS.setCurrentTime(cal);
-    }
-
     /*************************************************************************
      * Only the first parameter is mandatory. 
      * All other parameters can be left out therefore the meaning of the parameters
@@ -279,8 +622,11 @@ public class RhinoPacScriptParser extends ScriptableObject implements PacScriptP
      * @param year2 is the full year number, for example 1995 (but not 95). Integer.
      * @param gmt "GMT" for gmt time format else "undefined"
      * @return true if the current date matches the given range.
+     * @deprecated the PAC functions use the PacScriptMethods of each parser.
+     *     Use <code>getScriptMethods().dateRange</code> instead.
      ************************************************************************/
     
+    @Deprecated
     public static boolean dateRange(Object day1, Object month1, Object year1, Object day2, Object month2, Object year2, Object gmt) {
         return SCRIPT_METHODS.dateRange(day1, month1, year1, day2, month2, year2, gmt);
     }
@@ -309,10 +655,66 @@ public class RhinoPacScriptParser extends ScriptableObject implements PacScriptP
      * @param sec2 seconds from 0 to 59.
      * @param gmt "GMT" for gmt time format else "undefined"
      * @return true if the current time matches the given range.
+     * @deprecated the PAC functions use the PacScriptMethods of each parser.
+     *     Use <code>getScriptMethods().timeRange</code> instead.
      ************************************************************************/
     
+    @Deprecated
     public static boolean timeRange(Object hour1, Object min1, Object sec1, Object hour2, Object min2, Object sec2, Object gmt) {
         return SCRIPT_METHODS.timeRange(hour1, min1, sec1, hour2, min2, sec2, gmt);
     }
 
+    /*************************************************************************
+     * Tries to resolve the host name to an IPv4 or IPv6 address.
+     * @param host is the host name from the URL.
+     * @return true if resolvable else false.
+     * @deprecated the PAC functions use the PacScriptMethods of each parser.
+     *     Use <code>getScriptMethods().isResolvableEx</code> instead.
+     ************************************************************************/
+    
+    @Deprecated
+    public static boolean isResolvableEx(String host) {
+        return SCRIPT_METHODS.isResolvableEx(host);
+    }
+    
+    /*************************************************************************
+     * Extension of the isInNet method to support IPv6.
+     * @param ipAddress an IPv4 or IPv6 address or a semicolon separated list.
+     * @param ipPrefix the network in CIDR notation (e.g. 3ffe:8311:ffff::/48).
+     * @return true if the address is in the given network, else false.
+     * @deprecated the PAC functions use the PacScriptMethods of each parser.
+     *     Use <code>getScriptMethods().isInNetEx</code> instead.
+     ************************************************************************/
+    
+    @Deprecated
+    public static boolean isInNetEx(String ipAddress, String ipPrefix) {
+        return SCRIPT_METHODS.isInNetEx(ipAddress, ipPrefix);
+    }
+    
+    /*************************************************************************
+     * Resolves the given host name into all its IPv4 and IPv6 addresses.
+     * @param host the host to resolve.
+     * @return a semicolon separated list of addresses, empty if not resolvable.
+     * @deprecated the PAC functions use the PacScriptMethods of each parser.
+     *     Use <code>getScriptMethods().dnsResolveEx</code> instead.
+     ************************************************************************/
+    
+    @Deprecated
+    public static String dnsResolveEx(String host) {
+        return SCRIPT_METHODS.dnsResolveEx(host);
+    }
+    
+    /*************************************************************************
+     * Returns the IPv6 address of the host that the process is running on.
+     * @return an IP as string.
+     * @deprecated the PAC functions use the PacScriptMethods of each parser.
+     *     Use <code>getScriptMethods().myIpAddressEx</code> instead.
+     ************************************************************************/
+    
+    @Deprecated
+    public static String myIpAddressEx() {
+        return SCRIPT_METHODS.myIpAddressEx();
+    }
+
+
 }
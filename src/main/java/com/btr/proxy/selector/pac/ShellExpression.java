@@ -0,0 +1,220 @@
+package com.btr.proxy.selector.pac;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*****************************************************************************
+ * A precompiled shell expression as used by the PAC function shExpMatch.
+ * Supports <code>*</code> (any sequence of characters) and <code>?</code>
+ * (exactly one character). The expression is split once into the literal
+ * segments between the <code>*</code> wildcards, so matching does not
+ * allocate any objects. Compiled expressions are shared via a bounded
+ * cache, see <code>compile(String)</code>.
+ ****************************************************************************/
+
+final class ShellExpression {
+
+	static final int MAX_CACHED_EXPRESSIONS = 512;
+	
+	private static final ConcurrentHashMap<String, ShellExpression> CACHE = new ConcurrentHashMap<String, ShellExpression>();
+	
+	private final String expression;
+	private final String[] segments;
+	private final boolean anchoredStart;
+	private final boolean anchoredEnd;
+	private final int minLength;
+	private volatile boolean recentlyUsed;
+
+	/*************************************************************************
+	 * Constructor
+	 * @param expression the shell expression to compile.
+	 ************************************************************************/
+
+	ShellExpression(String expression) {
+		super();
+		this.expression = expression;
+		this.anchoredStart = !expression.startsWith("*");
+		this.anchoredEnd = !expression.endsWith("*");
+
+		List<String> parts = new ArrayList<String>();
+		int length = 0;
+		int start = 0;
+		while (start <= expression.length()) {
+			int end = expression.indexOf('*', start);
+			if (end == -1) {
+				end = expression.length();
+			}
+			if (end > start) {
+				String part = expression.substring(start, end);
+				parts.add(part);
+				length += part.length();
+			}
+			start = end + 1;
+		}
+		this.segments = parts.toArray(new String[parts.size()]);
+		this.minLength = length;
+	}
+
+	/*************************************************************************
+	 * Gets the compiled version of the expression. Compiled expressions are 
+	 * cached, so scripts that test the same patterns again and again compile
+	 * them only once. If the cache is full the expressions that were not used
+	 * recently are removed (clock approximation of LRU), so cache hits only 
+	 * need a lock free lookup.
+	 * @param expression the shell expression.
+	 * @return the compiled expression.
+	 ************************************************************************/
+	
+	static ShellExpression compile(String expression) {
+		ShellExpression result = CACHE.get(expression);
+		if (result == null) {
+			// Make room first, so the new expression is not evicted at once.
+			if (CACHE.size() >= MAX_CACHED_EXPRESSIONS) {
+				evict(MAX_CACHED_EXPRESSIONS - 1);
+			}
+			result = new ShellExpression(expression);
+			result.recentlyUsed = true;
+			ShellExpression existing = CACHE.putIfAbsent(expression, result);
+			if (existing != null) {
+				result = existing;
+			}
+		}
+		if (!result.recentlyUsed) {
+			result.recentlyUsed = true;
+		}
+		return result;
+	}
+	
+	/*************************************************************************
+	 * Removes expressions that were not used since the last eviction run
+	 * until the cache is not larger than the given size.
+	 * @param maxSize the size to reach.
+	 ************************************************************************/
+	
+	private static synchronized void evict(int maxSize) {
+		while (CACHE.size() > maxSize) {
+			Iterator<ShellExpression> it = CACHE.values().iterator();
+			while (it.hasNext() && CACHE.size() > maxSize) {
+				ShellExpression candidate = it.next();
+				if (candidate.recentlyUsed) {
+					candidate.recentlyUsed = false;
+				} else {
+					it.remove();
+				}
+			}
+		}
+	}
+	
+	/*************************************************************************
+	 * Gets the expression this matcher was compiled from.
+	 * @return the shell expression.
+	 ************************************************************************/
+
+	String getExpression() {
+		return this.expression;
+	}
+
+	/*************************************************************************
+	 * Tests if the given string matches this expression.
+	 * @param str the string to test.
+	 * @return true if the whole string matches the expression.
+	 ************************************************************************/
+
+	boolean matches(String str) {
+		int length = str.length();
+		if (length < this.minLength) {
+			return false;
+		}
+		int count = this.segments.length;
+		if (count == 0) {
+			// Empty expression or only wildcards
+			return !this.anchoredStart || length == 0;
+		}
+		if (count == 1 && this.anchoredStart && this.anchoredEnd) {
+			return length == this.segments[0].length() && regionMatches(str, 0, this.segments[0]);
+		}
+
+		int pos = 0;
+		int first = 0;
+		int last = count;
+		if (this.anchoredStart) {
+			if (!regionMatches(str, 0, this.segments[0])) {
+				return false;
+			}
+			pos = this.segments[0].length();
+			first = 1;
+		}
+		int end = length;
+		if (this.anchoredEnd) {
+			String segment = this.segments[count - 1];
+			end = length - segment.length();
+			if (end < pos || !regionMatches(str, end, segment)) {
+				return false;
+			}
+			last = count - 1;
+		}
+
+		// The segments in between are matched at their leftmost position.
+		for (int i = first; i < last; i++) {
+			pos = indexOf(str, this.segments[i], pos, end);
+			if (pos < 0) {
+				return false;
+			}
+			pos += this.segments[i].length();
+		}
+		return true;
+	}
+
+	/*************************************************************************
+	 * Finds the first position of the segment in the given range of str.
+	 * @param str the string to search in.
+	 * @param segment the segment that may contain <code>?</code> wildcards.
+	 * @param from the first position to test.
+	 * @param to the end of the range the segment must fit into.
+	 * @return the found position or -1.
+	 ************************************************************************/
+
+	private static int indexOf(String str, String segment, int from, int to) {
+		int lastStart = to - segment.length();
+		for (int i = from; i <= lastStart; i++) {
+			if (regionMatches(str, i, segment)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/*************************************************************************
+	 * Tests if the segment matches str at the given offset.
+	 * @param str the string to test.
+	 * @param offset the position in str.
+	 * @param segment the segment that may contain <code>?</code> wildcards.
+	 * @return true if it matches.
+	 ************************************************************************/
+
+	private static boolean regionMatches(String str, int offset, String segment) {
+		int length = segment.length();
+		if (offset + length > str.length()) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			char c = segment.charAt(i);
+			if (c != '?' && c != str.charAt(offset + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*************************************************************************
+	 * toString
+	 * @see java.lang.Object#toString()
+	 ************************************************************************/
+	@Override
+	public String toString() {
+		return this.expression;
+	}
+
+}
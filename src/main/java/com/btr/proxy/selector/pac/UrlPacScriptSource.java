@@ -1,23 +1,90 @@
 package com.btr.proxy.selector.pac;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.Proxy;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
-import com.btr.proxy.util.FileUtils;
 import com.btr.proxy.util.Logger;
 import com.btr.proxy.util.Logger.LogLevel;
+import com.btr.proxy.util.ProxyUtil;
 
 /*****************************************************************************
  * Script source that will load the content of a PAC file from an webserver.
  * The script content is cached once it was downloaded.
+ * <p>
+ * Only the first call of getScriptContent waits for the download. Later the
+ * cached script is returned at once. When it is due for a refresh, a single
+ * background task downloads it again. The script is due when the time given
+ * by the server via Expires or Cache-Control max-age has passed, or else
+ * after the refresh interval. A random jitter is added, so many clients do
+ * not refresh at the same moment.
+ * </p>
+ * <p>
+ * The refresh is a conditional GET with the ETag and Last-Modified of the
+ * cached script, so an unchanged script only costs a 304 response. The body
+ * may be compressed with gzip or deflate and is limited in size. The same
+ * content is returned as the same string instance, so the parser does not
+ * compile it again. A failed refresh is retried with an increasing delay.
+ * If a max staleness is set, the cached script is no longer used once it
+ * could not be validated for that long.
+ * </p>
+ * <p>
+ * If a cache directory is set, the last good script and its validators are
+ * also stored on disk. A new source then starts with the stored script at
+ * once and revalidates it in the background, so startup does not wait for a
+ * slow or unreachable server. A stored script is only used until the cache
+ * max age has passed since it was last validated. The script is run like a 
+ * downloaded one, so the directory and the files are created accessible by
+ * the current user only. On file systems with POSIX permissions a stored 
+ * script is ignored unless both are owned by the current user and are not 
+ * writable by group or others.
+ * </p>
+ * <p>
+ * Local files are read with NIO. They are
+ * watched for changes and reloaded after a short quiet delay. The new
+ * script is only used if its content hash has changed.
+ * </p>
  *
  * @author Bernd Rosstauscher (proxyvole@rosstauscher.de) Copyright 2009
  ****************************************************************************/
@@ -29,69 +96,382 @@ public class UrlPacScriptSource implements PacScriptSource {
 	public static final String OVERRIDE_CONNECT_TIMEOUT = "com.btr.proxy.url.connectTimeout";
 	public static final String OVERRIDE_READ_TIMEOUT = "com.btr.proxy.url.readTimeout";
 	
+	/** System property to set the time in milliseconds after which a script without expiry info is refreshed, 0 to never refresh it. */
+	public static final String OVERRIDE_REFRESH_INTERVAL = "com.btr.proxy.url.refreshInterval";
+	/** System property to set the max random delay in milliseconds added to each refresh time. */
+	public static final String OVERRIDE_REFRESH_JITTER = "com.btr.proxy.url.refreshJitter";
+	/** System property to set the time in milliseconds after which a script that could not be refreshed is no longer used, 0 for no limit. */
+	public static final String OVERRIDE_MAX_STALENESS = "com.btr.proxy.url.maxStaleness";
+	/** System property to set the delay in milliseconds before the first retry of a failed refresh. */
+	public static final String OVERRIDE_RETRY_DELAY = "com.btr.proxy.url.retryDelay";
+	/** System property to set the max size in bytes of a downloaded script. */
+	public static final String OVERRIDE_MAX_SIZE = "com.btr.proxy.url.maxSize";
+	/** System property to set the directory where the last good scripts are stored, not set to disable the disk cache. */
+	public static final String OVERRIDE_CACHE_DIR = "com.btr.proxy.url.cacheDir";
+	/** System property to set the time in milliseconds a stored script is used after it was last validated, 0 for no limit. */
+	public static final String OVERRIDE_CACHE_MAX_AGE = "com.btr.proxy.url.cacheMaxAge";
+	/** System property to enable/disable the watching of local PAC files for changes. */
+	public static final String OVERRIDE_WATCH_FILES = "com.btr.proxy.url.watchFiles";
+	/** System property to set the quiet delay in milliseconds before a changed local PAC file is reloaded. */
+	public static final String OVERRIDE_WATCH_DELAY = "com.btr.proxy.url.watchDelay";
+	
+	static final long DEFAULT_REFRESH_INTERVAL = 60 * 60 * 1000; // milliseconds
+	static final long DEFAULT_REFRESH_JITTER = 60 * 1000; // milliseconds
+	static final long DEFAULT_MAX_STALENESS = 0; // no limit
+	static final long DEFAULT_RETRY_DELAY = 10 * 1000; // milliseconds
+	static final long DEFAULT_MAX_SIZE = 10 * 1024 * 1024; // bytes
+	static final long DEFAULT_CACHE_MAX_AGE = 7L * 24 * 60 * 60 * 1000; // milliseconds
+	static final long DEFAULT_WATCH_DELAY = 500; // milliseconds
+	
+	private static final String DEFAULT_CHARSET = "ISO-8859-1";
+	
+	private static volatile HttpClient httpClient;
+	private static volatile ExecutorService refreshExecutor;
+	
 	private final String scriptUrl;
-	private String scriptContent;
-	private long expireAtMillis;
+	private final AtomicBoolean refreshing;
+	private volatile Snapshot snapshot;
+	private volatile Future<?> refreshTask;
+	private volatile long refreshInterval;
+	private volatile long refreshJitter;
+	private volatile long maxStaleness;
+	private volatile long retryDelay;
+	private volatile long maxSize;
+	private static final Set<PosixFilePermission> PRIVATE_DIRECTORY = PosixFilePermissions.fromString("rwx------");
+	private static final Set<PosixFilePermission> PRIVATE_FILE = PosixFilePermissions.fromString("rw-------");
+	
+	private volatile File cacheDir;
+	private volatile long cacheMaxAge;
+	private volatile String fileHash;
+	
+	/*****************************************************************************
+	 * One loaded version of the script together with its validators and the
+	 * time of the next refresh.
+	 ****************************************************************************/
+	
+	private static final class Snapshot {
+		final String content;
+		final String etag;
+		final String lastModified;
+		final long validatedAt;
+		final long refreshAt;
+		final int failures;
+		final long expires;
+		final boolean stored;
+		
+		Snapshot(String content, String etag, String lastModified, long validatedAt, long refreshAt, int failures) {
+			this(content, etag, lastModified, validatedAt, refreshAt, failures, 0, false);
+		}
+		
+		Snapshot(String content, String etag, String lastModified, long validatedAt, long refreshAt, int failures,
+				long expires, boolean stored) {
+			this.content = content;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.validatedAt = validatedAt;
+			this.refreshAt = refreshAt;
+			this.failures = failures;
+			this.expires = expires;
+			this.stored = stored;
+		}
+	}
 	
 	/*************************************************************************
 	 * Constructor
-	 * 
+	 *
 	 * @param url the URL to download the script from.
 	 ************************************************************************/
 	public UrlPacScriptSource(String url) {
 		super();
-		this.expireAtMillis = 0;
 		this.scriptUrl = url;
+		this.refreshing = new AtomicBoolean();
+		this.refreshInterval = ProxyUtil.getLongProperty(OVERRIDE_REFRESH_INTERVAL, DEFAULT_REFRESH_INTERVAL);
+		this.refreshJitter = ProxyUtil.getLongProperty(OVERRIDE_REFRESH_JITTER, DEFAULT_REFRESH_JITTER);
+		this.maxStaleness = ProxyUtil.getLongProperty(OVERRIDE_MAX_STALENESS, DEFAULT_MAX_STALENESS);
+		this.retryDelay = ProxyUtil.getLongProperty(OVERRIDE_RETRY_DELAY, DEFAULT_RETRY_DELAY);
+		this.maxSize = ProxyUtil.getLongProperty(OVERRIDE_MAX_SIZE, DEFAULT_MAX_SIZE);
+		String dir = System.getProperty(OVERRIDE_CACHE_DIR);
+		this.cacheDir = dir == null || dir.trim().length() == 0 ? null : new File(dir.trim());
+		this.cacheMaxAge = ProxyUtil.getLongProperty(OVERRIDE_CACHE_MAX_AGE, DEFAULT_CACHE_MAX_AGE);
 		Logger.log(getClass(), LogLevel.TRACE, "UrlPacScriptSource()");
 	}
 	
+	/*************************************************************************
+	 * Sets when a downloaded script is refreshed.
+	 * Default values can be set via the system properties
+	 * <code>OVERRIDE_REFRESH_INTERVAL</code>, <code>OVERRIDE_REFRESH_JITTER</code>,
+	 * <code>OVERRIDE_MAX_STALENESS</code> and <code>OVERRIDE_RETRY_DELAY</code>.
+	 * @param refreshInterval the time in milliseconds after which a script
+	 *          without expiry info from the server is refreshed, 0 to never
+	 *          refresh it.
+	 * @param refreshJitter the max random delay in milliseconds added to
+	 *          each refresh time.
+	 * @param maxStaleness the time in milliseconds after which a script that
+	 *          could not be refreshed is no longer used, 0 for no limit.
+	 * @param retryDelay the delay in milliseconds before the first retry of a
+	 *          failed refresh. It is doubled with each failure up to the
+	 *          refresh interval.
+	 ************************************************************************/
+	
+	public void setRefreshSettings(long refreshInterval, long refreshJitter, long maxStaleness, long retryDelay) {
+		this.refreshInterval = refreshInterval;
+		this.refreshJitter = refreshJitter;
+		this.maxStaleness = maxStaleness;
+		this.retryDelay = retryDelay;
+	}
+	
+	/*************************************************************************
+	 * Sets the max size of a downloaded script. Larger scripts are rejected.
+	 * The default value can be set via the system property
+	 * <code>OVERRIDE_MAX_SIZE</code>.
+	 * @param maxSize the max size in bytes after decompression.
+	 ************************************************************************/
+	
+	public void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+	}
+	
+	/*************************************************************************
+	 * Sets where the last good script is stored on disk. It must be called
+	 * before the script is loaded the first time.
+	 * The default values can be set via the system properties
+	 * <code>OVERRIDE_CACHE_DIR</code> and <code>OVERRIDE_CACHE_MAX_AGE</code>.
+	 * @param cacheDir the directory for the stored scripts, null to disable
+	 *          the disk cache. It is created if needed.
+	 * @param cacheMaxAge the time in milliseconds a stored script is used
+	 *          after it was last validated, 0 for no limit.
+	 ************************************************************************/
+	
+	public void setCache(File cacheDir, long cacheMaxAge) {
+		this.cacheDir = cacheDir;
+		this.cacheMaxAge = cacheMaxAge;
+	}
+	
 	/*************************************************************************
 	 * getScriptContent
-	 * 
+	 *
 	 * @see com.btr.proxy.selector.pac.PacScriptSource#getScriptContent()
 	 ************************************************************************/
-	public synchronized String getScriptContent() throws IOException {
-		if(this.scriptContent == null || (this.expireAtMillis > 0 && this.expireAtMillis < System.currentTimeMillis())) {
-			try {
-				/*
-				 * Reset it again with next download we should get a new expire
-				 * info
-				 */
-				this.expireAtMillis = 0;
-				if(this.scriptUrl.startsWith("file:/") || this.scriptUrl.indexOf(":/") == -1) {
-					this.scriptContent = readPacFileContent(this.scriptUrl);
-				} else {
-					this.scriptContent = downloadPacContent(this.scriptUrl);
+	public String getScriptContent() throws IOException {
+		Snapshot current = this.snapshot;
+		if(current == null) {
+			return loadFirst();
+		}
+		long now = System.currentTimeMillis();
+		if(now >= current.refreshAt) {
+			startRefresh();
+		}
+		long staleness = this.maxStaleness;
+		if(current.stored && this.cacheMaxAge > 0 && (staleness <= 0 || this.cacheMaxAge < staleness)) {
+			staleness = this.cacheMaxAge;
+		}
+		if(staleness > 0 && current.validatedAt > 0 && now - current.validatedAt > staleness) {
+			throw new IOException("PAC script from " + this.scriptUrl + " could not be refreshed for "
+					+ (now - current.validatedAt) + " ms.");
+		}
+		return current.content;
+	}
+	
+	/*************************************************************************
+	 * Loads the script for the first time. A script stored on disk is used
+	 * at once and revalidated in the background. Else concurrent callers
+	 * wait for the same download. If it fails an empty script is returned
+	 * until a background retry succeeds.
+	 * @return the script content.
+	 * @throws IOException on the error of the first download.
+	 ************************************************************************/
+	
+	private synchronized String loadFirst() throws IOException {
+		if(this.snapshot != null) {
+			return getScriptContent();
+		}
+		Snapshot stored = readCache();
+		if(stored != null) {
+			this.snapshot = stored;
+			return getScriptContent();
+		}
+		try {
+			this.snapshot = load(null);
+		} catch(IOException e) {
+			Logger.log(getClass(), LogLevel.ERROR, "Loading script failed from: {0} with error {1}", this.scriptUrl, e);
+			this.snapshot = failed(new Snapshot("", null, null, 0, 0, 0));
+			throw e;
+		}
+		return this.snapshot.content;
+	}
+	
+	/*************************************************************************
+	 * Starts the background refresh unless one is already running.
+	 ************************************************************************/
+	
+	private void startRefresh() {
+		if(!this.refreshing.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			this.refreshTask = getRefreshExecutor().submit(new Runnable() {
+				public void run() {
+					try {
+						refresh();
+					} finally {
+						UrlPacScriptSource.this.refreshing.set(false);
+					}
 				}
-			} catch(IOException e) {
-				Logger.log(getClass(), LogLevel.ERROR, "Loading script failed from: {0} with error {1}", this.scriptUrl, e);
-				this.scriptContent = "";
-				throw e;
+			});
+		} catch(RuntimeException e) {
+			this.refreshing.set(false);
+			throw e;
+		}
+	}
+	
+	private void refresh() {
+		Snapshot current = this.snapshot;
+		try {
+			this.snapshot = load(current);
+		} catch(IOException e) {
+			Logger.log(getClass(), LogLevel.WARNING, "Refreshing script failed from: {0} with error {1}", this.scriptUrl, e);
+			this.snapshot = failed(current);
+		} catch(RuntimeException e) {
+			Logger.log(getClass(), LogLevel.ERROR, "Refreshing script failed from: {0} with error {1}", this.scriptUrl, e);
+			this.snapshot = failed(current);
+		}
+	}
+	
+	/*************************************************************************
+	 * Waits until a running background refresh has finished.
+	 * @throws Exception on error.
+	 ************************************************************************/
+	
+	void awaitRefresh() throws Exception {
+		Future<?> task = this.refreshTask;
+		if(task != null) {
+			task.get(1, TimeUnit.MINUTES);
+		}
+	}
+	
+	/*************************************************************************
+	 * Loads the script from a file or a webserver.
+	 * @param current the cached version, null on the first load.
+	 * @return the new version.
+	 * @throws IOException on error.
+	 ************************************************************************/
+	
+	private Snapshot load(Snapshot current) throws IOException {
+		if(isLocalFile()) {
+			String content = readPacFileContent(this.scriptUrl);
+			this.fileHash = PacScriptRegistry.hash(content);
+			if(current == null) {
+				watchFile();
 			}
+			return new Snapshot(content, null, null, System.currentTimeMillis(), Long.MAX_VALUE, 0);
+		}
+		Snapshot result = downloadPacContent(this.scriptUrl, current);
+		writeCache(result);
+		return result;
+	}
+	
+	/*************************************************************************
+	 * Computes the version after a failed refresh.
+	 * @param current the cached version.
+	 * @return the cached content with the time of the next retry.
+	 ************************************************************************/
+	
+	private Snapshot failed(Snapshot current) {
+		int failures = current.failures + 1;
+		long maxDelay = Math.max(this.retryDelay, this.refreshInterval > 0 ? this.refreshInterval : DEFAULT_REFRESH_INTERVAL);
+		long delay = this.retryDelay << Math.min(failures - 1, 30);
+		if(delay <= 0 || delay > maxDelay) {
+			delay = maxDelay;
+		}
+		return new Snapshot(current.content, current.etag, current.lastModified, current.validatedAt,
+				System.currentTimeMillis() + delay + jitter(), failures, current.expires, current.stored);
+	}
+	
+	/*************************************************************************
+	 * Computes the time of the next refresh after a successful download.
+	 * @param now the current time.
+	 * @param expiration the expiry time sent by the server, 0 if none.
+	 * @return the time of the next refresh.
+	 ************************************************************************/
+	
+	private long nextRefresh(long now, long expiration) {
+		if(expiration > 0) {
+			return Math.max(expiration, now + this.retryDelay) + jitter();
+		}
+		if(this.refreshInterval <= 0) {
+			return Long.MAX_VALUE;
+		}
+		return now + this.refreshInterval + jitter();
+	}
+	
+	private long jitter() {
+		long max = this.refreshJitter;
+		return max > 0 ? ThreadLocalRandom.current().nextLong(max) : 0;
+	}
+	
+	private boolean isLocalFile() {
+		return this.scriptUrl.startsWith("file:/") || this.scriptUrl.indexOf(":/") == -1;
+	}
+	
+	/*************************************************************************
+	 * Starts to watch the local PAC file for changes, unless disabled via
+	 * the system property <code>OVERRIDE_WATCH_FILES</code>.
+	 ************************************************************************/
+	
+	private void watchFile() {
+		String watch = System.getProperty(OVERRIDE_WATCH_FILES);
+		if(watch != null && !Boolean.parseBoolean(watch.trim())) {
+			return;
+		}
+		try {
+			PacFileWatcher.getInstance().watch(getFile(this.scriptUrl).toPath(), this);
+		} catch(Exception e) {
+			Logger.log(getClass(), LogLevel.WARNING, "Can not watch PAC file {0} for changes: {1}", this.scriptUrl, e);
 		}
-		
-		return this.scriptContent;
+	}
+	
+	/*************************************************************************
+	 * Reloads the local PAC file after it has changed. The new script is
+	 * only used if its content hash differs from the current one. If the
+	 * file can not be read the current script is kept.
+	 * @return true if the script has changed.
+	 ************************************************************************/
+	
+	synchronized boolean fileChanged() {
+		try {
+			String content = readPacFileContent(this.scriptUrl);
+			String hash = PacScriptRegistry.hash(content);
+			if(hash.equals(this.fileHash)) {
+				Logger.log(getClass(), LogLevel.TRACE, "PAC file touched but not changed: {0}", this.scriptUrl);
+				return false;
+			}
+			this.snapshot = new Snapshot(content, null, null, System.currentTimeMillis(), Long.MAX_VALUE, 0);
+			this.fileHash = hash;
+			Logger.log(getClass(), LogLevel.INFO, "PAC file changed, reloaded: {0}", this.scriptUrl);
+			return true;
+		} catch(IOException e) {
+			Logger.log(getClass(), LogLevel.WARNING, "Reloading PAC file failed: {0} with error {1}", this.scriptUrl, e);
+			return false;
+		}
+	}
+	
+	private File getFile(String scriptUrl) throws IOException, URISyntaxException {
+		if(scriptUrl.indexOf(":/") == -1) {
+			return new File(scriptUrl);
+		}
+		return new File(new URL(scriptUrl).toURI());
 	}
 	
 	/*************************************************************************
 	 * Reads a PAC script from a local file.
-	 * 
+	 *
 	 * @param scriptUrl
 	 * @return the content of the script file.
 	 * @throws IOException
-	 * @throws URISyntaxException
 	 ************************************************************************/
 	private String readPacFileContent(String scriptUrl) throws IOException {
 		try {
-			File file = null;
-			if(scriptUrl.indexOf(":/") == -1) {
-				file = new File(scriptUrl);
-			} else {
-				file = new File(new URL(scriptUrl).toURI());
-			}
-			
-			String pacFileContents = FileUtils.readAllContent(file);
-			return pacFileContents;
+			return readFile(getFile(scriptUrl));
 		} catch(Exception e) {
 			String userDir = System.getProperty("user.dir");
 			Logger.log(getClass(), LogLevel.ERROR, "File reading error. userDir:{0}, error:{1}", userDir, e);
@@ -99,85 +479,447 @@ public class UrlPacScriptSource implements PacScriptSource {
 		}
 	}
 	
+	/*************************************************************************
+	 * Reads a file through a channel. The file is not memory mapped: it may
+	 * be rewritten while the watcher reloads it, and a PAC file is too small
+	 * for mapping to help. A UTF-8 byte order mark is skipped.
+	 *
+	 * @param file the file to read.
+	 * @return the decoded content.
+	 * @throws IOException on read error or if the file is too large.
+	 ************************************************************************/
+	
+	private String readFile(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if(size > this.maxSize) {
+				throw new IOException("PAC script is larger than " + this.maxSize + " bytes.");
+			}
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			while(buffer.hasRemaining() && channel.read(buffer) != -1) {
+				// Read until full or until the end of a file that got shorter
+			}
+			buffer.flip();
+			if(buffer.remaining() >= 3 && (buffer.get(0) & 0xFF) == 0xEF
+					&& (buffer.get(1) & 0xFF) == 0xBB && (buffer.get(2) & 0xFF) == 0xBF) {
+				buffer.position(3);
+			}
+			return decode(buffer, null);
+		} finally {
+			channel.close();
+		}
+	}
+	
 	/*************************************************************************
 	 * Downloads the script from a webserver.
-	 * 
+	 *
 	 * @param url the URL to the script file.
-	 * @return the script content.
+	 * @param current the cached version, null on the first download.
+	 * @return the new version, with the cached content if the server
+	 *          reports that it was not modified.
 	 * @throws IOException on read error.
 	 ************************************************************************/
-	private String downloadPacContent(String url) throws IOException {
+	private Snapshot downloadPacContent(final String url, final Snapshot current) throws IOException {
 		if(url == null) {
 			throw new IOException("Invalid PAC script URL: null");
 		}
 		
-		setPacProxySelectorEnabled(false);
-		
-		HttpURLConnection urlConnection = null;
+		// Only selections on this thread return DIRECT to prevent recursion.
+		// See issue: 26 in the change tracker.
+		return PacProxySelector.runWithoutPac(() -> fetchPacContent(url, current));
+	}
+	
+	/*************************************************************************
+	 * Sends the download request and reads the response.
+	 *
+	 * @param url the URL to the script file.
+	 * @param current the cached version, null on the first download.
+	 * @return the new version.
+	 * @throws IOException on read error.
+	 ************************************************************************/
+	
+	private Snapshot fetchPacContent(String url, Snapshot current) throws IOException {
 		try {
-			urlConnection = setupHTTPConnection(url);
-			if(urlConnection.getResponseCode() != 200) {
-				throw new IOException("Server returned: " + urlConnection.getResponseCode() + " " + urlConnection.getResponseMessage());
+			HttpResponse<InputStream> response = getHttpClient().send(buildRequest(url, current),
+					HttpResponse.BodyHandlers.ofInputStream());
+			long now = System.currentTimeMillis();
+			HttpHeaders headers = response.headers();
+			long expiration = getExpiration(headers, now);
+			if(response.statusCode() == 304 && current != null && current.validatedAt > 0) {
+				response.body().close();
+				Logger.log(getClass(), LogLevel.TRACE, "PAC script not modified: {0}", url);
+				return new Snapshot(current.content, headers.firstValue("ETag").orElse(current.etag),
+						headers.firstValue("Last-Modified").orElse(current.lastModified), now, nextRefresh(now, expiration), 0,
+						expiration, false);
+			}
+			if(response.statusCode() != 200) {
+				response.body().close();
+				throw new IOException("Server returned: " + response.statusCode());
 			}
 			
-			// Read expire date.
-			this.expireAtMillis = urlConnection.getExpiration();
-			BufferedReader bufferedReader = getReader(urlConnection);
-			String result = FileUtils.readAllContent(bufferedReader, true); 
-			return result;
-		} finally {
-			setPacProxySelectorEnabled(true);
-			if(urlConnection != null) {
-				urlConnection.disconnect();
+			byte[] body = readBody(response.body(), headers.firstValue("Content-Encoding").orElse(null));
+			String content = decode(body, headers.firstValue("Content-Type").orElse(null));
+			if(current != null && content.equals(current.content)) {
+				// Same instance, so the parser does not compile it again.
+				content = current.content;
 			}
+			return new Snapshot(content, headers.firstValue("ETag").orElse(null),
+					headers.firstValue("Last-Modified").orElse(null), now, nextRefresh(now, expiration), 0,
+					expiration, false);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Download of PAC script interrupted.", e);
+		} catch(IllegalArgumentException e) {
+			throw new IOException("Download of PAC script failed: " + e.getMessage(), e);
 		}
 	}
 	
 	/*************************************************************************
-	 * Enables/disables the PAC proxy selector while we download to prevent
-	 * recursion.
-	 * See issue: 26 in the change tracker.
+	 * Gets the file where the script is stored on disk.
+	 * @return the file, null if the disk cache is disabled.
 	 ************************************************************************/
 	
-	private void setPacProxySelectorEnabled(boolean enable) {
-		PacProxySelector.setEnabled(enable);
+	private File getCacheFile() {
+		File dir = this.cacheDir;
+		if(dir == null) {
+			return null;
+		}
+		return new File(dir, PacScriptRegistry.hash(this.scriptUrl) + ".pac");
 	}
 	
 	/*************************************************************************
-	 * Build a BufferedReader around the open HTTP connection.
-	 * 
-	 * @param con to read from
-	 * @return the BufferedReader.
-	 * @throws UnsupportedEncodingException
-	 * @throws IOException
+	 * Reads the last good script from disk. Stored scripts that are older
+	 * than the cache max age, belong to another URL or do not match their
+	 * hash are ignored.
+	 * @return the stored version, due for a refresh unless the server sent
+	 *          a later expiry time. Null if none is usable.
 	 ************************************************************************/
-	private BufferedReader getReader(HttpURLConnection urlConnection) throws UnsupportedEncodingException, IOException {
-		String charsetName = parseCharsetFromHeader(urlConnection.getContentType());
-		return new BufferedReader(new InputStreamReader(urlConnection.getInputStream(), charsetName));
+	
+	private Snapshot readCache() {
+		File file = getCacheFile();
+		if(file == null || !file.isFile()) {
+			return null;
+		}
+		try {
+			if(!isPrivate(file.getParentFile().toPath()) || !isPrivate(file.toPath())) {
+				Logger.log(getClass(), LogLevel.WARNING, "Ignoring PAC cache file that others can modify: {0}", file);
+				return null;
+			}
+			Properties stored = new Properties();
+			Reader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+			try {
+				stored.load(in);
+			} finally {
+				in.close();
+			}
+			String content = stored.getProperty("content");
+			if(!this.scriptUrl.equals(stored.getProperty("url")) || content == null
+					|| !PacScriptRegistry.hash(content).equals(stored.getProperty("sha256"))) {
+				Logger.log(getClass(), LogLevel.WARNING, "Ignoring invalid PAC cache file: {0}", file);
+				return null;
+			}
+			long now = System.currentTimeMillis();
+			long validatedAt = Long.parseLong(stored.getProperty("validatedAt"));
+			long maxAge = this.cacheMaxAge;
+			if(validatedAt <= 0 || maxAge > 0 && now - validatedAt > maxAge) {
+				Logger.log(getClass(), LogLevel.TRACE, "PAC cache file is too old: {0}", file);
+				return null;
+			}
+			long expires = Long.parseLong(stored.getProperty("expires", "0"));
+			Logger.log(getClass(), LogLevel.TRACE, "Using PAC script from cache file: {0}", file);
+			return new Snapshot(content, stored.getProperty("etag"), stored.getProperty("lastModified"), validatedAt,
+					expires > now ? expires + jitter() : now, 0, expires, true);
+		} catch(IOException e) {
+			Logger.log(getClass(), LogLevel.WARNING, "Reading PAC cache file failed: {0} with error {1}", file, e);
+		} catch(RuntimeException e) {
+			Logger.log(getClass(), LogLevel.WARNING, "Reading PAC cache file failed: {0} with error {1}", file, e);
+		}
+		return null;
 	}
 	
 	/*************************************************************************
-	 * Configure the connection to download from.
-	 * 
-	 * @param url to get the pac file content from
-	 * @return a HTTPUrlConnecion to this url.
-	 * @throws IOException
-	 * @throws MalformedURLException
+	 * Stores a downloaded script and its validators on disk. The file is
+	 * replaced atomically, so a reader never sees a partial file.
+	 * @param version the downloaded version.
+	 ************************************************************************/
+	
+	private void writeCache(Snapshot version) {
+		File file = getCacheFile();
+		if(file == null) {
+			return;
+		}
+		Properties stored = new Properties();
+		stored.setProperty("url", this.scriptUrl);
+		stored.setProperty("content", version.content);
+		stored.setProperty("sha256", PacScriptRegistry.hash(version.content));
+		stored.setProperty("validatedAt", Long.toString(version.validatedAt));
+		stored.setProperty("expires", Long.toString(version.expires));
+		if(version.etag != null) {
+			stored.setProperty("etag", version.etag);
+		}
+		if(version.lastModified != null) {
+			stored.setProperty("lastModified", version.lastModified);
+		}
+		Path temp = null;
+		try {
+			Path dir = file.getParentFile().toPath();
+			if(!Files.isDirectory(dir)) {
+				Files.createDirectories(dir, privateAttributes(dir, PRIVATE_DIRECTORY));
+			}
+			if(!isPrivate(dir)) {
+				Logger.log(getClass(), LogLevel.WARNING, "Not storing PAC script in a directory that others can modify: {0}", dir);
+				return;
+			}
+			temp = Files.createTempFile(dir, "pac", ".tmp", privateAttributes(dir, PRIVATE_FILE));
+			Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8);
+			try {
+				stored.store(out, "PAC script cache");
+			} finally {
+				out.close();
+			}
+			Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException e) {
+			Logger.log(getClass(), LogLevel.WARNING, "Writing PAC cache file failed: {0} with error {1}", file, e);
+			if(temp != null) {
+				temp.toFile().delete();
+			}
+		}
+	}
+	
+	/*************************************************************************
+	 * Gets the attributes to create a file or directory that only the 
+	 * current user can access.
+	 * @param dir the directory where it is created.
+	 * @param permissions the POSIX permissions.
+	 * @return the attributes, empty if the file system has no POSIX 
+	 *          permissions.
+	 ************************************************************************/
+	
+	private static FileAttribute<?>[] privateAttributes(Path dir, Set<PosixFilePermission> permissions) {
+		if(!dir.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			return new FileAttribute<?>[0];
+		}
+		return new FileAttribute<?>[] {PosixFilePermissions.asFileAttribute(permissions)};
+	}
+	
+	/*************************************************************************
+	 * Checks that only the current user can modify a cache file or 
+	 * directory: it must be owned by the user and not be writable by group
+	 * or others. File systems without POSIX permissions are not checked.
+	 * @param path the file or directory.
+	 * @return true if no other user can modify it.
+	 * @throws IOException on error reading the attributes.
+	 ************************************************************************/
+	
+	private static boolean isPrivate(Path path) throws IOException {
+		PosixFileAttributeView view = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+		if(view == null) {
+			return true;
+		}
+		PosixFileAttributes attributes = view.readAttributes();
+		Set<PosixFilePermission> permissions = attributes.permissions();
+		return attributes.owner().getName().equals(System.getProperty("user.name"))
+				&& !permissions.contains(PosixFilePermission.GROUP_WRITE)
+				&& !permissions.contains(PosixFilePermission.OTHERS_WRITE);
+	}
+	
+	/*************************************************************************
+	 * Builds the request to download the script. If a version is cached
+	 * its validators are sent, so the server can answer with 304.
+	 *
+	 * @param url to get the pac file content from.
+	 * @param current the cached version, null if none.
+	 * @return the request.
+	 * @throws IOException on an invalid URL.
 	 ************************************************************************/
 	
-	private HttpURLConnection setupHTTPConnection(String url) throws IOException, MalformedURLException {
-		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection(Proxy.NO_PROXY);
-		con.setConnectTimeout(getTimeOut(OVERRIDE_CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT));
-		con.setReadTimeout(getTimeOut(OVERRIDE_READ_TIMEOUT, DEFAULT_READ_TIMEOUT));
-		con.setInstanceFollowRedirects(true);
-		con.setRequestProperty("accept", "application/x-ns-proxy-autoconfig, */*;q=0.8");
-		return con;
+	private HttpRequest buildRequest(String url, Snapshot current) throws IOException {
+		HttpRequest.Builder request;
+		try {
+			request = HttpRequest.newBuilder(new URI(url));
+		} catch(URISyntaxException e) {
+			throw new IOException("Invalid PAC script URL: " + url, e);
+		} catch(IllegalArgumentException e) {
+			throw new IOException("Invalid PAC script URL: " + url, e);
+		}
+		// As with URLConnection a timeout of 0 or less means no timeout.
+		int readTimeout = getTimeOut(OVERRIDE_READ_TIMEOUT, DEFAULT_READ_TIMEOUT);
+		if(readTimeout > 0) {
+			request.timeout(Duration.ofMillis(readTimeout));
+		}
+		request.header("Accept", "application/x-ns-proxy-autoconfig, */*;q=0.8")
+				.header("Accept-Encoding", "gzip, deflate");
+		if(current != null && current.validatedAt > 0) {
+			if(current.etag != null) {
+				request.header("If-None-Match", current.etag);
+			}
+			if(current.lastModified != null) {
+				request.header("If-Modified-Since", current.lastModified);
+			}
+		}
+		return request.GET().build();
+	}
+	
+	/*************************************************************************
+	 * Gets the HTTP client shared by all script sources. It keeps the
+	 * connections open between refreshes and uses HTTP/2 if the server
+	 * supports it. It never uses a proxy.
+	 * @return the client.
+	 ************************************************************************/
+	
+	private HttpClient getHttpClient() {
+		HttpClient result = httpClient;
+		if(result == null) {
+			synchronized (UrlPacScriptSource.class) {
+				result = httpClient;
+				if(result == null) {
+					HttpClient.Builder builder = HttpClient.newBuilder()
+							.proxy(HttpClient.Builder.NO_PROXY)
+							.followRedirects(HttpClient.Redirect.NORMAL);
+					int connectTimeout = getTimeOut(OVERRIDE_CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT);
+					if(connectTimeout > 0) {
+						builder.connectTimeout(Duration.ofMillis(connectTimeout));
+					}
+					result = builder.build();
+					httpClient = result;
+				}
+			}
+		}
+		return result;
+	}
+	
+	private static ExecutorService getRefreshExecutor() {
+		ExecutorService result = refreshExecutor;
+		if(result == null) {
+			synchronized (UrlPacScriptSource.class) {
+				result = refreshExecutor;
+				if(result == null) {
+					result = Executors.newCachedThreadPool(new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "PAC script refresh");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+					refreshExecutor = result;
+				}
+			}
+		}
+		return result;
+	}
+	
+	/*************************************************************************
+	 * Reads the response body, decompresses it and checks its size.
+	 * @param in the body stream. It is closed.
+	 * @param contentEncoding the Content-Encoding header, may be null.
+	 * @return the body.
+	 * @throws IOException on read error or if the body is too large.
+	 ************************************************************************/
+	
+	private byte[] readBody(InputStream in, String contentEncoding) throws IOException {
+		try {
+			InputStream body = in;
+			if(contentEncoding != null) {
+				String encoding = contentEncoding.trim().toLowerCase();
+				if("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+					body = new GZIPInputStream(in);
+				} else if("deflate".equals(encoding)) {
+					body = new InflaterInputStream(in);
+				} else if(!"identity".equals(encoding)) {
+					throw new IOException("Unsupported content encoding: " + contentEncoding);
+				}
+			}
+			long limit = this.maxSize;
+			ByteArrayOutputStream result = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while((read = body.read(buffer)) != -1) {
+				if(result.size() + read > limit) {
+					throw new IOException("PAC script is larger than " + limit + " bytes.");
+				}
+				result.write(buffer, 0, read);
+			}
+			return result.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+	
+	/*************************************************************************
+	 * Decodes the body with the charset from the Content-Type header.
+	 * Without a charset UTF-8 is used if the body is valid UTF-8 and
+	 * ISO-8859-1 else.
+	 * @param body the body.
+	 * @param contentType the Content-Type header, may be null.
+	 * @return the script content.
+	 ************************************************************************/
+	
+	String decode(byte[] body, String contentType) {
+		return decode(ByteBuffer.wrap(body), contentType);
+	}
+	
+	private String decode(ByteBuffer body, String contentType) {
+		if(contentType != null && contentType.toLowerCase().indexOf("charset") != -1) {
+			try {
+				return Charset.forName(parseCharsetFromHeader(contentType)).decode(body).toString();
+			} catch(IllegalArgumentException e) {
+				Logger.log(getClass(), LogLevel.WARNING, "Unknown charset in: {0}", contentType);
+			}
+		}
+		int start = body.position();
+		try {
+			return StandardCharsets.UTF_8.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPORT)
+					.onUnmappableCharacter(CodingErrorAction.REPORT)
+					.decode(body).toString();
+		} catch(CharacterCodingException e) {
+			body.position(start);
+			return Charset.forName(DEFAULT_CHARSET).decode(body).toString();
+		}
+	}
+	
+	/*************************************************************************
+	 * Gets the expiry time from the Cache-Control max-age or the Expires
+	 * header.
+	 * @param headers the response headers.
+	 * @param now the current time.
+	 * @return the expiry time in milliseconds, 0 if the server sent none.
+	 ************************************************************************/
+	
+	static long getExpiration(HttpHeaders headers, long now) {
+		Optional<String> cacheControl = headers.firstValue("Cache-Control");
+		if(cacheControl.isPresent()) {
+			for(String directive : cacheControl.get().split(",")) {
+				String value = directive.trim().toLowerCase();
+				if("no-cache".equals(value) || "no-store".equals(value)) {
+					return now;
+				}
+				if(value.startsWith("max-age=")) {
+					try {
+						return now + Long.parseLong(value.substring(8).trim()) * 1000;
+					} catch(NumberFormatException e) {
+						// Ignore and try Expires
+					}
+				}
+			}
+		}
+		Optional<String> expires = headers.firstValue("Expires");
+		if(expires.isPresent()) {
+			try {
+				return ZonedDateTime.parse(expires.get().trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+			} catch(DateTimeParseException e) {
+				// Invalid dates mean already expired
+				return now;
+			}
+		}
+		return 0;
 	}
 	
 	/*************************************************************************
 	 * Gets the timeout value from a property or uses the given default value if
 	 * the property cannot be parsed.
-	 * 
+	 *
 	 * @param overrideProperty the property to define the timeout value in
 	 *            milliseconds
 	 * @param defaultValue the default timeout value in milliseconds.
@@ -201,13 +943,13 @@ public class UrlPacScriptSource implements PacScriptSource {
 	/*************************************************************************
 	 * Response Content-Type could be something like this:
 	 * application/x-ns-proxy-autoconfig; charset=UTF-8
-	 * 
+	 *
 	 * @param contentType header field.
 	 * @return the extracted charset if set else a default charset.
 	 ************************************************************************/
 	
 	String parseCharsetFromHeader(String contentType) {
-		String result = "ISO-8859-1";
+		String result = DEFAULT_CHARSET;
 		if(contentType != null) {
 			String[] paramList = contentType.split(";");
 			for(String param : paramList) {
@@ -229,7 +971,7 @@ public class UrlPacScriptSource implements PacScriptSource {
 	
 	/*************************************************************************
 	 * isScriptValid
-	 * 
+	 *
 	 * @see com.btr.proxy.selector.pac.PacScriptSource#isScriptValid()
 	 ************************************************************************/
 	
@@ -77,6 +77,28 @@ public class ProxyUtil {
 		return noProxyList;
 	}
 	
+	/*************************************************************************
+	 * Gets a numeric setting from a system property or uses the given default 
+	 * value if the property is not set or cannot be parsed.
+	 * 
+	 * @param property the name of the system property.
+	 * @param defaultValue the value to use if the property is not usable.
+	 * @return the value to use.
+	 ************************************************************************/
+	
+	public static long getLongProperty(String property, long defaultValue) {
+		String value = System.getProperty(property);
+		if(value != null && value.trim().length() > 0) {
+			try {
+				return Long.parseLong(value.trim());
+			} catch(NumberFormatException e) {
+				Logger.log(ProxyUtil.class, LogLevel.ERROR, "Invalid override property:{0}={1}", property, value);
+				// In this case use the default value.
+			}
+		}
+		return defaultValue;
+	}
+	
 	/*************************************************************************
 	 * Build a PAC proxy selector for the given URL.
 	 * 
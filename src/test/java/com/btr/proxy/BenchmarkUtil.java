@@ -0,0 +1,83 @@
+package com.btr.proxy;
+
+import java.io.File;
+import java.text.MessageFormat;
+
+/*****************************************************************************
+ * Small helper for the benchmark programs in the test folder.
+ * The benchmarks are plain main programs and are not executed by the unit
+ * test run.
+ ****************************************************************************/
+
+public class BenchmarkUtil {
+	
+	/*****************************************************************************
+	 * A piece of code to measure.
+	 ****************************************************************************/
+	
+	public interface Task {
+		
+		/*************************************************************************
+		 * Runs the code to measure once.
+		 * @throws Exception on error.
+		 ************************************************************************/
+		public void run() throws Exception;
+	}
+	
+	/*************************************************************************
+	 * Runs the given task for some warmup rounds and then measures the average
+	 * time of one execution. The result is printed to the console.
+	 * @param label the name printed together with the result.
+	 * @param warmup the number of not measured runs.
+	 * @param iterations the number of measured runs.
+	 * @param task the task to run.
+	 * @return the average time of one run in nanoseconds.
+	 * @throws Exception on error.
+	 ************************************************************************/
+	
+	public static double measure(String label, int warmup, int iterations, Task task) throws Exception {
+		for (int i = 0; i < warmup; i++) {
+			task.run();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			task.run();
+		}
+		double nanosPerOp = (System.nanoTime() - start) / (double) iterations;
+		System.out.println(MessageFormat.format("{0}: {1} ns/op", label, String.format("%,.0f", nanosPerOp)));
+		return nanosPerOp;
+	}
+	
+	/*************************************************************************
+	 * Builds a PAC script in the typical shape of large enterprise scripts:
+	 * a long if/else chain of domain and pattern checks returning constant
+	 * strings.
+	 * @param rules the number of rules to generate.
+	 * @return the script content.
+	 ************************************************************************/
+	
+	public static String buildLargePacScript(int rules) {
+		StringBuilder script = new StringBuilder("function FindProxyForURL(url, host) {\n");
+		script.append("  if (isPlainHostName(host)) return \"DIRECT\";\n");
+		for (int i = 0; i < rules; i++) {
+			if (i % 2 == 0) {
+				script.append("  if (dnsDomainIs(host, \".site").append(i).append(".unit-test.invalid\"))");
+			} else {
+				script.append("  if (shExpMatch(host, \"*.pattern").append(i).append(".unit-test.invalid\"))");
+			}
+			script.append(" return \"PROXY proxy").append(i % 4).append(".unit-test.invalid:8080; DIRECT\";\n");
+		}
+		script.append("  return \"PROXY http_proxy.unit-test.invalid:8090\";\n}\n");
+		return script.toString();
+	}
+	
+	/*************************************************************************
+	 * Gets all PAC files of the test data folder.
+	 * @return the PAC fixture files.
+	 ************************************************************************/
+	
+	public static File[] getPacFixtures() {
+		return new File(TestUtil.TEST_DATA_FOLDER + "pac").listFiles((dir, name) -> name.endsWith(".pac"));
+	}
+	
+}
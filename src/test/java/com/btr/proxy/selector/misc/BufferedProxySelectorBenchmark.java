@@ -0,0 +1,87 @@
+package com.btr.proxy.selector.misc;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.text.MessageFormat;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.btr.proxy.TestUtil;
+
+/*****************************************************************************
+ * Measures the throughput of a full BufferedProxySelector with 1, 8 and 64
+ * selecting threads. Most selections hit a small set of hosts, the rest go
+ * to many other hosts and keep the cache evicting.
+ * Run it as a normal Java program from the project root folder.
+ ****************************************************************************/
+
+public class BufferedProxySelectorBenchmark {
+
+	private static final long RUN_MILLIS = 3000;
+	private static final int[] THREAD_COUNTS = {1, 8, 64};
+	private static final int CACHE_SIZE = 1000;
+	private static final int HOT_HOSTS = 500;
+	private static final int HOSTS = 20000;
+	private static final int HOT_PERCENT = 90;
+
+	/*************************************************************************
+	 * Main entry point for the benchmark.
+	 * @param args not used.
+	 * @throws Exception on error.
+	 ************************************************************************/
+
+	public static void main(String[] args) throws Exception {
+		final URI[] uris = new URI[HOSTS];
+		for (int i = 0; i < uris.length; i++) {
+			uris[i] = new URI("http://host" + i + ".unit-test.invalid/index.html");
+		}
+		final BufferedProxySelector selector = new BufferedProxySelector(CACHE_SIZE, 60 * 60 * 1000, new ProxySelector() {
+			@Override
+			public List<Proxy> select(URI uri) {
+				return Collections.singletonList(TestUtil.HTTP_TEST_PROXY);
+			}
+
+			@Override
+			public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+				// Not used
+			}
+		});
+
+		System.out.println(MessageFormat.format("Available processors: {0}", Runtime.getRuntime().availableProcessors()));
+		run(selector, uris, 1);
+		for (int threads : THREAD_COUNTS) {
+			AtomicLong operations = run(selector, uris, threads);
+			System.out.println(MessageFormat.format("{0} threads: {1} selects/s", threads,
+					String.format("%,d", operations.get() * 1000 / RUN_MILLIS)));
+		}
+	}
+
+	private static AtomicLong run(final BufferedProxySelector selector, final URI[] uris, int threads)
+			throws InterruptedException {
+		final AtomicLong operations = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(threads);
+		final long endAt = System.currentTimeMillis() + RUN_MILLIS;
+		for (int t = 0; t < threads; t++) {
+			new Thread(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				long count = 0;
+				while (System.currentTimeMillis() < endAt) {
+					int index = random.nextInt(100) < HOT_PERCENT ? random.nextInt(HOT_HOSTS) : random.nextInt(HOSTS);
+					selector.select(uris[index]);
+					count++;
+				}
+				operations.addAndGet(count);
+				done.countDown();
+			}).start();
+		}
+		done.await();
+		return operations;
+	}
+
+}
@@ -0,0 +1,263 @@
+package com.btr.proxy.selector.misc;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.btr.proxy.TestUtil;
+
+/*****************************************************************************
+ *  Unit Tests for the BufferedProxySelector
+ ****************************************************************************/
+
+public class BufferedProxySelectorTest {
+
+	private static final long HOUR = 60 * 60 * 1000;
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void resultShouldBeCachedForTheTtl() {
+		CountingSelector delegate = new CountingSelector(Long.MAX_VALUE);
+		BufferedProxySelector selector = new BufferedProxySelector(10, HOUR, delegate);
+		selector.select(TestUtil.HTTP_TEST_URI);
+		selector.select(TestUtil.HTTP_TEST_URI);
+		assertEquals(1, delegate.calls.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * @throws InterruptedException on interrupt.
+	 ************************************************************************/
+	@Test
+	public void expiringResultShouldBeSelectedAgainAfterItsMaxAge() throws InterruptedException {
+		CountingSelector delegate = new CountingSelector(50);
+		BufferedProxySelector selector = new BufferedProxySelector(10, HOUR, delegate);
+		selector.select(TestUtil.HTTP_TEST_URI);
+		selector.select(TestUtil.HTTP_TEST_URI);
+		assertEquals(1, delegate.calls.get());
+
+		Thread.sleep(100);
+		selector.select(TestUtil.HTTP_TEST_URI);
+		assertEquals(2, delegate.calls.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void ttlShouldLimitTheMaxAge() {
+		CountingSelector delegate = new CountingSelector(HOUR);
+		BufferedProxySelector selector = new BufferedProxySelector(10, 0, delegate);
+		selector.select(TestUtil.HTTP_TEST_URI);
+		selector.select(TestUtil.HTTP_TEST_URI);
+		assertEquals(2, delegate.calls.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * @throws URISyntaxException on invalid URI.
+	 ************************************************************************/
+	@Test
+	public void usedResultShouldSurviveEviction() throws URISyntaxException {
+		CountingSelector delegate = new CountingSelector(Long.MAX_VALUE);
+		BufferedProxySelector selector = new BufferedProxySelector(2, HOUR, delegate);
+		URI a = new URI("http://a.unit-test.invalid/");
+		URI b = new URI("http://b.unit-test.invalid/");
+		URI c = new URI("http://c.unit-test.invalid/");
+		selector.select(a);
+		selector.select(b);
+		selector.select(a);
+		selector.select(c);
+		assertEquals(3, delegate.calls.get());
+
+		selector.select(a);
+		selector.select(c);
+		assertEquals(3, delegate.calls.get());
+		selector.select(b);
+		assertEquals(4, delegate.calls.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void cacheSizeShouldBeBounded() {
+		BoundedCache<String> cache = new BoundedCache<String>(100);
+		for (int i = 0; i < 1000; i++) {
+			cache.put("key" + i, "value" + i, System.nanoTime() + HOUR * 1000 * 1000);
+			cache.get("key" + (i / 2), System.nanoTime());
+			assertEquals(Math.min(i + 1, 100), cache.size());
+		}
+		assertEquals("value999", cache.get("key999", System.nanoTime()));
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertNull(cache.get("key999", System.nanoTime()));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * @throws Exception on error.
+	 ************************************************************************/
+	@Test
+	public void concurrentMissesShouldBeCoalesced() throws Exception {
+		final CountingSelector delegate = new CountingSelector(Long.MAX_VALUE);
+		delegate.block = new CountDownLatch(1);
+		final BufferedProxySelector selector = new BufferedProxySelector(10, HOUR, delegate);
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<List<Proxy>>> results = new ArrayList<Future<List<Proxy>>>();
+			for (int i = 0; i < 8; i++) {
+				results.add(pool.submit(new Callable<List<Proxy>>() {
+					public List<Proxy> call() {
+						return selector.select(TestUtil.HTTP_TEST_URI);
+					}
+				}));
+			}
+			assertTrue(delegate.entered.await(10, TimeUnit.SECONDS));
+			Thread.sleep(100);
+			delegate.block.countDown();
+			for (Future<List<Proxy>> result : results) {
+				assertEquals(TestUtil.HTTP_TEST_PROXY, result.get(10, TimeUnit.SECONDS).get(0));
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		assertEquals(1, delegate.calls.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * @throws Exception on error.
+	 ************************************************************************/
+	@Test
+	public void waitingThreadShouldUseExpiredResultAfterMaxWait() throws Exception {
+		final CountingSelector delegate = new CountingSelector(20);
+		final BufferedProxySelector selector = new BufferedProxySelector(10, HOUR, delegate, 50);
+		List<Proxy> first = selector.select(TestUtil.HTTP_TEST_URI);
+		Thread.sleep(40);
+
+		delegate.block = new CountDownLatch(1);
+		Thread leader = new Thread() {
+			@Override
+			public void run() {
+				selector.select(TestUtil.HTTP_TEST_URI);
+			}
+		};
+		leader.start();
+		try {
+			assertTrue(delegate.entered.await(10, TimeUnit.SECONDS));
+			long start = System.nanoTime();
+			assertSame(first, selector.select(TestUtil.HTTP_TEST_URI));
+			assertTrue(System.nanoTime() - start >= 40L * 1000 * 1000);
+			assertEquals(2, delegate.calls.get());
+		} finally {
+			delegate.block.countDown();
+			leader.join(10000);
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * @throws Exception on error.
+	 ************************************************************************/
+	@Test
+	public void waitingThreadShouldNotHangIfSelectionFailsWithError() throws Exception {
+		final CountingSelector delegate = new CountingSelector(Long.MAX_VALUE);
+		delegate.block = new CountDownLatch(1);
+		delegate.failure = new StackOverflowError();
+		final BufferedProxySelector selector = new BufferedProxySelector(10, HOUR, delegate);
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		try {
+			Future<List<Proxy>> leader = pool.submit(new Callable<List<Proxy>>() {
+				public List<Proxy> call() {
+					return selector.select(TestUtil.HTTP_TEST_URI);
+				}
+			});
+			assertTrue(delegate.entered.await(10, TimeUnit.SECONDS));
+			Future<List<Proxy>> waiter = pool.submit(new Callable<List<Proxy>>() {
+				public List<Proxy> call() {
+					return selector.select(TestUtil.HTTP_TEST_URI);
+				}
+			});
+			Thread.sleep(100);
+			delegate.block.countDown();
+			assertEquals(TestUtil.HTTP_TEST_PROXY, waiter.get(10, TimeUnit.SECONDS).get(0));
+			try {
+				leader.get(10, TimeUnit.SECONDS);
+				fail("Error expected");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof StackOverflowError);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/*****************************************************************************
+	 * Delegate that counts the selections and reports a fixed max age.
+	 * If a block latch is set, selections wait for it. A failure is thrown
+	 * once.
+	 ****************************************************************************/
+
+	private static class CountingSelector extends ProxySelector implements ExpiringProxySelector {
+		final AtomicInteger calls = new AtomicInteger();
+		final CountDownLatch entered = new CountDownLatch(1);
+		volatile CountDownLatch block;
+		volatile Error failure;
+		private final long maxAge;
+
+		CountingSelector(long maxAge) {
+			this.maxAge = maxAge;
+		}
+
+		@Override
+		public List<Proxy> select(URI uri) {
+			this.calls.incrementAndGet();
+			CountDownLatch latch = this.block;
+			if (latch != null) {
+				this.entered.countDown();
+				try {
+					latch.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			Error error = this.failure;
+			if (error != null) {
+				this.failure = null;
+				throw error;
+			}
+			return Collections.singletonList(TestUtil.HTTP_TEST_PROXY);
+		}
+
+		public Result selectExpiring(URI uri) {
+			return new Result(select(uri), this.maxAge);
+		}
+
+		@Override
+		public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+			// Not used
+		}
+	}
+
+}
@@ -0,0 +1,213 @@
+package com.btr.proxy.selector.pac;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/*****************************************************************************
+ * Tests for the caching DNS resolver. 
+ * A stand-in resolver is used so the tests run without network access.
+ ****************************************************************************/
+
+public class CachingDnsResolverTest {
+	
+	/*****************************************************************************
+	 * Resolver that knows a fixed set of host names and counts the lookups.
+	 ****************************************************************************/
+	
+	static class StubDnsResolver implements DnsResolver {
+		final Map<String, byte[]> hosts = new ConcurrentHashMap<String, byte[]>();
+		final AtomicInteger lookups = new AtomicInteger();
+		
+		StubDnsResolver add(String host, int a, int b, int c, int d) {
+			this.hosts.put(host, new byte[] {(byte) a, (byte) b, (byte) c, (byte) d});
+			return this;
+		}
+		
+		public InetAddress[] resolve(String host) throws UnknownHostException {
+			this.lookups.incrementAndGet();
+			byte[] address = this.hosts.get(host);
+			if (address == null) {
+				throw new UnknownHostException(host);
+			}
+			return new InetAddress[] {InetAddress.getByAddress(host, address)};
+		}
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 * @throws UnknownHostException on resolve error.
+	 ************************************************************************/
+	@Test
+	public void repeatedLookupsShouldHitTheCache() throws UnknownHostException {
+		StubDnsResolver stub = new StubDnsResolver().add("host1.unit-test.invalid", 10, 0, 0, 1);
+		CachingDnsResolver resolver = new CachingDnsResolver(stub, 60000, 60000, 10);
+		
+		InetAddress[] first = resolver.resolve("host1.unit-test.invalid");
+		InetAddress[] second = resolver.resolve("host1.unit-test.invalid");
+		
+		assertEquals("10.0.0.1", first[0].getHostAddress());
+		assertArrayEquals(first, second);
+		assertEquals(1, stub.lookups.get());
+		assertEquals(1, resolver.getMissCount());
+		assertEquals(1, resolver.getHitCount());
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 * @throws Exception on error.
+	 ************************************************************************/
+	@Test
+	public void failedLookupsShouldUseTheNegativeTtl() throws Exception {
+		StubDnsResolver stub = new StubDnsResolver();
+		CachingDnsResolver resolver = new CachingDnsResolver(stub, 60000, 50, 10);
+		
+		assertUnknown(resolver, "missing.unit-test.invalid");
+		assertUnknown(resolver, "missing.unit-test.invalid");
+		assertEquals(1, stub.lookups.get());
+		
+		Thread.sleep(100);
+		stub.add("missing.unit-test.invalid", 10, 0, 0, 2);
+		assertEquals("10.0.0.2", resolver.resolve("missing.unit-test.invalid")[0].getHostAddress());
+		assertEquals(2, stub.lookups.get());
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void unexpectedErrorsShouldNotBeCached() {
+		StubDnsResolver stub = new StubDnsResolver() {
+			@Override
+			public InetAddress[] resolve(String host) throws UnknownHostException {
+				this.lookups.incrementAndGet();
+				throw new IllegalStateException("Resolver broken");
+			}
+		};
+		CachingDnsResolver resolver = new CachingDnsResolver(stub, 60000, 60000, 10);
+		
+		assertUnknown(resolver, "host1.unit-test.invalid");
+		assertUnknown(resolver, "host1.unit-test.invalid");
+		assertEquals(2, stub.lookups.get());
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 * @throws UnknownHostException on resolve error.
+	 ************************************************************************/
+	@Test
+	public void cacheSizeShouldBeBounded() throws UnknownHostException {
+		StubDnsResolver stub = new StubDnsResolver();
+		CachingDnsResolver resolver = new CachingDnsResolver(stub, 60000, 60000, 5);
+		for (int i = 0; i < 20; i++) {
+			stub.add("host" + i + ".unit-test.invalid", 10, 0, 0, i);
+			resolver.resolve("host" + i + ".unit-test.invalid");
+		}
+		assertEquals(5, resolver.size());
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 * @throws UnknownHostException on resolve error.
+	 ************************************************************************/
+	@Test
+	public void usedEntriesShouldSurviveChurn() throws UnknownHostException {
+		StubDnsResolver stub = new StubDnsResolver().add("hot.unit-test.invalid", 10, 0, 1, 1);
+		CachingDnsResolver resolver = new CachingDnsResolver(stub, 60000, 60000, 5);
+		resolver.resolve("hot.unit-test.invalid");
+		for (int i = 0; i < 50; i++) {
+			stub.add("host" + i + ".unit-test.invalid", 10, 0, 0, i);
+			resolver.resolve("host" + i + ".unit-test.invalid");
+			resolver.resolve("hot.unit-test.invalid");
+		}
+		assertEquals(5, resolver.size());
+		assertEquals(51, stub.lookups.get());
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 * @throws UnknownHostException on resolve error.
+	 ************************************************************************/
+	@Test
+	public void addressLiteralsShouldNotBeCached() throws UnknownHostException {
+		CachingDnsResolver resolver = new CachingDnsResolver(DnsResolver.SYSTEM, 60000, 60000, 5);
+		assertEquals("192.168.0.1", resolver.resolve("192.168.0.1")[0].getHostAddress());
+		assertEquals(0, resolver.size());
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 * @throws Exception on error.
+	 ************************************************************************/
+	@Test
+	public void concurrentLookupsShouldShareOneQuery() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final StubDnsResolver stub = new StubDnsResolver() {
+			@Override
+			public InetAddress[] resolve(String host) throws UnknownHostException {
+				started.countDown();
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new UnknownHostException(host);
+				}
+				return super.resolve(host);
+			}
+		}.add("slow.unit-test.invalid", 10, 0, 0, 3);
+		final CachingDnsResolver resolver = new CachingDnsResolver(stub, 60000, 60000, 10);
+		
+		final AtomicInteger resolved = new AtomicInteger();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						if ("10.0.0.3".equals(resolver.resolve("slow.unit-test.invalid")[0].getHostAddress())) {
+							resolved.incrementAndGet();
+						}
+					} catch (UnknownHostException e) {
+						// Counted as failure below
+					}
+				}
+			};
+			threads[i].start();
+		}
+		started.await(10, TimeUnit.SECONDS);
+		Thread.sleep(100);
+		release.countDown();
+		for (Thread thread : threads) {
+			thread.join(10000);
+		}
+		
+		assertEquals(threads.length, resolved.get());
+		assertEquals(1, stub.lookups.get());
+	}
+	
+	/*************************************************************************
+	 * Checks that the host can not be resolved.
+	 * @param resolver the resolver to use.
+	 * @param host the host name.
+	 ************************************************************************/
+	
+	private void assertUnknown(DnsResolver resolver, String host) {
+		try {
+			resolver.resolve(host);
+			fail("Host should not be resolvable: " + host);
+		} catch (UnknownHostException e) {
+			// Expected
+		}
+	}
+	
+}
@@ -0,0 +1,215 @@
+package com.btr.proxy.selector.pac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/*****************************************************************************
+ * Tests for the deadline bounded DNS resolver. 
+ * The resolver is pointed to a local stub DNS server.
+ ****************************************************************************/
+
+public class DeadlineDnsResolverTest {
+	
+	private static final int TYPE_A = 1;
+	
+	private StubDnsServer server;
+	private DeadlineDnsResolver resolver;
+	
+	/*****************************************************************************
+	 * Minimal UDP DNS server. Known names get an A record and an empty AAAA 
+	 * answer, unknown names get NXDOMAIN. Names starting with "slow" are 
+	 * never answered.
+	 ****************************************************************************/
+	
+	static class StubDnsServer extends Thread {
+		final DatagramSocket socket;
+		final Map<String, byte[]> hosts = new ConcurrentHashMap<String, byte[]>();
+		
+		StubDnsServer() throws SocketException {
+			super("Stub DNS server");
+			this.socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+			setDaemon(true);
+		}
+		
+		String getUrl() {
+			return "dns://127.0.0.1:" + this.socket.getLocalPort();
+		}
+		
+		@Override
+		public void run() {
+			byte[] buffer = new byte[512];
+			while (!this.socket.isClosed()) {
+				try {
+					DatagramPacket request = new DatagramPacket(buffer, buffer.length);
+					this.socket.receive(request);
+					byte[] response = answer(request.getData(), request.getLength());
+					if (response != null) {
+						this.socket.send(new DatagramPacket(response, response.length, request.getSocketAddress()));
+					}
+				} catch (IOException e) {
+					// Closed
+				}
+			}
+		}
+		
+		private byte[] answer(byte[] query, int length) {
+			StringBuilder name = new StringBuilder();
+			int pos = 12;
+			while (query[pos] != 0) {
+				if (name.length() > 0) {
+					name.append('.');
+				}
+				name.append(new String(query, pos + 1, query[pos]));
+				pos += query[pos] + 1;
+			}
+			int questionEnd = pos + 5;
+			int type = ((query[pos + 1] & 0xFF) << 8) | (query[pos + 2] & 0xFF);
+			if (name.toString().startsWith("slow")) {
+				return null;
+			}
+			byte[] address = this.hosts.get(name.toString());
+			boolean hasAnswer = address != null && type == TYPE_A;
+			
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			out.write(query[0]);
+			out.write(query[1]);
+			out.write(0x81);
+			out.write(address == null ? 0x83 : 0x80);
+			out.write(new byte[] {0, 1, 0, hasAnswer ? (byte) 1 : 0, 0, 0, 0, 0}, 0, 8);
+			out.write(query, 12, questionEnd - 12);
+			if (hasAnswer) {
+				out.write(new byte[] {(byte) 0xC0, 12, 0, TYPE_A, 0, 1, 0, 0, 0, 60, 0, 4}, 0, 12);
+				out.write(address, 0, 4);
+			}
+			return out.toByteArray();
+		}
+	}
+	
+	/*************************************************************************
+	 * Starts the stub DNS server.
+	 * @throws SocketException on error.
+	 ************************************************************************/
+	@Before
+	public void setup() throws SocketException {
+		this.server = new StubDnsServer();
+		this.server.hosts.put("host1.unit-test.invalid", new byte[] {10, 0, 0, 1});
+		this.server.start();
+		this.resolver = new DeadlineDnsResolver(this.server.getUrl(), 500);
+	}
+	
+	/*************************************************************************
+	 * Stops the stub DNS server.
+	 ************************************************************************/
+	@After
+	public void teardown() {
+		this.server.socket.close();
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 * @throws UnknownHostException on resolve error.
+	 ************************************************************************/
+	@Test
+	public void knownHostShouldBeResolved() throws UnknownHostException {
+		InetAddress[] result = this.resolver.resolve("host1.unit-test.invalid");
+		assertEquals(1, result.length);
+		assertEquals("10.0.0.1", result[0].getHostAddress());
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void unknownHostShouldBeCountedAsNotFound() {
+		try {
+			this.resolver.resolve("missing.unit-test.invalid");
+			fail("Host should not be resolvable");
+		} catch (DnsTimeoutException e) {
+			fail("Lookup should not time out");
+		} catch (UnknownHostException e) {
+			// Expected
+		}
+		assertEquals(1, this.resolver.getNotFoundCount());
+		assertEquals(0, this.resolver.getTimeoutCount());
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 * @throws UnknownHostException on resolve error.
+	 ************************************************************************/
+	@Test
+	public void unansweredLookupShouldFailAtTheDeadline() throws UnknownHostException {
+		long start = System.currentTimeMillis();
+		try {
+			this.resolver.resolve("slow.unit-test.invalid");
+			fail("Host should not be resolvable");
+		} catch (DnsTimeoutException e) {
+			// Expected
+		}
+		long duration = System.currentTimeMillis() - start;
+		assertTrue("Lookup took " + duration + " ms", duration < 2000);
+		assertEquals(1, this.resolver.getTimeoutCount());
+		assertEquals(0, this.resolver.getNotFoundCount());
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 * @throws Exception on error.
+	 ************************************************************************/
+	@Test
+	public void busyLookupThreadsShouldNotFailTheLookup() throws Exception {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(
+				1, 1, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+		final CountDownLatch release = new CountDownLatch(1);
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						release.await(10, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						// Stopped
+					}
+				}
+			});
+			DeadlineDnsResolver busyResolver = new DeadlineDnsResolver(executor, this.server.getUrl(), 500);
+			
+			InetAddress[] result = busyResolver.resolve("host1.unit-test.invalid");
+			assertEquals("10.0.0.1", result[0].getHostAddress());
+			assertEquals(0, busyResolver.getTimeoutCount());
+		} finally {
+			release.countDown();
+			executor.shutdown();
+		}
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void pacFunctionsShouldReportTimeoutAsNotResolvable() {
+		PacScriptMethods methods = new PacScriptMethods(this.resolver);
+		assertEquals(false, methods.isResolvable("slow.unit-test.invalid"));
+		assertEquals("", methods.dnsResolve("slow.unit-test.invalid"));
+		assertEquals("10.0.0.1", methods.dnsResolve("host1.unit-test.invalid"));
+	}
+	
+}
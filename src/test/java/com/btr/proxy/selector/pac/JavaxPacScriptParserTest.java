@@ -2,16 +2,11 @@ package com.btr.proxy.selector.pac;
 
 import java.io.File;
 import java.net.MalformedURLException;
-import java.util.Calendar;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
 
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
-
-import org.junit.AfterClass;
 import org.junit.Assert;
-import org.junit.Assume;
-import org.junit.BeforeClass;
-import org.junit.Ignore;
 import org.junit.Test;
 
 import com.btr.proxy.TestUtil;
@@ -19,48 +14,25 @@ import com.btr.proxy.util.ProxyException;
 
 /*****************************************************************************
  * Tests for the javax.script PAC script parser. 
+ * JDK 15+ ships no JavaScript engine, the tests use the RhinoTestScriptEngine.
  * @author Bernd Rosstauscher (proxyvole@rosstauscher.de) Copyright 2009
  ****************************************************************************/
 
 public class JavaxPacScriptParserTest {
 	
 	/*************************************************************************
-	 * Check if JavaScript engine (Nashorn) is available.
-	 * Nashorn was removed in JDK 15+, so this will return false on JDK 21+.
-	 * @return true if JavaScript engine is available, false otherwise.
-	 ************************************************************************/
-	private static boolean isJavaScriptEngineAvailable() {
-		ScriptEngineManager mng = new ScriptEngineManager();
-		ScriptEngine engine = mng.getEngineByMimeType("text/javascript");
-		return engine != null;
-	}
-	
-	/*************************************************************************
-	 * Set calendar for date and time base tests.
+	 * Creates a parser with a fixed clock for date and time base tests.
 	 * Current date for all tests  is: 15. December 1994 12:00.00 
 	 * its a Thursday 
+	 * @param source the script source.
+	 * @return the parser.
+	 * @throws ProxyException on error.
 	 ************************************************************************/
-	@BeforeClass
-	public static void setup() {
-		Calendar cal = Calendar.getInstance();
-		cal.set(Calendar.YEAR, 1994);
-		cal.set(Calendar.MONTH, Calendar.DECEMBER);
-		cal.set(Calendar.DAY_OF_MONTH, 15);
-		cal.set(Calendar.HOUR_OF_DAY, 12);
-		cal.set(Calendar.MINUTE, 00);
-		cal.set(Calendar.SECOND, 00);
-		cal.set(Calendar.MILLISECOND, 00);
-		
-		// TODO Rossi 26.08.2010 need to fake time 
-		// JavaxPacScriptParser.setCurrentTime(cal);
-	}
-
-	/*************************************************************************
-	 * Cleanup after the tests.
-	 ************************************************************************/
-	@AfterClass
-	public static void teadDown() {
-		//JavaxPacScriptParser.setCurrentTime(null);
+	
+	private static JavaxPacScriptParser newFixedTimeParser(PacScriptSource source) throws ProxyException {
+		PacScriptMethods methods = new PacScriptMethods();
+		methods.setClock(Clock.fixed(Instant.parse("1994-12-15T12:00:00Z"), ZoneOffset.UTC));
+		return new JavaxPacScriptParser(source, methods);
 	}
 	
 	/*************************************************************************
@@ -70,7 +42,6 @@ public class JavaxPacScriptParserTest {
 	 ************************************************************************/
 	@Test
 	public void testScriptExecution() throws ProxyException, MalformedURLException {
-		Assume.assumeTrue("JavaScript engine (Nashorn) is not available in JDK 15+", isJavaScriptEngineAvailable());
 		PacScriptParser p = new JavaxPacScriptParser(new UrlPacScriptSource(toUrl("test1.pac")));
 		p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid");
 	}
@@ -82,7 +53,6 @@ public class JavaxPacScriptParserTest {
 	 ************************************************************************/
 	@Test
 	public void testCommentsInScript() throws ProxyException, MalformedURLException {
-		Assume.assumeTrue("JavaScript engine (Nashorn) is not available in JDK 15+", isJavaScriptEngineAvailable());
 		PacScriptParser p = new JavaxPacScriptParser(new UrlPacScriptSource(toUrl("test2.pac")));
 		p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid");
 	}
@@ -93,9 +63,8 @@ public class JavaxPacScriptParserTest {
 	 * @throws MalformedURLException on URL erros 
 	 ************************************************************************/
 	@Test
-	@Ignore //Test deactivated because it will not run in Java 1.5 and time based test are unstable 
 	public void testScriptWeekDayScript() throws ProxyException, MalformedURLException {
-		PacScriptParser p = new JavaxPacScriptParser(new UrlPacScriptSource(toUrl("testWeekDay.pac")));
+		PacScriptParser p = newFixedTimeParser(new UrlPacScriptSource(toUrl("testWeekDay.pac")));
 		p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid");
 	}
 
@@ -105,9 +74,8 @@ public class JavaxPacScriptParserTest {
 	 * @throws MalformedURLException on URL erros 
 	 ************************************************************************/
 	@Test
-	@Ignore //Test deactivated because it will not run in Java 1.5 and time based test are unstable 
 	public void testDateRangeScript() throws ProxyException, MalformedURLException {
-		PacScriptParser p = new JavaxPacScriptParser(new UrlPacScriptSource(toUrl("testDateRange.pac")));
+		PacScriptParser p = newFixedTimeParser(new UrlPacScriptSource(toUrl("testDateRange.pac")));
 		p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid");
 	}
 
@@ -117,9 +85,8 @@ public class JavaxPacScriptParserTest {
 	 * @throws MalformedURLException on URL erros 
 	 ************************************************************************/
 	@Test
-	@Ignore //Test deactivated because it will not run in Java 1.5 and time based test are unstable 
 	public void testTimeRangeScript() throws ProxyException, MalformedURLException {
-		PacScriptParser p = new JavaxPacScriptParser(new UrlPacScriptSource(toUrl("testTimeRange.pac")));
+		PacScriptParser p = newFixedTimeParser(new UrlPacScriptSource(toUrl("testTimeRange.pac")));
 		p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid");
 	}
 	
@@ -130,12 +97,64 @@ public class JavaxPacScriptParserTest {
 	 ************************************************************************/
 	@Test
 	public void methodsShouldReturnJsStrings() throws ProxyException, MalformedURLException {
-		Assume.assumeTrue("JavaScript engine (Nashorn) is not available in JDK 15+", isJavaScriptEngineAvailable());
 		PacScriptParser p = new JavaxPacScriptParser(new UrlPacScriptSource(toUrl("testReturnTypes.pac")));
 		String actual = p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid");
 		Assert.assertEquals("number boolean string", actual);
 	}
 	
+	/*************************************************************************
+	 * Test method
+	 * @throws ProxyException on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void urlIsPassedAsArgumentAndNotAsCode() throws ProxyException {
+		PacScriptParser p = new JavaxPacScriptParser(new RhinoPacScriptParserTest.StringPacScriptSource(
+				"function FindProxyForURL(url, host) { return url + \"|\" + host; }"));
+		String url = "http://host1.unit-test.invalid/a\"b\\\");x(\"";
+		Assert.assertEquals(url + "|host1.unit-test.invalid", p.evaluate(url, "host1.unit-test.invalid"));
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 * @throws ProxyException on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void scriptShouldOnlyBeReloadedForANewVersion() throws ProxyException {
+		RhinoPacScriptParserTest.StringPacScriptSource source = new RhinoPacScriptParserTest.StringPacScriptSource(
+				"var loads = typeof loads == 'undefined' ? 1 : loads + 1;\n"
+				+ "function FindProxyForURL(url, host) { return 'PROXY v1:' + loads; }");
+		JavaxPacScriptParser p = new JavaxPacScriptParser(source);
+		p.setEvaluationPoolSettings(1, 1000);
+		Assert.assertEquals("PROXY v1:1", p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+		Assert.assertEquals("PROXY v1:1", p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+		
+		source.content = source.content.replace("v1", "v2");
+		Assert.assertEquals("PROXY v2:2", p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+		Assert.assertEquals("PROXY v2:2", p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 * @throws ProxyException on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void scriptShouldBeReloadedAfterAnError() throws ProxyException {
+		JavaxPacScriptParser p = new JavaxPacScriptParser(new RhinoPacScriptParserTest.StringPacScriptSource(
+				"var loads = typeof loads == 'undefined' ? 1 : loads + 1;\n"
+				+ "function FindProxyForURL(url, host) {\n"
+				+ "  if (host == 'fail.unit-test.invalid') throw 'failed';\n"
+				+ "  return 'PROXY ' + loads; }"));
+		p.setEvaluationPoolSettings(1, 1000);
+		Assert.assertEquals("PROXY 1", p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+		try {
+			p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "fail.unit-test.invalid");
+			Assert.fail("Exception expected");
+		} catch(ProxyEvaluationException e) {
+			// Expected
+		}
+		Assert.assertEquals("PROXY 2", p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+	}
+	
 	/*************************************************************************
 	 * Helper method to build the url to the given test file
 	 * @param testFile the name of the test file.
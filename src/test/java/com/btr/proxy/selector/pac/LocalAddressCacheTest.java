@@ -0,0 +1,68 @@
+package com.btr.proxy.selector.pac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/*****************************************************************************
+ * Tests for the cache of the local addresses. 
+ ****************************************************************************/
+
+public class LocalAddressCacheTest {
+	
+	/*****************************************************************************
+	 * Cache that returns the configured addresses instead of scanning the 
+	 * network interfaces.
+	 ****************************************************************************/
+	
+	private static class StubLocalAddressCache extends LocalAddressCache {
+		volatile String ipv4 = "10.0.0.1";
+		final AtomicInteger scans = new AtomicInteger();
+		
+		@Override
+		LocalAddresses scan() {
+			this.scans.incrementAndGet();
+			return new LocalAddresses(this.ipv4, "fe80::1");
+		}
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void addressShouldBeScannedOnlyOnce() {
+		StubLocalAddressCache cache = new StubLocalAddressCache();
+		assertEquals("10.0.0.1", cache.getAddress(Inet4Address.class));
+		assertEquals("10.0.0.1", cache.getAddress(Inet4Address.class));
+		assertEquals("fe80::1", cache.getAddress(Inet6Address.class));
+		assertEquals(1, cache.scans.get());
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void changedAddressShouldNotifyListeners() {
+		StubLocalAddressCache cache = new StubLocalAddressCache();
+		final AtomicInteger changes = new AtomicInteger();
+		cache.addChangeListener(new Runnable() {
+			public void run() {
+				changes.incrementAndGet();
+			}
+		});
+		cache.getAddress(Inet4Address.class);
+		
+		assertFalse(cache.refresh());
+		cache.ipv4 = "10.0.0.2";
+		assertTrue(cache.refresh());
+		assertEquals("10.0.0.2", cache.getAddress(Inet4Address.class));
+		assertEquals(1, changes.get());
+	}
+	
+}
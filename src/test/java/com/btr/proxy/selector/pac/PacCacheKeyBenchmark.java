@@ -0,0 +1,74 @@
+package com.btr.proxy.selector.pac;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.btr.proxy.BenchmarkUtil;
+import com.btr.proxy.selector.misc.BufferedProxySelector;
+import com.btr.proxy.selector.pac.RhinoPacScriptParserTest.StringPacScriptSource;
+
+/*****************************************************************************
+ * Measures a BufferedProxySelector in front of a PAC script that only tests
+ * the host, for URLs with unique paths on a limited number of hosts. Once
+ * with the per-URL cache key and once with the key derived from the script.
+ * Run it as a normal Java program from the project root folder.
+ ****************************************************************************/
+
+public class PacCacheKeyBenchmark {
+
+	private static final int HOSTS = 1000;
+	private static final int SELECTS = 200000;
+
+	/*************************************************************************
+	 * Main entry point for the benchmark.
+	 * @param args not used.
+	 * @throws Exception on error.
+	 ************************************************************************/
+
+	public static void main(String[] args) throws Exception {
+		URI[] uris = new URI[SELECTS];
+		for (int i = 0; i < uris.length; i++) {
+			uris[i] = new URI("http://www.site" + (i % HOSTS * 2) + ".unit-test.invalid/page/" + i + "?q=" + i);
+		}
+		run("per URL key   ", uris, false);
+		run("script key    ", uris, true);
+	}
+
+	private static void run(String label, final URI[] uris, boolean useScriptKey) throws Exception {
+		final AtomicLong evaluations = new AtomicLong();
+		final RhinoPacScriptParser parser = new RhinoPacScriptParser(
+				new StringPacScriptSource(BenchmarkUtil.buildLargePacScript(500)));
+		final PacProxySelector pacSelector = new PacProxySelector(new PacScriptParser() {
+			public PacScriptSource getScriptSource() {
+				return parser.getScriptSource();
+			}
+			public String evaluate(String url, String host) throws ProxyEvaluationException {
+				evaluations.incrementAndGet();
+				return parser.evaluate(url, host);
+			}
+		});
+		// Hides the CacheKeyProvider interface to get the per URL key.
+		ProxySelector delegate = useScriptKey ? pacSelector : new ProxySelector() {
+			@Override
+			public List<Proxy> select(URI uri) {
+				return pacSelector.select(uri);
+			}
+			@Override
+			public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+				// Not used
+			}
+		};
+		final BufferedProxySelector selector = new BufferedProxySelector(10000, 60 * 60 * 1000, delegate);
+		final int[] next = {0};
+		BenchmarkUtil.measure(label, 0, uris.length, () -> {
+			selector.select(uris[next[0]++]);
+		});
+		System.out.println(label + ": " + evaluations.get() + " PAC evaluations for " + uris.length + " selects");
+	}
+
+}
@@ -0,0 +1,80 @@
+package com.btr.proxy.selector.pac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/*****************************************************************************
+ * Tests for the pool of PAC evaluation resources.
+ ****************************************************************************/
+
+public class PacEvaluationPoolTest {
+	
+	private final AtomicInteger created = new AtomicInteger();
+	
+	/*************************************************************************
+	 * Builds a pool that creates numbered resources.
+	 * @param size the pool size.
+	 * @param timeout the borrow timeout.
+	 * @return the pool.
+	 ************************************************************************/
+	
+	private PacEvaluationPool<Integer> buildPool(int size, long timeout) {
+		return new PacEvaluationPool<Integer>(new PacEvaluationPool.Factory<Integer>() {
+			public Integer create() {
+				return PacEvaluationPoolTest.this.created.incrementAndGet();
+			}
+		}, size, timeout);
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 * @throws ProxyEvaluationException on error.
+	 ************************************************************************/
+	@Test
+	public void releasedResourcesShouldBeReused() throws ProxyEvaluationException {
+		PacEvaluationPool<Integer> pool = buildPool(2, 100);
+		Integer first = pool.borrow();
+		pool.release(first);
+		assertSame(first, pool.borrow());
+		assertEquals(1, this.created.get());
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void invalidPoolSizeShouldBeClamped() {
+		PacEvaluationPool.Factory<Integer> factory = new PacEvaluationPool.Factory<Integer>() {
+			public Integer create() {
+				return 0;
+			}
+		};
+		try {
+			System.setProperty(PacProxySelector.OVERRIDE_POOL_SIZE, "0");
+			assertEquals(1, PacEvaluationPool.withDefaults(factory).getMaxSize());
+			System.setProperty(PacProxySelector.OVERRIDE_POOL_SIZE, "-5");
+			assertEquals(1, PacEvaluationPool.withDefaults(factory).getMaxSize());
+			System.setProperty(PacProxySelector.OVERRIDE_POOL_SIZE, "10000000000");
+			assertEquals(Integer.MAX_VALUE, PacEvaluationPool.withDefaults(factory).getMaxSize());
+		} finally {
+			System.clearProperty(PacProxySelector.OVERRIDE_POOL_SIZE);
+		}
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 * @throws ProxyEvaluationException on error.
+	 ************************************************************************/
+	@Test(expected = ProxyEvaluationException.class)
+	public void borrowShouldTimeOutIfPoolIsExhausted() throws ProxyEvaluationException {
+		PacEvaluationPool<Integer> pool = buildPool(2, 50);
+		pool.borrow();
+		pool.borrow();
+		pool.borrow();
+	}
+	
+}
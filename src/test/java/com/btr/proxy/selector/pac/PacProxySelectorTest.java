@@ -1,6 +1,8 @@
 package com.btr.proxy.selector.pac;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
@@ -11,11 +13,18 @@ import java.net.Proxy.Type;
 import java.net.ProxySelector;
 import java.net.SocketAddress;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
 import com.btr.proxy.TestUtil;
+import com.btr.proxy.selector.misc.BufferedProxySelector;
+import com.btr.proxy.selector.misc.ExpiringProxySelector;
 import com.btr.proxy.util.ProxyException;
 
 
@@ -118,6 +127,163 @@ public class PacProxySelectorTest {
 		
 	}
 	
+	/*************************************************************************
+	 * Test method for the evaluation time budget and the fallback handling.
+	 * @throws ProxyException on proxy detection error.
+	 * @throws URISyntaxException on URI errors.
+	 ************************************************************************/
+	@Test
+	public void slowEvaluationShouldUseLastKnownGood() throws ProxyException, URISyntaxException {
+		RhinoPacScriptParser parser = new RhinoPacScriptParser(new RhinoPacScriptParserTest.StringPacScriptSource(
+				"function FindProxyForURL(url, host) {\n" +
+				"  if (host == \"slow.unit-test.invalid\") { while (true) {} }\n" +
+				"  return \"PROXY http_proxy.unit-test.invalid:8090\";\n" +
+				"}"));
+		parser.setEvaluationTimeBudget(100);
+		PacProxySelector pacProxySelector = new PacProxySelector(parser);
+		pacProxySelector.setEvaluationFallback(PacProxySelector.EvaluationFallback.LAST_KNOWN_GOOD);
+		
+		URI slowUri = new URI("http://slow.unit-test.invalid/");
+		assertEquals(Proxy.NO_PROXY, pacProxySelector.select(slowUri).get(0));
+		assertEquals(TestUtil.HTTP_TEST_PROXY, pacProxySelector.select(TestUtil.HTTP_TEST_URI).get(0));
+		assertEquals(TestUtil.HTTP_TEST_PROXY, pacProxySelector.select(slowUri).get(0));
+		assertEquals(2, pacProxySelector.getEvaluationTimeoutCount());
+		
+		pacProxySelector.setEvaluationFallback(PacProxySelector.EvaluationFallback.FAIL);
+		try {
+			pacProxySelector.select(slowUri);
+			fail("Selection should fail");
+		} catch(IllegalStateException e) {
+			// Expected
+		}
+	}
+	
+	/*************************************************************************
+	 * Test method for the fallback handling of script errors.
+	 * @throws ProxyException on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void scriptErrorShouldNotUseTimeoutFallback() throws ProxyException {
+		PacProxySelector pacProxySelector = new PacProxySelector(new RhinoPacScriptParser(new RhinoPacScriptParserTest.StringPacScriptSource(
+				"function FindProxyForURL(url, host) { return undefinedFunction(host); }")));
+		pacProxySelector.setEvaluationFallback(PacProxySelector.EvaluationFallback.FAIL);
+		assertEquals(Proxy.NO_PROXY, pacProxySelector.select(TestUtil.HTTP_TEST_URI).get(0));
+		assertEquals(0, pacProxySelector.getEvaluationTimeoutCount());
+	}
+	
+	/*************************************************************************
+	 * Test method for the max age of fallback results.
+	 * @throws ProxyException on proxy detection error.
+	 * @throws URISyntaxException on URI errors.
+	 ************************************************************************/
+	@Test
+	public void fallbackResultShouldExpireSoon() throws ProxyException, URISyntaxException {
+		RhinoPacScriptParser parser = new RhinoPacScriptParser(new RhinoPacScriptParserTest.StringPacScriptSource(
+				"function FindProxyForURL(url, host) {\n" +
+				"  if (host == \"slow.unit-test.invalid\") { while (true) {} }\n" +
+				"  if (host == \"error.unit-test.invalid\") { return undefinedFunction(host); }\n" +
+				"  return \"PROXY http_proxy.unit-test.invalid:8090\";\n" +
+				"}"));
+		parser.setEvaluationTimeBudget(100);
+		PacProxySelector pacProxySelector = new PacProxySelector(parser);
+		
+		assertEquals(Long.MAX_VALUE, pacProxySelector.selectExpiring(TestUtil.HTTP_TEST_URI).getMaxAge());
+		assertEquals(PacResultValidity.FALLBACK_MAX_AGE, 
+				pacProxySelector.selectExpiring(new URI("http://slow.unit-test.invalid/")).getMaxAge());
+		assertEquals(PacResultValidity.FALLBACK_MAX_AGE, 
+				pacProxySelector.selectExpiring(new URI("http://error.unit-test.invalid/")).getMaxAge());
+	}
+	
+	/*************************************************************************
+	 * Test method for the shared parsed result lists.
+	 * @throws ProxyException on proxy detection error.
+	 * @throws URISyntaxException on URI errors.
+	 ************************************************************************/
+	@Test
+	public void sameResultShouldReturnSameProxyList() throws ProxyException, URISyntaxException {
+		PacProxySelector pacProxySelector = new PacProxySelector(new RhinoPacScriptParser(new RhinoPacScriptParserTest.StringPacScriptSource(
+				"function FindProxyForURL(url, host) {\n" +
+				"  if (host == \"other.unit-test.invalid\") return \"PROXY http_proxy.unit-test.invalid:8090\";\n" +
+				"  return \"PROXY http_proxy.unit-test.invalid:8090; DIRECT\";\n" +
+				"}")));
+		
+		List<Proxy> first = pacProxySelector.select(TestUtil.HTTP_TEST_URI);
+		List<Proxy> second = pacProxySelector.select(TestUtil.HTTPS_TEST_URI);
+		List<Proxy> other = pacProxySelector.select(new URI("http://other.unit-test.invalid/"));
+		
+		assertEquals(2, first.size());
+		assertEquals(TestUtil.HTTP_TEST_PROXY, first.get(0));
+		assertEquals(Proxy.NO_PROXY, first.get(1));
+		assertSame(first, second);
+		assertSame(first.get(0), other.get(0));
+		try {
+			first.clear();
+			fail("Shared proxy list must not be modifiable");
+		} catch(UnsupportedOperationException e) {
+			// Expected
+		}
+	}
+	
+	/*************************************************************************
+	 * Test method for the validity of time based results.
+	 * @throws ProxyException on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void timeBasedResultShouldExpireAtTheNextChange() throws ProxyException {
+		PacScriptMethods methods = new PacScriptMethods();
+		methods.setClock(Clock.fixed(Instant.parse("1994-12-15T12:00:00Z"), ZoneOffset.UTC));
+		PacProxySelector pacProxySelector = new PacProxySelector(new RhinoPacScriptParser(new RhinoPacScriptParserTest.StringPacScriptSource(
+				"function FindProxyForURL(url, host) {\n" +
+				"  if (host == \"static.unit-test.invalid\") return \"DIRECT\";\n" +
+				"  if (timeRange(8, 11)) return \"DIRECT\";\n" +
+				"  return \"PROXY http_proxy.unit-test.invalid:8090\";\n" +
+				"}"), methods));
+		
+		ExpiringProxySelector.Result result = pacProxySelector.selectExpiring(TestUtil.HTTP_TEST_URI);
+		assertEquals(TestUtil.HTTP_TEST_PROXY, result.getProxies().get(0));
+		// Not in range until 08:00 of the next day
+		assertEquals(20 * 60 * 60 * 1000, result.getMaxAge());
+		
+		result = pacProxySelector.selectExpiring(URI.create("http://static.unit-test.invalid/"));
+		assertEquals(Long.MAX_VALUE, result.getMaxAge());
+		assertEquals(null, PacResultValidity.current());
+	}
+	
+	/*************************************************************************
+	 * Test method for the cache keys derived from the script.
+	 * @throws ProxyException on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void cacheKeyShouldOnlyContainWhatTheScriptReads() throws ProxyException {
+		RhinoPacScriptParserTest.StringPacScriptSource source = new RhinoPacScriptParserTest.StringPacScriptSource(
+				"function FindProxyForURL(url, host) { return isPlainHostName(host) ? \"DIRECT\" : \"PROXY p:80\"; }");
+		final AtomicInteger evaluations = new AtomicInteger();
+		final RhinoPacScriptParser parser = new RhinoPacScriptParser(source);
+		PacProxySelector pacProxySelector = new PacProxySelector(new PacScriptParser() {
+			public PacScriptSource getScriptSource() {
+				return parser.getScriptSource();
+			}
+			public String evaluate(String url, String host) throws ProxyEvaluationException {
+				evaluations.incrementAndGet();
+				return parser.evaluate(url, host);
+			}
+		});
+		URI first = URI.create("https://host1.unit-test.invalid:8443/a?b=1");
+		URI second = URI.create("https://host1.unit-test.invalid/c");
+		assertEquals("host1.unit-test.invalid", pacProxySelector.getCacheKey(first));
+		
+		BufferedProxySelector buffered = new BufferedProxySelector(100, 60 * 1000, pacProxySelector);
+		buffered.select(first);
+		buffered.select(second);
+		assertEquals(1, evaluations.get());
+		
+		source.content = "function FindProxyForURL(url, host) { return shExpMatch(url, \"https:*\") ? \"DIRECT\" : \"PROXY p:80\"; }";
+		assertEquals("https: host1.unit-test.invalid", pacProxySelector.getCacheKey(first));
+		
+		source.content = "function FindProxyForURL(url, host) { return shExpMatch(url, \"*/a*\") ? \"DIRECT\" : \"PROXY p:80\"; }";
+		assertEquals(first.toString(), pacProxySelector.getCacheKey(first));
+	}
+	
 	/*************************************************************************
 	 * Helper method to build the url to the given test file
 	 * @param testFile the name of the test file.
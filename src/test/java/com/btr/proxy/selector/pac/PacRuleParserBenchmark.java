@@ -0,0 +1,48 @@
+package com.btr.proxy.selector.pac;
+
+import com.btr.proxy.BenchmarkUtil;
+import com.btr.proxy.selector.pac.RhinoPacScriptParserTest.StringPacScriptSource;
+
+/*****************************************************************************
+ * Compares the evaluation of a large generated PAC script with Rhino against
+ * the compiled rules of the PacRuleParser. It also measures the time to 
+ * create a parser and run the first evaluation.
+ * Run it as a normal Java program from the project root folder.
+ ****************************************************************************/
+
+public class PacRuleParserBenchmark {
+	
+	private static final int RULES = 1000;
+	private static final int WARMUP = 20000;
+	private static final int ITERATIONS = 200000;
+	
+	/*************************************************************************
+	 * Main entry point for the benchmark.
+	 * @param args not used.
+	 * @throws Exception on error.
+	 ************************************************************************/
+	
+	public static void main(String[] args) throws Exception {
+		final String script = BenchmarkUtil.buildLargePacScript(RULES);
+		final String host = "www.unit-test.invalid";
+		final String url = "http://" + host + "/";
+		
+		final RhinoPacScriptParser rhino = new RhinoPacScriptParser(new StringPacScriptSource(script));
+		final PacRuleParser rules = new PacRuleParser(new StringPacScriptSource(script));
+		System.out.println("Script compiled to rules: " + rules.isCompiled());
+		
+		BenchmarkUtil.measure("rhino  startup", 5, 20, () -> {
+			new RhinoPacScriptParser(new StringPacScriptSource(script)).evaluate(url, host);
+		});
+		BenchmarkUtil.measure("rules  startup", 5, 20, () -> {
+			new PacRuleParser(new StringPacScriptSource(script)).evaluate(url, host);
+		});
+		BenchmarkUtil.measure("rhino  no match", WARMUP, ITERATIONS, () -> {
+			rhino.evaluate(url, host);
+		});
+		BenchmarkUtil.measure("rules  no match", WARMUP, ITERATIONS, () -> {
+			rules.evaluate(url, host);
+		});
+	}
+	
+}
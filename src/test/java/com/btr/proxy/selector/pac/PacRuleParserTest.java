@@ -0,0 +1,168 @@
+package com.btr.proxy.selector.pac;
+
+import java.net.URI;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.btr.proxy.BenchmarkUtil;
+import com.btr.proxy.selector.pac.RhinoPacScriptParserTest.StringPacScriptSource;
+import com.btr.proxy.util.ProxyException;
+
+/*****************************************************************************
+ * Tests for the PAC rule compiler.
+ ****************************************************************************/
+
+public class PacRuleParserTest {
+
+	private static final String[] HOSTS = {
+		"localhost", "www.site0.unit-test.invalid", "site0.unit-test.invalid",
+		"a.b.site42.unit-test.invalid", "x.pattern7.unit-test.invalid",
+		"pattern7.unit-test.invalid", "www.site43.unit-test.invalid",
+		"www.unit-test.invalid", "10.1.2.3", "192.168.0.1"
+	};
+
+	/*************************************************************************
+	 * Test method
+	 * @throws ProxyException on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void compiledRulesShouldMatchRhino() throws ProxyException {
+		assertSameAsRhino(BenchmarkUtil.buildLargePacScript(100));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * @throws ProxyException on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void nestedConditionsShouldMatchRhino() throws ProxyException {
+		assertSameAsRhino(
+				"function FindProxyForURL(u, h) {\n" +
+				"  if (isPlainHostName(h) || localHostOrDomainIs(h, \"www.unit-test.invalid\")) {\n" +
+				"    return \"DIRECT\";\n" +
+				"  } else if (isInNet(h, \"10.0.0.0\", \"255.0.0.0\") && !shExpMatch(u, \"*/private/*\")) {\n" +
+				"    return \"PROXY net10.unit-test.invalid:8080\";\n" +
+				"  }\n" +
+				"  if (isInNet(h, \"192.168.0.0\", \"255.255.0.0\")) return \"PROXY net192.unit-test.invalid:8080\";\n" +
+				"  if (isInNet(h, \"10.1.0.0\", \"255.255.0.0\")) return \"PROXY never.unit-test.invalid:8080\";\n" +
+				"  if (dnsDomainIs(h, \"unit-test.invalid\") || dnsDomainIs(h, \".site0.unit-test.invalid\")) return \"PROXY first:80\";\n" +
+				"  if (dnsDomainIs(h, \".site42.unit-test.invalid\")) return \"PROXY second:80\";\n" +
+				"  if (shExpMatch(h, \"*.site4?.unit-test.invalid\")) return \"PROXY third:80\";\n" +
+				"}\n");
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * @throws ProxyException on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void firstMatchingDomainRuleShouldWin() throws ProxyException {
+		PacRuleParser p = new PacRuleParser(new StringPacScriptSource(
+				"function FindProxyForURL(url, host) {\n" +
+				"  if (dnsDomainIs(host, \".unit-test.invalid\")) return \"PROXY outer:80\";\n" +
+				"  if (dnsDomainIs(host, \".site1.unit-test.invalid\")) return \"PROXY inner:80\";\n" +
+				"  return \"DIRECT\";\n" +
+				"}\n"));
+		Assert.assertTrue(p.isCompiled());
+		Assert.assertEquals("PROXY outer:80", p.evaluate("http://a.site1.unit-test.invalid/", "a.site1.unit-test.invalid"));
+		Assert.assertEquals("DIRECT", p.evaluate("http://www.unit-test.org/", "www.unit-test.org"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * @throws ProxyException on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void unsupportedScriptShouldFallBackToRhino() throws ProxyException {
+		PacRuleParser p = new PacRuleParser(new StringPacScriptSource(
+				"var proxy = \"PROXY my-proxy.com:80\";\n" +
+				"function FindProxyForURL(url, host) { return proxy; }"));
+		Assert.assertFalse(p.isCompiled());
+		Assert.assertEquals("PROXY my-proxy.com:80", p.evaluate("http://host1.unit-test.invalid/", "host1.unit-test.invalid"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * @throws ProxyException on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void rulesAreRecompiledWhenContentChanges() throws ProxyException {
+		StringPacScriptSource source = new StringPacScriptSource(
+				"function FindProxyForURL(url, host) { return \"DIRECT\"; }");
+		PacRuleParser p = new PacRuleParser(source);
+		Assert.assertEquals("DIRECT", p.evaluate("http://host1.unit-test.invalid/", "host1.unit-test.invalid"));
+
+		source.content = "function FindProxyForURL(url, host) { return \"PROXY my-proxy.com:80\"; }";
+		Assert.assertTrue(p.isCompiled());
+		Assert.assertEquals("PROXY my-proxy.com:80", p.evaluate("http://host1.unit-test.invalid/", "host1.unit-test.invalid"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testShellExpression() {
+		Assert.assertTrue(new ShellExpression("*.unit-test.invalid").matches("www.unit-test.invalid"));
+		Assert.assertFalse(new ShellExpression("*.unit-test.invalid").matches("unit-test.invalid"));
+		Assert.assertTrue(new ShellExpression("http://*/a*b*c").matches("http://host/abbc"));
+		Assert.assertFalse(new ShellExpression("ab*ba").matches("aba"));
+		Assert.assertTrue(new ShellExpression("h?st*").matches("host1"));
+		Assert.assertFalse(new ShellExpression("abc").matches("abcabc"));
+		Assert.assertTrue(new ShellExpression("*").matches(""));
+		Assert.assertSame(ShellExpression.compile("*.unit-test.invalid"), ShellExpression.compile("*.unit-test.invalid"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void newShellExpressionShouldNotBeEvictedFromFullCache() {
+		for (int i = 0; i < 2 * ShellExpression.MAX_CACHED_EXPRESSIONS; i++) {
+			ShellExpression compiled = ShellExpression.compile("*.evict" + i + ".unit-test.invalid");
+			Assert.assertSame(compiled, ShellExpression.compile("*.evict" + i + ".unit-test.invalid"));
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * @throws ProxyException on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void uriWithoutHostShouldBeEvaluatedLikeRhino() throws ProxyException {
+		String script = 
+				"function FindProxyForURL(u, h) {\n" +
+				"  if (isPlainHostName(h)) return \"PROXY plain:80\";\n" +
+				"  if (dnsDomainIs(h, \".unit-test.invalid\") || dnsDomainIs(h, \".site0.unit-test.invalid\")) return \"PROXY first:80\";\n" +
+				"  return \"DIRECT\";\n" +
+				"}\n";
+		PacRuleParser rules = new PacRuleParser(new StringPacScriptSource(script));
+		RhinoPacScriptParser rhino = new RhinoPacScriptParser(new StringPacScriptSource(script));
+		Assert.assertTrue(rules.isCompiled());
+		Assert.assertEquals(rhino.evaluate("mailto:x@y", null), rules.evaluate("mailto:x@y", null));
+		
+		PacProxySelector selector = new PacProxySelector(rules);
+		Assert.assertEquals(new PacProxySelector(rhino).select(URI.create("mailto:x@y")), 
+				selector.select(URI.create("mailto:x@y")));
+		Assert.assertNotNull(selector.select(URI.create("file:/tmp/x.pac")));
+	}
+
+	/*************************************************************************
+	 * Evaluates the script with the rule parser and with Rhino and compares
+	 * the results.
+	 * @param script the script to test.
+	 * @throws ProxyException on proxy detection error.
+	 ************************************************************************/
+
+	private void assertSameAsRhino(String script) throws ProxyException {
+		PacRuleParser rules = new PacRuleParser(new StringPacScriptSource(script));
+		RhinoPacScriptParser rhino = new RhinoPacScriptParser(new StringPacScriptSource(script));
+		Assert.assertTrue(rules.isCompiled());
+		for (String host : HOSTS) {
+			for (String url : new String[] {"http://" + host + "/", "http://" + host + "/private/x"}) {
+				Assert.assertEquals(url, rhino.evaluate(url, host), rules.evaluate(url, host));
+			}
+		}
+	}
+
+}
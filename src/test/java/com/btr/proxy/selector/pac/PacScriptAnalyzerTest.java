@@ -0,0 +1,77 @@
+package com.btr.proxy.selector.pac;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.btr.proxy.BenchmarkUtil;
+
+/*****************************************************************************
+ * Tests for the analysis of the URL parameter use in PAC scripts.
+ ****************************************************************************/
+
+public class PacScriptAnalyzerTest {
+
+	private static final int WHOLE = PacScriptAnalyzer.WHOLE_URL;
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void hostOnlyScriptShouldNotReadTheUrl() {
+		assertEquals(0, analyze("if (dnsDomainIs(host, \".unit-test.invalid\")) return \"DIRECT\"; return \"PROXY p:80\";"));
+		assertEquals(0, PacScriptAnalyzer.getUrlPrefixLength(BenchmarkUtil.buildLargePacScript(100)));
+		assertEquals(0, PacScriptAnalyzer.getUrlPrefixLength("function FindProxyForURL() { return \"DIRECT\"; }"));
+		assertEquals(0, analyze("var config = {url: 1}; return config.url + host;"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void prefixTestsShouldReadOnlyThePrefix() {
+		assertEquals(5, analyze("if (url.substring(0, 5) == \"http:\") return \"DIRECT\"; return \"PROXY p:80\";"));
+		assertEquals(6, analyze("if (url.substr(0, 6) == \"https:\" || url.slice(0, 4) == \"ftp:\") return \"DIRECT\"; return \"\";"));
+		assertEquals(6, analyze("if (shExpMatch(url, \"https:*\")) return \"DIRECT\"; return \"PROXY p:80\";"));
+		assertEquals(4, analyze("return url.startsWith(\"ftp:\") || url.charAt(2) == \"t\" ? \"DIRECT\" : \"\";"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void otherUsesShouldReadTheWholeUrl() {
+		assertEquals(WHOLE, analyze("if (shExpMatch(url, \"*.jpg\")) return \"DIRECT\"; return \"\";"));
+		assertEquals(WHOLE, analyze("if (shExpMatch(url, \"http://?ost*\")) return \"DIRECT\"; return \"\";"));
+		assertEquals(WHOLE, analyze("return url.indexOf(\"/admin\") > 0 ? \"DIRECT\" : \"\";"));
+		assertEquals(WHOLE, analyze("var n = 5; return url.substring(0, n);"));
+		assertEquals(WHOLE, analyze("return helper(url);"));
+		assertEquals(WHOLE, analyze("var u = url; return u.substring(0, 5);"));
+		assertEquals(WHOLE, analyze("return arguments[0];"));
+		assertEquals(WHOLE, analyze("return eval(\"u\" + \"rl\");"));
+		assertEquals(WHOLE, analyze("return (function() { return url; })();"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void redefinedFunctionsShouldReadTheWholeUrl() {
+		assertEquals(WHOLE, PacScriptAnalyzer.getUrlPrefixLength(
+				"shExpMatch = function(a, b) { return a.length > 10; };\n" +
+				"function FindProxyForURL(url, host) { return shExpMatch(url, \"http:*\") ? \"DIRECT\" : \"\"; }"));
+		assertEquals(WHOLE, PacScriptAnalyzer.getUrlPrefixLength(
+				"function FindProxyForURL(url, host) { return \"DIRECT\"; }\n" +
+				"function FindProxyForURL(url, host) { return url; }"));
+		assertEquals(WHOLE, PacScriptAnalyzer.getUrlPrefixLength(
+				"function FindProxyForURL(url, host) { return \"DIRECT\"; }\n" +
+				"FindProxyForURL = function(url, host) { return url; };"));
+		assertEquals(WHOLE, PacScriptAnalyzer.getUrlPrefixLength("function FindProxyForURL(url, host) { return "));
+		assertEquals(WHOLE, PacScriptAnalyzer.getUrlPrefixLength("var x = 1;"));
+	}
+
+	private static int analyze(String body) {
+		return PacScriptAnalyzer.getUrlPrefixLength("function FindProxyForURL(url, host) {\n" + body + "\n}");
+	}
+
+}
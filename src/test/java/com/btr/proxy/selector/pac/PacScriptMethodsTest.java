@@ -5,7 +5,10 @@ import static org.junit.Assert.*;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Calendar;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 
 import org.junit.Test;
 
@@ -20,7 +23,7 @@ import com.btr.proxy.TestUtil;
 public class PacScriptMethodsTest {
 	
 	/*************************************************************************
-	 * Get a methods implementation with a calendar for date and time base tests
+	 * Get a methods implementation with a clock for date and time base tests
 	 * set to a hardcoded data.
 	 * Current date for all tests  is: 15. December 1994 12:00.00 
 	 * its a Thursday 
@@ -29,15 +32,7 @@ public class PacScriptMethodsTest {
 	private PacScriptMethods buildParser() {
 		PacScriptMethods result = new PacScriptMethods();
 
-		Calendar cal = Calendar.getInstance();
-		cal.set(Calendar.YEAR, 1994);
-		cal.set(Calendar.MONTH, Calendar.DECEMBER);
-		cal.set(Calendar.DAY_OF_MONTH, 15);
-		cal.set(Calendar.HOUR_OF_DAY, 12);
-		cal.set(Calendar.MINUTE, 00);
-		cal.set(Calendar.SECOND, 00);
-		cal.set(Calendar.MILLISECOND, 00);
-		result.setCurrentTime(cal);
+		result.setClock(Clock.fixed(Instant.parse("1994-12-15T12:00:00Z"), ZoneOffset.UTC));
 		
 		return result;
 	}
@@ -68,6 +63,20 @@ public class PacScriptMethodsTest {
 		assertEquals(adr.getHostAddress(), buildParser().dnsResolve(adr.getHostName()));
 	}
 	
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void dnsFunctionsShouldUseTheResolver() {
+		PacScriptMethods methods = buildParser();
+		methods.setDnsResolver(new CachingDnsResolverTest.StubDnsResolver().add("host1.unit-test.invalid", 10, 1, 2, 3));
+		assertEquals("10.1.2.3", methods.dnsResolve("host1.unit-test.invalid"));
+		assertEquals(true, methods.isInNet("host1.unit-test.invalid", "10.1.0.0", "255.255.0.0"));
+		assertEquals(true, methods.isResolvable("host1.unit-test.invalid"));
+		assertEquals(false, methods.isResolvable("host2.unit-test.invalid"));
+		assertEquals("", methods.dnsResolve("host2.unit-test.invalid"));
+	}
+	
 	/*************************************************************************
 	 * Test method
 	 ************************************************************************/
@@ -84,6 +93,56 @@ public class PacScriptMethodsTest {
 		assertEquals(true, buildParser().isInNet("10.13.75.47", "10.13.72.0", "255.255.252.0"));
 	}
 	
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testIsInNetInvalidInput() {
+		assertEquals(false, buildParser().isInNet("10.13.75.47", "10.13.72.x", "255.255.252.0"));
+		assertEquals(false, buildParser().isInNet("fe80::1", "10.13.72.0", "255.255.252.0"));
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testIsInNetEx() {
+		PacScriptMethods methods = buildParser();
+		assertEquals(true, methods.isInNetEx("198.95.249.79", "198.95.0.0/16"));
+		assertEquals(false, methods.isInNetEx("198.96.249.79", "198.95.0.0/16"));
+		assertEquals(true, methods.isInNetEx("3ffe:8311:ffff:abcd::1", "3ffe:8311:ffff::/48"));
+		assertEquals(true, methods.isInNetEx("3ffe:8311:ffff:0:0:0:0:1", "3ffe:8311:ffff::/48"));
+		assertEquals(false, methods.isInNetEx("3ffe:8311:fffe::1", "3ffe:8311:ffff::/48"));
+		assertEquals(true, methods.isInNetEx("fe80::1%eth0", "fe80::/10"));
+		assertEquals(true, methods.isInNetEx("::ffff:10.1.2.3", "::ffff:10.1.0.0/112"));
+		assertEquals(true, methods.isInNetEx("2001:db8::1", "2001:db8::1/128"));
+		assertEquals(false, methods.isInNetEx("2001:db8::2", "2001:db8::1/128"));
+		assertEquals(true, methods.isInNetEx("2001:db8::2", "::/0"));
+		assertEquals(false, methods.isInNetEx("10.1.2.3", "2001:db8::/32"));
+		assertEquals(false, methods.isInNetEx("2001:db8:::1", "2001:db8::/32"));
+		assertEquals(false, methods.isInNetEx("2001:db8::1", "2001:db8::/129"));
+		assertEquals(true, methods.isInNetEx("2001:db8::1; 10.1.2.3", "10.0.0.0/8"));
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testDnsResolveEx() {
+		PacScriptMethods methods = buildParser();
+		methods.setDnsResolver(new DnsResolver() {
+			public InetAddress[] resolve(String host) throws UnknownHostException {
+				return new InetAddress[] {
+					InetAddress.getByAddress(host, new byte[] {10, 0, 0, 1}),
+					InetAddress.getByAddress(host, new byte[] {0x20, 0x01, 0x0d, (byte) 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1})
+				};
+			}
+		});
+		String result = methods.dnsResolveEx("host1.unit-test.invalid");
+		assertEquals("10.0.0.1;2001:db8:0:0:0:0:0:1", result);
+		assertEquals(true, methods.isInNetEx(result, "2001:db8::/32"));
+	}
+	
 	/*************************************************************************
 	 * Test method
 	 ************************************************************************/
@@ -134,6 +193,10 @@ public class PacScriptMethodsTest {
 		
 		assertEquals(false, buildParser().shExpMatch("202.310.65.6", "10.*"));
 		assertEquals(false, buildParser().shExpMatch("202.310.65.6", "*.65"));
+		
+		assertEquals(true, buildParser().shExpMatch("host1.unit-test.invalid", "host?.unit-test.invalid"));
+		assertEquals(false, buildParser().shExpMatch("host12.unit-test.invalid", "host?.unit-test.invalid"));
+		assertEquals(false, buildParser().shExpMatch("host1host1", "host1"));
 	}	
 	
 	/*************************************************************************
@@ -176,6 +239,95 @@ public class PacScriptMethodsTest {
 
 		assertEquals(false, buildParser().timeRange(12, 50, 00, 9, 30, 00, "GMT"));
 	}	
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void timeRangeShouldWrapAroundMidnight() {
+		assertEquals(true, buildParser().timeRange(22, 30, 00, 12, 30, 00, "GMT"));
+		assertEquals(true, buildParser().timeRange(11, 30, 00, 10, 30, 00, "GMT"));
+		assertEquals(false, buildParser().timeRange(22, 30, 00, 11, 30, 00, "GMT"));
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void localTimeShouldUseTheZoneOfTheClock() {
+		PacScriptMethods methods = new PacScriptMethods();
+		// 15. December 1994 23:30 in UTC is already Friday 16. in Berlin
+		methods.setClock(Clock.fixed(Instant.parse("1994-12-15T23:30:00Z"), ZoneId.of("Europe/Berlin")));
+		assertEquals(true, methods.weekdayRange("FRI", "undefined", "undefined"));
+		assertEquals(true, methods.weekdayRange("THU", "GMT", "undefined"));
+		assertEquals(true, methods.timeRange(0, "undefined", "undefined", "undefined", "undefined", "undefined", "undefined"));
+		assertEquals(true, methods.timeRange(23, "GMT", "undefined", "undefined", "undefined", "undefined", "undefined"));
+		assertEquals(true, methods.dateRange(16, "DEC", 1994, "undefined", "undefined", "undefined", "undefined"));
+		assertEquals(true, methods.dateRange(15, "DEC", 1994, "GMT", "undefined", "undefined", "undefined"));
+		assertEquals(true, methods.dateRange(30, "NOV", 1994, 31, "JAN", 1995, "undefined"));
+		assertEquals(true, methods.dateRange("dec", "undefined", "undefined", "undefined", "undefined", "undefined", "undefined"));
+	}
+		
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void timeFunctionsShouldReportTheNextChange() {
+		PacScriptMethods methods = buildParser();
+		long hour = 60 * 60 * 1000;
+		
+		// In range until 12:59:59, the result changes at 13:00
+		assertEquals(hour, validity(methods, "timeRange", 11, 12));
+		// Not in range, the result changes at 13:00
+		assertEquals(hour, validity(methods, "timeRange", 13, 14));
+		// Ends at 12:30:15, so changes one second later
+		assertEquals(30 * 60 * 1000 + 16 * 1000, validity(methods, "timeRange", 11, 30, 15, 12, 30, 15));
+		// Thursday, the next day that is not in MON-FRI is Saturday 00:00
+		assertEquals(36 * hour, validity(methods, "weekdayRange", "MON", "FRI"));
+		// Every day matches
+		assertEquals(Long.MAX_VALUE, validity(methods, "weekdayRange", "MON", "SUN"));
+		// dateRange is only known until midnight
+		assertEquals(12 * hour, validity(methods, "dateRange", "DEC"));
+		// The earliest change counts
+		PacResultValidity validity = PacResultValidity.begin();
+		try {
+			methods.weekdayRange("MON", "FRI", "undefined");
+			methods.timeRange(11, 12, "undefined", "undefined", "undefined", "undefined", "undefined");
+			methods.dnsDomainIs("host1.unit-test.invalid", "unit-test.invalid");
+			assertEquals(hour, validity.getMaxAge());
+		} finally {
+			PacResultValidity.end();
+		}
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void timeRangeShouldExpireAtDaylightSavingSwitch() {
+		PacScriptMethods methods = new PacScriptMethods();
+		// Summer time in Berlin starts 27. March 1994 at 01:00 UTC
+		methods.setClock(Clock.fixed(Instant.parse("1994-03-27T00:00:00Z"), ZoneId.of("Europe/Berlin")));
+		assertEquals(60 * 60 * 1000, validity(methods, "timeRange", 10, 11));
+	}
+	
+	private static long validity(PacScriptMethods methods, String function, Object... params) {
+		Object[] args = {"undefined", "undefined", "undefined", "undefined", "undefined", "undefined", "undefined"};
+		System.arraycopy(params, 0, args, 0, params.length);
+		PacResultValidity validity = PacResultValidity.begin();
+		try {
+			if ("timeRange".equals(function)) {
+				methods.timeRange(args[0], args[1], args[2], args[3], args[4], args[5], args[6]);
+			} else if ("dateRange".equals(function)) {
+				methods.dateRange(args[0], args[1], args[2], args[3], args[4], args[5], args[6]);
+			} else {
+				methods.weekdayRange((String) args[0], (String) args[1], (String) args[2]);
+			}
+			return validity.getMaxAge();
+		} finally {
+			PacResultValidity.end();
+		}
+	}
 		
 }
 
@@ -0,0 +1,59 @@
+package com.btr.proxy.selector.pac;
+
+import java.io.File;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+
+import com.btr.proxy.BenchmarkUtil;
+import com.btr.proxy.TestUtil;
+import com.btr.proxy.selector.pac.PacContextFactory.PacContext;
+
+/*****************************************************************************
+ * Compares the evaluation of the PAC test scripts with the old approach
+ * (concatenating the script with a FindProxyForURL call and evaluating the
+ * whole string) against the compiled evaluation of the RhinoPacScriptParser.
+ * Run it as a normal Java program from the project root folder.
+ ****************************************************************************/
+
+public class PacScriptParserBenchmark {
+	
+	private static final int WARMUP = 500;
+	private static final int ITERATIONS = 5000;
+	
+	/*************************************************************************
+	 * Main entry point for the benchmark.
+	 * @param args not used.
+	 * @throws Exception on error.
+	 ************************************************************************/
+	
+	public static void main(String[] args) throws Exception {
+		final String url = TestUtil.HTTP_TEST_URI.toString();
+		final String host = TestUtil.HTTP_TEST_URI.getHost();
+		
+		for (File pacFile : BenchmarkUtil.getPacFixtures()) {
+			final UrlPacScriptSource source = new UrlPacScriptSource(pacFile.toURI().toURL().toString());
+			final RhinoPacScriptParser parser = new RhinoPacScriptParser(source);
+			final Scriptable sharedScope = RhinoPacScriptParser.getSharedScope();
+			final PacContextFactory contextFactory = new PacContextFactory();
+			
+			BenchmarkUtil.measure(pacFile.getName() + " evaluateString", WARMUP, ITERATIONS, () -> {
+				String script = source.getScriptContent() + " ;FindProxyForURL (\"" + url + "\",\"" + host + "\")";
+				PacContext context = (PacContext) contextFactory.enterContext();
+				try {
+					context.setScriptMethods(parser.getScriptMethods());
+					Scriptable scope = context.newObject(sharedScope);
+					scope.setPrototype(sharedScope);
+					scope.setParentScope(null);
+					Context.toString(context.evaluateString(scope, script, "userPacFile", 1, null));
+				} finally {
+					Context.exit();
+				}
+			});
+			BenchmarkUtil.measure(pacFile.getName() + " compiled      ", WARMUP, ITERATIONS, () -> {
+				parser.evaluate(url, host);
+			});
+		}
+	}
+	
+}
@@ -0,0 +1,83 @@
+package com.btr.proxy.selector.pac;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.btr.proxy.BenchmarkUtil;
+import com.btr.proxy.selector.pac.RhinoPacScriptParserTest.StringPacScriptSource;
+
+/*****************************************************************************
+ * Compares many tenants with their own PacProxySelector against the same
+ * tenants in a PacScriptRegistry. Most tenants use one of a few distinct
+ * scripts. Prints the time to select once for every tenant and the retained
+ * heap after a full GC.
+ * Run it as a normal Java program from the project root folder.
+ ****************************************************************************/
+
+public class PacScriptRegistryBenchmark {
+
+	private static final int TENANTS = 1000;
+	private static final int DISTINCT_SCRIPTS = 20;
+	private static final int RULES = 200;
+
+	/*************************************************************************
+	 * Main entry point for the benchmark.
+	 * @param args not used.
+	 * @throws Exception on error.
+	 ************************************************************************/
+
+	public static void main(String[] args) throws Exception {
+		URI uri = new URI("http://www.unit-test.invalid/index.html");
+		String[] scripts = new String[DISTINCT_SCRIPTS];
+		for (int i = 0; i < scripts.length; i++) {
+			scripts[i] = BenchmarkUtil.buildLargePacScript(RULES) + "\n// variant " + i;
+		}
+		// Load the classes and create the shared state first.
+		new PacProxySelector(new RhinoPacScriptParser(new StringPacScriptSource(scripts[0]))).select(uri);
+
+		long before = usedHeap();
+		long start = System.nanoTime();
+		List<PacProxySelector> selectors = new ArrayList<PacProxySelector>();
+		for (int i = 0; i < TENANTS; i++) {
+			PacProxySelector selector = new PacProxySelector(new RhinoPacScriptParser(
+					new StringPacScriptSource(new String(scripts[i % DISTINCT_SCRIPTS]))));
+			selector.select(uri);
+			selectors.add(selector);
+		}
+		print("own selectors", start, usedHeap() - before);
+		selectors.clear();
+
+		before = usedHeap();
+		start = System.nanoTime();
+		PacScriptRegistry registry = new PacScriptRegistry(DISTINCT_SCRIPTS);
+		for (int i = 0; i < TENANTS; i++) {
+			registry.register("tenant" + i, new StringPacScriptSource(new String(scripts[i % DISTINCT_SCRIPTS]))).select(uri);
+		}
+		print("registry     ", start, usedHeap() - before);
+		System.out.println("registry      : " + registry.getScriptCount() + " compiled scripts, hit rate of tenant 999: "
+				+ registry.getStatistics("tenant999").getHitRate());
+	}
+
+	private static void print(String label, long start, long heap) {
+		System.out.println(label + " : " + (System.nanoTime() - start) / 1000000 + " ms, "
+				+ heap / 1024 + " KB for " + TENANTS + " tenants");
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		// Repeat until the value is stable, a single gc() call is only a hint.
+		for (int i = 0; i < 10; i++) {
+			System.gc();
+			Thread.sleep(100);
+			long current = runtime.totalMemory() - runtime.freeMemory();
+			if (current >= used) {
+				return Math.min(used, current);
+			}
+			used = current;
+		}
+		return used;
+	}
+
+}
@@ -0,0 +1,89 @@
+package com.btr.proxy.selector.pac;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.Proxy.Type;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.btr.proxy.TestUtil;
+import com.btr.proxy.selector.pac.RhinoPacScriptParserTest.StringPacScriptSource;
+
+/*****************************************************************************
+ * Tests for the registry of tenant PAC selectors.
+ ****************************************************************************/
+
+public class PacScriptRegistryTest {
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void sameScriptShouldBeSharedByAllTenants() {
+		PacScriptRegistry registry = new PacScriptRegistry(10);
+		for (String tenant : new String[] {"a", "b", "c"}) {
+			List<Proxy> result = registry.register(tenant, source("a-proxy")).select(TestUtil.HTTP_TEST_URI);
+			assertEquals(proxy("a-proxy"), result.get(0));
+		}
+		assertEquals(1, registry.getScriptCount());
+		assertEquals(1, registry.getStatistics("a").getCompileCount());
+		assertEquals(0, registry.getStatistics("b").getCompileCount());
+		assertEquals(1, registry.getStatistics("c").getHitCount());
+		assertEquals(1.0, registry.getStatistics("c").getHitRate(), 0.0);
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void leastRecentlyUsedScriptShouldBeCompiledAgain() {
+		PacScriptRegistry registry = new PacScriptRegistry(2);
+		PacProxySelector a = registry.register("a", source("a-proxy"));
+		PacProxySelector b = registry.register("b", source("b-proxy"));
+		PacProxySelector c = registry.register("c", source("c-proxy"));
+		a.select(TestUtil.HTTP_TEST_URI);
+		b.select(TestUtil.HTTP_TEST_URI);
+		a.select(TestUtil.HTTP_TEST_URI);
+		c.select(TestUtil.HTTP_TEST_URI);
+		assertEquals(1, registry.getEvictionCount());
+
+		assertEquals(proxy("b-proxy"), b.select(TestUtil.HTTP_TEST_URI).get(0));
+		assertEquals(2, registry.getScriptCount());
+		assertEquals(2, registry.getEvictionCount());
+		assertEquals(2, registry.getStatistics("b").getCompileCount());
+		assertEquals(0.5, registry.getStatistics("a").getHitRate(), 0.0);
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * @throws MalformedURLException on URL errors.
+	 ************************************************************************/
+	@Test
+	public void tenantsShouldBeRegisteredByUrl() throws MalformedURLException {
+		String url = new File(TestUtil.TEST_DATA_FOLDER + "pac", "test1.pac").toURI().toURL().toString();
+		PacScriptRegistry registry = new PacScriptRegistry(10);
+		PacProxySelector a = registry.register("a", url);
+		PacProxySelector b = registry.register("b", url);
+		assertEquals(a.select(TestUtil.HTTP_TEST_URI), b.select(TestUtil.HTTP_TEST_URI));
+		assertEquals(1, registry.getScriptCount());
+		assertSame(b, registry.getSelector("b"));
+
+		registry.unregister("b");
+		assertNull(registry.getSelector("b"));
+		assertNull(registry.getStatistics("b"));
+	}
+
+	private static PacScriptSource source(String proxyHost) {
+		return new StringPacScriptSource("function FindProxyForURL(url, host) { return \"PROXY " + proxyHost + ":80\"; }");
+	}
+
+	private static Proxy proxy(String proxyHost) {
+		return new Proxy(Type.HTTP, InetSocketAddress.createUnresolved(proxyHost, 80));
+	}
+
+}
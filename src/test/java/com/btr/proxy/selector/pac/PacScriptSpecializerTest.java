@@ -0,0 +1,111 @@
+package com.btr.proxy.selector.pac;
+
+import static org.junit.Assert.*;
+
+import java.util.Set;
+
+import org.junit.Test;
+
+/*****************************************************************************
+ * Tests for the hoisting of invariant expressions out of PAC functions.
+ ****************************************************************************/
+
+public class PacScriptSpecializerTest {
+
+	private static final Set<String> FUNCTIONS = PacScriptSpecializer.getInvariantFunctions(new PacScriptMethods());
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void localAddressTestsShouldBeHoisted() {
+		PacScriptSpecializer.Result result = specialize(
+				"var ip = myIpAddress();\n" +
+				"if (isInNet(ip, \"10.0.0.0\", \"255.0.0.0\") || isInNet(ip, \"192.168.0.0\", \"255.255.0.0\")) return \"DIRECT\";\n" +
+				"return \"PROXY p:80\";");
+		assertEquals(2, result.hoisted);
+		assertTrue(result.usesLocalAddress);
+		assertTrue(result.content.contains(
+				"(__pacHoisted1 !== undefined ? __pacHoisted1 : (__pacHoisted1 = " +
+				"isInNet(ip, \"10.0.0.0\", \"255.0.0.0\") || isInNet(ip, \"192.168.0.0\", \"255.255.0.0\")))"));
+		assertTrue(result.content.endsWith("\nvar __pacHoisted1, __pacHoisted0;\n"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void constantCallsShouldBeHoisted() {
+		PacScriptSpecializer.Result result = specialize(
+				"if (dnsDomainIs(host, \".local\") || shExpMatch(myIpAddress().substring(0, 3), \"10.\")) return \"DIRECT\";\n" +
+				"return isPlainHostName(\"a.b\") ? \"DIRECT\" : \"PROXY p:80\";");
+		assertEquals(2, result.hoisted);
+		assertTrue(result.content.contains("(__pacHoisted0 = shExpMatch(myIpAddress().substring(0, 3), \"10.\"))"));
+		assertTrue(result.content.contains("(__pacHoisted1 = isPlainHostName(\"a.b\") ? \"DIRECT\" : \"PROXY p:80\")"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void argumentDependentExpressionsShouldNotBeHoisted() {
+		assertEquals(0, specialize("return dnsDomainIs(host, \".local\") ? \"DIRECT\" : \"PROXY p:80\";").hoisted);
+		assertEquals(0, specialize("var h = host; return shExpMatch(h, \"*.local\") ? \"DIRECT\" : \"\";").hoisted);
+		assertEquals(0, specialize("var x = \"a\"; return x + \"b\";").hoisted);
+		assertEquals(0, specialize("return isInNet(\"proxy.local\", \"10.0.0.0\", \"255.0.0.0\") ? \"DIRECT\" : \"\";").hoisted);
+		assertEquals(0, specialize("return timeRange(8, 17) ? \"DIRECT\" : \"\";").hoisted);
+		assertEquals(0, specialize("return dnsResolve(\"proxy.local\");").hoisted);
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void changedLocalsShouldNotBeInvariant() {
+		assertEquals(1, specialize("var ip = myIpAddress(); ip = host; return shExpMatch(ip, \"10.*\") ? \"DIRECT\" : \"\";").hoisted);
+		assertEquals(1, specialize("var ip = myIpAddress(); ip++; return shExpMatch(ip, \"10.*\") ? \"DIRECT\" : \"\";").hoisted);
+		assertEquals(1, specialize("if (host) { var ip = myIpAddress(); } return shExpMatch(ip, \"10.*\") ? \"DIRECT\" : \"\";").hoisted);
+		assertEquals(1, specialize("var r = shExpMatch(ip, \"10.*\"); var ip = myIpAddress(); return r;").hoisted);
+		assertEquals(1, specialize("var ip = myIpAddress(); return (function() { return shExpMatch(ip, \"10.*\"); })();").hoisted);
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void unsafeScriptsShouldNotBeChanged() {
+		assertEquals(0, specialize("var myIpAddress = function() { return host; }; return myIpAddress();").hoisted);
+		assertEquals(0, specialize("var x = eval(\"1\"); return myIpAddress();").hoisted);
+		assertEquals(0, specialize("with (Math) { return myIpAddress(); }").hoisted);
+		assertEquals(0, specialize("return arguments.length + myIpAddress();").hoisted);
+		assertEquals(0, specialize("var __pacHoisted0 = 1; return myIpAddress();").hoisted);
+		String script = "function FindProxyForURL(url, host) { return shExpMatch(myIpAddress(), \"10.*\"); }";
+		assertTrue(PacScriptSpecializer.specialize(script, FUNCTIONS).content.contains(
+				"(__pacHoisted0 = shExpMatch(myIpAddress(), \"10.*\"))"));
+		assertTrue(PacScriptSpecializer.specialize(script + "\nshExpMatch = null;", FUNCTIONS).content.contains(
+				"shExpMatch((__pacHoisted0 !== undefined ? __pacHoisted0 : (__pacHoisted0 = myIpAddress())), \"10.*\")"));
+		String invalid = script + " {";
+		assertSame(invalid, PacScriptSpecializer.specialize(invalid, FUNCTIONS).content);
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void overriddenFunctionsShouldNotBeInvariant() {
+		Set<String> functions = PacScriptSpecializer.getInvariantFunctions(new PacScriptMethods() {
+			@Override
+			public String myIpAddress() {
+				return "10.1.1.1";
+			}
+		});
+		assertFalse(functions.contains("myIpAddress"));
+		assertTrue(functions.contains("myIpAddressEx"));
+		assertTrue(FUNCTIONS.contains("myIpAddress"));
+	}
+
+	private static PacScriptSpecializer.Result specialize(String body) {
+		return PacScriptSpecializer.specialize("function FindProxyForURL(url, host) {\n" + body + "\n}", FUNCTIONS);
+	}
+
+}
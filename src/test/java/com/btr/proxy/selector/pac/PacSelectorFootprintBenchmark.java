@@ -0,0 +1,73 @@
+package com.btr.proxy.selector.pac;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.btr.proxy.selector.pac.RhinoPacScriptParserTest.StringPacScriptSource;
+
+/*****************************************************************************
+ * Measures the retained heap of one additional PacProxySelector with a
+ * RhinoPacScriptParser. Many selectors with different small scripts are
+ * created and used once, then the used heap after a full GC is divided by
+ * the number of selectors.
+ * Run it as a normal Java program from the project root folder.
+ ****************************************************************************/
+
+public class PacSelectorFootprintBenchmark {
+
+	private static final int SELECTORS = 500;
+
+	/*************************************************************************
+	 * Main entry point for the benchmark.
+	 * @param args not used.
+	 * @throws Exception on error.
+	 ************************************************************************/
+
+	public static void main(String[] args) throws Exception {
+		URI uri = new URI("http://www.unit-test.invalid/index.html");
+		// The first selector loads the classes and creates shared state.
+		List<PacProxySelector> selectors = new ArrayList<PacProxySelector>();
+		selectors.add(newSelector(0));
+		selectors.get(0).select(uri);
+
+		long before = usedHeap();
+		for (int i = 1; i <= SELECTORS; i++) {
+			PacProxySelector selector = newSelector(i);
+			selector.select(uri);
+			selectors.add(selector);
+		}
+		long after = usedHeap();
+
+		System.out.println(SELECTORS + " selectors: " + (after - before) / 1024 + " KB, "
+				+ (after - before) / SELECTORS / 1024 + " KB per selector");
+		if (selectors.size() != SELECTORS + 1) {
+			throw new IllegalStateException();
+		}
+	}
+
+	private static PacProxySelector newSelector(int i) throws ProxyEvaluationException {
+		String script = "function FindProxyForURL(url, host) {\n"
+				+ "  if (dnsDomainIs(host, \".tenant" + i + ".unit-test.invalid\")) return \"DIRECT\";\n"
+				+ "  return \"PROXY proxy" + i + ".unit-test.invalid:8080\";\n"
+				+ "}";
+		return new PacProxySelector(new RhinoPacScriptParser(new StringPacScriptSource(script)));
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		// Repeat until the value is stable, a single gc() call is only a hint.
+		for (int i = 0; i < 10; i++) {
+			System.gc();
+			Thread.sleep(100);
+			long current = runtime.totalMemory() - runtime.freeMemory();
+			if (current >= used) {
+				return Math.min(used, current);
+			}
+			used = current;
+		}
+		return used;
+	}
+
+}
@@ -0,0 +1,51 @@
+package com.btr.proxy.selector.pac;
+
+import com.btr.proxy.BenchmarkUtil;
+import com.btr.proxy.selector.pac.RhinoPacScriptParserTest.StringPacScriptSource;
+
+/*****************************************************************************
+ * Compares the evaluation of a PAC script that tests the local address on
+ * every call with and without the hoisting of the invariant expressions.
+ * Run it as a normal Java program from the project root folder.
+ ****************************************************************************/
+
+public class PacSpecializationBenchmark {
+
+	private static final int WARMUP = 20000;
+	private static final int ITERATIONS = 200000;
+
+	private static final String SCRIPT =
+			"function FindProxyForURL(url, host) {\n" +
+			"  var ip = myIpAddress();\n" +
+			"  var office = isInNet(ip, \"10.0.0.0\", \"255.0.0.0\") || isInNet(ip, \"172.16.0.0\", \"255.240.0.0\");\n" +
+			"  var vpn = isInNet(ip, \"192.168.100.0\", \"255.255.255.0\");\n" +
+			"  if (isPlainHostName(host) || dnsDomainIs(host, \".intranet.invalid\")) {\n" +
+			"    return \"DIRECT\";\n" +
+			"  }\n" +
+			"  if (office) {\n" +
+			"    return \"PROXY office-proxy.invalid:8080\";\n" +
+			"  }\n" +
+			"  return vpn ? \"PROXY vpn-proxy.invalid:3128\" : \"DIRECT\";\n" +
+			"}";
+
+	/*************************************************************************
+	 * Main entry point for the benchmark.
+	 * @param args not used.
+	 * @throws Exception on error.
+	 ************************************************************************/
+
+	public static void main(String[] args) throws Exception {
+		System.setProperty(PacScriptMethods.OVERRIDE_LOCAL_IP, "10.1.2.3");
+		final RhinoPacScriptParser plain = new RhinoPacScriptParser(new StringPacScriptSource(SCRIPT));
+		plain.setSpecializationEnabled(false);
+		final RhinoPacScriptParser specialized = new RhinoPacScriptParser(new StringPacScriptSource(SCRIPT));
+
+		BenchmarkUtil.measure("unchanged  ", WARMUP, ITERATIONS, () -> {
+			plain.evaluate("http://www.example.invalid/", "www.example.invalid");
+		});
+		BenchmarkUtil.measure("specialized", WARMUP, ITERATIONS, () -> {
+			specialized.evaluate("http://www.example.invalid/", "www.example.invalid");
+		});
+	}
+
+}
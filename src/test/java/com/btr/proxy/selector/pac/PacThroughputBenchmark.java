@@ -0,0 +1,62 @@
+package com.btr.proxy.selector.pac;
+
+import java.net.URI;
+import java.text.MessageFormat;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.btr.proxy.BenchmarkUtil;
+import com.btr.proxy.selector.pac.RhinoPacScriptParserTest.StringPacScriptSource;
+
+/*****************************************************************************
+ * Measures the throughput of the PacProxySelector with an increasing number
+ * of selecting threads. With the pooled evaluation scopes the throughput 
+ * should scale with the number of available cores.
+ * Run it as a normal Java program from the project root folder.
+ ****************************************************************************/
+
+public class PacThroughputBenchmark {
+	
+	private static final long RUN_MILLIS = 3000;
+	private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 64};
+	
+	/*************************************************************************
+	 * Main entry point for the benchmark.
+	 * @param args not used.
+	 * @throws Exception on error.
+	 ************************************************************************/
+	
+	public static void main(String[] args) throws Exception {
+		String script = BenchmarkUtil.buildLargePacScript(500);
+		RhinoPacScriptParser parser = new RhinoPacScriptParser(new StringPacScriptSource(script));
+		final PacProxySelector selector = new PacProxySelector(parser);
+		final URI uri = new URI("http://www.pattern499.unit-test.invalid/index.html");
+		
+		// Warmup
+		for (int i = 0; i < 20000; i++) {
+			selector.select(uri);
+		}
+		
+		System.out.println(MessageFormat.format("Available processors: {0}", Runtime.getRuntime().availableProcessors()));
+		for (int threads : THREAD_COUNTS) {
+			final AtomicLong operations = new AtomicLong();
+			final CountDownLatch done = new CountDownLatch(threads);
+			final long endAt = System.currentTimeMillis() + RUN_MILLIS;
+			for (int t = 0; t < threads; t++) {
+				new Thread(() -> {
+					long count = 0;
+					while (System.currentTimeMillis() < endAt) {
+						selector.select(uri);
+						count++;
+					}
+					operations.addAndGet(count);
+					done.countDown();
+				}).start();
+			}
+			done.await();
+			System.out.println(MessageFormat.format("{0} threads: {1} selects/s", threads, 
+					String.format("%,d", operations.get() * 1000 / RUN_MILLIS)));
+		}
+	}
+	
+}
@@ -1,11 +1,15 @@
 package com.btr.proxy.selector.pac;
 
 import java.io.File;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
-import java.util.Calendar;
+import java.net.UnknownHostException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.junit.AfterClass;
-import org.junit.BeforeClass;
+import org.junit.Assert;
 import org.junit.Test;
 
 import com.btr.proxy.TestUtil;
@@ -19,30 +23,18 @@ import com.btr.proxy.util.ProxyException;
 public class RhinoPacScriptParserTest {
 	
 	/*************************************************************************
-	 * Set calendar for date and time base tests.
+	 * Creates a parser with a fixed clock for date and time base tests.
 	 * Current date for all tests  is: 15. December 1994 12:00.00 
 	 * its a Thursday 
+	 * @param source the script source.
+	 * @return the parser.
+	 * @throws ProxyException on error.
 	 ************************************************************************/
-	@BeforeClass
-	public static void setup() {
-		Calendar cal = Calendar.getInstance();
-		cal.set(Calendar.YEAR, 1994);
-		cal.set(Calendar.MONTH, Calendar.DECEMBER);
-		cal.set(Calendar.DAY_OF_MONTH, 15);
-		cal.set(Calendar.HOUR_OF_DAY, 12);
-		cal.set(Calendar.MINUTE, 00);
-		cal.set(Calendar.SECOND, 00);
-		cal.set(Calendar.MILLISECOND, 00);
-		
-		RhinoPacScriptParser.setCurrentTime(cal);
-	}
-
-	/*************************************************************************
-	 * Cleanup after the tests.
-	 ************************************************************************/
-	@AfterClass
-	public static void teadDown() {
-		RhinoPacScriptParser.setCurrentTime(null);
+	
+	private static RhinoPacScriptParser newFixedTimeParser(PacScriptSource source) throws ProxyException {
+		PacScriptMethods methods = new PacScriptMethods();
+		methods.setClock(Clock.fixed(Instant.parse("1994-12-15T12:00:00Z"), ZoneOffset.UTC));
+		return new RhinoPacScriptParser(source, methods);
 	}
 	
 	/*************************************************************************
@@ -74,7 +66,7 @@ public class RhinoPacScriptParserTest {
 	 ************************************************************************/
 	@Test
 	public void testScriptWeekDayScript() throws ProxyException, MalformedURLException {
-		PacScriptParser p = new RhinoPacScriptParser(new UrlPacScriptSource(toUrl("testWeekDay.pac")));
+		PacScriptParser p = newFixedTimeParser(new UrlPacScriptSource(toUrl("testWeekDay.pac")));
 		p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid");
 	}
 
@@ -85,7 +77,7 @@ public class RhinoPacScriptParserTest {
 	 ************************************************************************/
 	@Test
 	public void testDateRangeScript() throws ProxyException, MalformedURLException {
-		PacScriptParser p = new RhinoPacScriptParser(new UrlPacScriptSource(toUrl("testDateRange.pac")));
+		PacScriptParser p = newFixedTimeParser(new UrlPacScriptSource(toUrl("testDateRange.pac")));
 		p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid");
 	}
 
@@ -96,9 +88,263 @@ public class RhinoPacScriptParserTest {
 	 ************************************************************************/
 	@Test
 	public void testTimeRangeScript() throws ProxyException, MalformedURLException {
-		PacScriptParser p = new RhinoPacScriptParser(new UrlPacScriptSource(toUrl("testTimeRange.pac")));
+		PacScriptParser p = newFixedTimeParser(new UrlPacScriptSource(toUrl("testTimeRange.pac")));
+		p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid");
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 * @throws ProxyException on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void parsersShouldUseTheirOwnScriptMethods() throws ProxyException {
+		String script = "function FindProxyForURL(url, host) { return weekdayRange(\"THU\") ? \"DIRECT\" : \"PROXY other:80\"; }";
+		RhinoPacScriptParser thursday = newFixedTimeParser(new StringPacScriptSource(script));
+		RhinoPacScriptParser friday = new RhinoPacScriptParser(new StringPacScriptSource(script));
+		friday.getScriptMethods().setClock(Clock.fixed(Instant.parse("1994-12-16T12:00:00Z"), ZoneOffset.UTC));
+		Assert.assertEquals("DIRECT", thursday.evaluate("http://host1.unit-test.invalid/", "host1.unit-test.invalid"));
+		Assert.assertEquals("PROXY other:80", friday.evaluate("http://host1.unit-test.invalid/", "host1.unit-test.invalid"));
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 * @throws ProxyException on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void parsersShouldNotSeeTheGlobalsOfOtherParsers() throws ProxyException {
+		RhinoPacScriptParser first = new RhinoPacScriptParser(new StringPacScriptSource(
+				"var tenant = \"first\";\n" +
+				"dnsDomainIs = function(host, domain) { return true; };\n" +
+				"function FindProxyForURL(url, host) { return tenant + \",\" + dnsDomainIs(host, \".other\"); }"));
+		RhinoPacScriptParser second = new RhinoPacScriptParser(new StringPacScriptSource(
+				"function FindProxyForURL(url, host) { return typeof tenant + \",\" + dnsDomainIs(host, \".other\"); }"));
+		Assert.assertEquals("first,true", first.evaluate("http://host1.unit-test.invalid/", "host1.unit-test.invalid"));
+		Assert.assertEquals("undefined,false", second.evaluate("http://host1.unit-test.invalid/", "host1.unit-test.invalid"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * @throws ProxyException on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void sharedStandardObjectsShouldNotBeModified() throws ProxyException {
+		RhinoPacScriptParser first = new RhinoPacScriptParser(new StringPacScriptSource(
+				"function FindProxyForURL(url, host) { String.prototype.leak = \"leak\"; return \"DIRECT\"; }"));
+		RhinoPacScriptParser second = new RhinoPacScriptParser(new StringPacScriptSource(
+				"function FindProxyForURL(url, host) { return typeof host.leak; }"));
+		// The first parser gets a private copy of the standard objects.
+		Assert.assertEquals("DIRECT", first.evaluate("http://host1.unit-test.invalid/", "host1.unit-test.invalid"));
+		Assert.assertEquals("undefined", second.evaluate("http://host1.unit-test.invalid/", "host1.unit-test.invalid"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * @throws ProxyException on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void builtinsShouldConvertArgumentsLikeJavaScript() throws ProxyException {
+		PacScriptParser p = new RhinoPacScriptParser(new StringPacScriptSource(
+				"function FindProxyForURL(url, host) {\n" +
+				"  var suffix = \".unit-\" + \"test.invalid\";\n" +
+				"  return [shExpMatch(host, \"*\" + suffix), dnsDomainIs(host, suffix), isPlainHostName(),\n" +
+				"      dnsDomainLevels(host), typeof shExpMatch, shExpMatch.length].join(\",\");\n" +
+				"}"));
+		Assert.assertEquals("true,true,true,2,function,2", p.evaluate("http://host1.unit-test.invalid/", "host1.unit-test.invalid"));
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 * @throws ProxyException on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void urlIsPassedAsArgumentAndNotAsCode() throws ProxyException {
+		PacScriptParser p = new RhinoPacScriptParser(new StringPacScriptSource(
+				"function FindProxyForURL(url, host) { return url + \"|\" + host; }"));
+		String url = "http://host1.unit-test.invalid/a\"b\\\");x(\"";
+		Assert.assertEquals(url + "|host1.unit-test.invalid", p.evaluate(url, "host1.unit-test.invalid"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * @throws ProxyException on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void scriptIsRecompiledWhenContentChanges() throws ProxyException {
+		StringPacScriptSource source = new StringPacScriptSource(
+				"function FindProxyForURL(url, host) { return \"DIRECT\"; }");
+		PacScriptParser p = new RhinoPacScriptParser(source);
+		Assert.assertEquals("DIRECT", p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+		
+		source.content = "function FindProxyForURL(url, host) { return \"PROXY my-proxy.com:80\"; }";
+		Assert.assertEquals("PROXY my-proxy.com:80", p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * @throws ProxyException on proxy detection error.
+	 ************************************************************************/
+	@Test(expected = ProxyEvaluationException.class)
+	public void missingEntryFunctionShouldFail() throws ProxyException {
+		PacScriptParser p = new RhinoPacScriptParser(new StringPacScriptSource("var x = 1;"));
+		p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid");
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 * @throws ProxyException on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void scriptExtendingStandardObjectsShouldStillWork() throws ProxyException {
+		PacScriptParser p = new RhinoPacScriptParser(new StringPacScriptSource(
+				"String.prototype.endsWithX = function(s) {\n" +
+				"  return this.length >= s.length && this.substring(this.length - s.length) == s;\n" +
+				"};\n" +
+				"function FindProxyForURL(url, host) {\n" +
+				"  return host.endsWithX(\".unit-test.invalid\") ? \"DIRECT\" : \"PROXY my-proxy.com:80\";\n" +
+				"}"));
+		Assert.assertEquals("DIRECT", p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+		Assert.assertEquals("PROXY my-proxy.com:80", p.evaluate("http://www.example.com/", "www.example.com"));
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 * @throws ProxyException on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void polyfillInsideTheEntryFunctionShouldStillWork() throws ProxyException {
+		PacScriptParser p = new RhinoPacScriptParser(new StringPacScriptSource(
+				"function FindProxyForURL(url, host) {\n" +
+				"  if (!Array.prototype.lastItem) {\n" +
+				"    Array.prototype.lastItem = function() { return this[this.length - 1]; };\n" +
+				"  }\n" +
+				"  return \"PROXY \" + host.split(\".\").lastItem() + \":80\";\n" +
+				"}"));
+		Assert.assertEquals("PROXY invalid:80", p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+		Assert.assertEquals("PROXY com:80", p.evaluate("http://www.example.com/", "www.example.com"));
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 * @throws Exception on error.
+	 ************************************************************************/
+	@Test
+	public void concurrentEvaluationsShouldNotShareGlobals() throws Exception {
+		final PacScriptParser p = new RhinoPacScriptParser(new StringPacScriptSource(
+				"var lastHost;\n" +
+				"function FindProxyForURL(url, host) {\n" +
+				"  lastHost = host;\n" +
+				"  for (var i = 0; i < 1000; i++) { dnsDomainLevels(host); }\n" +
+				"  return \"PROXY \" + lastHost + \":80\";\n" +
+				"}"));
+		final AtomicInteger errors = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			final String host = "host" + i + ".unit-test.invalid";
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 50; j++) {
+						try {
+							if (!("PROXY " + host + ":80").equals(p.evaluate("http://" + host + "/", host))) {
+								errors.incrementAndGet();
+							}
+						} catch (ProxyEvaluationException e) {
+							errors.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertEquals(0, errors.get());
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 * @throws ProxyException on proxy detection error.
+	 ************************************************************************/
+	@Test(expected = ProxyEvaluationTimeoutException.class)
+	public void endlessScriptShouldBeAborted() throws ProxyException {
+		RhinoPacScriptParser p = new RhinoPacScriptParser(new StringPacScriptSource(
+				"function FindProxyForURL(url, host) {\n" +
+				"  while (true) { try { dnsDomainLevels(host); } catch (e) { } }\n" +
+				"}"));
+		p.setEvaluationTimeBudget(200);
 		p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid");
 	}
+
+	/*************************************************************************
+	 * Test method
+	 * @throws ProxyException on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void hoistedValuesShouldFollowLocalAddressChanges() throws ProxyException {
+		final AtomicInteger lookups = new AtomicInteger();
+		PacScriptMethods methods = new PacScriptMethods(new DnsResolver() {
+			public InetAddress[] resolve(String host) throws UnknownHostException {
+				lookups.incrementAndGet();
+				return DnsResolver.SYSTEM.resolve(host);
+			}
+		});
+		RhinoPacScriptParser p = new RhinoPacScriptParser(new StringPacScriptSource(
+				"function FindProxyForURL(url, host) {\n" +
+				"  var ip = myIpAddress();\n" +
+				"  return isInNet(ip, \"10.0.0.0\", \"255.0.0.0\") ? \"DIRECT\" : \"PROXY my-proxy.com:80\";\n" +
+				"}"), methods);
+		p.setEvaluationPoolSettings(1, 1000);
+		System.setProperty(PacScriptMethods.OVERRIDE_LOCAL_IP, "10.1.2.3");
+		try {
+			Assert.assertEquals("DIRECT", p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+			Assert.assertEquals("DIRECT", p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host2.unit-test.invalid"));
+			Assert.assertEquals(1, lookups.get());
+
+			System.setProperty(PacScriptMethods.OVERRIDE_LOCAL_IP, "192.168.1.2");
+			Assert.assertEquals("PROXY my-proxy.com:80", p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+			Assert.assertEquals(2, lookups.get());
+
+			p.setSpecializationEnabled(false);
+			p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid");
+			p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid");
+			Assert.assertEquals(4, lookups.get());
+		} finally {
+			System.setProperty(PacScriptMethods.OVERRIDE_LOCAL_IP, "");
+		}
+	}
+
+	/*****************************************************************************
+	 * Script source with a fixed script content for testing.
+	 ****************************************************************************/
+	
+	static class StringPacScriptSource implements PacScriptSource {
+		volatile String content;
+		
+		StringPacScriptSource(String content) {
+			this.content = content;
+		}
+		
+		public String getScriptContent() {
+			return this.content;
+		}
+		
+		public boolean isScriptValid() {
+			return true;
+		}
+	}
+	
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	@SuppressWarnings("deprecation")
+	public void deprecatedStaticMethodsShouldStillWork() {
+		Assert.assertTrue(RhinoPacScriptParser.shExpMatch("http://www.mozilla.org/", "*.mozilla.org/*"));
+		Assert.assertTrue(RhinoPacScriptParser.dnsDomainIs("www.mozilla.org", ".mozilla.org"));
+		Assert.assertTrue(RhinoPacScriptParser.isPlainHostName("www"));
+		Assert.assertEquals(2, RhinoPacScriptParser.dnsDomainLevels("www.mozilla.org"));
+	}
 	
 	/*************************************************************************
 	 * Helper method to build the url to the given test file
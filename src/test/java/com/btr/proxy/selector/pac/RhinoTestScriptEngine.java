@@ -0,0 +1,182 @@
+package com.btr.proxy.selector.pac;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.util.Map;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
+
+/*****************************************************************************
+ * Minimal javax.script engine on top of Rhino. It is only used by the tests
+ * to run the JavaxPacScriptParser on JDKs without a bundled JavaScript engine.
+ * All evaluations run in one top level scope. The engine scope bindings are
+ * copied into that scope before each evaluation.
+ ****************************************************************************/
+
+class RhinoTestScriptEngine extends AbstractScriptEngine implements Invocable, Compilable {
+	
+	private final ScriptEngineFactory factory;
+	private final ScriptableObject scope;
+	
+	/*************************************************************************
+	 * Constructor
+	 * @param factory the factory that created this engine.
+	 ************************************************************************/
+	
+	RhinoTestScriptEngine(ScriptEngineFactory factory) {
+		super();
+		this.factory = factory;
+		Context context = Context.enter();
+		try {
+			this.scope = context.initStandardObjects();
+		} finally {
+			Context.exit();
+		}
+	}
+	
+	public Object eval(String script, ScriptContext context) throws ScriptException {
+		return exec(compileScript(script), context);
+	}
+	
+	public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+		return eval(readAll(reader), context);
+	}
+	
+	public CompiledScript compile(String script) throws ScriptException {
+		final Script compiled = compileScript(script);
+		return new CompiledScript() {
+			@Override
+			public Object eval(ScriptContext context) throws ScriptException {
+				return exec(compiled, context);
+			}
+			
+			@Override
+			public ScriptEngine getEngine() {
+				return RhinoTestScriptEngine.this;
+			}
+		};
+	}
+	
+	public CompiledScript compile(Reader reader) throws ScriptException {
+		return compile(readAll(reader));
+	}
+	
+	public Object invokeFunction(String name, Object... args) throws ScriptException, NoSuchMethodException {
+		Context context = Context.enter();
+		try {
+			copyBindings(getContext());
+			Object function = ScriptableObject.getProperty(this.scope, name);
+			if(!(function instanceof Function)) {
+				throw new NoSuchMethodException(name);
+			}
+			Object[] jsArgs = new Object[args.length];
+			for(int i = 0; i < args.length; i++) {
+				jsArgs[i] = Context.javaToJS(args[i], this.scope);
+			}
+			return toJava(((Function) function).call(context, this.scope, this.scope, jsArgs));
+		} catch(RhinoException e) {
+			throw toScriptException(e);
+		} finally {
+			Context.exit();
+		}
+	}
+	
+	public Object invokeMethod(Object thiz, String name, Object... args) {
+		throw new UnsupportedOperationException("invokeMethod");
+	}
+	
+	public <T> T getInterface(Class<T> clasz) {
+		throw new UnsupportedOperationException("getInterface");
+	}
+	
+	public <T> T getInterface(Object thiz, Class<T> clasz) {
+		throw new UnsupportedOperationException("getInterface");
+	}
+	
+	public Bindings createBindings() {
+		return new SimpleBindings();
+	}
+	
+	public ScriptEngineFactory getFactory() {
+		return this.factory;
+	}
+	
+	private Script compileScript(String script) throws ScriptException {
+		Context context = Context.enter();
+		try {
+			return context.compileString(script, "script", 1, null);
+		} catch(RhinoException e) {
+			throw toScriptException(e);
+		} finally {
+			Context.exit();
+		}
+	}
+	
+	private Object exec(Script script, ScriptContext scriptContext) throws ScriptException {
+		Context context = Context.enter();
+		try {
+			copyBindings(scriptContext);
+			return toJava(script.exec(context, this.scope, this.scope));
+		} catch(RhinoException e) {
+			throw toScriptException(e);
+		} finally {
+			Context.exit();
+		}
+	}
+	
+	private void copyBindings(ScriptContext scriptContext) {
+		Bindings bindings = scriptContext.getBindings(ScriptContext.ENGINE_SCOPE);
+		for(Map.Entry<String, Object> entry : bindings.entrySet()) {
+			ScriptableObject.putProperty(this.scope, entry.getKey(), Context.javaToJS(entry.getValue(), this.scope));
+		}
+	}
+	
+	private static Object toJava(Object result) {
+		if(result instanceof Wrapper) {
+			return ((Wrapper) result).unwrap();
+		}
+		if(Undefined.isUndefined(result)) {
+			return null;
+		}
+		return result;
+	}
+	
+	private static ScriptException toScriptException(RhinoException e) {
+		ScriptException result = new ScriptException(e.getMessage(), e.sourceName(), e.lineNumber());
+		result.initCause(e);
+		return result;
+	}
+	
+	private static String readAll(Reader reader) throws ScriptException {
+		StringWriter result = new StringWriter();
+		char[] buffer = new char[1024];
+		try {
+			int read;
+			while((read = reader.read(buffer)) != -1) {
+				result.write(buffer, 0, read);
+			}
+		} catch(IOException e) {
+			throw new ScriptException(e);
+		}
+		return result.toString();
+	}
+	
+}
@@ -0,0 +1,81 @@
+package com.btr.proxy.selector.pac;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+/*****************************************************************************
+ * Registers the RhinoTestScriptEngine for the "text/javascript" MIME type 
+ * in the test class path. JDK 15+ ships no JavaScript engine, so without it
+ * the JavaxPacScriptParser could not be tested at all.
+ ****************************************************************************/
+
+public class RhinoTestScriptEngineFactory implements ScriptEngineFactory {
+	
+	public String getEngineName() {
+		return "Rhino test engine";
+	}
+	
+	public String getEngineVersion() {
+		return "1.0";
+	}
+	
+	public List<String> getExtensions() {
+		return Collections.singletonList("js");
+	}
+	
+	public List<String> getMimeTypes() {
+		return Arrays.asList("text/javascript", "application/javascript");
+	}
+	
+	public List<String> getNames() {
+		return Arrays.asList("rhino-test", "javascript");
+	}
+	
+	public String getLanguageName() {
+		return "ECMAScript";
+	}
+	
+	public String getLanguageVersion() {
+		return "1.8";
+	}
+	
+	public Object getParameter(String key) {
+		if(ScriptEngine.ENGINE.equals(key)) {
+			return getEngineName();
+		}
+		if(ScriptEngine.ENGINE_VERSION.equals(key)) {
+			return getEngineVersion();
+		}
+		if(ScriptEngine.NAME.equals(key)) {
+			return getNames().get(0);
+		}
+		if(ScriptEngine.LANGUAGE.equals(key)) {
+			return getLanguageName();
+		}
+		if(ScriptEngine.LANGUAGE_VERSION.equals(key)) {
+			return getLanguageVersion();
+		}
+		return null;
+	}
+	
+	public String getMethodCallSyntax(String obj, String m, String... args) {
+		return obj + "." + m + "(" + String.join(",", args) + ")";
+	}
+	
+	public String getOutputStatement(String toDisplay) {
+		return "print(" + toDisplay + ")";
+	}
+	
+	public String getProgram(String... statements) {
+		return String.join(";\n", statements);
+	}
+	
+	public ScriptEngine getScriptEngine() {
+		return new RhinoTestScriptEngine(this);
+	}
+	
+}
@@ -0,0 +1,86 @@
+package com.btr.proxy.selector.pac;
+
+import java.util.StringTokenizer;
+
+import com.btr.proxy.BenchmarkUtil;
+
+/*****************************************************************************
+ * Compares the old shExpMatch implementation based on a StringTokenizer
+ * with the compiled and cached shell expressions. 
+ * Run it as a normal Java program.
+ ****************************************************************************/
+
+public class ShExpMatchBenchmark {
+	
+	private static final int WARMUP = 200000;
+	private static final int ITERATIONS = 2000000;
+	
+	private static final String[] PATTERNS = {
+		"*.unit-test.invalid", "host?.unit-test.*", "http://*/private/*", "*.site*.example.com", "10.*"
+	};
+	private static final String[] INPUTS = {
+		"host1.unit-test.invalid", "http://www.site42.example.com/private/index.html", "192.168.0.1"
+	};
+	
+	private static int matches;
+	
+	/*************************************************************************
+	 * Main entry point for the benchmark.
+	 * @param args not used.
+	 * @throws Exception on error.
+	 ************************************************************************/
+	
+	public static void main(String[] args) throws Exception {
+		final PacScriptMethods methods = new PacScriptMethods();
+		
+		BenchmarkUtil.measure("tokenizer", WARMUP, ITERATIONS, () -> {
+			for (String input : INPUTS) {
+				for (String pattern : PATTERNS) {
+					if (legacyShExpMatch(input, pattern)) {
+						matches++;
+					}
+				}
+			}
+		});
+		BenchmarkUtil.measure("compiled ", WARMUP, ITERATIONS, () -> {
+			for (String input : INPUTS) {
+				for (String pattern : PATTERNS) {
+					if (methods.shExpMatch(input, pattern)) {
+						matches++;
+					}
+				}
+			}
+		});
+		System.out.println("matches: " + matches);
+	}
+	
+	/*************************************************************************
+	 * The shExpMatch implementation before the shell expressions were 
+	 * compiled.
+	 * @param str the string to test.
+	 * @param shexp the shell expression.
+	 * @return true if the string matches.
+	 ************************************************************************/
+	
+	private static boolean legacyShExpMatch(String str, String shexp) {
+		StringTokenizer tokenizer = new StringTokenizer(shexp, "*");
+		int startPos = 0;
+		while(tokenizer.hasMoreTokens()) {
+			String token = tokenizer.nextToken();
+			int temp = str.indexOf(token, startPos);
+			if(startPos == 0 && !shexp.startsWith("*") && temp != 0) {
+				return false;
+			}
+			if(!tokenizer.hasMoreTokens() && !shexp.endsWith("*") && !str.endsWith(token)) {
+				return false;
+			}
+			if(temp == -1) {
+				return false;
+			} else {
+				startPos = temp + token.length();
+			}
+		}
+		return true;
+	}
+	
+}
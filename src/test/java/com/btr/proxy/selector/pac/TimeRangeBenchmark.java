@@ -0,0 +1,50 @@
+package com.btr.proxy.selector.pac;
+
+import com.btr.proxy.BenchmarkUtil;
+
+/*****************************************************************************
+ * Measures the date and time based PAC functions with the typical argument
+ * shapes Rhino passes to them. 
+ * Run it as a normal Java program.
+ ****************************************************************************/
+
+public class TimeRangeBenchmark {
+	
+	private static final int WARMUP = 200000;
+	private static final int ITERATIONS = 2000000;
+	private static final Object UNDEFINED = "undefined";
+	
+	private static int matches;
+	
+	/*************************************************************************
+	 * Main entry point for the benchmark.
+	 * @param args not used.
+	 * @throws Exception on error.
+	 ************************************************************************/
+	
+	public static void main(String[] args) throws Exception {
+		final PacScriptMethods methods = new PacScriptMethods();
+		final Double nine = Double.valueOf(9);
+		final Double seventeen = Double.valueOf(17);
+		final Double one = Double.valueOf(1);
+		final Double year = Double.valueOf(2030);
+		
+		BenchmarkUtil.measure("weekdayRange", WARMUP, ITERATIONS, () -> {
+			if (methods.weekdayRange("MON", "FRI", "undefined")) {
+				matches++;
+			}
+		});
+		BenchmarkUtil.measure("timeRange   ", WARMUP, ITERATIONS, () -> {
+			if (methods.timeRange(nine, seventeen, UNDEFINED, UNDEFINED, UNDEFINED, UNDEFINED, UNDEFINED)) {
+				matches++;
+			}
+		});
+		BenchmarkUtil.measure("dateRange   ", WARMUP, ITERATIONS, () -> {
+			if (methods.dateRange(one, "JAN", year, UNDEFINED, UNDEFINED, UNDEFINED, "GMT")) {
+				matches++;
+			}
+		});
+		System.out.println("matches: " + matches);
+	}
+	
+}
@@ -1,7 +1,44 @@
 package com.btr.proxy.selector.pac;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.btr.proxy.TestUtil;
+import com.btr.proxy.util.ProxyUtil;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 
 /*****************************************************************************
  * Tests for the UrlPacScriptSource. 
@@ -10,6 +47,448 @@ import org.junit.Test;
 
 public class UrlPacScriptSourceTest {
 	
+	private static final String SCRIPT = "function FindProxyForURL(url, host) { return \"DIRECT\"; } // \u00e4";
+	
+	private PacServer server;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	/*****************************************************************************
+	 * Local webserver that serves one PAC script and counts the requests and
+	 * the body bytes sent.
+	 ****************************************************************************/
+	
+	private static class PacServer implements HttpHandler {
+		final HttpServer httpServer;
+		final AtomicInteger requests = new AtomicInteger();
+		final AtomicInteger notModified = new AtomicInteger();
+		final AtomicLong bytes = new AtomicLong();
+		volatile String content = SCRIPT;
+		volatile int status = 200;
+		volatile boolean gzip;
+		volatile CountDownLatch block;
+		
+		PacServer() throws IOException {
+			this.httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+			this.httpServer.createContext("/proxy.pac", this);
+			this.httpServer.start();
+		}
+		
+		String getUrl() {
+			return "http://127.0.0.1:" + this.httpServer.getAddress().getPort() + "/proxy.pac";
+		}
+		
+		public void handle(HttpExchange exchange) throws IOException {
+			this.requests.incrementAndGet();
+			try {
+				CountDownLatch latch = this.block;
+				if (latch != null) {
+					latch.await(10, TimeUnit.SECONDS);
+				}
+				String etag = "\"" + Integer.toHexString(this.content.hashCode()) + "\"";
+				if (this.status != 200) {
+					exchange.sendResponseHeaders(this.status, -1);
+					return;
+				}
+				exchange.getResponseHeaders().set("ETag", etag);
+				if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+					this.notModified.incrementAndGet();
+					exchange.sendResponseHeaders(304, -1);
+					return;
+				}
+				byte[] body = this.content.getBytes(StandardCharsets.UTF_8);
+				String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+				if (this.gzip && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+					ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+					GZIPOutputStream out = new GZIPOutputStream(compressed);
+					out.write(body);
+					out.close();
+					body = compressed.toByteArray();
+					exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+				}
+				exchange.getResponseHeaders().set("Content-Type", "application/x-ns-proxy-autoconfig");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+				this.bytes.addAndGet(body.length);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+	
+	/*************************************************************************
+	 * Starts the local webserver.
+	 * @throws IOException on error.
+	 ************************************************************************/
+	@Before
+	public void startServer() throws IOException {
+		this.server = new PacServer();
+	}
+	
+	/*************************************************************************
+	 * Stops the local webserver.
+	 ************************************************************************/
+	@After
+	public void stopServer() {
+		CountDownLatch latch = this.server.block;
+		if (latch != null) {
+			latch.countDown();
+		}
+		this.server.httpServer.stop(0);
+	}
+	
+	/*************************************************************************
+	 * Unit Test
+	 * @throws Exception on error.
+	 ************************************************************************/
+	@Test
+	public void unchangedScriptShouldBeRevalidatedWith304() throws Exception {
+		UrlPacScriptSource source = new UrlPacScriptSource(this.server.getUrl());
+		source.setRefreshSettings(1, 0, 0, 1);
+		String first = source.getScriptContent();
+		assertEquals(SCRIPT, first);
+		long bytes = this.server.bytes.get();
+		
+		Thread.sleep(5);
+		assertSame(first, source.getScriptContent());
+		source.awaitRefresh();
+		assertEquals(2, this.server.requests.get());
+		assertEquals(1, this.server.notModified.get());
+		assertEquals(bytes, this.server.bytes.get());
+		assertSame(first, source.getScriptContent());
+	}
+	
+	/*************************************************************************
+	 * Unit Test
+	 * @throws Exception on error.
+	 ************************************************************************/
+	@Test
+	public void compressedScriptShouldBeDecoded() throws Exception {
+		StringBuilder script = new StringBuilder(SCRIPT);
+		for (int i = 0; i < 200; i++) {
+			script.append("\n// padding padding padding");
+		}
+		this.server.content = script.toString();
+		this.server.gzip = true;
+		UrlPacScriptSource source = new UrlPacScriptSource(this.server.getUrl());
+		assertEquals(script.toString(), source.getScriptContent());
+		assertTrue(this.server.bytes.get() < script.length() / 4);
+	}
+	
+	/*************************************************************************
+	 * Unit Test
+	 * @throws Exception on error.
+	 ************************************************************************/
+	@Test
+	public void oldScriptShouldBeServedWhileRefreshing() throws Exception {
+		UrlPacScriptSource source = new UrlPacScriptSource(this.server.getUrl());
+		source.setRefreshSettings(1, 0, 0, 1);
+		assertEquals(SCRIPT, source.getScriptContent());
+		
+		this.server.block = new CountDownLatch(1);
+		this.server.content = "function FindProxyForURL(url, host) { return \"PROXY new:80\"; }";
+		Thread.sleep(5);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(SCRIPT, source.getScriptContent());
+		}
+		this.server.block.countDown();
+		source.awaitRefresh();
+		assertEquals(2, this.server.requests.get());
+		assertEquals(this.server.content, source.getScriptContent());
+	}
+	
+	/*************************************************************************
+	 * Unit Test
+	 * @throws Exception on error.
+	 ************************************************************************/
+	@Test
+	public void selectionsShouldNotBeDisabledDuringRefresh() throws Exception {
+		this.server.content = "function FindProxyForURL(url, host) { return \"PROXY p:80\"; }";
+		final UrlPacScriptSource source = new UrlPacScriptSource(this.server.getUrl());
+		source.setRefreshSettings(1, 0, 0, 1);
+		source.getScriptContent();
+		
+		this.server.block = new CountDownLatch(1);
+		Thread.sleep(5);
+		source.getScriptContent();
+		for (int i = 0; i < 500 && this.server.requests.get() < 2; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(2, this.server.requests.get());
+		
+		// The refresh is blocked on the server now.
+		final URI uri = TestUtil.HTTP_TEST_URI;
+		final PacProxySelector selector = new PacProxySelector(source);
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<List<Proxy>>> results = new ArrayList<Future<List<Proxy>>>();
+			for (int i = 0; i < 64; i++) {
+				results.add(pool.submit(new Callable<List<Proxy>>() {
+					public List<Proxy> call() {
+						return selector.select(uri);
+					}
+				}));
+			}
+			for (Future<List<Proxy>> result : results) {
+				assertEquals(Proxy.Type.HTTP, result.get(10, TimeUnit.SECONDS).get(0).type());
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		
+		// Only the thread that downloads selects DIRECT.
+		List<Proxy> guarded = PacProxySelector.runWithoutPac(() -> selector.select(uri));
+		assertEquals(ProxyUtil.noProxyList(), guarded);
+		assertEquals(Proxy.Type.HTTP, selector.select(uri).get(0).type());
+		
+		this.server.block.countDown();
+		source.awaitRefresh();
+	}
+	
+	/*************************************************************************
+	 * Unit Test
+	 * @throws Exception on error.
+	 ************************************************************************/
+	@Test
+	public void failedRefreshShouldBeRetriedWithBackoff() throws Exception {
+		UrlPacScriptSource source = new UrlPacScriptSource(this.server.getUrl());
+		source.setRefreshSettings(1, 0, 0, 60 * 1000);
+		String first = source.getScriptContent();
+		
+		this.server.status = 500;
+		Thread.sleep(5);
+		source.getScriptContent();
+		source.awaitRefresh();
+		for (int i = 0; i < 10; i++) {
+			assertSame(first, source.getScriptContent());
+		}
+		source.awaitRefresh();
+		assertEquals(2, this.server.requests.get());
+	}
+	
+	/*************************************************************************
+	 * Unit Test
+	 * @throws Exception on error.
+	 ************************************************************************/
+	@Test(expected = IOException.class)
+	public void staleScriptShouldNotBeUsedAfterMaxStaleness() throws Exception {
+		UrlPacScriptSource source = new UrlPacScriptSource(this.server.getUrl());
+		source.setRefreshSettings(1, 0, 20, 1);
+		source.getScriptContent();
+		this.server.status = 500;
+		Thread.sleep(30);
+		source.getScriptContent();
+	}
+	
+	/*************************************************************************
+	 * Unit Test
+	 * @throws Exception on error.
+	 ************************************************************************/
+	@Test(expected = IOException.class)
+	public void tooLargeScriptShouldBeRejected() throws Exception {
+		UrlPacScriptSource source = new UrlPacScriptSource(this.server.getUrl());
+		source.setMaxSize(10);
+		source.getScriptContent();
+	}
+	
+	/*************************************************************************
+	 * Unit Test
+	 * @throws Exception on error.
+	 ************************************************************************/
+	@Test
+	public void storedScriptShouldBeUsedAtStartup() throws Exception {
+		UrlPacScriptSource first = new UrlPacScriptSource(this.server.getUrl());
+		first.setCache(this.folder.getRoot(), 60 * 1000);
+		assertEquals(SCRIPT, first.getScriptContent());
+		
+		// The server hangs, but the stored script is used at once.
+		this.server.block = new CountDownLatch(1);
+		UrlPacScriptSource second = new UrlPacScriptSource(this.server.getUrl());
+		second.setCache(this.folder.getRoot(), 60 * 1000);
+		assertTrue(second.isScriptValid());
+		assertEquals(SCRIPT, second.getScriptContent());
+		
+		this.server.block.countDown();
+		second.awaitRefresh();
+		assertEquals(2, this.server.requests.get());
+		assertEquals(1, this.server.notModified.get());
+		assertEquals(SCRIPT, second.getScriptContent());
+	}
+	
+	/*************************************************************************
+	 * Unit Test
+	 * @throws Exception on error.
+	 ************************************************************************/
+	@Test(expected = IOException.class)
+	public void storedScriptShouldNotBeUsedAfterMaxAge() throws Exception {
+		UrlPacScriptSource first = new UrlPacScriptSource(this.server.getUrl());
+		first.setCache(this.folder.getRoot(), 20);
+		first.getScriptContent();
+		
+		this.server.status = 500;
+		Thread.sleep(30);
+		UrlPacScriptSource second = new UrlPacScriptSource(this.server.getUrl());
+		second.setCache(this.folder.getRoot(), 20);
+		second.getScriptContent();
+	}
+	
+	/*************************************************************************
+	 * Unit Test
+	 * @throws Exception on error.
+	 ************************************************************************/
+	@Test
+	public void modifiedCacheFileShouldBeIgnored() throws Exception {
+		UrlPacScriptSource first = new UrlPacScriptSource(this.server.getUrl());
+		first.setCache(this.folder.getRoot(), 60 * 1000);
+		first.getScriptContent();
+		
+		File[] files = this.folder.getRoot().listFiles();
+		assertEquals(1, files.length);
+		String stored = new String(Files.readAllBytes(files[0].toPath()), StandardCharsets.UTF_8);
+		Files.write(files[0].toPath(), stored.replace("DIRECT", "PROXY evil\\:80").getBytes(StandardCharsets.UTF_8));
+		
+		this.server.content = "function FindProxyForURL(url, host) { return \"PROXY new:80\"; }";
+		UrlPacScriptSource second = new UrlPacScriptSource(this.server.getUrl());
+		second.setCache(this.folder.getRoot(), 60 * 1000);
+		assertEquals(this.server.content, second.getScriptContent());
+		assertEquals(2, this.server.requests.get());
+	}
+	
+	/*************************************************************************
+	 * Unit Test
+	 * @throws Exception on error.
+	 ************************************************************************/
+	@Test
+	public void cacheFilesShouldOnlyBeAccessibleByTheOwner() throws Exception {
+		Assume.assumeTrue(this.folder.getRoot().toPath().getFileSystem().supportedFileAttributeViews().contains("posix"));
+		File dir = new File(this.folder.getRoot(), "cache");
+		UrlPacScriptSource source = new UrlPacScriptSource(this.server.getUrl());
+		source.setCache(dir, 60 * 1000);
+		source.getScriptContent();
+		
+		File[] files = dir.listFiles();
+		assertEquals(1, files.length);
+		assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(dir.toPath())));
+		assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(files[0].toPath())));
+	}
+	
+	/*************************************************************************
+	 * Unit Test
+	 * @throws Exception on error.
+	 ************************************************************************/
+	@Test
+	public void plantedWorldWritableCacheFileShouldBeIgnored() throws Exception {
+		Assume.assumeTrue(this.folder.getRoot().toPath().getFileSystem().supportedFileAttributeViews().contains("posix"));
+		UrlPacScriptSource first = new UrlPacScriptSource(this.server.getUrl());
+		first.setCache(this.folder.getRoot(), 60 * 1000);
+		first.getScriptContent();
+		File[] files = this.folder.getRoot().listFiles();
+		assertEquals(1, files.length);
+		
+		// A consistent file, as anyone who can write to it could create.
+		String evil = "function FindProxyForURL(url, host) { return \"PROXY evil:80\"; }";
+		Properties planted = new Properties();
+		planted.setProperty("url", this.server.getUrl());
+		planted.setProperty("content", evil);
+		planted.setProperty("sha256", PacScriptRegistry.hash(evil));
+		planted.setProperty("validatedAt", Long.toString(System.currentTimeMillis()));
+		Path file = files[0].toPath();
+		OutputStream out = Files.newOutputStream(file);
+		try {
+			planted.store(out, null);
+		} finally {
+			out.close();
+		}
+		Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-rw-rw-"));
+		
+		UrlPacScriptSource second = new UrlPacScriptSource(this.server.getUrl());
+		second.setCache(this.folder.getRoot(), 60 * 1000);
+		assertEquals(SCRIPT, second.getScriptContent());
+		assertEquals(2, this.server.requests.get());
+	}
+	
+	/*************************************************************************
+	 * Unit Test
+	 * @throws Exception on error.
+	 ************************************************************************/
+	@Test
+	public void localFileShouldBeReloadedWhenChanged() throws Exception {
+		File file = this.folder.newFile("proxy.pac");
+		Files.write(file.toPath(), SCRIPT.getBytes(StandardCharsets.UTF_8));
+		UrlPacScriptSource source = new UrlPacScriptSource(file.toURI().toString());
+		String first = source.getScriptContent();
+		assertEquals(SCRIPT, first);
+		
+		String changed = "function FindProxyForURL(url, host) { return \"PROXY new:80\"; }";
+		Files.write(file.toPath(), changed.getBytes(StandardCharsets.UTF_8));
+		for (int i = 0; i < 1000 && source.getScriptContent() == first; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(changed, source.getScriptContent());
+	}
+	
+	/*************************************************************************
+	 * Unit Test
+	 * @throws Exception on error.
+	 ************************************************************************/
+	@Test
+	public void unchangedLocalFileShouldKeepScript() throws Exception {
+		File file = this.folder.newFile("proxy.pac");
+		Files.write(file.toPath(), SCRIPT.getBytes(StandardCharsets.UTF_8));
+		UrlPacScriptSource source = new UrlPacScriptSource(file.getAbsolutePath());
+		String first = source.getScriptContent();
+		
+		Files.write(file.toPath(), SCRIPT.getBytes(StandardCharsets.UTF_8));
+		assertFalse(source.fileChanged());
+		assertSame(first, source.getScriptContent());
+		
+		file.delete();
+		assertFalse(source.fileChanged());
+		assertSame(first, source.getScriptContent());
+	}
+	
+	/*************************************************************************
+	 * Unit Test
+	 * @throws Exception on error.
+	 ************************************************************************/
+	@Test
+	public void largeLocalFileShouldBeDecoded() throws Exception {
+		StringBuilder script = new StringBuilder(SCRIPT);
+		while (script.length() < 128 * 1024) {
+			script.append("\n// \u00e4\u00f6\u00fc padding");
+		}
+		File file = this.folder.newFile("large.pac");
+		Files.write(file.toPath(), script.toString().getBytes(StandardCharsets.UTF_8));
+		UrlPacScriptSource source = new UrlPacScriptSource(file.toURI().toString());
+		String first = source.getScriptContent();
+		assertEquals(script.toString(), first);
+		
+		// Same script in another charset, so the hash does not change.
+		Files.write(file.toPath(), script.toString().getBytes(StandardCharsets.ISO_8859_1));
+		assertFalse(source.fileChanged());
+		assertSame(first, source.getScriptContent());
+	}
+	
+	/*************************************************************************
+	 * Unit Test
+	 * @throws Exception on error.
+	 ************************************************************************/
+	@Test
+	public void zeroTimeoutShouldMeanNoTimeout() throws Exception {
+		System.setProperty(UrlPacScriptSource.OVERRIDE_READ_TIMEOUT, "0");
+		try {
+			UrlPacScriptSource source = new UrlPacScriptSource(this.server.getUrl());
+			assertEquals(SCRIPT, source.getScriptContent());
+		} finally {
+			System.clearProperty(UrlPacScriptSource.OVERRIDE_READ_TIMEOUT);
+		}
+	}
+	
 	/*************************************************************************
 	 * Unit Test
 	 ************************************************************************/